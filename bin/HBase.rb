@@ -267,7 +267,7 @@ module HBase
         unless name
       name = makeColumnName(name)
       # TODO: What encoding are Strings in jruby?
-      return HColumnDescriptor.new(name.to_java_bytes,
+      hcd = HColumnDescriptor.new(name.to_java_bytes,
         # JRuby uses longs for ints. Need to convert.  Also constants are String 
         arg[VERSIONS]? JInteger.new(arg[VERSIONS]): HColumnDescriptor::DEFAULT_VERSIONS,
         arg[HColumnDescriptor::COMPRESSION]? arg[HColumnDescriptor::COMPRESSION]: HColumnDescriptor::DEFAULT_COMPRESSION,
@@ -277,6 +277,11 @@ module HBase
         arg[HColumnDescriptor::LENGTH]? JInteger.new(arg[HColumnDescriptor::LENGTH]): HColumnDescriptor::DEFAULT_LENGTH,
         arg[HColumnDescriptor::TTL]? JInteger.new(arg[HColumnDescriptor::TTL]): HColumnDescriptor::DEFAULT_TTL,
         arg[HColumnDescriptor::BLOOMFILTER]? JBoolean.valueOf(arg[HColumnDescriptor::BLOOMFILTER]): HColumnDescriptor::DEFAULT_BLOOMFILTER)
+      # Bloom filter type is not in the constructor; ROW or ROWCOL.
+      if arg[HColumnDescriptor::BLOOMFILTER_TYPE]
+        hcd.setBloomfilterType(HColumnDescriptor::BloomType.valueOf(arg[HColumnDescriptor::BLOOMFILTER_TYPE].upcase))
+      end
+      return hcd
     end
   end
 
@@ -77,6 +77,7 @@ public class HColumnDescriptor implements ISerializable, WritableComparable<HCol
   public static final String LENGTH = "LENGTH";
   public static final String TTL = "TTL";
   public static final String BLOOMFILTER = "BLOOMFILTER";
+  public static final String BLOOMFILTER_TYPE = "BLOOMFILTER_TYPE";
   public static final String FOREVER = "FOREVER";
   public static final String MAPFILE_INDEX_INTERVAL =
       "MAPFILE_INDEX_INTERVAL";
@@ -128,10 +129,28 @@ public class HColumnDescriptor implements ISerializable, WritableComparable<HCol
    */
   public static final int DEFAULT_BLOCKSIZE = HFile.DEFAULT_BLOCKSIZE;
 
+  /**
+   * What a store file bloom filter is made over.
+   */
+  public static enum BloomType {
+    /** Row keys.  Helps any lookup of a row. */
+    ROW,
+    /**
+     * Row and column.  Only helps lookups of explicit columns but is more
+     * selective on wide rows.
+     */
+    ROWCOL
+  }
+
   /**
    * Default setting for whether or not to use bloomfilters.
    */
   public static final boolean DEFAULT_BLOOMFILTER = false;
+
+  /**
+   * Default bloom filter type, used when bloomfilters are enabled.
+   */
+  public static final BloomType DEFAULT_BLOOMFILTER_TYPE = BloomType.ROW;
   
   /**
    * Default time to live of cell contents.
@@ -517,6 +536,25 @@ public class HColumnDescriptor implements ISerializable, WritableComparable<HCol
     setValue(BLOOMFILTER, Boolean.toString(onOff));
   }
 
+  /**
+   * @return What bloom filters are made over when enabled.
+   */
+  @TOJSON
+  public BloomType getBloomfilterType() {
+    String value = getValue(BLOOMFILTER_TYPE);
+    if (value != null)
+      return BloomType.valueOf(value);
+    return DEFAULT_BLOOMFILTER_TYPE;
+  }
+
+  /**
+   * @param type What bloom filters are to be made over.  Only used when
+   * bloom filters are enabled; see {@link #setBloomfilter(boolean)}.
+   */
+  public void setBloomfilterType(final BloomType type) {
+    setValue(BLOOMFILTER_TYPE, type.toString());
+  }
+
   /**
    * @param interval The number of entries that are added to the store MapFile before
    * an index entry is added.
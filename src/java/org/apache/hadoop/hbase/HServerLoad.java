@@ -23,6 +23,8 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 
 import org.apache.hadoop.hbase.util.Strings;
 import org.apache.hadoop.io.Writable;
@@ -60,6 +62,10 @@ public class HServerLoad implements WritableComparable<HServerLoad> {
     private int memcacheSizeMB;
     /** the current total size of storefile indexes for the region, in MB */
     private int storefileIndexSizeMB;
+    /** the total size of the storefiles for the region, in MB */
+    private int storefileSizeMB;
+    /** the number of requests to the region since last report */
+    private int requests;
 
     /**
      * Constructor, for Writable
@@ -85,6 +91,24 @@ public class HServerLoad implements WritableComparable<HServerLoad> {
       this.storefileIndexSizeMB = storefileIndexSizeMB;
     }
 
+    /**
+     * @param name
+     * @param stores
+     * @param storefiles
+     * @param memcacheSizeMB
+     * @param storefileIndexSizeMB
+     * @param storefileSizeMB
+     * @param requests
+     */
+    public RegionLoad(final byte[] name, final int stores,
+        final int storefiles, final int memcacheSizeMB,
+        final int storefileIndexSizeMB, final int storefileSizeMB,
+        final int requests) {
+      this(name, stores, storefiles, memcacheSizeMB, storefileIndexSizeMB);
+      this.storefileSizeMB = storefileSizeMB;
+      this.requests = requests;
+    }
+
     // Getters
 
     /**
@@ -122,6 +146,20 @@ public class HServerLoad implements WritableComparable<HServerLoad> {
       return storefileIndexSizeMB;
     }
 
+    /**
+     * @return the total size of the storefiles, in MB
+     */
+    public int getStorefileSizeMB() {
+      return storefileSizeMB;
+    }
+
+    /**
+     * @return the number of requests since last report
+     */
+    public int getRequests() {
+      return requests;
+    }
+
     // Setters
 
     /**
@@ -160,6 +198,20 @@ public class HServerLoad implements WritableComparable<HServerLoad> {
       this.storefileIndexSizeMB = storefileIndexSizeMB;
     }
 
+    /**
+     * @param storefileSizeMB the total size of the storefiles, in MB
+     */
+    public void setStorefileSizeMB(int storefileSizeMB) {
+      this.storefileSizeMB = storefileSizeMB;
+    }
+
+    /**
+     * @param requests the number of requests since last report
+     */
+    public void setRequests(int requests) {
+      this.requests = requests;
+    }
+
     // Writable
     public void readFields(DataInput in) throws IOException {
       int namelen = in.readInt();
@@ -169,6 +221,8 @@ public class HServerLoad implements WritableComparable<HServerLoad> {
       this.storefiles = in.readInt();
       this.memcacheSizeMB = in.readInt();
       this.storefileIndexSizeMB = in.readInt();
+      this.storefileSizeMB = in.readInt();
+      this.requests = in.readInt();
     }
 
     public void write(DataOutput out) throws IOException {
@@ -178,6 +232,8 @@ public class HServerLoad implements WritableComparable<HServerLoad> {
       out.writeInt(storefiles);
       out.writeInt(memcacheSizeMB);
       out.writeInt(storefileIndexSizeMB);
+      out.writeInt(storefileSizeMB);
+      out.writeInt(requests);
     }
 
     /**
@@ -193,6 +249,10 @@ public class HServerLoad implements WritableComparable<HServerLoad> {
         Integer.valueOf(this.memcacheSizeMB));
       sb = Strings.appendKeyValue(sb, "storefileIndexSize",
         Integer.valueOf(this.storefileIndexSizeMB));
+      sb = Strings.appendKeyValue(sb, "storefileSize",
+        Integer.valueOf(this.storefileSizeMB));
+      sb = Strings.appendKeyValue(sb, "requests",
+        Integer.valueOf(this.requests));
       return sb.toString();
     }
   }
@@ -342,6 +402,23 @@ public class HServerLoad implements WritableComparable<HServerLoad> {
     return count;
   }
 
+  /**
+   * @return Size of store files in MB
+   */
+  public int getStorefileSizeInMB() {
+    int count = 0;
+    for (RegionLoad info: regionLoad)
+      count += info.getStorefileSizeMB();
+    return count;
+  }
+
+  /**
+   * @return Per-region load metrics
+   */
+  public Collection<RegionLoad> getRegionsLoad() {
+    return Collections.unmodifiableCollection(this.regionLoad);
+  }
+
   /**
    * @return Size of store file indexes in MB
    */
@@ -23,8 +23,10 @@ import java.io.IOException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.io.HeapSize;
 import org.apache.hadoop.hbase.io.hfile.HFile;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.ClassSize;
 import org.apache.hadoop.io.RawComparator;
 
 /**
@@ -48,7 +50,7 @@ import org.apache.hadoop.io.RawComparator;
  * <p>TODO: Group Key-only compartors and operations into a Key class, just
  * for neatness sake, if can figure what to call it.
  */
-public class KeyValue {
+public class KeyValue implements HeapSize {
   static final Log LOG = LogFactory.getLog(KeyValue.class);
 
   /**
@@ -194,6 +196,10 @@ public class KeyValue {
   private final int offset;
   private final int length;
 
+  /** Overhead of a KeyValue less the bytes it is backed by */
+  public static final long FIXED_OVERHEAD = ClassSize.align(ClassSize.OBJECT +
+    ClassSize.REFERENCE + (2 * Bytes.SIZEOF_INT));
+
   /**
    * Creates a KeyValue from the start of the specified byte array.
    * Presumes <code>bytes</code> content is formatted as a KeyValue blob.
@@ -581,6 +587,14 @@ public class KeyValue {
     return length;
   }
 
+  /**
+   * Counts only the part of the backing array this KeyValue occupies, as
+   * though it had an array of its own.
+   */
+  public long heapSize() {
+    return FIXED_OVERHEAD + ClassSize.sizeOfByteArray(this.length);
+  }
+
   /*
    * Determines the total length of the KeyValue stored in the specified
    * byte array and offset.  Includes all headers.
@@ -21,6 +21,9 @@ package org.apache.hadoop.hbase;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.io.HeapSize;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.ClassSize;
 
 import java.util.ConcurrentModificationException;
 import java.util.HashMap;
@@ -50,8 +53,17 @@ import java.io.IOException;
  * can be interrupted when there is something to do, rather than the Chore
  * sleep time which is invariant.
  */
-public class Leases extends Thread {
+public class Leases extends Thread implements HeapSize {
   private static final Log LOG = LogFactory.getLog(Leases.class.getName());
+
+  /**
+   * Overhead of a lease less its name: the Lease, its map entry and its
+   * slot in the queue
+   */
+  public static final long LEASE_OVERHEAD = ClassSize.align(ClassSize.OBJECT +
+    (2 * ClassSize.REFERENCE) + Bytes.SIZEOF_LONG) + ClassSize.HASHMAP_ENTRY +
+    ClassSize.REFERENCE;
+
   private final int leasePeriod;
   private final int leaseCheckFrequency;
   private volatile DelayQueue<Lease> leaseQueue = new DelayQueue<Lease>();
@@ -209,6 +221,21 @@ public class Leases extends Thread {
     }
   }
 
+  /**
+   * @return Estimated heap taken by outstanding leases, their names
+   * included.  Does not count the listeners, which belong to the lease
+   * holders.
+   */
+  public long heapSize() {
+    long size = 0;
+    synchronized (leaseQueue) {
+      for (String name: leases.keySet()) {
+        size += LEASE_OVERHEAD + ClassSize.sizeOfString(name);
+      }
+    }
+    return size;
+  }
+
   /** This class tracks a single Lease. */
   private static class Lease implements Delayed {
     private final String leaseName;
@@ -20,15 +20,27 @@
 package org.apache.hadoop.hbase.client;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.lang.reflect.UndeclaredThrowableException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -148,6 +160,15 @@ public class HConnectionManager implements HConstants {
 
     private ZooKeeperWrapper zooKeeperWrapper;
 
+    // Sends batches of updates to many regionservers at once.
+    private final int batchThreads;
+    private ExecutorService batchPool = null;
+
+    // Totals for batches of updates, for logging.
+    private final AtomicLong batchRows = new AtomicLong(0);
+    private final AtomicLong batchRPCs = new AtomicLong(0);
+    private final AtomicLong batchRetries = new AtomicLong(0);
+
     /** 
      * constructor
      * @param conf Configuration object
@@ -173,6 +194,7 @@ public class HConnectionManager implements HConstants {
       this.pause = conf.getLong("hbase.client.pause", 2 * 1000);
       this.numRetries = conf.getInt("hbase.client.retries.number", 10);
       this.maxRPCAttempts = conf.getInt("hbase.client.rpc.maxattempts", 1);
+      this.batchThreads = conf.getInt("hbase.client.batch.threads", 10);
       
       this.master = null;
       this.masterChecked = false;
@@ -977,29 +999,214 @@ public class HConnectionManager implements HConstants {
       if (list.isEmpty()) {
         return;
       }
-      boolean retryOnlyOne = false;
-      int tries = 0;
+      long start = System.currentTimeMillis();
       Collections.sort(list);
-      List<BatchUpdate> tempUpdates = new ArrayList<BatchUpdate>();
-      HRegionLocation location =
-        getRegionLocationForRowWithRetries(tableName, list.get(0).getRow(),
-            false);
-      byte [] currentRegion = location.getRegionInfo().getRegionName();
-      byte [] region = currentRegion;
-      boolean isLastRow = false;
-      for (int i = 0; i < list.size() && tries < numRetries; i++) {
-        BatchUpdate batchUpdate = list.get(i);
-        tempUpdates.add(batchUpdate);
-        isLastRow = (i + 1) == list.size();
-        if (!isLastRow) {
-          location = getRegionLocationForRowWithRetries(tableName,
-            list.get(i+1).getRow(), false);
-          region = location.getRegionInfo().getRegionName();
+      List<BatchUpdate> pending = list;
+      int regions = 0;
+      int tries = 0;
+      for (; tries < numRetries; tries++) {
+        if (tries > 0) {
+          long sleepTime = getPauseTime(tries - 1);
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Reloading locations of " + pending.size() +
+              " rows because regionservers didn't accept updates; tries=" +
+              tries + " of max=" + this.numRetries + ", waiting=" +
+              sleepTime + "ms");
+          }
+          try {
+            Thread.sleep(sleepTime);
+          } catch (InterruptedException e) {
+            // continue
+          }
+        }
+        Map<String, Map<byte [], List<BatchUpdate>>> byServer =
+          groupByServer(tableName, pending, tries > 0);
+        List<Callable<List<BatchUpdate>>> batches =
+          new ArrayList<Callable<List<BatchUpdate>>>(byServer.size());
+        for (Map<byte [], List<BatchUpdate>> r: byServer.values()) {
+          regions += r.size();
+          batches.add(new ServerBatch(tableName, r));
+        }
+        List<BatchUpdate> failed = new ArrayList<BatchUpdate>();
+        for (List<BatchUpdate> f: runBatches(batches)) {
+          failed.addAll(f);
+        }
+        if (failed.isEmpty()) {
+          break;
+        }
+        Collections.sort(failed);
+        pending = failed;
+      }
+      if (tries == numRetries) {
+        throw new RetriesExhaustedException("Some server",
+          HConstants.EMPTY_BYTE_ARRAY, pending.get(0).getRow(), tries,
+          new ArrayList<Throwable>());
+      }
+      this.batchRows.addAndGet(list.size());
+      this.batchRPCs.addAndGet(regions);
+      this.batchRetries.addAndGet(tries);
+      if (LOG.isDebugEnabled() && (list.size() > 1 || tries > 0)) {
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        LOG.debug("Sent " + list.size() + " rows to " +
+          Bytes.toString(tableName) + " in " + regions + " calls, " +
+          elapsed + "ms (" + (list.size() * 1000L / elapsed) + " rows/s), " +
+          "retries=" + tries + "; totals: rows=" + this.batchRows.get() +
+          ", calls=" + this.batchRPCs.get() + ", retries=" +
+          this.batchRetries.get());
+      }
+    }
+
+    /*
+     * Group sorted updates by the server and region they go to.  Locations
+     * are looked up once per region rather than once per row.
+     * @param tableName
+     * @param updates Sorted updates.
+     * @param reload True if cached locations should be reloaded.
+     * @return Map of server address to map of region name to its updates.
+     * @throws IOException
+     */
+    private Map<String, Map<byte [], List<BatchUpdate>>> groupByServer(
+        final byte [] tableName, final List<BatchUpdate> updates,
+        final boolean reload)
+    throws IOException {
+      Map<String, Map<byte [], List<BatchUpdate>>> byServer =
+        new HashMap<String, Map<byte [], List<BatchUpdate>>>();
+      HRegionLocation location = null;
+      List<BatchUpdate> regionUpdates = null;
+      for (BatchUpdate b: updates) {
+        if (location == null ||
+            !inRegion(location.getRegionInfo(), b.getRow())) {
+          location =
+            getRegionLocationForRowWithRetries(tableName, b.getRow(), reload);
+          String server = location.getServerAddress().toString();
+          Map<byte [], List<BatchUpdate>> regions = byServer.get(server);
+          if (regions == null) {
+            regions = new TreeMap<byte [], List<BatchUpdate>>(
+              Bytes.BYTES_COMPARATOR);
+            byServer.put(server, regions);
+          }
+          byte [] regionName = location.getRegionInfo().getRegionName();
+          regionUpdates = regions.get(regionName);
+          if (regionUpdates == null) {
+            regionUpdates = new ArrayList<BatchUpdate>();
+            regions.put(regionName, regionUpdates);
+          }
         }
-        if (!Bytes.equals(currentRegion, region) || isLastRow || retryOnlyOne) {
-          final BatchUpdate[] updates = tempUpdates.toArray(new BatchUpdate[0]);
+        regionUpdates.add(b);
+      }
+      return byServer;
+    }
+
+    /*
+     * @param info
+     * @param row
+     * @return True if <code>row</code> falls inside the region.
+     */
+    private static boolean inRegion(final HRegionInfo info, final byte [] row) {
+      byte [] endKey = info.getEndKey();
+      return Bytes.compareTo(info.getStartKey(), row) <= 0 &&
+        (endKey.length == 0 || Bytes.compareTo(row, endKey) < 0);
+    }
+
+    /*
+     * Run the per-server batches, concurrently if there is more than one.
+     * Waits on all of them, even if some fail.
+     * @param batches
+     * @return Updates not accepted, by batch.
+     * @throws IOException First failure, if any.
+     */
+    private List<List<BatchUpdate>> runBatches(
+        final List<Callable<List<BatchUpdate>>> batches)
+    throws IOException {
+      List<List<BatchUpdate>> results =
+        new ArrayList<List<BatchUpdate>>(batches.size());
+      if (batches.size() == 1) {
+        try {
+          results.add(batches.get(0).call());
+        } catch (IOException e) {
+          throw e;
+        } catch (Exception e) {
+          throw new IOException(e.toString());
+        }
+        return results;
+      }
+      ExecutorService pool = getBatchPool();
+      List<Future<List<BatchUpdate>>> futures =
+        new ArrayList<Future<List<BatchUpdate>>>(batches.size());
+      for (Callable<List<BatchUpdate>> b: batches) {
+        futures.add(pool.submit(b));
+      }
+      IOException failure = null;
+      for (Future<List<BatchUpdate>> f: futures) {
+        try {
+          results.add(f.get());
+        } catch (InterruptedException e) {
+          if (failure == null) {
+            failure = new InterruptedIOException("Interrupted sending updates");
+          }
+        } catch (ExecutionException e) {
+          if (failure == null) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+              failure = (IOException)cause;
+            } else {
+              failure = new IOException("Failed sending updates");
+              failure.initCause(cause);
+            }
+          }
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      return results;
+    }
+
+    /*
+     * @return Pool that sends batches to regionservers, made on first use.
+     */
+    private synchronized ExecutorService getBatchPool() {
+      if (this.batchPool == null || this.batchPool.isShutdown()) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(this.batchThreads,
+          this.batchThreads, 60, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            public Thread newThread(Runnable r) {
+              Thread t =
+                new Thread(r, "BatchUpdater-" + count.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            }
+          });
+        pool.allowCoreThreadTimeOut(true);
+        this.batchPool = pool;
+      }
+      return this.batchPool;
+    }
+
+    /*
+     * Sends the updates for each of the regions of one server, one region at
+     * a time.  Returns the updates a region did not take, those from the
+     * index the server handed back on.
+     */
+    private class ServerBatch implements Callable<List<BatchUpdate>> {
+      private final byte [] tableName;
+      private final Map<byte [], List<BatchUpdate>> regions;
+
+      ServerBatch(final byte [] tableName,
+          final Map<byte [], List<BatchUpdate>> regions) {
+        this.tableName = tableName;
+        this.regions = regions;
+      }
+
+      public List<BatchUpdate> call() throws IOException {
+        List<BatchUpdate> failed = new ArrayList<BatchUpdate>();
+        for (List<BatchUpdate> regionUpdates: this.regions.values()) {
+          final BatchUpdate [] updates =
+            regionUpdates.toArray(new BatchUpdate[regionUpdates.size()]);
           int index = getRegionServerWithRetries(new ServerCallable<Integer>(
-              this, tableName, batchUpdate.getRow()) {
+              TableServers.this, this.tableName, updates[0].getRow()) {
             public Integer call() throws IOException {
               int i = server.batchUpdates(location.getRegionInfo()
                   .getRegionName(), updates);
@@ -1007,40 +1214,20 @@ public class HConnectionManager implements HConstants {
             }
           });
           if (index != -1) {
-            if (tries == numRetries - 1) {
-              throw new RetriesExhaustedException("Some server",
-                  currentRegion, batchUpdate.getRow(), 
-                  tries, new ArrayList<Throwable>());
-            }
-            long sleepTime = getPauseTime(tries);
-            if (LOG.isDebugEnabled()) {
-              LOG.debug("Reloading region " + Bytes.toString(currentRegion) +
-                " location because regionserver didn't accept updates; " +
-                "tries=" + tries +
-                " of max=" + this.numRetries + ", waiting=" + sleepTime + "ms");
-            }
-            try {
-              Thread.sleep(sleepTime);
-              tries++;
-            } catch (InterruptedException e) {
-              // continue
-            }
-            i = i - updates.length + index;
-            retryOnlyOne = true;
-            location = getRegionLocationForRowWithRetries(tableName, 
-              list.get(i + 1).getRow(), true);
-            region = location.getRegionInfo().getRegionName();
-          }
-          else {
-            retryOnlyOne = false;
+            failed.addAll(regionUpdates.subList(index, regionUpdates.size()));
           }
-          currentRegion = region;
-          tempUpdates.clear();
         }
+        return failed;
       }
     }
 
     void close(boolean stopProxy) {
+      synchronized (this) {
+        if (this.batchPool != null) {
+          this.batchPool.shutdown();
+          this.batchPool = null;
+        }
+      }
       if (master != null) {
         if (stopProxy) {
           HBaseRPC.stopProxy(master);
@@ -1493,6 +1493,71 @@ public class HTable {
     );
   }
 
+  /**
+   * Atomically increment many counters, with one call per region holding
+   * them.
+   * @param rows Row of each counter.
+   * @param columns Column of each counter.
+   * @param amounts Amount to add to each counter.
+   * @return New value of each counter.
+   * @throws IOException
+   */
+  public long [] incrementColumnValues(final byte [][] rows,
+      final byte [][] columns, final long [] amounts)
+  throws IOException {
+    if (rows.length != columns.length || rows.length != amounts.length) {
+      throw new IllegalArgumentException("Need a column and amount per row");
+    }
+    // Group the counters by the region holding them.
+    Map<byte [], List<Integer>> regions =
+      new TreeMap<byte [], List<Integer>>(Bytes.BYTES_COMPARATOR);
+    for (int i = 0; i < rows.length; i++) {
+      byte [] regionName = connection.getRegionLocation(tableName, rows[i],
+        false).getRegionInfo().getRegionName();
+      List<Integer> indexes = regions.get(regionName);
+      if (indexes == null) {
+        indexes = new ArrayList<Integer>();
+        regions.put(regionName, indexes);
+      }
+      indexes.add(Integer.valueOf(i));
+    }
+    long [] results = new long[rows.length];
+    for (List<Integer> indexes: regions.values()) {
+      // A region that split since we looked applies only what it still
+      // holds; send the rest again.
+      int done = 0;
+      while (done < indexes.size()) {
+        int n = indexes.size() - done;
+        final byte [][] r = new byte[n][];
+        final byte [][] c = new byte[n][];
+        final long [] a = new long[n];
+        for (int j = 0; j < n; j++) {
+          int index = indexes.get(done + j).intValue();
+          r[j] = rows[index];
+          c[j] = columns[index];
+          a[j] = amounts[index];
+        }
+        long [] values = connection.getRegionServerWithRetries(
+          new ServerCallable<long []>(connection, tableName, r[0]) {
+            public long [] call() throws IOException {
+              return server.incrementColumnValues(
+                location.getRegionInfo().getRegionName(), r, c, a);
+            }
+          }
+        );
+        if (values == null || values.length == 0) {
+          throw new IOException("No counters incremented in region of " +
+            Bytes.toString(r[0]));
+        }
+        for (int j = 0; j < values.length; j++) {
+          results[indexes.get(done + j).intValue()] = values[j];
+        }
+        done += values.length;
+      }
+    }
+    return results;
+  }
+
   /**
    * Implements the scanner interface for the HBase client.
    * If there are multiple regions in a table, this scanner will iterate
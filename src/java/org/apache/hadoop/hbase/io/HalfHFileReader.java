@@ -63,7 +63,21 @@ public class HalfHFileReader extends HFile.Reader {
   public HalfHFileReader(final FileSystem fs, final Path p, final BlockCache c,
     final Reference r)
   throws IOException {
-    super(fs, p, c);
+    this(fs, p, c, r, false);
+  }
+
+  /**
+   * @param fs
+   * @param p
+   * @param c
+   * @param r
+   * @param inMemory
+   * @throws IOException
+   */
+  public HalfHFileReader(final FileSystem fs, final Path p, final BlockCache c,
+    final Reference r, final boolean inMemory)
+  throws IOException {
+    super(fs, p, c, inMemory);
     // This is not actual midkey for this half-file; its just border
     // around which we split top and bottom.  Have to look in files to find
     // actual last and first keys for bottom and top halves.  Half-files don't
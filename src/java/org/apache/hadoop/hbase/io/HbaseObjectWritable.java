@@ -133,6 +133,7 @@ public class HbaseObjectWritable implements Writable, Configurable {
       e.printStackTrace();
     }
     addToMap(BatchUpdate[].class, code++);
+    addToMap(long [].class, code++);
   }
   
   private Class<?> declaredClass;
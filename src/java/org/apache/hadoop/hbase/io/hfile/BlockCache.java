@@ -22,21 +22,30 @@ package org.apache.hadoop.hbase.io.hfile;
 import java.nio.ByteBuffer;
 
 /**
- * Block cache interface.
- * TODO: Add filename or hash of filename to block cache key.
+ * Block cache interface.  Blocks are keyed by file and offset in file; see
+ * {@link BlockCacheKey}.
  */
 public interface BlockCache {
   /**
    * Add block to cache.
-   * @param blockName Zero-based file block number.
+   * @param cacheKey The block's file and offset.
    * @param buf The block contents wrapped in a ByteBuffer.
    */
-  public void cacheBlock(String blockName, ByteBuffer buf);
+  public void cacheBlock(BlockCacheKey cacheKey, ByteBuffer buf);
+
+  /**
+   * Add block to cache.
+   * @param cacheKey The block's file and offset.
+   * @param buf The block contents wrapped in a ByteBuffer.
+   * @param inMemory Whether block should be treated as in-memory
+   */
+  public void cacheBlock(BlockCacheKey cacheKey, ByteBuffer buf,
+    boolean inMemory);
   
   /**
    * Fetch block from cache.
-   * @param blockName Block number to fetch.
+   * @param cacheKey The block's file and offset.
    * @return Block or null if block is not in the cache.
    */
-  public ByteBuffer getBlock(String blockName);  
+  public ByteBuffer getBlock(BlockCacheKey cacheKey);
 }
\ No newline at end of file
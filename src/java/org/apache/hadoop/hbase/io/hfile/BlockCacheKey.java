@@ -0,0 +1,96 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import org.apache.hadoop.hbase.io.HeapSize;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.ClassSize;
+
+/**
+ * Cache key for a block: the file the block is in plus the block's offset in
+ * that file.
+ * <p>
+ * The file is identified by its name.  All keys made by one
+ * {@link HFile.Reader} share the one name instance, so building a key does
+ * not copy or concatenate strings and <code>equals</code> usually gets away
+ * with an identity check.  The hash is computed once, on construction.
+ * Readers keep the keys of the blocks they have read so the read path
+ * does not allocate a key per lookup.
+ */
+public class BlockCacheKey implements HeapSize {
+  /** Overhead of a key less the file name, which is shared with the reader */
+  public static final long OVERHEAD = ClassSize.align(ClassSize.OBJECT +
+    ClassSize.REFERENCE + Bytes.SIZEOF_LONG + Bytes.SIZEOF_INT);
+
+  private final String hfileName;
+  private final long offset;
+  private final int hash;
+
+  /**
+   * @param hfileName Name of the file the block belongs to.
+   * @param offset Offset of the block in the file.
+   */
+  public BlockCacheKey(final String hfileName, final long offset) {
+    this.hfileName = hfileName;
+    this.offset = offset;
+    this.hash = (hfileName.hashCode() * 127) + (int)(offset ^ (offset >>> 32));
+  }
+
+  @Override
+  public int hashCode() {
+    return this.hash;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof BlockCacheKey)) {
+      return false;
+    }
+    BlockCacheKey k = (BlockCacheKey)o;
+    return this.offset == k.offset && this.hash == k.hash &&
+      this.hfileName.equals(k.hfileName);
+  }
+
+  @Override
+  public String toString() {
+    return this.hfileName + "_" + this.offset;
+  }
+
+  /**
+   * @return Name of the file the block belongs to.
+   */
+  public String getHfileName() {
+    return this.hfileName;
+  }
+
+  /**
+   * @return Offset of the block in its file.
+   */
+  public long getOffset() {
+    return this.offset;
+  }
+
+  public long heapSize() {
+    return OVERHEAD;
+  }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.hbase.io.HeapSize;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.ClassSize;
+
+/**
+ * Represents an entry in the {@link LruBlockCache}.
+ * <p>
+ * Makes the block memory-aware with {@link HeapSize} and Comparable
+ * to sort by access time for the LRU.  It also takes care of priority by
+ * either instantiating as in-memory or handling the transition from single
+ * to multiple access.
+ */
+public class CachedBlock implements HeapSize, Comparable<CachedBlock> {
+  /** Overhead of a CachedBlock alone */
+  public static final long FIXED_OVERHEAD = ClassSize.align(ClassSize.OBJECT +
+    (3 * ClassSize.REFERENCE) + (2 * Bytes.SIZEOF_LONG));
+
+  /** Overhead of a CachedBlock and its ByteBuffer wrapper, less payload */
+  static final long PER_BLOCK_OVERHEAD = FIXED_OVERHEAD +
+    ClassSize.BYTE_BUFFER;
+
+  public static enum BlockPriority {
+    /**
+     * Accessed a single time (used for scan-resistance)
+     */
+    SINGLE,
+    /**
+     * Accessed multiple times
+     */
+    MULTI,
+    /**
+     * Block from in-memory store
+     */
+    MEMORY
+  };
+
+  private final BlockCacheKey cacheKey;
+  private final ByteBuffer buf;
+  private volatile long accessTime;
+  private final long size;
+  private volatile BlockPriority priority;
+
+  CachedBlock(final BlockCacheKey cacheKey, final ByteBuffer buf,
+      final long accessTime) {
+    this(cacheKey, buf, accessTime, false);
+  }
+
+  CachedBlock(final BlockCacheKey cacheKey, final ByteBuffer buf,
+      final long accessTime, final boolean inMemory) {
+    this.cacheKey = cacheKey;
+    this.buf = buf;
+    this.accessTime = accessTime;
+    this.size = PER_BLOCK_OVERHEAD + cacheKey.heapSize() +
+      ClassSize.sizeOfByteArray(buf.capacity());
+    this.priority = inMemory? BlockPriority.MEMORY: BlockPriority.SINGLE;
+  }
+
+  /**
+   * Block has been accessed.  Update its local access time and promote it
+   * from single to multiple access if this was its second access.
+   * @param accessTime Value of the cache's access counter at time of access.
+   */
+  public void access(final long accessTime) {
+    this.accessTime = accessTime;
+    if (this.priority == BlockPriority.SINGLE) {
+      this.priority = BlockPriority.MULTI;
+    }
+  }
+
+  public long heapSize() {
+    return this.size;
+  }
+
+  public int compareTo(final CachedBlock that) {
+    if (this.accessTime == that.accessTime) return 0;
+    return this.accessTime < that.accessTime ? 1 : -1;
+  }
+
+  /**
+   * @return Block contents.  Callers must duplicate before changing position.
+   */
+  public ByteBuffer getBuffer() {
+    return this.buf;
+  }
+
+  /**
+   * @return Key the block was cached under.
+   */
+  public BlockCacheKey getCacheKey() {
+    return this.cacheKey;
+  }
+
+  /**
+   * @return Priority bucket this block currently belongs to.
+   */
+  public BlockPriority getPriority() {
+    return this.priority;
+  }
+
+  /**
+   * @return Access counter value at last access.
+   */
+  long getAccessTime() {
+    return this.accessTime;
+  }
+}
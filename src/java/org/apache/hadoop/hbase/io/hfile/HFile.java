@@ -24,12 +24,17 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -41,6 +46,7 @@ import org.apache.hadoop.hbase.io.HbaseMapWritable;
 import org.apache.hadoop.hbase.io.HeapSize;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.ClassSize;
 import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.RawComparator;
 import org.apache.hadoop.io.compress.Compressor;
@@ -104,6 +110,14 @@ import org.apache.hadoop.io.compress.Decompressor;
  * <pre>&lt;fileinfo>&lt;trailer></pre>.  That is, there are not data nor meta
  * blocks present.
  * <p>
+ * If the writer was asked to (see {@link Writer#setIndexBlockEntries(int)})
+ * and there are more data blocks than fit in one index block, the data block
+ * index is written in two levels: leaf index blocks, each indexing a run of
+ * data blocks, are written after the fileinfo, and the data index proper
+ * becomes a root index over the leaves.  Only the root index is kept in
+ * memory; leaves are read on demand through the block cache.  Such files
+ * have a trailer version of 2.
+ * <p>
  * TODO: Bloomfilters.  Need to add hadoop 0.20. first since it has bug fixes
  * on the hadoop bf package.
  *  * TODO: USE memcmp by default?  Write the keys out in an order that allows
@@ -128,6 +142,16 @@ public class HFile {
     { 'M', 'E', 'T', 'A', 'B', 'L', 'K', 99 };
   final static byte [] TRAILERBLOCKMAGIC = 
     { 'T', 'R', 'A', 'B', 'L', 'K', 34, 36 };
+  final static byte [] LEAFINDEXMAGIC =
+    { 'I', 'D', 'X', 'L', 'E', 'A', 'F', 44 };
+
+  /**
+   * Configuration key for the most data blocks a leaf index block indexes.
+   * Files with more data blocks than this get a two-level block index.  Zero
+   * means always write a single-level index.
+   */
+  public final static String INDEX_BLOCK_ENTRIES_KEY =
+    "hfile.index.block.max.entries";
 
   /**
    * Maximum length of key in HFile.
@@ -200,6 +224,10 @@ public class HFile {
     // Raw (decompressed) data size.
     ArrayList<Integer> blockDataSizes = new ArrayList<Integer>();
 
+    // Most data blocks a leaf index block indexes.  Zero for a single-level
+    // block index.
+    private int indexBlockEntries = 0;
+
     // Meta block system.
     private ArrayList<byte []> metaNames = new ArrayList<byte []>();
     private ArrayList<byte []> metaData = new ArrayList<byte[]>();
@@ -391,8 +419,16 @@ public class HFile {
      * @param bytes uninterpreted bytes of the block.
      */
     public void appendMetaBlock(String metaBlockName, byte [] bytes) {
-      metaNames.add(Bytes.toBytes(metaBlockName));
-      metaData.add(bytes);
+      byte [] name = Bytes.toBytes(metaBlockName);
+      // Keep names sorted; the reader binary searches the meta index.
+      int i = 0;
+      for (; i < metaNames.size(); i++) {
+        if (Bytes.compareTo(name, metaNames.get(i)) < 0) {
+          break;
+        }
+      }
+      metaNames.add(i, name);
+      metaData.add(i, bytes);
     }
 
     /**
@@ -422,6 +458,16 @@ public class HFile {
       return fi;
     }
 
+    /**
+     * Write the data block index in two levels if there are more than
+     * <code>entries</code> data blocks.  Call before close().
+     * @param entries Most data blocks a leaf index block indexes.  Zero, the
+     * default, for a single-level index.
+     */
+    public void setIndexBlockEntries(final int entries) {
+      this.indexBlockEntries = entries;
+    }
+
     /**
      * @return Path or null if we were passed a stream rather than a Path.
      */
@@ -534,6 +580,16 @@ public class HFile {
       // followed by fileinfo, data block index and meta block index.
 
       finishBlock();
+      // End of the last data block.
+      long dataEnd = this.outputStream.getPos();
+      boolean twoLevel = this.indexBlockEntries > 0 &&
+        this.blockKeys.size() > this.indexBlockEntries;
+      if (twoLevel) {
+        appendFileInfo(this.fileinfo, FileInfo.DATA_BLOCK_COUNT,
+          Bytes.toBytes(this.blockKeys.size()), false);
+        appendFileInfo(this.fileinfo, FileInfo.INDEX_BLOCK_ENTRIES,
+          Bytes.toBytes(this.indexBlockEntries), false);
+      }
 
       FixedFileTrailer trailer = new FixedFileTrailer();
       
@@ -555,8 +611,16 @@ public class HFile {
       trailer.fileinfoOffset = writeFileInfo(this.outputStream);
 
       // Write the data block index.
-      trailer.dataIndexOffset = BlockIndex.writeIndex(this.outputStream,
-        this.blockKeys, this.blockOffsets, this.blockDataSizes);
+      if (twoLevel) {
+        trailer.dataIndexOffset = writeTwoLevelIndex(dataEnd);
+        trailer.dataIndexCount = longToInt((this.blockKeys.size() +
+          this.indexBlockEntries - 1) / this.indexBlockEntries);
+        trailer.version = 2;
+      } else {
+        trailer.dataIndexOffset = BlockIndex.writeIndex(this.outputStream,
+          this.blockKeys, this.blockOffsets, this.blockDataSizes);
+        trailer.dataIndexCount = blockKeys.size();
+      }
 
       // Meta block index.
       if (metaNames.size() > 0) {
@@ -565,7 +629,6 @@ public class HFile {
       }
 
       // Now finish off the trailer.
-      trailer.dataIndexCount = blockKeys.size();
       trailer.metaIndexCount = metaNames.size();
       
       trailer.totalUncompressedBytes = totalBytes;
@@ -581,6 +644,35 @@ public class HFile {
       }
     }
 
+    /*
+     * Write leaf index blocks of <code>indexBlockEntries</code> data blocks
+     * each, then a root index over the leaves.  Leaves are not compressed.
+     * @param dataEnd Offset at which the last data block ends.
+     * @return Position at which the root index begins.
+     * @throws IOException
+     */
+    private long writeTwoLevelIndex(final long dataEnd) throws IOException {
+      List<byte []> leafKeys = new ArrayList<byte []>();
+      List<Long> leafOffsets = new ArrayList<Long>();
+      List<Integer> leafSizes = new ArrayList<Integer>();
+      int blocks = this.blockKeys.size();
+      for (int first = 0; first < blocks; first += this.indexBlockEntries) {
+        int last = Math.min(first + this.indexBlockEntries, blocks);
+        long end = last == blocks? dataEnd:
+          this.blockOffsets.get(last).longValue();
+        long pos = this.outputStream.getPos();
+        LeafIndex.write(this.outputStream, this.blockKeys.subList(first, last),
+          this.blockOffsets.subList(first, last),
+          this.blockDataSizes.subList(first, last), end);
+        leafKeys.add(this.blockKeys.get(first));
+        leafOffsets.add(Long.valueOf(pos));
+        leafSizes.add(Integer.valueOf(
+          longToInt(this.outputStream.getPos() - pos)));
+      }
+      return BlockIndex.writeIndex(this.outputStream, leafKeys, leafOffsets,
+        leafSizes);
+    }
+
     /* Write a metadata block.
      * @param metadata
      * @throws IOException
@@ -639,6 +731,13 @@ public class HFile {
     private BlockIndex metaIndex;
     FixedFileTrailer trailer;
     private volatile boolean fileInfoLoaded = false;
+    // Count of data blocks.
+    private int dataBlockCount = 0;
+    // Data blocks per leaf index block if the block index is in two levels,
+    // in which case blockIndex indexes leaves, not data blocks.  Else zero.
+    private int indexBlockEntries = 0;
+    // Leaf index block last used.  Saves a cache lookup per block scanned.
+    private volatile LeafIndex lastLeaf = null;
     
     // Filled when we read in the trailer.
     private Compression.Algorithm compressAlgo;
@@ -657,6 +756,16 @@ public class HFile {
 
     // Block cache to use.
     private final BlockCache cache;
+    // Whether blocks of this file should go into the cache as in-memory.
+    private final boolean inMemory;
+    // Cache keys of data blocks, made on first read of each block so cache
+    // lookups do not allocate.  Null if no cache.
+    private BlockCacheKey [] blockCacheKeys = null;
+    // Block loads in progress.  Concurrent misses on a block wait on the
+    // one load rather than each reading the block.
+    private final ConcurrentHashMap<BlockCacheKey, FutureTask<ByteBuffer>>
+      pendingLoads =
+        new ConcurrentHashMap<BlockCacheKey, FutureTask<ByteBuffer>>();
     public int cacheHits = 0;
     public int blockLoads = 0;
 
@@ -684,7 +793,22 @@ public class HFile {
      */
     public Reader(FileSystem fs, Path path, BlockCache cache)
     throws IOException {
-      this(fs.open(path), fs.getFileStatus(path).getLen(), cache);
+      this(fs, path, cache, false);
+    }
+
+    /** 
+     * Opens a HFile.  You must load the file info before you can 
+     * use it by calling {@link #loadFileInfo()}.
+     *
+     * @param fs filesystem to load from
+     * @param path path within said filesystem
+     * @param cache block cache. Pass null if none.
+     * @param inMemory whether blocks should be marked as in-memory in cache
+     * @throws IOException
+     */
+    public Reader(FileSystem fs, Path path, BlockCache cache, boolean inMemory)
+    throws IOException {
+      this(fs.open(path), fs.getFileStatus(path).getLen(), cache, inMemory);
       this.closeIStream = true;
       this.name = path.toString();
     }
@@ -701,8 +825,26 @@ public class HFile {
      */
     public Reader(final FSDataInputStream fsdis, final long size,
         final BlockCache cache)
+    throws IOException {
+      this(fsdis, size, cache, false);
+    }
+
+    /** 
+     * Opens a HFile.  You must load the index before you can 
+     * use it by calling {@link #loadFileInfo()}.
+     *
+     * @param fsdis input stream.  Caller is responsible for closing the passed
+     * stream.
+     * @param size Length of the stream.
+     * @param cache block cache. Pass null if none.
+     * @param inMemory whether blocks should be marked as in-memory in cache
+     * @throws IOException
+     */
+    public Reader(final FSDataInputStream fsdis, final long size,
+        final BlockCache cache, final boolean inMemory)
     throws IOException {
       this.cache = cache;
+      this.inMemory = inMemory;
       this.fileSize = size;
       this.istream = fsdis;
       this.closeIStream = false;
@@ -752,10 +894,18 @@ public class HFile {
       this.avgValueLen = Bytes.toInt(fi.get(FileInfo.AVG_VALUE_LEN));
       String clazzName = Bytes.toString(fi.get(FileInfo.COMPARATOR));
       this.comparator = getComparator(clazzName);
+      byte [] b = fi.get(FileInfo.INDEX_BLOCK_ENTRIES);
+      this.indexBlockEntries = b == null? 0: Bytes.toInt(b);
+      b = fi.get(FileInfo.DATA_BLOCK_COUNT);
+      this.dataBlockCount = b == null? this.trailer.dataIndexCount:
+        Bytes.toInt(b);
 
-      // Read in the data index.
+      // Read in the data index.  If in two levels, this is the root.
       this.blockIndex = BlockIndex.readIndex(this.comparator, this.istream,
         this.trailer.dataIndexOffset, this.trailer.dataIndexCount);
+      if (this.cache != null && this.indexBlockEntries == 0) {
+        this.blockCacheKeys = new BlockCacheKey[this.blockIndex.count];
+      }
 
       // Read in the metadata index.
       if (trailer.metaIndexCount > 0) {
@@ -818,11 +968,127 @@ public class HFile {
      * @return Block number of the block containing the key or -1 if not in this
      * file.
      */
-    protected int blockContainingKey(final byte [] key, int offset, int length) {
+    protected int blockContainingKey(final byte [] key, int offset, int length)
+    throws IOException {
       if (blockIndex == null) {
         throw new RuntimeException("Block index not loaded");
       }
-      return blockIndex.blockContainingKey(key, offset, length);
+      int b = blockIndex.blockContainingKey(key, offset, length);
+      if (b < 0 || this.indexBlockEntries == 0) {
+        return b;
+      }
+      // Leaf b starts with the same key as the root entry so the key is in
+      // one of its blocks.
+      return (b * this.indexBlockEntries) +
+        getLeaf(b).blockContainingKey(key, offset, length);
+    }
+
+    /**
+     * @return Count of data blocks in the file.
+     */
+    int getDataBlockCount() {
+      return this.dataBlockCount;
+    }
+
+    /**
+     * Read data blocks from the start of the file into the block cache.
+     * Blocks already cached are not read again.  Does nothing if this
+     * reader has no block cache.
+     * @param count Most blocks to read.
+     * @return Count of blocks asked for.
+     * @throws IOException
+     */
+    public int prefetch(final int count) throws IOException {
+      if (this.cache == null || this.blockIndex == null) {
+        return 0;
+      }
+      int blocks = Math.min(count, this.dataBlockCount);
+      for (int i = 0; i < blocks; i++) {
+        readBlock(i);
+      }
+      return blocks;
+    }
+
+    /*
+     * @param block Index of a data block.
+     * @return Offset at which the block begins.
+     * @throws IOException
+     */
+    private long getBlockOffset(final int block) throws IOException {
+      if (this.indexBlockEntries == 0) {
+        return this.blockIndex.blockOffsets[block];
+      }
+      return getLeaf(block / this.indexBlockEntries).getOffset(
+        block % this.indexBlockEntries);
+    }
+
+    /*
+     * @param block Index of a data block.
+     * @return Offset at which the block ends.
+     * @throws IOException
+     */
+    private long getBlockEnd(final int block) throws IOException {
+      if (this.indexBlockEntries == 0) {
+        if (block == blockIndex.count - 1) {
+          // last block!  The end of data block is first meta block if there
+          // is one or if there isn't, the fileinfo offset.
+          return this.metaIndex != null?
+            this.metaIndex.blockOffsets[0]: this.trailer.fileinfoOffset;
+        }
+        return this.blockIndex.blockOffsets[block + 1];
+      }
+      LeafIndex leaf = getLeaf(block / this.indexBlockEntries);
+      int i = block % this.indexBlockEntries;
+      return i == leaf.getCount() - 1? leaf.getEnd(): leaf.getOffset(i + 1);
+    }
+
+    /*
+     * @param block Index of a data block.
+     * @return Decompressed size of the block.
+     * @throws IOException
+     */
+    private int getBlockDataSize(final int block) throws IOException {
+      if (this.indexBlockEntries == 0) {
+        return this.blockIndex.blockDataSizes[block];
+      }
+      return getLeaf(block / this.indexBlockEntries).getDataSize(
+        block % this.indexBlockEntries);
+    }
+
+    /*
+     * @param block Index of a data block.
+     * @return First key in the block.
+     * @throws IOException
+     */
+    byte [] getBlockFirstKey(final int block) throws IOException {
+      if (this.indexBlockEntries == 0) {
+        return this.blockIndex.blockKeys[block];
+      }
+      return getLeaf(block / this.indexBlockEntries).getKey(
+        block % this.indexBlockEntries);
+    }
+
+    /*
+     * @param leaf Index of a leaf index block.
+     * @return The leaf, from the block cache if there.
+     * @throws IOException
+     */
+    private LeafIndex getLeaf(final int leaf) throws IOException {
+      LeafIndex l = this.lastLeaf;
+      if (l != null && l.leaf == leaf) {
+        return l;
+      }
+      final long offset = this.blockIndex.blockOffsets[leaf];
+      final int size = this.blockIndex.blockDataSizes[leaf];
+      ByteBuffer buf = getBlock(new BlockCacheKey(this.name, offset),
+        new Callable<ByteBuffer>() {
+          public ByteBuffer call() throws IOException {
+            return LeafIndex.read(istream, offset, size);
+          }
+        });
+      l = new LeafIndex(leaf, buf, this.comparator);
+      this.lastLeaf = l;
+      return l;
     }
     /**
      * @param metaBlockName
@@ -838,7 +1104,9 @@ public class HFile {
       }
       byte [] mbname = Bytes.toBytes(metaBlockName);
       int block = metaIndex.blockContainingKey(mbname, 0, mbname.length);
-      if (block == -1)
+      // blockContainingKey finds where the name would sort; only an exact
+      // match is the asked-for block.
+      if (block == -1 || !Bytes.equals(mbname, metaIndex.blockKeys[block]))
         return null;
       long blockSize;
       if (block == metaIndex.count - 1) {
@@ -871,62 +1139,144 @@ public class HFile {
       if (blockIndex == null) {
         throw new IOException("Block index not loaded");
       }
-      if (block < 0 || block > blockIndex.count) {
+      if (block < 0 || block >= this.dataBlockCount) {
         throw new IOException("Requested block is out of range: " + block +
-          ", max: " + blockIndex.count);
-      }
-
-      // For any given block from any given file, synchronize reads for said
-      // block.
-      // Without a cache, this synchronizing is needless overhead, but really
-      // the other choice is to duplicate work (which the cache would prevent you from doing).
-      synchronized (blockIndex.blockKeys[block]) {
-        blockLoads++;
-        // Check cache for block.  If found return.
-        if (cache != null) {
-          ByteBuffer cachedBuf = cache.getBlock(name + block);
-          if (cachedBuf != null) {
-            // Return a distinct 'copy' of the block, so pos doesnt get messed by
-            // the scanner
-            cacheHits++;
-            return cachedBuf.duplicate();
-          }
-          // Carry on, please load.
+          ", max: " + this.dataBlockCount);
+      }
+
+      blockLoads++;
+      if (cache == null) {
+        return loadBlock(block);
+      }
+      final int blockToLoad = block;
+      return getBlock(getCacheKey(block), new Callable<ByteBuffer>() {
+        public ByteBuffer call() throws IOException {
+          return loadBlock(blockToLoad);
         }
+      });
+    }
 
-        // Load block from filesystem.
-        long onDiskBlockSize;
-        if (block == blockIndex.count - 1) {
-          // last block!  The end of data block is first meta block if there is
-          // one or if there isn't, the fileinfo offset.
-          long offset = this.metaIndex != null?
-            this.metaIndex.blockOffsets[0]: this.trailer.fileinfoOffset;
-          onDiskBlockSize = offset - blockIndex.blockOffsets[block];
-        } else {
-          onDiskBlockSize = blockIndex.blockOffsets[block+1] -
-          blockIndex.blockOffsets[block];
+    /*
+     * Get a block from the cache, or load and cache it if not there.
+     * @param cacheKey
+     * @param loader Reads the block if not in the cache.
+     * @return A duplicate of the block; safe to change position.
+     * @throws IOException
+     */
+    private ByteBuffer getBlock(final BlockCacheKey cacheKey,
+        final Callable<ByteBuffer> loader)
+    throws IOException {
+      if (cache == null) {
+        try {
+          return loader.call();
+        } catch (IOException e) {
+          throw e;
+        } catch (Exception e) {
+          throw new IOException(e);
         }
-        ByteBuffer buf = decompress(blockIndex.blockOffsets[block],
-            longToInt(onDiskBlockSize), this.blockIndex.blockDataSizes[block]);
+      }
 
-        byte [] magic = new byte[DATABLOCKMAGIC.length];
-        buf.get(magic, 0, magic.length);
-        if (!Arrays.equals(magic, DATABLOCKMAGIC)) {
-          throw new IOException("Data magic is bad in block " + block);
+      // Check cache for block.  If found return.
+      ByteBuffer cachedBuf = cache.getBlock(cacheKey);
+      if (cachedBuf != null) {
+        // Return a distinct 'copy' of the block, so pos doesnt get messed by
+        // the scanner
+        cacheHits++;
+        return cachedBuf.duplicate();
+      }
+
+      // Carry on, please load.  If another thread is already loading this
+      // block, wait on its load instead of reading the block again.
+      FutureTask<ByteBuffer> load = new FutureTask<ByteBuffer>(loader);
+      FutureTask<ByteBuffer> pending =
+        this.pendingLoads.putIfAbsent(cacheKey, load);
+      if (pending != null) {
+        return getLoadedBlock(pending).duplicate();
+      }
+      try {
+        load.run();
+        ByteBuffer buf = getLoadedBlock(load);
+        // Cache a copy, not the one we are sending back, so the position
+        // doesnt get messed.
+        cache.cacheBlock(cacheKey, buf.duplicate(), inMemory);
+        return buf.duplicate();
+      } finally {
+        this.pendingLoads.remove(cacheKey, load);
+      }
+    }
+
+    /*
+     * @param block Index of a data block.
+     * @return Cache key for the block.
+     */
+    private BlockCacheKey getCacheKey(final int block) throws IOException {
+      if (this.blockCacheKeys == null) {
+        // Two-level index; keeping a key per block would cost the heap the
+        // two levels are meant to save.
+        return new BlockCacheKey(this.name, getBlockOffset(block));
+      }
+      BlockCacheKey cacheKey = this.blockCacheKeys[block];
+      if (cacheKey == null) {
+        // Racing threads may each make a key; they are equal so no matter
+        // which one sticks.
+        cacheKey = new BlockCacheKey(this.name,
+          this.blockIndex.blockOffsets[block]);
+        this.blockCacheKeys[block] = cacheKey;
+      }
+      return cacheKey;
+    }
+
+    /*
+     * Wait on a block load.
+     * @param load
+     * @return Loaded block; callers must duplicate before use.
+     * @throws IOException If load failed or we were interrupted waiting.
+     */
+    private ByteBuffer getLoadedBlock(final FutureTask<ByteBuffer> load)
+    throws IOException {
+      try {
+        return load.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting on load of " +
+          "block from " + this.name);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException)cause;
+        }
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException)cause;
         }
-        // Toss the header. May have to remove later due to performance.
-        buf.compact();
-        buf.limit(buf.limit() - DATABLOCKMAGIC.length);
-        buf.rewind();
-
-        // Cache a copy, not the one we are sending back, so the position doesnt
-        // get messed.
-        if (cache != null) {
-          cache.cacheBlock(name + block, buf.duplicate());
+        if (cause instanceof Error) {
+          throw (Error)cause;
         }
+        throw new IOException(cause);
+      }
+    }
 
-        return buf;
+    /*
+     * Read a data block from the filesystem.
+     * @param block Index of block to read.
+     * @return Block wrapped in a ByteBuffer, positioned at its start.
+     * @throws IOException
+     */
+    private ByteBuffer loadBlock(final int block) throws IOException {
+      long offset = getBlockOffset(block);
+      long onDiskBlockSize = getBlockEnd(block) - offset;
+      ByteBuffer buf = decompress(offset, longToInt(onDiskBlockSize),
+        getBlockDataSize(block));
+
+      byte [] magic = new byte[DATABLOCKMAGIC.length];
+      buf.get(magic, 0, magic.length);
+      if (!Arrays.equals(magic, DATABLOCKMAGIC)) {
+        throw new IOException("Data magic is bad in block " + block);
       }
+      // Toss the header. May have to remove later due to performance.
+      buf.compact();
+      buf.limit(buf.limit() - DATABLOCKMAGIC.length);
+      buf.rewind();
+      return buf;
     }
 
     /*
@@ -1007,7 +1357,10 @@ public class HFile {
       if (!isFileInfoLoaded() || this.blockIndex.isEmpty()) {
         return null;
       }
-      return this.blockIndex.midkey();
+      if (this.indexBlockEntries == 0) {
+        return this.blockIndex.midkey();
+      }
+      return getBlockFirstKey((this.dataBlockCount - 1) / 2);
     }
 
     public void close() throws IOException {
@@ -1073,7 +1426,7 @@ public class HFile {
         if (block.remaining() <= 0) {
           // LOG.debug("Fetch next block");
           currBlock++;
-          if (currBlock >= reader.blockIndex.count) {
+          if (currBlock >= reader.getDataBlockCount()) {
             // damn we are at the end
             currBlock = 0;
             block = null;
@@ -1166,8 +1519,8 @@ public class HFile {
           return false; // key is before the start of the file.
 
         // Question: does this block begin with 'key'?
-        if (this.reader.comparator.compare(reader.blockIndex.blockKeys[b],
-            0, reader.blockIndex.blockKeys[b].length,
+        byte [] firstKey = reader.getBlockFirstKey(b);
+        if (this.reader.comparator.compare(firstKey, 0, firstKey.length,
             key, offset, length) == 0) {
           // Ok the key we're interested in is the first of the block, so go back one.
           if (b == 0) {
@@ -1201,7 +1554,7 @@ public class HFile {
       }
 
       public boolean seekTo() throws IOException {
-        if (this.reader.blockIndex.isEmpty()) {
+        if (this.reader.getDataBlockCount() == 0) {
           return false;
         }
         if (block != null && currBlock == 0) {
@@ -1301,7 +1654,8 @@ public class HFile {
       compressionCodec       = inputStream.readInt();
       version                = inputStream.readInt();
 
-      if (version != 1) {
+      // Version 2 files differ only in having a two-level block index.
+      if (version != 1 && version != 2) {
         throw new IOException("Wrong version: " + version);
       }
     }
@@ -1324,6 +1678,10 @@ public class HFile {
    * Used reading.
    */
   static class BlockIndex implements HeapSize {
+    /** Overhead of a BlockIndex alone */
+    static final long FIXED_OVERHEAD = ClassSize.align(ClassSize.OBJECT +
+      (4 * ClassSize.REFERENCE) + (2 * Bytes.SIZEOF_INT));
+
     // How many actual items are there? The next insert location too.
     int count = 0;
     byte [][] blockKeys;
@@ -1349,8 +1707,7 @@ public class HFile {
      */
     BlockIndex(final RawComparator<byte []>c) {
       this.comparator = c;
-      // Guess that cost of three arrays + this object is 4 * 8 bytes.
-      this.size += (4 * 8);
+      this.size += FIXED_OVERHEAD;
     }
 
     /**
@@ -1372,7 +1729,7 @@ public class HFile {
       blockKeys[count] = key;
       blockDataSizes[count] = dataSize;
       count++;
-      this.size += (Bytes.SIZEOF_INT * 2 + key.length);
+      this.size += ClassSize.sizeOfByteArray(key.length);
     }
 
     /**
@@ -1457,6 +1814,9 @@ public class HFile {
       bi.blockOffsets = new long[indexSize];
       bi.blockKeys = new byte[indexSize][];
       bi.blockDataSizes = new int[indexSize];
+      bi.size += ClassSize.sizeOfArray(indexSize, Bytes.SIZEOF_LONG) +
+        ClassSize.sizeOfArray(indexSize, ClassSize.REFERENCE) +
+        ClassSize.sizeOfArray(indexSize, Bytes.SIZEOF_INT);
       // If index size is zero, no index was written.
       if (indexSize > 0) {
         in.seek(indexOffset);
@@ -1494,6 +1854,143 @@ public class HFile {
     }
   }
 
+  /*
+   * A leaf of a two-level block index: the offsets, sizes and first keys of
+   * a run of data blocks.  Read from the block buffer in place, without
+   * making an object per entry.  Layout is magic, entry count, end of the
+   * last data block, the position of each entry in the buffer, then the
+   * entries, each a data block offset, its decompressed size, key length
+   * and key.
+   */
+  static class LeafIndex {
+    private static final int COUNT = LEAFINDEXMAGIC.length;
+    private static final int END = COUNT + Bytes.SIZEOF_INT;
+    private static final int POSITIONS = END + Bytes.SIZEOF_LONG;
+    private static final int KEY = Bytes.SIZEOF_LONG + 2 * Bytes.SIZEOF_INT;
+
+    // Index of this leaf in the root index.
+    final int leaf;
+    private final ByteBuffer buf;
+    private final RawComparator<byte []> comparator;
+    private final int count;
+
+    LeafIndex(final int leaf, final ByteBuffer buf,
+        final RawComparator<byte []> c) {
+      this.leaf = leaf;
+      this.buf = buf;
+      this.comparator = c;
+      this.count = buf.getInt(COUNT);
+    }
+
+    int getCount() {
+      return this.count;
+    }
+
+    long getEnd() {
+      return this.buf.getLong(END);
+    }
+
+    long getOffset(final int i) {
+      return this.buf.getLong(position(i));
+    }
+
+    int getDataSize(final int i) {
+      return this.buf.getInt(position(i) + Bytes.SIZEOF_LONG);
+    }
+
+    byte [] getKey(final int i) {
+      int p = position(i);
+      byte [] key = new byte[this.buf.getInt(p + KEY - Bytes.SIZEOF_INT)];
+      System.arraycopy(this.buf.array(), this.buf.arrayOffset() + p + KEY,
+        key, 0, key.length);
+      return key;
+    }
+
+    /*
+     * @return Index of the last entry whose key is at or before
+     * <code>key</code>; -1 if all are after.
+     */
+    int blockContainingKey(final byte [] key, final int offset,
+        final int length) {
+      int low = 0;
+      int high = this.count - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        int p = position(mid);
+        int cmp = this.comparator.compare(key, offset, length,
+          this.buf.array(), this.buf.arrayOffset() + p + KEY,
+          this.buf.getInt(p + KEY - Bytes.SIZEOF_INT));
+        if (cmp > 0) {
+          low = mid + 1;
+        } else if (cmp < 0) {
+          high = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+      return low - 1;
+    }
+
+    private int position(final int i) {
+      return this.buf.getInt(POSITIONS + i * Bytes.SIZEOF_INT);
+    }
+
+    /*
+     * Write a leaf.  Must jibe with how the leaf is read above.
+     * @param o
+     * @param keys First key of each data block.
+     * @param offsets
+     * @param sizes
+     * @param end Offset at which the last of the data blocks ends.
+     * @throws IOException
+     */
+    static void write(final DataOutputStream o, final List<byte []> keys,
+        final List<Long> offsets, final List<Integer> sizes, final long end)
+    throws IOException {
+      o.write(LEAFINDEXMAGIC);
+      o.writeInt(keys.size());
+      o.writeLong(end);
+      int p = POSITIONS + keys.size() * Bytes.SIZEOF_INT;
+      for (byte [] key: keys) {
+        o.writeInt(p);
+        p += KEY + key.length;
+      }
+      for (int i = 0; i < keys.size(); i++) {
+        byte [] key = keys.get(i);
+        o.writeLong(offsets.get(i).longValue());
+        o.writeInt(sizes.get(i).intValue());
+        o.writeInt(key.length);
+        o.write(key);
+      }
+    }
+
+    /*
+     * @param in
+     * @param offset Where the leaf begins.
+     * @param size Length of the leaf.
+     * @return The leaf in a buffer, positioned at its start.
+     * @throws IOException
+     */
+    static ByteBuffer read(final FSDataInputStream in, final long offset,
+        final int size)
+    throws IOException {
+      ByteBuffer buf = ByteBuffer.allocate(size);
+      InputStream is = new BoundedRangeFileInputStream(in, offset, size);
+      try {
+        IOUtils.readFully(is, buf.array(), 0, size);
+      } finally {
+        is.close();
+      }
+      for (int i = 0; i < LEAFINDEXMAGIC.length; i++) {
+        if (buf.get(i) != LEAFINDEXMAGIC[i]) {
+          throw new IOException("Leaf index block magic is wrong at " +
+            offset);
+        }
+      }
+      return buf;
+    }
+  }
+
   /*
    * Metadata for this file.  Conjured by the writer.  Read in by the reader.
    */
@@ -1506,6 +2003,11 @@ public class HFile {
       Bytes.toBytes(RESERVED_PREFIX + "AVG_VALUE_LEN");
     static final byte [] COMPARATOR =
       Bytes.toBytes(RESERVED_PREFIX + "COMPARATOR");
+    // Only in files with a two-level block index.
+    static final byte [] DATA_BLOCK_COUNT =
+      Bytes.toBytes(RESERVED_PREFIX + "DATA_BLOCK_COUNT");
+    static final byte [] INDEX_BLOCK_ENTRIES =
+      Bytes.toBytes(RESERVED_PREFIX + "INDEX_BLOCK_ENTRIES");
 
     /*
      * Constructor.
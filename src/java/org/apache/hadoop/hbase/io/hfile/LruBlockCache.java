@@ -0,0 +1,646 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.io.HeapSize;
+import org.apache.hadoop.hbase.io.hfile.CachedBlock.BlockPriority;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.ClassSize;
+import org.apache.hadoop.util.StringUtils;
+
+/**
+ * A block cache implementation that is memory-aware using {@link HeapSize},
+ * memory-bound using an LRU eviction algorithm, and concurrent: backed by a
+ * {@link ConcurrentHashMap} and with a non-blocking eviction process.
+ * <p>
+ * Contains a single region-server-wide map of blocks keyed by
+ * {@link BlockCacheKey}.  Reads
+ * do not take any lock; they stamp the block with the current value of a
+ * shared access counter.  When an insert takes the cache above the
+ * <i>acceptable</i> size, the inserting thread runs an eviction (unless
+ * another thread already is) that frees the least recently accessed blocks
+ * until the cache is back down to its <i>minimum</i> size.
+ * <p>
+ * To be scan-resistant, blocks are kept in three priority buckets.  A block
+ * is cached as single-access and is promoted to multi-access on its first
+ * cache hit.  Blocks of families that are in-memory
+ * (see {@link org.apache.hadoop.hbase.HColumnDescriptor#isInMemory()}) go
+ * into the in-memory bucket.  Each bucket is guaranteed a share of the
+ * minimum size (25%, 50% and 25% by default).  Eviction frees blocks from
+ * the buckets that are over their share first, so a long sequential scan
+ * only recycles single-access blocks and does not flush the working set.
+ */
+public class LruBlockCache implements BlockCache, HeapSize {
+
+  static final Log LOG = LogFactory.getLog(LruBlockCache.class);
+
+  /** Default Configuration Parameters */
+
+  /** Backing Concurrent Map Configuration */
+  static final float DEFAULT_LOAD_FACTOR = 0.75f;
+  static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+  /** Eviction thresholds */
+  static final float DEFAULT_MIN_FACTOR = 0.75f;
+  static final float DEFAULT_ACCEPTABLE_FACTOR = 0.85f;
+
+  /** Priority buckets */
+  static final float DEFAULT_SINGLE_FACTOR = 0.25f;
+  static final float DEFAULT_MULTI_FACTOR = 0.50f;
+  static final float DEFAULT_MEMORY_FACTOR = 0.25f;
+
+  /** Memory overhead of the CacheStats counters */
+  private static final long STATS_OVERHEAD =
+    ClassSize.align(ClassSize.OBJECT + (7 * ClassSize.REFERENCE)) +
+    (2 * ClassSize.sizeOfArray(BlockPriority.values().length,
+      ClassSize.REFERENCE)) +
+    ((5 + (2 * BlockPriority.values().length)) * ClassSize.ATOMIC_LONG);
+
+  /** Memory overhead of this Object alone */
+  public static final long FIXED_OVERHEAD = ClassSize.align(ClassSize.OBJECT +
+    (7 * ClassSize.REFERENCE) + (2 * Bytes.SIZEOF_LONG) +
+    (5 * Bytes.SIZEOF_FLOAT));
+
+  /** Memory overhead of this Object (for HeapSize), less the map payload */
+  private static final long OVERHEAD = FIXED_OVERHEAD +
+    (3 * ClassSize.ATOMIC_LONG) + STATS_OVERHEAD;
+
+  /** Per-entry overhead of the backing ConcurrentHashMap */
+  static final long MAP_ENTRY_OVERHEAD = ClassSize.HASHMAP_ENTRY;
+
+  /** Concurrent map (the cache) */
+  private final ConcurrentHashMap<BlockCacheKey,CachedBlock> map;
+
+  /** Eviction lock (locked when eviction in process) */
+  private final ReentrantLock evictionLock = new ReentrantLock(true);
+
+  /** Current size of cache */
+  private final AtomicLong size;
+
+  /** Current number of cached elements */
+  private final AtomicLong elements;
+
+  /** Cache access count (sequential ID) */
+  private final AtomicLong count;
+
+  /** Cache statistics */
+  private final CacheStats stats;
+
+  /** Maximum allowable size of cache (block put if size > max, evict) */
+  private final long maxSize;
+
+  /** Approximate block size */
+  private final long blockSize;
+
+  /** Acceptable size of cache (no evictions if size < acceptable) */
+  private final float acceptableFactor;
+
+  /** Minimum threshold of cache (when evicting, evict until size < min) */
+  private final float minFactor;
+
+  /** Single access bucket size */
+  private final float singleFactor;
+
+  /** Multiple access bucket size */
+  private final float multiFactor;
+
+  /** In-memory bucket size */
+  private final float memoryFactor;
+
+  /** Where blocks go when evicted, and where misses are looked up; or null */
+  private volatile BlockCache victimHandler = null;
+
+  /**
+   * Default constructor.  Specify maximum size and expected average block
+   * size (approximation is fine).
+   * <p>
+   * All other factors will be calculated based on defaults specified in
+   * this class.
+   * @param maxSize maximum size of cache, in bytes
+   * @param blockSize approximate size of each block, in bytes
+   */
+  public LruBlockCache(final long maxSize, final long blockSize) {
+    this(maxSize, blockSize,
+      (int)Math.ceil(1.2 * maxSize / blockSize), DEFAULT_LOAD_FACTOR,
+      DEFAULT_CONCURRENCY_LEVEL, DEFAULT_MIN_FACTOR,
+      DEFAULT_ACCEPTABLE_FACTOR, DEFAULT_SINGLE_FACTOR,
+      DEFAULT_MULTI_FACTOR, DEFAULT_MEMORY_FACTOR);
+  }
+
+  /**
+   * Configurable constructor.  Use this constructor if not using defaults.
+   * @param maxSize maximum size of this cache, in bytes
+   * @param blockSize expected average size of blocks, in bytes
+   * @param mapInitialSize initial size of backing ConcurrentHashMap
+   * @param mapLoadFactor initial load factor of backing ConcurrentHashMap
+   * @param mapConcurrencyLevel initial concurrency factor for backing CHM
+   * @param minFactor percentage of total size that eviction will evict until
+   * @param acceptableFactor percentage of total size that triggers eviction
+   * @param singleFactor percentage of total size for single-access blocks
+   * @param multiFactor percentage of total size for multiple-access blocks
+   * @param memoryFactor percentage of total size for in-memory blocks
+   */
+  public LruBlockCache(final long maxSize, final long blockSize,
+      final int mapInitialSize, final float mapLoadFactor,
+      final int mapConcurrencyLevel, final float minFactor,
+      final float acceptableFactor, final float singleFactor,
+      final float multiFactor, final float memoryFactor) {
+    if (Math.abs(singleFactor + multiFactor + memoryFactor - 1.0f) > 0.001f) {
+      throw new IllegalArgumentException("Single, multi, and memory factors " +
+        "should total 1.0");
+    }
+    if (minFactor >= acceptableFactor) {
+      throw new IllegalArgumentException("minFactor must be smaller than " +
+        "acceptableFactor");
+    }
+    if (minFactor >= 1.0f || acceptableFactor >= 1.0f) {
+      throw new IllegalArgumentException("all factors must be < 1");
+    }
+    this.maxSize = maxSize;
+    this.blockSize = blockSize;
+    this.map = new ConcurrentHashMap<BlockCacheKey,CachedBlock>(mapInitialSize,
+      mapLoadFactor, mapConcurrencyLevel);
+    this.minFactor = minFactor;
+    this.acceptableFactor = acceptableFactor;
+    this.singleFactor = singleFactor;
+    this.multiFactor = multiFactor;
+    this.memoryFactor = memoryFactor;
+    this.stats = new CacheStats();
+    this.count = new AtomicLong(0);
+    this.elements = new AtomicLong(0);
+    this.size = new AtomicLong(OVERHEAD +
+      ClassSize.sizeOfConcurrentHashMapTable(mapInitialSize, mapLoadFactor));
+  }
+
+  /**
+   * Cache the block with the specified key and buffer.
+   * <p>
+   * If the block is already cached, the existing entry is kept and only its
+   * access time is updated.
+   * @param cacheKey block's cache key
+   * @param buf block buffer
+   * @param inMemory if block is in-memory
+   */
+  public void cacheBlock(final BlockCacheKey cacheKey, final ByteBuffer buf,
+      final boolean inMemory) {
+    CachedBlock cb = this.map.get(cacheKey);
+    if (cb != null) {
+      cb.access(this.count.incrementAndGet());
+      return;
+    }
+    cb = new CachedBlock(cacheKey, buf, this.count.incrementAndGet(),
+      inMemory);
+    if (this.map.putIfAbsent(cacheKey, cb) != null) {
+      // Lost a race with another thread caching the same block.
+      return;
+    }
+    long newSize = this.size.addAndGet(cb.heapSize() + MAP_ENTRY_OVERHEAD);
+    this.elements.incrementAndGet();
+    if (newSize > acceptableSize() && !this.evictionLock.isLocked()) {
+      evict();
+    }
+  }
+
+  /**
+   * Cache the block with the specified key and buffer.
+   * <p>
+   * Block is cached as single-access; it is promoted to multiple-access on
+   * its first cache hit.
+   * @param cacheKey block's cache key
+   * @param buf block buffer
+   */
+  public void cacheBlock(final BlockCacheKey cacheKey, final ByteBuffer buf) {
+    cacheBlock(cacheKey, buf, false);
+  }
+
+  /**
+   * Get the buffer of the block with the specified key.
+   * @param cacheKey block's cache key
+   * @return buffer of specified block, or null if not in cache
+   */
+  public ByteBuffer getBlock(final BlockCacheKey cacheKey) {
+    CachedBlock cb = this.map.get(cacheKey);
+    if (cb == null) {
+      this.stats.miss();
+      BlockCache victim = this.victimHandler;
+      if (victim == null) {
+        return null;
+      }
+      ByteBuffer buf = victim.getBlock(cacheKey);
+      if (buf != null) {
+        // Was evicted but is in demand again; bring it back on heap.  It has
+        // now been accessed more than once.
+        cacheBlock(cacheKey, buf);
+        CachedBlock promoted = this.map.get(cacheKey);
+        if (promoted != null) {
+          promoted.access(this.count.incrementAndGet());
+        }
+      }
+      return buf;
+    }
+    this.stats.hit(cb.getPriority());
+    cb.access(this.count.incrementAndGet());
+    return cb.getBuffer();
+  }
+
+  /*
+   * Remove the passed block from the cache.
+   * @param block Block to evict.
+   * @return the heap size of evicted block
+   */
+  protected long evictBlock(final CachedBlock block) {
+    if (this.map.remove(block.getCacheKey()) == null) {
+      return 0;
+    }
+    BlockCache victim = this.victimHandler;
+    if (victim != null) {
+      victim.cacheBlock(block.getCacheKey(), block.getBuffer());
+    }
+    long freed = block.heapSize() + MAP_ENTRY_OVERHEAD;
+    this.size.addAndGet(-1 * freed);
+    this.elements.decrementAndGet();
+    this.stats.evicted(block.getPriority());
+    return freed;
+  }
+
+  /**
+   * Eviction method.  Frees blocks until the cache is back down to its
+   * minimum size, taking from the priority buckets that are over their share
+   * first.  Returns immediately if another thread is already evicting.
+   */
+  void evict() {
+    if (!this.evictionLock.tryLock()) {
+      return;
+    }
+    try {
+      long currentSize = this.size.get();
+      long bytesToFree = currentSize - minSize();
+      if (bytesToFree <= 0) {
+        return;
+      }
+      this.stats.evict();
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Block cache LRU eviction started; attempting to free " +
+          StringUtils.humanReadableInt(bytesToFree) + " of total=" +
+          StringUtils.humanReadableInt(currentSize));
+      }
+
+      // Instantiate priority buckets
+      BlockBucket bucketSingle = new BlockBucket(bytesToFree, this.blockSize,
+        singleSize());
+      BlockBucket bucketMulti = new BlockBucket(bytesToFree, this.blockSize,
+        multiSize());
+      BlockBucket bucketMemory = new BlockBucket(bytesToFree, this.blockSize,
+        memorySize());
+
+      // Scan entire map putting into appropriate buckets
+      for (CachedBlock cachedBlock: this.map.values()) {
+        switch (cachedBlock.getPriority()) {
+          case SINGLE: {
+            bucketSingle.add(cachedBlock);
+            break;
+          }
+          case MULTI: {
+            bucketMulti.add(cachedBlock);
+            break;
+          }
+          case MEMORY: {
+            bucketMemory.add(cachedBlock);
+            break;
+          }
+        }
+      }
+
+      // Free from the buckets with the least overflow first, each taking no
+      // more than its fair share of what is left to free.  Buckets under
+      // their share give up nothing, leaving the rest to the fuller buckets.
+      PriorityQueue<BlockBucket> bucketQueue =
+        new PriorityQueue<BlockBucket>(3);
+      bucketQueue.add(bucketSingle);
+      bucketQueue.add(bucketMulti);
+      bucketQueue.add(bucketMemory);
+
+      int remainingBuckets = 3;
+      long bytesFreed = 0;
+      BlockBucket bucket;
+      while ((bucket = bucketQueue.poll()) != null) {
+        long overflow = bucket.overflow();
+        if (overflow > 0) {
+          long bucketBytesToFree = Math.min(overflow,
+            (long)Math.ceil((bytesToFree - bytesFreed) /
+              (double)remainingBuckets));
+          bytesFreed += bucket.free(bucketBytesToFree);
+        }
+        remainingBuckets--;
+      }
+
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Block cache LRU eviction completed; freed=" +
+          StringUtils.humanReadableInt(bytesFreed) + ", total=" +
+          StringUtils.humanReadableInt(this.size.get()) + ", single=" +
+          StringUtils.humanReadableInt(bucketSingle.totalSize()) +
+          ", multi=" +
+          StringUtils.humanReadableInt(bucketMulti.totalSize()) +
+          ", memory=" +
+          StringUtils.humanReadableInt(bucketMemory.totalSize()));
+      }
+    } finally {
+      this.evictionLock.unlock();
+    }
+  }
+
+  /**
+   * Used to group blocks into priority buckets.  There will be a BlockBucket
+   * for each priority (single, multi, memory).  Once bucketed, the eviction
+   * algorithm takes the appropriate number of elements out of each according
+   * to configuration parameters and their relatives sizes.
+   */
+  private class BlockBucket implements Comparable<BlockBucket> {
+    private final CachedBlockQueue queue;
+    private final long bucketSize;
+    private long totalSize = 0;
+
+    public BlockBucket(final long bytesToFree, final long blockSize,
+        final long bucketSize) {
+      this.bucketSize = bucketSize;
+      this.queue = new CachedBlockQueue(bytesToFree, blockSize);
+    }
+
+    public void add(final CachedBlock block) {
+      this.totalSize += block.heapSize() + MAP_ENTRY_OVERHEAD;
+      this.queue.add(block);
+    }
+
+    public long free(final long toFree) {
+      LinkedList<CachedBlock> blocks = this.queue.get();
+      long freedBytes = 0;
+      for (CachedBlock cb: blocks) {
+        freedBytes += evictBlock(cb);
+        if (freedBytes >= toFree) {
+          return freedBytes;
+        }
+      }
+      return freedBytes;
+    }
+
+    public long overflow() {
+      return this.totalSize - this.bucketSize;
+    }
+
+    public long totalSize() {
+      return this.totalSize;
+    }
+
+    public int compareTo(final BlockBucket that) {
+      if (this.overflow() == that.overflow()) return 0;
+      return this.overflow() > that.overflow() ? 1 : -1;
+    }
+  }
+
+  /**
+   * Set a second level cache.  Blocks evicted from this cache are offered
+   * to it, and blocks missing from this cache are looked for in it.
+   * @param handler Victim cache, usually a {@link SlabCache}.
+   */
+  public void setVictimCache(final BlockCache handler) {
+    this.victimHandler = handler;
+  }
+
+  /**
+   * @return The victim cache or null if none.
+   */
+  public BlockCache getVictimCache() {
+    return this.victimHandler;
+  }
+
+  /**
+   * Get the maximum size of this cache.
+   * @return max size in bytes
+   */
+  public long getMaxSize() {
+    return this.maxSize;
+  }
+
+  /**
+   * Get the current size of this cache.
+   * @return current size in bytes
+   */
+  public long getCurrentSize() {
+    return this.size.get();
+  }
+
+  /**
+   * Get the free size of this cache.
+   * @return free space in cache in bytes
+   */
+  public long getFreeSize() {
+    return getMaxSize() - getCurrentSize();
+  }
+
+  /**
+   * Get the number of blocks currently in the cache.
+   * @return number of blocks in the cache
+   */
+  public long size() {
+    return this.elements.get();
+  }
+
+  /**
+   * Get the number of eviction runs that have occurred
+   */
+  public long getEvictionCount() {
+    return this.stats.getEvictionCount();
+  }
+
+  /**
+   * Get the number of blocks that have been evicted during the lifetime
+   * of this cache.
+   */
+  public long getEvictedCount() {
+    return this.stats.getEvictedCount();
+  }
+
+  /**
+   * Get counter statistics for this cache.
+   * <p>
+   * Includes: total accesses, hits, misses, evicted blocks, and runs
+   * of the eviction processes.
+   */
+  public CacheStats getStats() {
+    return this.stats;
+  }
+
+  /**
+   * Log the current cache statistics.
+   */
+  public void logStats() {
+    LOG.info("LRU block cache stats: " +
+      "total=" + StringUtils.humanReadableInt(getCurrentSize()) + ", " +
+      "free=" + StringUtils.humanReadableInt(getFreeSize()) + ", " +
+      "max=" + StringUtils.humanReadableInt(getMaxSize()) + ", " +
+      "blocks=" + size() + ", " +
+      "accesses=" + this.stats.getRequestCount() + ", " +
+      "hits=" + this.stats.getHitCount() + ", " +
+      "hitRatio=" + StringUtils.formatPercent(this.stats.getHitRatio(), 2) +
+      ", " +
+      "evictions=" + this.stats.getEvictionCount() + ", " +
+      "evicted=" + this.stats.getEvictedCount() + ", " +
+      "singleHits=" + this.stats.getHitCount(BlockPriority.SINGLE) + ", " +
+      "multiHits=" + this.stats.getHitCount(BlockPriority.MULTI) + ", " +
+      "memoryHits=" + this.stats.getHitCount(BlockPriority.MEMORY) + ", " +
+      "singleEvicted=" + this.stats.getEvictedCount(BlockPriority.SINGLE) +
+      ", " +
+      "multiEvicted=" + this.stats.getEvictedCount(BlockPriority.MULTI) +
+      ", " +
+      "memoryEvicted=" + this.stats.getEvictedCount(BlockPriority.MEMORY));
+  }
+
+  public long heapSize() {
+    return getCurrentSize();
+  }
+
+  private long acceptableSize() {
+    return (long)Math.floor(this.maxSize * this.acceptableFactor);
+  }
+
+  private long minSize() {
+    return (long)Math.floor(this.maxSize * this.minFactor);
+  }
+
+  private long singleSize() {
+    return (long)Math.floor(this.maxSize * this.singleFactor *
+      this.minFactor);
+  }
+
+  private long multiSize() {
+    return (long)Math.floor(this.maxSize * this.multiFactor *
+      this.minFactor);
+  }
+
+  private long memorySize() {
+    return (long)Math.floor(this.maxSize * this.memoryFactor *
+      this.minFactor);
+  }
+
+  /**
+   * Hit, miss and eviction counters of a block cache.  Hits and evicted
+   * blocks are also counted per priority bucket.
+   */
+  public static class CacheStats {
+    private final AtomicLong accessCount = new AtomicLong(0);
+    private final AtomicLong hitCount = new AtomicLong(0);
+    private final AtomicLong missCount = new AtomicLong(0);
+    private final AtomicLong evictionCount = new AtomicLong(0);
+    private final AtomicLong evictedCount = new AtomicLong(0);
+    private final AtomicLong [] hitCountByPriority =
+      newCounters(BlockPriority.values().length);
+    private final AtomicLong [] evictedCountByPriority =
+      newCounters(BlockPriority.values().length);
+
+    private static AtomicLong [] newCounters(final int n) {
+      AtomicLong [] counters = new AtomicLong[n];
+      for (int i = 0; i < n; i++) {
+        counters[i] = new AtomicLong(0);
+      }
+      return counters;
+    }
+
+    public void miss() {
+      this.missCount.incrementAndGet();
+      this.accessCount.incrementAndGet();
+    }
+
+    public void hit(final BlockPriority priority) {
+      this.hitCount.incrementAndGet();
+      this.hitCountByPriority[priority.ordinal()].incrementAndGet();
+      this.accessCount.incrementAndGet();
+    }
+
+    public void evict() {
+      this.evictionCount.incrementAndGet();
+    }
+
+    public void evicted(final BlockPriority priority) {
+      this.evictedCount.incrementAndGet();
+      this.evictedCountByPriority[priority.ordinal()].incrementAndGet();
+    }
+
+    public long getRequestCount() {
+      return this.accessCount.get();
+    }
+
+    public long getMissCount() {
+      return this.missCount.get();
+    }
+
+    public long getHitCount() {
+      return this.hitCount.get();
+    }
+
+    /**
+     * @param priority Bucket the block was in when it was hit.
+     * @return Hits on blocks of the passed priority.
+     */
+    public long getHitCount(final BlockPriority priority) {
+      return this.hitCountByPriority[priority.ordinal()].get();
+    }
+
+    public long getEvictionCount() {
+      return this.evictionCount.get();
+    }
+
+    public long getEvictedCount() {
+      return this.evictedCount.get();
+    }
+
+    /**
+     * @param priority Bucket the block was in when it was evicted.
+     * @return Evicted blocks of the passed priority.
+     */
+    public long getEvictedCount(final BlockPriority priority) {
+      return this.evictedCountByPriority[priority.ordinal()].get();
+    }
+
+    public double getHitRatio() {
+      long requests = getRequestCount();
+      return requests == 0? 0: ((float)getHitCount()/(float)requests);
+    }
+
+    public double getMissRatio() {
+      long requests = getRequestCount();
+      return requests == 0? 0: ((float)getMissCount()/(float)requests);
+    }
+
+    public double evictedPerEviction() {
+      long evictions = getEvictionCount();
+      return evictions == 0? 0:
+        ((float)getEvictedCount()/(float)evictions);
+    }
+  }
+}
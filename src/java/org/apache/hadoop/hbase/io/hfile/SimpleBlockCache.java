@@ -12,14 +12,14 @@ import java.util.Map;
  */
 public class SimpleBlockCache implements BlockCache {
   private static class Ref extends SoftReference<ByteBuffer> {
-    public String blockId;
-    public Ref(String blockId, ByteBuffer buf, ReferenceQueue q) {
+    public BlockCacheKey blockId;
+    public Ref(BlockCacheKey blockId, ByteBuffer buf, ReferenceQueue q) {
       super(buf, q);
       this.blockId = blockId;
     }
   }
-  private Map<String,Ref> cache = 
-    new HashMap<String,Ref>();
+  private Map<BlockCacheKey,Ref> cache = 
+    new HashMap<BlockCacheKey,Ref>();
 
   private ReferenceQueue q = new ReferenceQueue();
   public int dumps = 0;
@@ -41,7 +41,7 @@ public class SimpleBlockCache implements BlockCache {
     return cache.size();
   }
   @Override
-  public synchronized ByteBuffer getBlock(String blockName) {
+  public synchronized ByteBuffer getBlock(BlockCacheKey blockName) {
     processQueue(); // clear out some crap.
     Ref ref = cache.get(blockName);
     if (ref == null)
@@ -50,7 +50,14 @@ public class SimpleBlockCache implements BlockCache {
   }
 
   @Override
-  public synchronized void cacheBlock(String blockName, ByteBuffer buf) {
+  public synchronized void cacheBlock(BlockCacheKey blockName,
+      ByteBuffer buf) {
+    cache.put(blockName, new Ref(blockName, buf, q));
+  }
+
+  @Override
+  public synchronized void cacheBlock(BlockCacheKey blockName,
+      ByteBuffer buf, boolean inMemory) {
     cache.put(blockName, new Ref(blockName, buf, q));
   }
 }
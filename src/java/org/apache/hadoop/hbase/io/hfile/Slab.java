@@ -0,0 +1,116 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Slab is a fixed sized collection of equally sized direct ByteBuffers.
+ * All the memory is allocated up front when the Slab is made, in as few
+ * direct buffers as possible, and then sliced into <code>blockSize</code>
+ * pieces.  Pieces are handed out by {@link #alloc()} and given back by
+ * {@link #free(ByteBuffer)}; nothing is ever returned to the JVM so the
+ * slab does not add to garbage collection work.
+ */
+class Slab {
+  static final Log LOG = LogFactory.getLog(Slab.class);
+
+  /** Buffers that are not currently holding a block */
+  private final ConcurrentLinkedQueue<ByteBuffer> buffers;
+
+  /** The direct buffers backing this slab */
+  private final ByteBuffer [] slabs;
+
+  private final int blockSize;
+  private final int numBlocks;
+
+  Slab(final int blockSize, final int numBlocks) {
+    if (blockSize <= 0 || numBlocks <= 0) {
+      throw new IllegalArgumentException("blockSize and numBlocks must be " +
+        "> 0: blockSize=" + blockSize + ", numBlocks=" + numBlocks);
+    }
+    this.blockSize = blockSize;
+    this.numBlocks = numBlocks;
+    this.buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    // A single direct buffer can be at most Integer.MAX_VALUE bytes.
+    int blocksPerSlab = Integer.MAX_VALUE / blockSize;
+    int fullSlabs = numBlocks / blocksPerSlab;
+    int partialSlabBlocks = numBlocks % blocksPerSlab;
+    this.slabs = new ByteBuffer[fullSlabs + (partialSlabBlocks > 0? 1: 0)];
+    for (int i = 0; i < fullSlabs; i++) {
+      this.slabs[i] = allocateAndSlice(blocksPerSlab);
+    }
+    if (partialSlabBlocks > 0) {
+      this.slabs[fullSlabs] = allocateAndSlice(partialSlabBlocks);
+    }
+  }
+
+  private ByteBuffer allocateAndSlice(final int blocks) {
+    ByteBuffer slab = ByteBuffer.allocateDirect(blocks * this.blockSize);
+    for (int j = 0; j < blocks; j++) {
+      slab.limit((j + 1) * this.blockSize);
+      slab.position(j * this.blockSize);
+      this.buffers.add(slab.slice());
+    }
+    slab.clear();
+    return slab;
+  }
+
+  /**
+   * @return A free buffer of {@link #getBlockSize()} bytes or null if all are
+   * in use.
+   */
+  ByteBuffer alloc() {
+    ByteBuffer buf = this.buffers.poll();
+    if (buf != null) {
+      buf.clear();
+    }
+    return buf;
+  }
+
+  /**
+   * Give a buffer obtained from {@link #alloc()} back to the slab.
+   * @param buf Buffer to free.
+   */
+  void free(final ByteBuffer buf) {
+    this.buffers.add(buf);
+  }
+
+  int getBlockSize() {
+    return this.blockSize;
+  }
+
+  int getBlockCapacity() {
+    return this.numBlocks;
+  }
+
+  int getBlocksRemaining() {
+    return this.buffers.size();
+  }
+
+  long getSize() {
+    return (long)this.blockSize * this.numBlocks;
+  }
+}
@@ -0,0 +1,320 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.io.HeapSize;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.ClassSize;
+import org.apache.hadoop.util.StringUtils;
+
+/**
+ * Block cache that keeps block contents outside of the Java heap, in
+ * preallocated direct memory {@link Slab}s, so that a large cache does not
+ * make for long garbage collection pauses.
+ * <p>
+ * Memory is split into size classes; by default 80% of it goes to slots of
+ * 1.1 times the expected block size and 20% to slots of twice the expected
+ * block size.  A block is copied into a free slot of the smallest class it
+ * fits in.  Blocks bigger than the biggest class are not cached.  When a
+ * class has no free slot, its least recently used block is dropped.  Each
+ * class has its own lock so the classes do not contend with each other.
+ * <p>
+ * On a hit the block is copied back into a new on-heap buffer so the slot
+ * can be reused without affecting the caller.  This cache is meant to sit
+ * behind an {@link LruBlockCache} as its victim cache (see
+ * {@link LruBlockCache#setVictimCache(BlockCache)}) but works standalone too.
+ * The in-memory flag is ignored.
+ */
+public class SlabCache implements BlockCache, HeapSize {
+  static final Log LOG = LogFactory.getLog(SlabCache.class);
+
+  /** Default slot sizes, as a multiple of the expected block size */
+  static final float [] DEFAULT_SIZE_MULTIPLIERS = {1.1f, 2.0f};
+
+  /** Default share of memory given to each slot size */
+  static final float [] DEFAULT_PROPORTIONS = {0.8f, 0.2f};
+
+  /** On-heap cost of tracking one cached block */
+  private static final long PER_BLOCK_OVERHEAD =
+    // The LinkedHashMap entry, which adds before and after to a HashMap's.
+    ClassSize.align(ClassSize.HASHMAP_ENTRY + (2 * ClassSize.REFERENCE)) +
+    // The Slot and the ByteBuffer slice that it holds.
+    ClassSize.align(ClassSize.OBJECT + ClassSize.REFERENCE +
+      Bytes.SIZEOF_INT) + ClassSize.BYTE_BUFFER +
+    BlockCacheKey.OVERHEAD;
+
+  /** Size classes, in ascending order of slot size */
+  private final SingleSizeCache [] sizeClasses;
+
+  private final long maxSize;
+
+  private final AtomicLong hitCount = new AtomicLong(0);
+  private final AtomicLong missCount = new AtomicLong(0);
+  private final AtomicLong evictedCount = new AtomicLong(0);
+  private final AtomicLong rejectedCount = new AtomicLong(0);
+
+  /**
+   * Makes a cache with the default size classes.
+   * @param maxSize Total bytes of direct memory to allocate.
+   * @param avgBlockSize Expected average size of a block.
+   */
+  public SlabCache(final long maxSize, final long avgBlockSize) {
+    this(maxSize, avgBlockSize, DEFAULT_SIZE_MULTIPLIERS,
+      DEFAULT_PROPORTIONS);
+  }
+
+  /**
+   * @param maxSize Total bytes of direct memory to allocate.
+   * @param avgBlockSize Expected average size of a block.
+   * @param sizeMultipliers Slot size of each class as a multiple of
+   * <code>avgBlockSize</code>, ascending.
+   * @param proportions Share of <code>maxSize</code> for each class.  Must
+   * total 1.0.
+   */
+  public SlabCache(final long maxSize, final long avgBlockSize,
+      final float [] sizeMultipliers, final float [] proportions) {
+    if (sizeMultipliers.length != proportions.length) {
+      throw new IllegalArgumentException("Need a proportion per slot size");
+    }
+    float total = 0;
+    for (int i = 0; i < proportions.length; i++) {
+      total += proportions[i];
+      if (i > 0 && sizeMultipliers[i] <= sizeMultipliers[i - 1]) {
+        throw new IllegalArgumentException("Slot sizes must be ascending");
+      }
+    }
+    if (Math.abs(total - 1.0f) > 0.001f) {
+      throw new IllegalArgumentException("Proportions should total 1.0");
+    }
+    this.sizeClasses = new SingleSizeCache[sizeMultipliers.length];
+    long allocated = 0;
+    for (int i = 0; i < sizeMultipliers.length; i++) {
+      int slotSize = (int)Math.ceil(avgBlockSize * sizeMultipliers[i]);
+      int numBlocks = (int)Math.max(1,
+        (long)(maxSize * proportions[i]) / slotSize);
+      this.sizeClasses[i] = new SingleSizeCache(new Slab(slotSize, numBlocks));
+      allocated += (long)slotSize * numBlocks;
+      LOG.info("Allocated off-heap slab of " + numBlocks + " blocks of " +
+        slotSize + " bytes");
+    }
+    this.maxSize = allocated;
+  }
+
+  public void cacheBlock(final BlockCacheKey cacheKey, final ByteBuffer buf) {
+    SingleSizeCache c = getSizeClass(buf.limit());
+    if (c == null) {
+      this.rejectedCount.incrementAndGet();
+      return;
+    }
+    c.cacheBlock(cacheKey, buf);
+  }
+
+  public void cacheBlock(final BlockCacheKey cacheKey, final ByteBuffer buf,
+      final boolean inMemory) {
+    cacheBlock(cacheKey, buf);
+  }
+
+  /**
+   * @param cacheKey Block to fetch.
+   * @return A heap copy of the block contents or null if not cached.
+   */
+  public ByteBuffer getBlock(final BlockCacheKey cacheKey) {
+    // Classes are few; asking each is cheaper than keeping another map of
+    // name to class that would have to be kept in sync on every eviction.
+    for (SingleSizeCache c: this.sizeClasses) {
+      ByteBuffer buf = c.getBlock(cacheKey);
+      if (buf != null) {
+        this.hitCount.incrementAndGet();
+        return buf;
+      }
+    }
+    this.missCount.incrementAndGet();
+    return null;
+  }
+
+  /*
+   * @param size Block size.
+   * @return The smallest size class that holds blocks of <code>size</code>
+   * bytes or null if none does.
+   */
+  private SingleSizeCache getSizeClass(final int size) {
+    for (SingleSizeCache c: this.sizeClasses) {
+      if (size <= c.slab.getBlockSize()) {
+        return c;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return Bytes of direct memory held by this cache.
+   */
+  public long getMaxSize() {
+    return this.maxSize;
+  }
+
+  /**
+   * @return Bytes of direct memory holding cached blocks.
+   */
+  public long getCurrentSize() {
+    long size = 0;
+    for (SingleSizeCache c: this.sizeClasses) {
+      size += (long)c.slab.getBlockSize() * c.size();
+    }
+    return size;
+  }
+
+  /**
+   * @return Number of cached blocks.
+   */
+  public long size() {
+    long size = 0;
+    for (SingleSizeCache c: this.sizeClasses) {
+      size += c.size();
+    }
+    return size;
+  }
+
+  public long getHitCount() {
+    return this.hitCount.get();
+  }
+
+  public long getMissCount() {
+    return this.missCount.get();
+  }
+
+  /**
+   * @return Number of blocks dropped to make room for others.
+   */
+  public long getEvictedCount() {
+    return this.evictedCount.get();
+  }
+
+  /**
+   * @return Number of blocks not cached because they were too big.
+   */
+  public long getRejectedCount() {
+    return this.rejectedCount.get();
+  }
+
+  /**
+   * Only counts the on-heap bookkeeping; the block contents are off heap.
+   */
+  public long heapSize() {
+    return size() * PER_BLOCK_OVERHEAD;
+  }
+
+  /**
+   * Log the current cache statistics.
+   */
+  public void logStats() {
+    long requests = getHitCount() + getMissCount();
+    LOG.info("Off-heap block cache stats: " +
+      "total=" + StringUtils.humanReadableInt(getCurrentSize()) + ", " +
+      "max=" + StringUtils.humanReadableInt(getMaxSize()) + ", " +
+      "blocks=" + size() + ", " +
+      "accesses=" + requests + ", " +
+      "hits=" + getHitCount() + ", " +
+      "hitRatio=" + StringUtils.formatPercent(requests == 0? 0:
+        (double)getHitCount() / requests, 2) + ", " +
+      "evicted=" + getEvictedCount() + ", " +
+      "rejected=" + getRejectedCount());
+  }
+
+  /*
+   * All the blocks of one size class.  Access ordered so the eldest entry is
+   * the least recently used.  Copies in and out are done under the lock so a
+   * slot is never reused while it is being read.
+   */
+  private class SingleSizeCache {
+    private final Slab slab;
+    private final LinkedHashMap<BlockCacheKey, Slot> map =
+      new LinkedHashMap<BlockCacheKey, Slot>(16, 0.75f, true);
+
+    SingleSizeCache(final Slab slab) {
+      this.slab = slab;
+    }
+
+    synchronized void cacheBlock(final BlockCacheKey cacheKey,
+        final ByteBuffer buf) {
+      if (this.map.containsKey(cacheKey)) {
+        return;
+      }
+      ByteBuffer slot = this.slab.alloc();
+      if (slot == null) {
+        Iterator<Map.Entry<BlockCacheKey, Slot>> i =
+          this.map.entrySet().iterator();
+        if (!i.hasNext()) {
+          return;
+        }
+        slot = i.next().getValue().buf;
+        i.remove();
+        evictedCount.incrementAndGet();
+        slot.clear();
+      }
+      // Blocks handed us by HFile.Reader have their limit set to the end of
+      // their content; copy up to there only.
+      ByteBuffer src = buf.duplicate();
+      src.rewind();
+      int length = src.remaining();
+      slot.put(src);
+      this.map.put(cacheKey, new Slot(slot, length));
+    }
+
+    synchronized ByteBuffer getBlock(final BlockCacheKey cacheKey) {
+      Slot s = this.map.get(cacheKey);
+      if (s == null) {
+        return null;
+      }
+      ByteBuffer copy = ByteBuffer.allocate(s.length);
+      ByteBuffer src = s.buf.duplicate();
+      src.position(0);
+      src.limit(s.length);
+      copy.put(src);
+      copy.rewind();
+      return copy;
+    }
+
+    synchronized int size() {
+      return this.map.size();
+    }
+  }
+
+  /*
+   * A slab buffer and the length of the block in it.
+   */
+  private static class Slot {
+    final ByteBuffer buf;
+    final int length;
+
+    Slot(final ByteBuffer buf, final int length) {
+      this.buf = buf;
+      this.length = length;
+    }
+  }
+}
@@ -33,7 +33,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.net.SocketFactory;
 
@@ -41,8 +44,11 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionInfo;
 import org.apache.hadoop.hbase.client.RetriesExhaustedException;
 import org.apache.hadoop.hbase.io.HbaseObjectWritable;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.ipc.VersionedProtocol;
 import org.apache.hadoop.metrics.util.MetricsTimeVaryingRate;
@@ -87,7 +93,7 @@ public class HBaseRPC {
 
 
   /** A method invocation, including the method name and its parameters.*/
-  private static class Invocation implements Writable, Configurable {
+  static class Invocation implements Writable, Configurable {
     // Here, for hbase, we maintain two static maps of method names to code and
     // vice versa.
     private static final Map<Byte, String> CODE_TO_METHODNAME =
@@ -105,6 +111,7 @@ public class HBaseRPC {
     }
     // End of hbase modifications.
 
+    private byte methodCode = NOT_ENCODED;
     private String methodName;
     @SuppressWarnings("unchecked")
     private Class[] parameterClasses;
@@ -129,6 +136,9 @@ public class HBaseRPC {
     /** @return The name of the method invoked. */
     public String getMethodName() { return methodName; }
 
+    /** @return The code the method name was sent as. */
+    public byte getMethodCode() { return methodCode; }
+
     /** @return The parameter classes. */
     @SuppressWarnings("unchecked")
     public Class[] getParameterClasses() { return parameterClasses; }
@@ -137,8 +147,8 @@ public class HBaseRPC {
     public Object[] getParameters() { return parameters; }
 
     public void readFields(DataInput in) throws IOException {
-      byte code = in.readByte();
-      methodName = CODE_TO_METHODNAME.get(Byte.valueOf(code));
+      methodCode = in.readByte();
+      methodName = CODE_TO_METHODNAME.get(Byte.valueOf(methodCode));
       parameters = new Object[in.readInt()];
       parameterClasses = new Class[parameters.length];
       HbaseObjectWritable objectWritable = new HbaseObjectWritable();
@@ -212,6 +222,15 @@ public class HBaseRPC {
       return localCode;
     }
 
+    /*
+     * @param methodname
+     * @return Code <code>methodname</code> is sent as or null if it is not
+     * part of any protocol.
+     */
+    static Byte getMethodCode(final String methodname) {
+      return METHODNAME_TO_CODE.get(methodname);
+    }
+
     /*
      * Write out the code byte for passed Class.
      * @param out
@@ -575,11 +594,45 @@ public class HBaseRPC {
     return new Server(instance, conf, bindAddress, port, numHandlers, verbose);
   }
 
+  /**
+   * Construct a server for a protocol implementation instance listening on a
+   * port and address, with handlers of its own for catalog and admin calls.
+   *
+   * @param instance
+   * @param bindAddress
+   * @param port
+   * @param numHandlers
+   * @param numPriorityHandlers
+   * @param verbose
+   * @param conf
+   * @return Server
+   * @throws IOException
+   */
+  public static Server getServer(final Object instance,
+      final String bindAddress, final int port, final int numHandlers,
+      final int numPriorityHandlers, final boolean verbose,
+      Configuration conf) 
+    throws IOException {
+    return new Server(instance, conf, bindAddress, port, numHandlers,
+      numPriorityHandlers, verbose);
+  }
+
   /** An RPC Server. */
   public static class Server extends HBaseServer {
     private Object instance;
     private Class<?> implementation;
     private boolean verbose;
+    // Methods of the implementation indexed by the code their name is sent
+    // as, so calls need neither a reflective lookup nor a metrics map lookup.
+    private final MethodEntry [] methods = new MethodEntry[256];
+    // Calls to these go to the priority handlers: regionserver reports to
+    // the master and the version check done on connecting.
+    private static final Set<String> PRIORITY_METHODS = new HashSet<String>();
+    static {
+      for (Method m: HMasterRegionInterface.class.getMethods()) {
+        PRIORITY_METHODS.add(m.getName());
+      }
+    }
 
     /**
      * Construct an RPC server.
@@ -613,10 +666,84 @@ public class HBaseRPC {
      */
     public Server(Object instance, Configuration conf, String bindAddress,  int port,
                   int numHandlers, boolean verbose) throws IOException {
-      super(bindAddress, port, Invocation.class, numHandlers, conf, classNameBase(instance.getClass().getName()));
+      this(instance, conf, bindAddress, port, numHandlers, 0, verbose);
+    }
+
+    /** Construct an RPC server.
+     * @param instance the instance whose methods will be called
+     * @param conf the configuration to use
+     * @param bindAddress the address to bind on to listen for connection
+     * @param port the port to listen for connections on
+     * @param numHandlers the number of method handler threads to run
+     * @param numPriorityHandlers the number of handler threads to run for
+     * catalog and admin calls; if zero they share the other handlers
+     * @param verbose whether each call should be logged
+     * @throws IOException
+     */
+    public Server(Object instance, Configuration conf, String bindAddress,
+        int port, int numHandlers, int numPriorityHandlers, boolean verbose)
+    throws IOException {
+      super(bindAddress, port, Invocation.class, numHandlers,
+        numPriorityHandlers, conf,
+        classNameBase(instance.getClass().getName()));
       this.instance = instance;
       this.implementation = instance.getClass();
       this.verbose = verbose;
+      Map<Byte, List<Method>> byCode = new HashMap<Byte, List<Method>>();
+      for (Method m: this.implementation.getMethods()) {
+        Byte code = Invocation.getMethodCode(m.getName());
+        if (code == null) {
+          continue;
+        }
+        List<Method> overloads = byCode.get(code);
+        if (overloads == null) {
+          overloads = new ArrayList<Method>();
+          byCode.put(code, overloads);
+        }
+        overloads.add(m);
+      }
+      for (Map.Entry<Byte, List<Method>> e: byCode.entrySet()) {
+        MethodEntry entry = new MethodEntry(e.getValue());
+        this.methods[e.getKey().byteValue() & 0xff] = entry;
+        rpcMetrics.metricsList.put(e.getValue().get(0).getName(),
+          entry.metrics);
+      }
+    }
+
+    /*
+     * The public methods of one name, with the metric they update.  More
+     * than one method when the name is overloaded.
+     */
+    private static class MethodEntry {
+      private final Method [] overloads;
+      private final Class<?> [][] parameterTypes;
+      final MetricsTimeVaryingRate metrics;
+      final boolean priority;
+
+      MethodEntry(final List<Method> overloads) {
+        this.overloads = overloads.toArray(new Method[overloads.size()]);
+        this.parameterTypes = new Class<?>[this.overloads.length][];
+        for (int i = 0; i < this.overloads.length; i++) {
+          // Skip the access check on every invoke.
+          this.overloads[i].setAccessible(true);
+          this.parameterTypes[i] = this.overloads[i].getParameterTypes();
+        }
+        this.metrics = new MetricsTimeVaryingRate(this.overloads[0].getName());
+        this.priority = PRIORITY_METHODS.contains(this.overloads[0].getName());
+      }
+
+      /*
+       * @param classes Declared parameter classes of the call.
+       * @return The method taking exactly <code>classes</code> or null.
+       */
+      Method find(final Class<?> [] classes) {
+        for (int i = 0; i < this.overloads.length; i++) {
+          if (Arrays.equals(this.parameterTypes[i], classes)) {
+            return this.overloads[i];
+          }
+        }
+        return null;
+      }
     }
 
     @Override
@@ -624,30 +751,25 @@ public class HBaseRPC {
       try {
         Invocation call = (Invocation)param;
         if (verbose) log("Call: " + call);
+        MethodEntry entry = this.methods[call.getMethodCode() & 0xff];
         Method method =
-          implementation.getMethod(call.getMethodName(),
-                                   call.getParameterClasses());
+          entry == null? null: entry.find(call.getParameterClasses());
+        if (method == null) {
+          throw new NoSuchMethodException(implementation.getName() + "." +
+            call.getMethodName());
+        }
 
         long startTime = System.currentTimeMillis();
         Object value = method.invoke(instance, call.getParameters());
         int processingTime = (int) (System.currentTimeMillis() - startTime);
         int qTime = (int) (startTime-receivedTime);
-        LOG.debug("Served: " + call.getMethodName() +
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Served: " + call.getMethodName() +
             " queueTime= " + qTime +
             " procesingTime= " + processingTime);
-        rpcMetrics.rpcQueueTime.inc(qTime);
+        }
         rpcMetrics.rpcProcessingTime.inc(processingTime);
-
-	MetricsTimeVaryingRate m = rpcMetrics.metricsList.get(call.getMethodName());
-
-	if (m != null) {
-		m.inc(processingTime);
-	}
-	else {
-		rpcMetrics.metricsList.put(call.getMethodName(), new MetricsTimeVaryingRate(call.getMethodName()));
-		m = rpcMetrics.metricsList.get(call.getMethodName());
-		m.inc(processingTime);
-	}
+        entry.metrics.inc(processingTime);
 
         if (verbose) log("Return: "+value);
 
@@ -667,6 +789,48 @@ public class HBaseRPC {
         throw ioe;
       }
     }
+
+    /*
+     * A call is priority if it is to one of the PRIORITY_METHODS or if its
+     * first parameter names a catalog region, as do the lookups clients make
+     * to locate user regions.
+     */
+    @Override
+    protected boolean isPriority(Writable param) {
+      Invocation call = (Invocation)param;
+      MethodEntry entry = this.methods[call.getMethodCode() & 0xff];
+      if (entry == null) {
+        return false;
+      }
+      if (entry.priority) {
+        return true;
+      }
+      Object [] params = call.getParameters();
+      return params.length > 0 && params[0] instanceof byte [] &&
+        isCatalogRegion((byte [])params[0]);
+    }
+  }
+
+  private static final byte [] ROOT_REGION_PREFIX =
+    Bytes.add(HConstants.ROOT_TABLE_NAME,
+      new byte [] {(byte)HRegionInfo.DELIMITER});
+  private static final byte [] META_REGION_PREFIX =
+    Bytes.add(HConstants.META_TABLE_NAME,
+      new byte [] {(byte)HRegionInfo.DELIMITER});
+
+  /*
+   * @param regionName
+   * @return True if <code>regionName</code> names a -ROOT- or .META. region.
+   */
+  static boolean isCatalogRegion(final byte [] regionName) {
+    return startsWith(regionName, ROOT_REGION_PREFIX) ||
+      startsWith(regionName, META_REGION_PREFIX);
+  }
+
+  private static boolean startsWith(final byte [] bytes,
+      final byte [] prefix) {
+    return bytes.length >= prefix.length &&
+      Bytes.compareTo(bytes, 0, prefix.length, prefix, 0, prefix.length) == 0;
   }
 
   protected static void log(String value) {
@@ -69,7 +69,10 @@ public interface HBaseRPCProtocolVersion extends VersionedProtocol {
    * HMasterInterface.findRootRegion. We use ZooKeeper to store root region
    * location instead.</li>
    * <li>Version 17: Added incrementColumnValue.</li>
+   * <li>Version 18: Added incrementColumnValues.</li>
+   * <li>Version 19: Added storefile size and request count to
+   * HServerLoad.RegionLoad.</li>
    * </ul>
    */
-  public static final long versionID = 17L;
+  public static final long versionID = 19L;
 }
@@ -29,6 +29,7 @@ import org.apache.hadoop.metrics.MetricsContext;
 import org.apache.hadoop.metrics.MetricsRecord;
 import org.apache.hadoop.metrics.MetricsUtil;
 import org.apache.hadoop.metrics.Updater;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingInt;
 import org.apache.hadoop.metrics.util.MetricsTimeVaryingRate;
 
 /**
@@ -47,12 +48,21 @@ public class HBaseRpcMetrics implements Updater {
   private MetricsRecord metricsRecord;
   private static Log LOG = LogFactory.getLog(HBaseRpcMetrics.class);
   
-  public HBaseRpcMetrics(String hostName, String port) {
+  public HBaseRpcMetrics(String hostName, String port, int readers) {
     MetricsContext context = MetricsUtil.getContext("rpc");
     metricsRecord = MetricsUtil.createRecord(context, "metrics");
 
     metricsRecord.setTag("port", port);
 
+    readerBytesRead = new MetricsTimeVaryingInt[readers];
+    readerCallsRead = new MetricsTimeVaryingInt[readers];
+    for (int i = 0; i < readers; i++) {
+      readerBytesRead[i] = new MetricsTimeVaryingInt("RpcReader" + i +
+        "BytesRead");
+      readerCallsRead[i] = new MetricsTimeVaryingInt("RpcReader" + i +
+        "CallsRead");
+    }
+
     LOG.info("Initializing RPC Metrics with hostName=" 
         + hostName + ", port=" + port);
 
@@ -68,6 +78,13 @@ public class HBaseRpcMetrics implements Updater {
   
   public MetricsTimeVaryingRate rpcQueueTime = new MetricsTimeVaryingRate("RpcQueueTime");
   public MetricsTimeVaryingRate rpcProcessingTime = new MetricsTimeVaryingRate("RpcProcessingTime");
+  /** Time calls for the priority handlers spent queued */
+  public MetricsTimeVaryingRate priorityRpcQueueTime = new MetricsTimeVaryingRate("PriorityRpcQueueTime");
+
+  /** Bytes read off the wire by each listener reader thread */
+  public MetricsTimeVaryingInt [] readerBytesRead;
+  /** Calls decoded and queued by each listener reader thread */
+  public MetricsTimeVaryingInt [] readerCallsRead;
 
   public Map <String, MetricsTimeVaryingRate> metricsList = Collections.synchronizedMap(new HashMap<String, MetricsTimeVaryingRate>());
 
@@ -80,6 +97,11 @@ public class HBaseRpcMetrics implements Updater {
   public void doUpdates(MetricsContext context) {
     rpcQueueTime.pushMetric(metricsRecord);
     rpcProcessingTime.pushMetric(metricsRecord);
+    priorityRpcQueueTime.pushMetric(metricsRecord);
+    for (int i = 0; i < readerBytesRead.length; i++) {
+      readerBytesRead[i].pushMetric(metricsRecord);
+      readerCallsRead[i].pushMetric(metricsRecord);
+    }
 
     synchronized (metricsList) {
 	// Iterate through the rpcMetrics hashmap to propogate the different rpc metrics.
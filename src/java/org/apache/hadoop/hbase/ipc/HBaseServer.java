@@ -54,6 +54,7 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.ObjectWritable;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingRate;
 import org.apache.hadoop.security.UserGroupInformation;
 import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.hadoop.util.StringUtils;
@@ -82,6 +83,16 @@ public abstract class HBaseServer {
    * How many calls/handler are allowed in the queue.
    */
   private static final int MAX_QUEUE_SIZE_PER_HANDLER = 100;
+
+  /**
+   * Request buffers of up to this many bytes are pooled by the reader threads
+   */
+  private static final int POOLED_BUFFER_SIZE = 16 * 1024;
+
+  /**
+   * How many free request buffers a reader thread keeps
+   */
+  private static final int MAX_POOLED_BUFFERS = 16;
   
   public static final Log LOG =
     LogFactory.getLog("org.apache.hadoop.ipc.HBaseServer");
@@ -126,6 +137,8 @@ public abstract class HBaseServer {
   protected String bindAddress; 
   protected int port;                             // port we listen on
   private int handlerCount;                       // number of handler threads
+  private int priorityHandlerCount;               // number of priority handlers
+  private int readThreads;                        // number of read threads
   protected Class<? extends Writable> paramClass; // class of call parameters
   protected int maxIdleTime;                      // the maximum idle time after 
                                                   // which a client may be disconnected
@@ -147,6 +160,7 @@ public abstract class HBaseServer {
 
   volatile protected boolean running = true;         // true while server runs
   protected BlockingQueue<Call> callQueue; // queued calls
+  protected BlockingQueue<Call> priorityCallQueue; // queued priority calls
 
   protected List<Connection> connectionList = 
     Collections.synchronizedList(new LinkedList<Connection>());
@@ -156,6 +170,7 @@ public abstract class HBaseServer {
   protected Responder responder = null;
   protected int numConnections = 0;
   private Handler[] handlers = null;
+  private Handler[] priorityHandlers = null;
   protected HBaseRPCErrorHandler errorHandler = null;
 
   /**
@@ -227,6 +242,8 @@ public abstract class HBaseServer {
     private long cleanupInterval = 10000; //the minimum interval between 
                                           //two cleanup runs
     private int backlogLength = conf.getInt("ipc.server.listen.queue.size", 128);
+    private Reader [] readers = null;
+    private int currentReader = 0;
     
     public Listener() throws IOException {
       address = new InetSocketAddress(bindAddress, port);
@@ -242,9 +259,171 @@ public abstract class HBaseServer {
 
       // Register accepts on the server socket with the selector.
       acceptChannel.register(selector, SelectionKey.OP_ACCEPT);
+      readers = new Reader[readThreads];
+      for (int i = 0; i < readThreads; i++) {
+        readers[i] = new Reader(i);
+      }
       this.setName("IPC Server listener on " + port);
       this.setDaemon(true);
     }
+
+    /*
+     * Reads requests off the connections handed it by the listener and
+     * queues the calls for the handlers.  Each reader has its own selector
+     * so reading and decoding is spread over as many threads as there are
+     * readers.  The buffers that requests are read into are pooled; only
+     * the reader thread takes and returns them.
+     */
+    private class Reader extends Thread {
+      private final int id;
+      private final Selector readSelector;
+      private final LinkedList<Connection> pending =
+        new LinkedList<Connection>();
+      private final LinkedList<ByteBuffer> freeBuffers =
+        new LinkedList<ByteBuffer>();
+
+      Reader(final int id) throws IOException {
+        this.id = id;
+        this.readSelector = Selector.open();
+        this.setName("IPC Server reader " + id + " on " + port);
+        this.setDaemon(true);
+      }
+
+      /*
+       * Have this reader read <code>c</code>.  Registration is left to the
+       * reader thread as registering blocks while the selector is selecting.
+       */
+      void add(final Connection c) {
+        synchronized (this.pending) {
+          this.pending.add(c);
+        }
+        this.readSelector.wakeup();
+      }
+
+      private void registerPending() {
+        synchronized (this.pending) {
+          while (!this.pending.isEmpty()) {
+            Connection c = this.pending.removeFirst();
+            try {
+              c.channel.register(this.readSelector, SelectionKey.OP_READ, c);
+            } catch (ClosedChannelException e) {
+              // Closed before we got to it.
+            }
+          }
+        }
+      }
+
+      /*
+       * @param size
+       * @return A buffer to read a request of <code>size</code> bytes into,
+       * pooled if it is small enough.
+       */
+      ByteBuffer getBuffer(final int size) {
+        if (size > POOLED_BUFFER_SIZE) {
+          return ByteBuffer.allocate(size);
+        }
+        ByteBuffer buf = this.freeBuffers.poll();
+        if (buf == null) {
+          buf = ByteBuffer.allocate(POOLED_BUFFER_SIZE);
+        }
+        buf.clear();
+        buf.limit(size);
+        return buf;
+      }
+
+      /*
+       * @param buf Buffer whose request has been decoded.
+       */
+      void returnBuffer(final ByteBuffer buf) {
+        if (buf.capacity() == POOLED_BUFFER_SIZE &&
+            this.freeBuffers.size() < MAX_POOLED_BUFFERS) {
+          this.freeBuffers.add(buf);
+        }
+      }
+
+      void bytesRead(final int count) {
+        rpcMetrics.readerBytesRead[this.id].inc(count);
+      }
+
+      void callRead() {
+        rpcMetrics.readerCallsRead[this.id].inc();
+      }
+
+      void doRead(SelectionKey key) throws InterruptedException {
+        int count = 0;
+        Connection c = (Connection)key.attachment();
+        if (c == null) {
+          return;  
+        }
+        c.setLastContact(System.currentTimeMillis());
+
+        try {
+          count = c.readAndProcess();
+        } catch (InterruptedException ieo) {
+          throw ieo;
+        } catch (Exception e) {
+          LOG.debug(getName() + ": readAndProcess threw exception " + e + ". Count of bytes read: " + count, e);
+          count = -1; //so that the (count < 0) block is executed
+        }
+        if (count < 0) {
+          if (LOG.isDebugEnabled())
+            LOG.debug(getName() + ": disconnecting client " + 
+                      c.getHostAddress() + ". Number of active connections: "+
+                      numConnections);
+          closeConnection(c);
+          c = null;
+        }
+        else {
+          c.setLastContact(System.currentTimeMillis());
+        }
+      }
+
+      @Override
+      public void run() {
+        LOG.info(getName() + ": starting");
+        SERVER.set(HBaseServer.this);
+        while (running) {
+          SelectionKey key = null;
+          try {
+            this.readSelector.select();
+            registerPending();
+            Iterator<SelectionKey> iter =
+              this.readSelector.selectedKeys().iterator();
+            while (iter.hasNext()) {
+              key = iter.next();
+              iter.remove();
+              if (key.isValid() && key.isReadable()) {
+                doRead(key);
+              }
+              key = null;
+            }
+          } catch (OutOfMemoryError e) {
+            if (errorHandler != null) {
+              if (errorHandler.checkOOME(e)) {
+                LOG.info(getName() + ": exiting on OOME");
+                closeCurrentConnection(key);
+                return;
+              }
+            } else {
+              LOG.warn("Out of Memory in server read", e);
+              closeCurrentConnection(key);
+              try { Thread.sleep(60000); } catch (Exception ie) {}
+            }
+          } catch (InterruptedException e) {
+            if (running) {                          // unexpected -- log it
+              LOG.info(getName() + " caught: " +
+                       StringUtils.stringifyException(e));
+            }
+          } catch (Exception e) {
+            closeCurrentConnection(key);
+          }
+        }
+        LOG.info("Stopping " + this.getName());
+        try {
+          this.readSelector.close();
+        } catch (IOException e) { }
+      }
+    }
     /** cleanup connections from connectionList. Choose a random range
      * to scan and also have a limit on the number of the connections
      * that will be cleanedup per run. The criteria for cleanup is the time
@@ -297,20 +476,22 @@ public abstract class HBaseServer {
     public void run() {
       LOG.info(getName() + ": starting");
       SERVER.set(HBaseServer.this);
+      for (Reader reader: readers) {
+        reader.start();
+      }
       while (running) {
         SelectionKey key = null;
         try {
-          selector.select();
+          // Reads are done by the readers so wake up now and again to
+          // clean up idle connections even when no one is connecting.
+          selector.select(cleanupInterval);
           Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
           while (iter.hasNext()) {
             key = iter.next();
             iter.remove();
             try {
-              if (key.isValid()) {
-                if (key.isAcceptable())
-                  doAccept(key);
-                else if (key.isReadable())
-                  doRead(key);
+              if (key.isValid() && key.isAcceptable()) {
+                doAccept(key);
               }
             } catch (IOException e) {
             }
@@ -333,17 +514,16 @@ public abstract class HBaseServer {
             cleanupConnections(true);
             try { Thread.sleep(60000); } catch (Exception ie) {}
       }
-        } catch (InterruptedException e) {
-          if (running) {                          // unexpected -- log it
-            LOG.info(getName() + " caught: " +
-                     StringUtils.stringifyException(e));
-          }
         } catch (Exception e) {
           closeCurrentConnection(key);
         }
         cleanupConnections(false);
       }
       LOG.info("Stopping " + this.getName());
+      for (Reader reader: readers) {
+        reader.interrupt();
+        reader.readSelector.wakeup();
+      }
 
       synchronized (this) {
         try {
@@ -387,13 +567,15 @@ public abstract class HBaseServer {
 
         channel.configureBlocking(false);
         channel.socket().setTcpNoDelay(tcpNoDelay);
-        SelectionKey readKey = channel.register(selector, SelectionKey.OP_READ);
-        c = new Connection(channel, System.currentTimeMillis());
-        readKey.attach(c);
+        // Hand connections to the readers round-robin.
+        Reader reader = readers[currentReader];
+        currentReader = (currentReader + 1) % readers.length;
+        c = new Connection(channel, System.currentTimeMillis(), reader);
         synchronized (connectionList) {
           connectionList.add(numConnections, c);
           numConnections++;
         }
+        reader.add(c);
         if (LOG.isDebugEnabled())
           LOG.debug("Server connection from " + c.toString() +
               "; # active connections: " + numConnections +
@@ -401,40 +583,14 @@ public abstract class HBaseServer {
       }
     }
 
-    void doRead(SelectionKey key) throws InterruptedException {
-      int count = 0;
-      Connection c = (Connection)key.attachment();
-      if (c == null) {
-        return;  
-      }
-      c.setLastContact(System.currentTimeMillis());
-      
-      try {
-        count = c.readAndProcess();
-      } catch (InterruptedException ieo) {
-        throw ieo;
-      } catch (Exception e) {
-        LOG.debug(getName() + ": readAndProcess threw exception " + e + ". Count of bytes read: " + count, e);
-        count = -1; //so that the (count < 0) block is executed
-      }
-      if (count < 0) {
-        if (LOG.isDebugEnabled())
-          LOG.debug(getName() + ": disconnecting client " + 
-                    c.getHostAddress() + ". Number of active connections: "+
-                    numConnections);
-        closeConnection(c);
-        c = null;
-      }
-      else {
-        c.setLastContact(System.currentTimeMillis());
-      }
-    }   
-
     synchronized void doStop() {
       if (selector != null) {
         selector.wakeup();
         Thread.yield();
       }
+      for (Reader reader: readers) {
+        reader.readSelector.wakeup();
+      }
       if (acceptChannel != null) {
         try {
           acceptChannel.socket().close();
@@ -710,9 +866,12 @@ public abstract class HBaseServer {
     private String hostAddress;
     private int remotePort;
     protected UserGroupInformation ticket = null;
+    private final Listener.Reader reader; // reader reading this connection
 
-    public Connection(SocketChannel channel, long lastContact) {
+    public Connection(SocketChannel channel, long lastContact,
+        Listener.Reader reader) {
       this.channel = channel;
+      this.reader = reader;
       this.lastContact = lastContact;
       this.data = null;
       this.dataLengthBuffer = ByteBuffer.allocate(4);
@@ -780,7 +939,7 @@ public abstract class HBaseServer {
          */    
         int count = -1;
         if (dataLengthBuffer.remaining() > 0) {
-          count = channelRead(channel, dataLengthBuffer);       
+          count = read(dataLengthBuffer);
           if (count < 0 || dataLengthBuffer.remaining() > 0) 
             return count;
         }
@@ -788,7 +947,7 @@ public abstract class HBaseServer {
         if (!versionRead) {
           //Every connection is expected to send the header.
           ByteBuffer versionBuffer = ByteBuffer.allocate(1);
-          count = channelRead(channel, versionBuffer);
+          count = read(versionBuffer);
           if (count <= 0) {
             return count;
           }
@@ -816,42 +975,52 @@ public abstract class HBaseServer {
             dataLengthBuffer.clear();
             return 0;  //ping message
           }
-          data = ByteBuffer.allocate(dataLength);
+          data = reader.getBuffer(dataLength);
           incRpcCount();  // Increment the rpc count
         }
         
-        count = channelRead(channel, data);
+        count = read(data);
         
         if (data.remaining() == 0) {
           dataLengthBuffer.clear();
-          data.flip();
+          ByteBuffer buf = data;
+          data = null;
           if (headerRead) {
-            processData();
-            data = null;
+            processData(buf);
+            reader.returnBuffer(buf);
             return count;
           }
-          processHeader();
+          processHeader(buf);
+          reader.returnBuffer(buf);
           headerRead = true;
-          data = null;
           continue;
         } 
         return count;
       }
     }
 
+    private int read(final ByteBuffer buffer) throws IOException {
+      int count = channelRead(channel, buffer);
+      if (count > 0) {
+        reader.bytesRead(count);
+      }
+      return count;
+    }
+
     /// Reads the header following version
-    private void processHeader() throws IOException {
+    private void processHeader(final ByteBuffer buf) throws IOException {
       /* In the current version, it is just a ticket.
        * Later we could introduce a "ConnectionHeader" class.
        */
-      DataInputStream in =
-        new DataInputStream(new ByteArrayInputStream(data.array()));
+      DataInputStream in = new DataInputStream(
+        new ByteArrayInputStream(buf.array(), 0, buf.limit()));
       ticket = (UserGroupInformation) ObjectWritable.readObject(in, conf);
     }
     
-    private void processData() throws  IOException, InterruptedException {
-      DataInputStream dis =
-        new DataInputStream(new ByteArrayInputStream(data.array()));
+    private void processData(final ByteBuffer buf)
+    throws  IOException, InterruptedException {
+      DataInputStream dis = new DataInputStream(
+        new ByteArrayInputStream(buf.array(), 0, buf.limit()));
       int id = dis.readInt();                    // try to read an id
         
       if (LOG.isDebugEnabled())
@@ -861,7 +1030,12 @@ public abstract class HBaseServer {
       param.readFields(dis);        
         
       Call call = new Call(id, param, this);
-      callQueue.put(call);              // queue the call; maybe blocked here
+      reader.callRead();
+      if (priorityCallQueue != null && isPriority(param)) {
+        priorityCallQueue.put(call);
+      } else {
+        callQueue.put(call);            // queue the call; maybe blocked here
+      }
     }
 
     protected synchronized void close() {
@@ -879,9 +1053,21 @@ public abstract class HBaseServer {
 
   /** Handles queued calls . */
   private class Handler extends Thread {
-    public Handler(int instanceNumber) {
+    private final BlockingQueue<Call> queue;
+    private final MetricsTimeVaryingRate queueTime;
+
+    /**
+     * @param queue Queue to take calls from.
+     * @param queueTime Metric to add the time calls spent queued to.
+     * @param name Name of the pool this handler belongs to.
+     * @param instanceNumber
+     */
+    public Handler(BlockingQueue<Call> queue, MetricsTimeVaryingRate queueTime,
+        String name, int instanceNumber) {
+      this.queue = queue;
+      this.queueTime = queueTime;
       this.setDaemon(true);
-      this.setName("IPC Server handler "+ instanceNumber + " on " + port);
+      this.setName("IPC Server " + name + " "+ instanceNumber + " on " + port);
     }
 
     @Override
@@ -892,7 +1078,8 @@ public abstract class HBaseServer {
       ByteArrayOutputStream buf = new ByteArrayOutputStream(buffersize);
       while (running) {
         try {
-          Call call = callQueue.take(); // pop the queue; maybe blocked here
+          Call call = queue.take(); // pop the queue; maybe blocked here
+          queueTime.inc((int)(System.currentTimeMillis() - call.timestamp));
 
           if (LOG.isDebugEnabled())
             LOG.debug(getName() + ": has #" + call.id + " from " +
@@ -976,14 +1163,36 @@ public abstract class HBaseServer {
                   Class<? extends Writable> paramClass, int handlerCount, 
                   Configuration conf, String serverName) 
     throws IOException {
+    this(bindAddress, port, paramClass, handlerCount, 0, conf, serverName);
+  }
+
+  /** Constructs a server listening on the named port and address.  Parameters
+   * passed must be of the named class.  Calls for which
+   * {@link #isPriority(Writable)} is true are queued separately and served by
+   * <code>priorityHandlerCount</code> handlers of their own so that they do
+   * not wait behind other calls; if zero, all calls share the
+   * <code>handlerCount</code> handlers.
+   */
+  protected HBaseServer(String bindAddress, int port, 
+                  Class<? extends Writable> paramClass, int handlerCount, 
+                  int priorityHandlerCount, Configuration conf,
+                  String serverName) 
+    throws IOException {
     this.bindAddress = bindAddress;
     this.conf = conf;
     this.port = port;
     this.paramClass = paramClass;
     this.handlerCount = handlerCount;
+    this.readThreads = Math.max(1,
+      conf.getInt("ipc.server.read.threadpool.size", 3));
     this.socketSendBufferSize = 0;
     this.maxQueueSize = handlerCount * MAX_QUEUE_SIZE_PER_HANDLER;
     this.callQueue  = new LinkedBlockingQueue<Call>(maxQueueSize); 
+    this.priorityHandlerCount = priorityHandlerCount;
+    if (priorityHandlerCount > 0) {
+      this.priorityCallQueue = new LinkedBlockingQueue<Call>(
+        priorityHandlerCount * MAX_QUEUE_SIZE_PER_HANDLER);
+    }
     this.maxIdleTime = 2*conf.getInt("ipc.client.connection.maxidletime", 1000);
     this.maxConnectionsToNuke = conf.getInt("ipc.client.kill.max", 10);
     this.thresholdIdleConnections = conf.getInt("ipc.client.idlethreshold", 4000);
@@ -992,7 +1201,7 @@ public abstract class HBaseServer {
     listener = new Listener();
     this.port = listener.getAddress().getPort();    
     this.rpcMetrics = new HBaseRpcMetrics(serverName,
-                          Integer.toString(this.port));
+                          Integer.toString(this.port), this.readThreads);
     this.tcpNoDelay = conf.getBoolean("ipc.server.tcpnodelay", false);
 
     // Create the responder here
@@ -1019,9 +1228,18 @@ public abstract class HBaseServer {
     handlers = new Handler[handlerCount];
     
     for (int i = 0; i < handlerCount; i++) {
-      handlers[i] = new Handler(i);
+      handlers[i] = new Handler(callQueue, rpcMetrics.rpcQueueTime,
+        "handler", i);
       handlers[i].start();
     }
+    if (priorityCallQueue != null) {
+      priorityHandlers = new Handler[priorityHandlerCount];
+      for (int i = 0; i < priorityHandlerCount; i++) {
+        priorityHandlers[i] = new Handler(priorityCallQueue,
+          rpcMetrics.priorityRpcQueueTime, "priority handler", i);
+        priorityHandlers[i].start();
+      }
+    }
   }
 
   /** Stops the service.  No new calls will be handled after this is called. */
@@ -1035,6 +1253,13 @@ public abstract class HBaseServer {
         }
       }
     }
+    if (priorityHandlers != null) {
+      for (Handler handler: priorityHandlers) {
+        if (handler != null) {
+          handler.interrupt();
+        }
+      }
+    }
     listener.interrupt();
     listener.doStop();
     responder.interrupt();
@@ -1072,6 +1297,15 @@ public abstract class HBaseServer {
   public abstract Writable call(Writable param, long receiveTime)
                                                 throws IOException;
 
+  /**
+   * Called for each call when there are priority handlers.
+   * @param param
+   * @return True if <code>param</code> should go to the priority handlers.
+   */
+  protected boolean isPriority(Writable param) {
+    return false;
+  }
+
   /**
    * The number of open RPC conections
    * @return the number of open rpc connections
@@ -1088,6 +1322,13 @@ public abstract class HBaseServer {
     return callQueue.size();
   }
 
+  /**
+   * @return The number of rpc calls waiting on the priority handlers.
+   */
+  public int getPriorityCallQueueLen() {
+    return priorityCallQueue == null? 0: priorityCallQueue.size();
+  }
+
   /**
    * Set the handler for calling out of RPC for error conditions.
    * @param handler the handler implementation
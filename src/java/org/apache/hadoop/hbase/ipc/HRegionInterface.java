@@ -306,4 +306,19 @@ public interface HRegionInterface extends HBaseRPCProtocolVersion {
    */
   public long incrementColumnValue(byte [] regionName, byte [] row,
       byte [] column, long amount) throws IOException;
+
+  /**
+   * Atomically increments many column values of a region.  Increments are
+   * applied up to the first whose row is not in the region.
+   * 
+   * @param regionName
+   * @param rows row of each counter
+   * @param columns column of each counter
+   * @param amounts amount to add to each counter
+   * @return new value of each counter incremented; shorter than
+   * <code>rows</code> if the region did not hold all of them
+   * @throws IOException
+   */
+  public long [] incrementColumnValues(byte [] regionName, byte [][] rows,
+      byte [][] columns, long [] amounts) throws IOException;
 }
@@ -111,6 +111,9 @@ abstract class BaseScanner extends Chore implements HConstants {
   // will use this variable to synchronize and make sure we aren't interrupted 
   // mid-scan
   final Object scannerLock = new Object();
+
+  // Count of catalog rows to fetch per next call.
+  private final int scannerCaching;
   
   BaseScanner(final HMaster master, final boolean rootRegion, final int period,
       final AtomicBoolean stop) {
@@ -118,6 +121,8 @@ abstract class BaseScanner extends Chore implements HConstants {
     this.rootRegion = rootRegion;
     this.master = master;
     this.initialScanComplete = false;
+    this.scannerCaching = Math.max(1, master.getConfiguration().
+      getInt("hbase.master.meta.scanner.caching", 100));
   }
   
   /** @return true if initial scan completed successfully */
@@ -136,10 +141,14 @@ abstract class BaseScanner extends Chore implements HConstants {
   }
 
   /**
+   * Rows are fetched <code>hbase.master.meta.scanner.caching</code> at a time
+   * and each batch is checked before the next is asked for.  Only the catalog
+   * columns we look at are asked for.
    * @param region Region to scan
+   * @return Count of rows scanned.
    * @throws IOException
    */
-  protected void scanRegion(final MetaRegion region) throws IOException {
+  protected int scanRegion(final MetaRegion region) throws IOException {
     HRegionInterface regionServer = null;
     long scannerId = -1L;
     LOG.info(Thread.currentThread().getName() + " scanning meta region " +
@@ -154,26 +163,35 @@ abstract class BaseScanner extends Chore implements HConstants {
     try {
       regionServer = master.connection.getHRegionConnection(region.getServer());
       scannerId = regionServer.openScanner(region.getRegionName(),
-        COLUMN_FAMILY_ARRAY, EMPTY_START_ROW, HConstants.LATEST_TIMESTAMP, null);
+        ALL_META_COLUMNS, EMPTY_START_ROW, HConstants.LATEST_TIMESTAMP, null);
       while (true) {
-        RowResult values = regionServer.next(scannerId);
-        if (values == null || values.size() == 0) {
+        RowResult [] batch = regionServer.next(scannerId, this.scannerCaching);
+        if (batch == null || batch.length == 0) {
           break;
         }
-        HRegionInfo info = master.getHRegionInfo(values.getRow(), values);
-        if (info == null) {
-          emptyRows.add(values.getRow());
-          continue;
-        }
-        String serverName = Writables.cellToString(values.get(COL_SERVER));
-        long startCode = Writables.cellToLong(values.get(COL_STARTCODE));
+        for (RowResult values: batch) {
+          if (values == null || values.size() == 0) {
+            continue;
+          }
+          HRegionInfo info = master.getHRegionInfo(values.getRow(), values);
+          if (info == null) {
+            emptyRows.add(values.getRow());
+            continue;
+          }
+          String serverName = Writables.cellToString(values.get(COL_SERVER));
+          long startCode = Writables.cellToLong(values.get(COL_STARTCODE));
 
-        // Note Region has been assigned.
-        checkAssigned(info, serverName, startCode);
-        if (isSplitParent(info)) {
-          splitParents.put(info, values);
+          // Note Region has been assigned.
+          checkAssigned(info, serverName, startCode);
+          if (isSplitParent(info)) {
+            splitParents.put(info, values);
+          }
+          rows += 1;
+        }
+        if (batch.length < this.scannerCaching) {
+          // Short batch means the scanner is exhausted.
+          break;
         }
-        rows += 1;
       }
       if (rootRegion) {
         this.master.regionManager.setNumMetaRegions(rows);
@@ -220,6 +238,7 @@ abstract class BaseScanner extends Chore implements HConstants {
     }
     LOG.info(Thread.currentThread().getName() + " scan of " + rows +
       " row(s) of meta region " + region.toString() + " complete");
+    return rows;
   }
 
   /*
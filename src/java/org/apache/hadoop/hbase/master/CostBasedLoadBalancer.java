@@ -0,0 +1,399 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.master;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HServerLoad;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Moves regions so as to lower a cost made up of how unevenly region count,
+ * requests, store file size and memcache size are spread over the
+ * regionservers, and of how far tables are piled up on single servers.
+ * <p>
+ * The cost of each of the first four is the squared coefficient of variation
+ * of the per-server totals: zero when every server carries the mean, one
+ * when a typical server is off the mean by the mean.  The table cost is the
+ * share of all regions that sit on a server beyond their table's fair share
+ * of <code>ceil(table regions / servers)</code>.  The terms are weighted by
+ * <code>hbase.master.loadbalancer.regions.weight</code>,
+ * <code>.requests.weight</code>, <code>.storefiles.weight</code>,
+ * <code>.memcache.weight</code> and <code>.table.weight</code> and summed.
+ * <p>
+ * Balancing is greedy.  Each step looks at the few servers carrying the most
+ * and the least, and makes the one region move between them that lowers the
+ * cost the most.  It stops after <code>maxMoves</code> moves or when no move
+ * lowers the cost by <code>hbase.master.loadbalancer.min.improvement</code>
+ * divided by the count of regions; a move's effect on the cost shrinks with
+ * the size of the cluster, so this keeps the bar the same on any cluster.
+ * The bar stops moves that chase noise in the reported loads.  Nothing is
+ * moved unless some server is more than <code>hbase.regions.slop</code>
+ * over the mean in a weighted dimension or some table is piled up.  Catalog
+ * regions are never moved.
+ */
+public class CostBasedLoadBalancer extends Configured implements LoadBalancer {
+  static final Log LOG = LogFactory.getLog(CostBasedLoadBalancer.class);
+
+  static final int REGIONS = 0;
+  static final int REQUESTS = 1;
+  static final int STOREFILES = 2;
+  static final int MEMCACHE = 3;
+  private static final String [] DIMENSIONS =
+    {"regions", "requests", "storefiles", "memcache"};
+
+  /* How many of the most and of the least loaded servers each step looks at.
+   * Keeps a step at regions-per-server times this squared.
+   */
+  private static final int CANDIDATES = 3;
+
+
+  private static final String ROOT = Bytes.toString(HConstants.ROOT_TABLE_NAME);
+  private static final String META = Bytes.toString(HConstants.META_TABLE_NAME);
+
+  private final float [] weights = {1.0f, 1.0f, 0.5f, 0.25f};
+  private float tableWeight = 0.5f;
+  private float slop = 0.1f;
+  private float minImprovement = 0.5f;
+
+  @Override
+  public void setConf(final Configuration conf) {
+    super.setConf(conf);
+    if (conf == null) {
+      return;
+    }
+    for (int i = 0; i < DIMENSIONS.length; i++) {
+      this.weights[i] = conf.getFloat("hbase.master.loadbalancer." +
+        DIMENSIONS[i] + ".weight", this.weights[i]);
+    }
+    this.tableWeight =
+      conf.getFloat("hbase.master.loadbalancer.table.weight", this.tableWeight);
+    this.slop = conf.getFloat("hbase.regions.slop", this.slop);
+    this.minImprovement = conf.getFloat(
+      "hbase.master.loadbalancer.min.improvement", this.minImprovement);
+  }
+
+  public List<RegionPlan> balanceCluster(
+      final Map<String, HServerLoad> clusterState, final int maxMoves) {
+    List<RegionPlan> plans = new ArrayList<RegionPlan>();
+    if (clusterState.size() < 2 || maxMoves <= 0) {
+      return plans;
+    }
+    Cluster cluster = new Cluster(clusterState);
+    if (!cluster.needsBalance()) {
+      return plans;
+    }
+    double before = cluster.cost();
+    while (plans.size() < maxMoves) {
+      RegionPlan plan = cluster.moveBest();
+      if (plan == null) {
+        break;
+      }
+      plans.add(plan);
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Cost went from " + before + " to " + cluster.cost() +
+        " with " + plans.size() + " move(s)");
+    }
+    return plans;
+  }
+
+  /**
+   * @param clusterState Load of every regionserver, keyed by server name.
+   * @return Cost of the passed state; zero is perfectly balanced.
+   */
+  public double computeCost(final Map<String, HServerLoad> clusterState) {
+    return new Cluster(clusterState).cost();
+  }
+
+  /*
+   * @param regionName
+   * @return Name of the table the region belongs to.
+   */
+  static String getTableName(final byte [] regionName) {
+    for (int i = 0; i < regionName.length; i++) {
+      if (regionName[i] == HRegionInfo.DELIMITER) {
+        return Bytes.toString(regionName, 0, i);
+      }
+    }
+    return Bytes.toString(regionName);
+  }
+
+  /*
+   * A region as the balancer sees it.
+   */
+  private static class Region {
+    final byte [] name;
+    final String table;
+    final double [] values;
+    final boolean movable;
+    boolean moved = false;
+
+    Region(final HServerLoad.RegionLoad load) {
+      this.name = load.getName();
+      this.table = getTableName(this.name);
+      this.values = new double [] {1, load.getRequests(),
+        load.getStorefileSizeMB(), load.getMemcacheSizeMB()};
+      this.movable = !this.table.equals(ROOT) && !this.table.equals(META);
+    }
+  }
+
+  /*
+   * Working copy of the cluster that moves are made against.
+   */
+  private class Cluster {
+    final String [] servers;
+    final List<List<Region>> regions = new ArrayList<List<Region>>();
+    // Total of each dimension on each server, [dimension][server].
+    final double [][] load;
+    final double [] mean;
+    // Count of each table's regions on each server.
+    final Map<String, int []> tableCounts = new HashMap<String, int []>();
+    final Map<String, Integer> fairShares = new HashMap<String, Integer>();
+    final int totalRegions;
+
+    Cluster(final Map<String, HServerLoad> clusterState) {
+      // Sorted so the same state always makes the same plan.
+      Map<String, HServerLoad> sorted =
+        new TreeMap<String, HServerLoad>(clusterState);
+      this.servers = sorted.keySet().toArray(new String[sorted.size()]);
+      int n = this.servers.length;
+      this.load = new double[DIMENSIONS.length][n];
+      this.mean = new double[DIMENSIONS.length];
+      int total = 0;
+      int s = 0;
+      for (HServerLoad hsl: sorted.values()) {
+        List<Region> list = new ArrayList<Region>();
+        for (HServerLoad.RegionLoad rl: hsl.getRegionsLoad()) {
+          Region r = new Region(rl);
+          list.add(r);
+          for (int d = 0; d < DIMENSIONS.length; d++) {
+            this.load[d][s] += r.values[d];
+          }
+          int [] counts = this.tableCounts.get(r.table);
+          if (counts == null) {
+            counts = new int[n];
+            this.tableCounts.put(r.table, counts);
+          }
+          counts[s]++;
+          total++;
+        }
+        this.regions.add(list);
+        s++;
+      }
+      this.totalRegions = total;
+      for (int d = 0; d < DIMENSIONS.length; d++) {
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+          sum += this.load[d][i];
+        }
+        this.mean[d] = sum / n;
+      }
+      for (Map.Entry<String, int []> e: this.tableCounts.entrySet()) {
+        int count = 0;
+        for (int c: e.getValue()) {
+          count += c;
+        }
+        this.fairShares.put(e.getKey(),
+          Integer.valueOf((count + n - 1) / n));
+      }
+    }
+
+    /*
+     * @return True if a server is over the mean by more than the slop in a
+     * dimension we care about or a table is piled up.
+     */
+    boolean needsBalance() {
+      for (int d = 0; d < DIMENSIONS.length; d++) {
+        if (weights[d] <= 0 || this.mean[d] <= 0) {
+          continue;
+        }
+        // Over by at least one whole region when counting regions.
+        double limit = d == REGIONS?
+          Math.max(this.mean[d] * (1 + slop), this.mean[d] + 1):
+          this.mean[d] * (1 + slop);
+        for (int s = 0; s < this.servers.length; s++) {
+          if (this.load[d][s] > limit) {
+            return true;
+          }
+        }
+      }
+      return tableWeight > 0 && tableCost() > 0;
+    }
+
+    double cost() {
+      double cost = 0;
+      for (int d = 0; d < DIMENSIONS.length; d++) {
+        if (weights[d] == 0 || this.mean[d] <= 0) {
+          continue;
+        }
+        double sum = 0;
+        for (int s = 0; s < this.servers.length; s++) {
+          double dev = this.load[d][s] / this.mean[d] - 1;
+          sum += dev * dev;
+        }
+        cost += weights[d] * sum / this.servers.length;
+      }
+      return cost + tableWeight * tableCost();
+    }
+
+    double tableCost() {
+      if (this.totalRegions == 0) {
+        return 0;
+      }
+      long excess = 0;
+      for (Map.Entry<String, int []> e: this.tableCounts.entrySet()) {
+        int fair = this.fairShares.get(e.getKey()).intValue();
+        for (int c: e.getValue()) {
+          excess += Math.max(0, c - fair);
+        }
+      }
+      return (double)excess / this.totalRegions;
+    }
+
+    /*
+     * @param s Server index.
+     * @return How loaded the server is relative to the others, all weighted
+     * dimensions and its table pile-ups considered.
+     */
+    double score(final int s) {
+      double score = 0;
+      for (int d = 0; d < DIMENSIONS.length; d++) {
+        if (this.mean[d] > 0) {
+          score += weights[d] * this.load[d][s] / this.mean[d];
+        }
+      }
+      if (this.mean[REGIONS] > 0) {
+        int excess = 0;
+        for (Map.Entry<String, int []> e: this.tableCounts.entrySet()) {
+          excess += Math.max(0, e.getValue()[s] -
+            this.fairShares.get(e.getKey()).intValue());
+        }
+        score += tableWeight * excess / this.mean[REGIONS];
+      }
+      return score;
+    }
+
+    /*
+     * @return Change in cost were <code>r</code> moved from server
+     * <code>a</code> to server <code>b</code>.
+     */
+    double moveDelta(final Region r, final int a, final int b) {
+      double delta = 0;
+      for (int d = 0; d < DIMENSIONS.length; d++) {
+        if (weights[d] == 0 || this.mean[d] <= 0 || r.values[d] == 0) {
+          continue;
+        }
+        double m = this.mean[d];
+        double oa = this.load[d][a] / m - 1;
+        double ob = this.load[d][b] / m - 1;
+        double na = (this.load[d][a] - r.values[d]) / m - 1;
+        double nb = (this.load[d][b] + r.values[d]) / m - 1;
+        delta += weights[d] * (na * na + nb * nb - oa * oa - ob * ob) /
+          this.servers.length;
+      }
+      if (tableWeight != 0) {
+        int [] counts = this.tableCounts.get(r.table);
+        int fair = this.fairShares.get(r.table).intValue();
+        int before = Math.max(0, counts[a] - fair) +
+          Math.max(0, counts[b] - fair);
+        int after = Math.max(0, counts[a] - 1 - fair) +
+          Math.max(0, counts[b] + 1 - fair);
+        delta += tableWeight * (after - before) / this.totalRegions;
+      }
+      return delta;
+    }
+
+    /*
+     * Find the single move that lowers the cost most and make it.
+     * @return The move made or null if no move lowers the cost.
+     */
+    RegionPlan moveBest() {
+      Integer [] order = new Integer[this.servers.length];
+      final double [] scores = new double[this.servers.length];
+      for (int s = 0; s < order.length; s++) {
+        order[s] = Integer.valueOf(s);
+        scores[s] = score(s);
+      }
+      Arrays.sort(order, new Comparator<Integer>() {
+        public int compare(Integer l, Integer r) {
+          return Double.compare(scores[r.intValue()], scores[l.intValue()]);
+        }
+      });
+      int candidates = Math.min(CANDIDATES, order.length - 1);
+      Region best = null;
+      int bestFrom = -1;
+      int bestTo = -1;
+      double bestDelta = -minImprovement / Math.max(1, this.totalRegions);
+      for (int i = 0; i < candidates; i++) {
+        int a = order[i].intValue();
+        for (Region r: this.regions.get(a)) {
+          if (!r.movable || r.moved) {
+            continue;
+          }
+          for (int j = order.length - candidates; j < order.length; j++) {
+            int b = order[j].intValue();
+            if (a == b) {
+              continue;
+            }
+            double delta = moveDelta(r, a, b);
+            if (delta < bestDelta) {
+              best = r;
+              bestFrom = a;
+              bestTo = b;
+              bestDelta = delta;
+            }
+          }
+        }
+      }
+      if (best == null) {
+        return null;
+      }
+      move(best, bestFrom, bestTo);
+      return new RegionPlan(best.name, this.servers[bestFrom],
+        this.servers[bestTo]);
+    }
+
+    void move(final Region r, final int a, final int b) {
+      this.regions.get(a).remove(r);
+      this.regions.get(b).add(r);
+      for (int d = 0; d < DIMENSIONS.length; d++) {
+        this.load[d][a] -= r.values[d];
+        this.load[d][b] += r.values[d];
+      }
+      int [] counts = this.tableCounts.get(r.table);
+      counts[a]--;
+      counts[b]++;
+      r.moved = true;
+    }
+  }
+}
@@ -227,7 +227,7 @@ public class HMaster extends Thread implements HConstants, HMasterInterface,
     
     this.server = HBaseRPC.getServer(this, address.getBindAddress(),
         address.getPort(), conf.getInt("hbase.regionserver.handler.count", 10),
-        false, conf);
+        conf.getInt("hbase.regionserver.metahandler.count", 3), false, conf);
 
     //  The rpc-server port can be ephemeral... ensure we have the correct info
     this.address = new HServerAddress(server.getListenerAddress());
@@ -0,0 +1,44 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.master;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.hbase.HServerLoad;
+
+/**
+ * Decides which regions to move between regionservers.  Set the
+ * implementation with <code>hbase.master.loadbalancer.class</code>.  If it
+ * implements {@link org.apache.hadoop.conf.Configurable} it is handed the
+ * configuration on construction.  The master asks for a plan every
+ * <code>hbase.master.loadbalancer.period</code> while no region is in
+ * transition.
+ */
+public interface LoadBalancer {
+  /**
+   * @param clusterState Load of every live regionserver, keyed by server
+   * name, as last reported.  Must not be changed.
+   * @param maxMoves Most regions the returned plan may move.
+   * @return Regions to move; empty if the cluster is balanced enough.
+   */
+  public List<RegionPlan> balanceCluster(
+    final Map<String, HServerLoad> clusterState, final int maxMoves);
+}
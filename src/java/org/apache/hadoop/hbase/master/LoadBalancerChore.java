@@ -0,0 +1,146 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.master;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.Chore;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HServerInfo;
+import org.apache.hadoop.hbase.HServerLoad;
+import org.apache.hadoop.hbase.RemoteExceptionHandler;
+import org.apache.hadoop.hbase.io.RowResult;
+import org.apache.hadoop.hbase.util.Writables;
+
+/**
+ * Every <code>hbase.master.loadbalancer.period</code> asks the
+ * {@link LoadBalancer} for a plan and starts up to
+ * <code>hbase.master.loadbalancer.max.moves</code> of the moves in it.  A
+ * move is started by marking the region closing on the server carrying it;
+ * once closed, the region is held for the planned server (see
+ * {@link RegionManager#assignRegions}).  Does nothing while any region is in
+ * transition so that plans are made against settled loads.
+ * <p>
+ * If <code>hbase.master.loadbalancer.snapshot.dir</code> is set, the loads
+ * each plan was made against are written there for
+ * {@link LoadBalancerSimulator}.
+ */
+class LoadBalancerChore extends Chore implements HConstants {
+  static final Log LOG = LogFactory.getLog(LoadBalancerChore.class);
+
+  private static final byte [][] COLUMNS =
+    {COL_REGIONINFO, COL_SERVER, COL_STARTCODE};
+
+  private final HMaster master;
+  private final LoadBalancer balancer;
+  private final int maxMoves;
+  private final Path snapshotDir;
+
+  /**
+   * @param master
+   * @param balancer
+   */
+  LoadBalancerChore(final HMaster master, final LoadBalancer balancer) {
+    super(master.getConfiguration().
+        getInt("hbase.master.loadbalancer.period", 5 * 60 * 1000),
+      master.shutdownRequested);
+    HBaseConfiguration conf = master.getConfiguration();
+    this.master = master;
+    this.balancer = balancer;
+    this.maxMoves = conf.getInt("hbase.master.loadbalancer.max.moves", 10);
+    String dir = conf.get("hbase.master.loadbalancer.snapshot.dir", "").trim();
+    this.snapshotDir = dir.length() == 0? null: new Path(dir);
+  }
+
+  @Override
+  protected void chore() {
+    RegionManager regionManager = this.master.regionManager;
+    if (this.master.closed.get() || regionManager.inSafeMode() ||
+        !regionManager.areAllMetaRegionsOnline() ||
+        regionManager.hasRegionsInTransition()) {
+      return;
+    }
+    // Nothing is in transition so any plans left over are done or dead.
+    regionManager.clearRegionPlans();
+    Map<String, HServerLoad> state = new HashMap<String, HServerLoad>(
+      this.master.serverManager.getServersToLoad());
+    if (this.snapshotDir != null) {
+      Path p = new Path(this.snapshotDir, "loads." + System.currentTimeMillis());
+      try {
+        LoadBalancerSimulator.writeSnapshot(
+          p.getFileSystem(this.master.getConfiguration()), p, state);
+      } catch (IOException e) {
+        LOG.warn("Failed writing load snapshot " + p, e);
+      }
+    }
+    List<RegionPlan> plans = this.balancer.balanceCluster(state, this.maxMoves);
+    if (plans.isEmpty()) {
+      return;
+    }
+    int started = 0;
+    for (RegionPlan plan: plans) {
+      if (started >= this.maxMoves) {
+        break;
+      }
+      try {
+        if (startMove(plan)) {
+          started++;
+        }
+      } catch (IOException e) {
+        LOG.warn("Failed starting move of " + plan,
+          RemoteExceptionHandler.checkIOException(e));
+      }
+    }
+    LOG.info("Started " + started + " of " + plans.size() +
+      " planned region move(s)");
+  }
+
+  /*
+   * @param plan
+   * @return True if the move was started.
+   * @throws IOException
+   */
+  private boolean startMove(final RegionPlan plan) throws IOException {
+    RowResult rr = this.master.getFromMETA(plan.getRegionName(), COLUMNS);
+    if (rr == null || rr.size() == 0) {
+      return false;
+    }
+    HRegionInfo info = this.master.getHRegionInfo(rr.getRow(), rr);
+    if (info == null || info.isOffline() || info.isSplit()) {
+      return false;
+    }
+    // The region may have moved or split since its server last reported.
+    String address = Writables.cellToString(rr.get(COL_SERVER));
+    if (address.length() == 0 || !plan.getSource().equals(
+        HServerInfo.getServerName(address,
+          Writables.cellToLong(rr.get(COL_STARTCODE))))) {
+      return false;
+    }
+    return this.master.regionManager.moveRegion(info, plan);
+  }
+}
@@ -0,0 +1,360 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.master;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HServerLoad;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Runs {@link LoadBalancer}s offline against a recorded cluster load and
+ * reports how many regions each moves and how even it leaves the cluster.
+ * Each round the balancer is asked for a plan, as
+ * {@link LoadBalancerChore} would every period, and the moves are applied
+ * as if they had completed with each region taking its load along.  Loads
+ * are as written by the master when
+ * <code>hbase.master.loadbalancer.snapshot.dir</code> is set.  Evenness is
+ * measured with the {@link CostBasedLoadBalancer} cost so different
+ * balancers can be compared.
+ */
+public class LoadBalancerSimulator {
+  private final Configuration conf;
+  private final int maxMoves;
+  private final CostBasedLoadBalancer yardstick;
+
+  /**
+   * @param conf Configuration the balancers are made with.
+   */
+  public LoadBalancerSimulator(final Configuration conf) {
+    this.conf = conf;
+    this.maxMoves = conf.getInt("hbase.master.loadbalancer.max.moves", 10);
+    this.yardstick =
+      ReflectionUtils.newInstance(CostBasedLoadBalancer.class, conf);
+  }
+
+  /**
+   * @param c Balancer class.
+   * @param state Load of each server, keyed by server name.
+   * @param rounds Most times to ask the balancer for a plan.
+   * @return What the balancer did.
+   */
+  public Result simulate(final Class<? extends LoadBalancer> c,
+      final Map<String, HServerLoad> state, final int rounds) {
+    LoadBalancer balancer = ReflectionUtils.newInstance(c, this.conf);
+    Result result = new Result(c.getSimpleName());
+    result.costBefore = this.yardstick.computeCost(state);
+    result.regionSpreadBefore = getSpread(state, false);
+    result.requestSpreadBefore = getSpread(state, true);
+    Map<String, HServerLoad> current = state;
+    for (int i = 0; i < rounds; i++) {
+      List<RegionPlan> plans = balancer.balanceCluster(current, this.maxMoves);
+      if (plans.isEmpty()) {
+        break;
+      }
+      current = apply(current, plans);
+      result.rounds++;
+      result.moves += plans.size();
+    }
+    result.costAfter = this.yardstick.computeCost(current);
+    result.regionSpreadAfter = getSpread(current, false);
+    result.requestSpreadAfter = getSpread(current, true);
+    return result;
+  }
+
+  /**
+   * Outcome of balancing with one balancer.
+   */
+  public static class Result {
+    final String balancer;
+    int rounds = 0;
+    int moves = 0;
+    double costBefore = 0;
+    double costAfter = 0;
+    double regionSpreadBefore = 0;
+    double regionSpreadAfter = 0;
+    double requestSpreadBefore = 0;
+    double requestSpreadAfter = 0;
+
+    Result(final String balancer) {
+      this.balancer = balancer;
+    }
+
+    /** @return Rounds that moved something. */
+    public int getRounds() {
+      return this.rounds;
+    }
+
+    /** @return Regions moved over all rounds. */
+    public int getMoves() {
+      return this.moves;
+    }
+
+    /** @return Cost of the cluster before balancing. */
+    public double getCostBefore() {
+      return this.costBefore;
+    }
+
+    /** @return Cost of the cluster after balancing. */
+    public double getCostAfter() {
+      return this.costAfter;
+    }
+
+    /**
+     * @return Requests on the busiest server over the mean, after balancing.
+     */
+    public double getRequestSpreadAfter() {
+      return this.requestSpreadAfter;
+    }
+
+    @Override
+    public String toString() {
+      return this.balancer + ": rounds=" + this.rounds + ", moves=" +
+        this.moves + ", cost=" + format(this.costBefore) + "->" +
+        format(this.costAfter) + ", maxRegions/mean=" +
+        format(this.regionSpreadBefore) + "->" +
+        format(this.regionSpreadAfter) + ", maxRequests/mean=" +
+        format(this.requestSpreadBefore) + "->" +
+        format(this.requestSpreadAfter);
+    }
+
+    private static String format(final double d) {
+      return String.format("%.3f", Double.valueOf(d));
+    }
+  }
+
+  /*
+   * @param state
+   * @param requests True to measure requests, else region count.
+   * @return The most any server carries over the mean.
+   */
+  private static double getSpread(final Map<String, HServerLoad> state,
+      final boolean requests) {
+    double total = 0;
+    double max = 0;
+    for (HServerLoad hsl: state.values()) {
+      double load = 0;
+      for (HServerLoad.RegionLoad rl: hsl.getRegionsLoad()) {
+        load += requests? rl.getRequests(): 1;
+      }
+      total += load;
+      max = Math.max(max, load);
+    }
+    return total == 0? 0: max / (total / state.size());
+  }
+
+  /**
+   * @param state
+   * @param plans
+   * @return A copy of <code>state</code> with the planned moves made.
+   */
+  static Map<String, HServerLoad> apply(final Map<String, HServerLoad> state,
+      final List<RegionPlan> plans) {
+    Map<String, List<HServerLoad.RegionLoad>> regions =
+      new TreeMap<String, List<HServerLoad.RegionLoad>>();
+    Map<String, HServerLoad.RegionLoad> byName =
+      new HashMap<String, HServerLoad.RegionLoad>();
+    for (Map.Entry<String, HServerLoad> e: state.entrySet()) {
+      List<HServerLoad.RegionLoad> list =
+        new ArrayList<HServerLoad.RegionLoad>(e.getValue().getRegionsLoad());
+      regions.put(e.getKey(), list);
+      for (HServerLoad.RegionLoad rl: list) {
+        byName.put(Bytes.toString(rl.getName()), rl);
+      }
+    }
+    for (RegionPlan plan: plans) {
+      HServerLoad.RegionLoad rl =
+        byName.get(Bytes.toString(plan.getRegionName()));
+      if (rl != null && regions.get(plan.getSource()).remove(rl)) {
+        regions.get(plan.getDestination()).add(rl);
+      }
+    }
+    Map<String, HServerLoad> result = new TreeMap<String, HServerLoad>();
+    for (Map.Entry<String, List<HServerLoad.RegionLoad>> e:
+        regions.entrySet()) {
+      result.put(e.getKey(), makeLoad(e.getValue()));
+    }
+    return result;
+  }
+
+  private static HServerLoad makeLoad(
+      final List<HServerLoad.RegionLoad> regions) {
+    int requests = 0;
+    for (HServerLoad.RegionLoad rl: regions) {
+      requests += rl.getRequests();
+    }
+    HServerLoad hsl = new HServerLoad(requests, 0, 0);
+    for (HServerLoad.RegionLoad rl: regions) {
+      hsl.addRegionInfo(rl);
+    }
+    return hsl;
+  }
+
+  /**
+   * Write the load of every server.
+   * @param fs
+   * @param p File to write.
+   * @param state Load of each server, keyed by server name.
+   * @throws IOException
+   */
+  public static void writeSnapshot(final FileSystem fs, final Path p,
+      final Map<String, HServerLoad> state)
+  throws IOException {
+    FSDataOutputStream out = fs.create(p);
+    try {
+      out.writeInt(state.size());
+      for (Map.Entry<String, HServerLoad> e: state.entrySet()) {
+        Text.writeString(out, e.getKey());
+        List<HServerLoad.RegionLoad> regions =
+          new ArrayList<HServerLoad.RegionLoad>(e.getValue().getRegionsLoad());
+        out.writeInt(regions.size());
+        for (HServerLoad.RegionLoad rl: regions) {
+          rl.write(out);
+        }
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * @param fs
+   * @param p File written by {@link #writeSnapshot}.
+   * @return Load of each server, keyed by server name.
+   * @throws IOException
+   */
+  public static Map<String, HServerLoad> readSnapshot(final FileSystem fs,
+      final Path p)
+  throws IOException {
+    Map<String, HServerLoad> state = new TreeMap<String, HServerLoad>();
+    FSDataInputStream in = fs.open(p);
+    try {
+      int servers = in.readInt();
+      for (int i = 0; i < servers; i++) {
+        String name = Text.readString(in);
+        int count = in.readInt();
+        List<HServerLoad.RegionLoad> regions =
+          new ArrayList<HServerLoad.RegionLoad>(count);
+        for (int j = 0; j < count; j++) {
+          HServerLoad.RegionLoad rl = new HServerLoad.RegionLoad();
+          rl.readFields(in);
+          regions.add(rl);
+        }
+        state.put(name, makeLoad(regions));
+      }
+    } finally {
+      in.close();
+    }
+    return state;
+  }
+
+  /**
+   * Make up a cluster whose region counts are even but whose busiest regions
+   * all sit on the first server.
+   * @param servers
+   * @param regions
+   * @return Load of each server, keyed by server name.
+   */
+  static Map<String, HServerLoad> makeCluster(final int servers,
+      final int regions) {
+    Random rand = new Random(regions);
+    List<List<HServerLoad.RegionLoad>> lists =
+      new ArrayList<List<HServerLoad.RegionLoad>>();
+    for (int i = 0; i < servers; i++) {
+      lists.add(new ArrayList<HServerLoad.RegionLoad>());
+    }
+    int tables = Math.max(1, regions / 100);
+    int hot = Math.max(1, regions / servers / 4);
+    for (int i = 0; i < regions; i++) {
+      byte [] name = Bytes.toBytes("table" + rand.nextInt(tables) + ",row" +
+        i + "," + i);
+      int server = i % servers;
+      // A quarter of the first server's regions take most of the requests.
+      int requests = server == 0 && i / servers < hot?
+        5000 + rand.nextInt(5000): rand.nextInt(200);
+      lists.get(server).add(new HServerLoad.RegionLoad(name, 1,
+        1 + rand.nextInt(4), rand.nextInt(64), 0, 64 + rand.nextInt(448),
+        requests));
+    }
+    Map<String, HServerLoad> state = new TreeMap<String, HServerLoad>();
+    for (int i = 0; i < servers; i++) {
+      state.put("server" + i + ",60020,0", makeLoad(lists.get(i)));
+    }
+    return state;
+  }
+
+  private static void usage() {
+    System.err.println("Usage: LoadBalancerSimulator (-f FILE | SERVERS " +
+      "REGIONS) [BALANCER_CLASS...]");
+    System.err.println(" FILE is a load snapshot written by the master; " +
+      "else a cluster of SERVERS with REGIONS, the busiest all on one " +
+      "server, is made up.");
+    System.err.println(" Balancers default to " +
+      CostBasedLoadBalancer.class.getSimpleName() + ".  Other settings are " +
+      "read from hbase-site.xml.");
+    System.exit(1);
+  }
+
+  /**
+   * @param args
+   * @throws Exception
+   */
+  public static void main(String [] args) throws Exception {
+    if (args.length < 2) {
+      usage();
+    }
+    HBaseConfiguration conf = new HBaseConfiguration();
+    Map<String, HServerLoad> state;
+    if (args[0].equals("-f")) {
+      Path p = new Path(args[1]);
+      state = readSnapshot(p.getFileSystem(conf), p);
+    } else {
+      state = makeCluster(Integer.parseInt(args[0]),
+        Integer.parseInt(args[1]));
+    }
+    List<Class<? extends LoadBalancer>> balancers =
+      new ArrayList<Class<? extends LoadBalancer>>();
+    for (int i = 2; i < args.length; i++) {
+      balancers.add(Class.forName(args[i]).asSubclass(LoadBalancer.class));
+    }
+    if (balancers.isEmpty()) {
+      balancers.add(CostBasedLoadBalancer.class);
+    }
+    LoadBalancerSimulator simulator = new LoadBalancerSimulator(conf);
+    for (Class<? extends LoadBalancer> c: balancers) {
+      // A day of balancer periods at the default five minutes.
+      System.out.println(simulator.simulate(c, state, 288));
+    }
+  }
+}
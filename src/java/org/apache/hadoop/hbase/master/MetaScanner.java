@@ -22,11 +22,19 @@ package org.apache.hadoop.hbase.master;
 import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.hadoop.hbase.RemoteExceptionHandler;
+import org.apache.hadoop.hbase.master.metrics.MasterMetrics;
+import org.apache.hadoop.hbase.util.Threads;
 
 /**
  * MetaScanner <code>META</code> table.
@@ -36,6 +44,9 @@ import org.apache.hadoop.hbase.RemoteExceptionHandler;
  *
  * It's important to do this work in a separate thread, or else the blocking 
  * action would prevent other work from getting done.
+ *
+ * If <code>hbase.master.meta.scanner.threads</code> is greater than one, the
+ * periodic rescan does that many <code>META</code> regions at a time.
  */
 class MetaScanner extends BaseScanner {
   /** Initial work for the meta scanner is queued up here */
@@ -44,6 +55,9 @@ class MetaScanner extends BaseScanner {
     
   private final List<MetaRegion> metaRegionsToRescan =
     new ArrayList<MetaRegion>();
+
+  // Scans META regions in parallel on rescan.  Null if only one at a time.
+  private final ExecutorService metaScanners;
     
   /**
    * Constructor
@@ -52,12 +66,29 @@ class MetaScanner extends BaseScanner {
    */
   public MetaScanner(HMaster master) {
     super(master, false, master.metaRescanInterval, master.shutdownRequested);
+    int threads =
+      master.getConfiguration().getInt("hbase.master.meta.scanner.threads", 1);
+    this.metaScanners = threads <= 1? null:
+      Executors.newFixedThreadPool(threads,
+        Threads.newDaemonThreadFactory("MetaScanner"));
   }
 
   // Don't retry if we get an error while scanning. Errors are most often
   // caused by the server going away. Wait until next rescan interval when
   // things should be back to normal.
   private boolean scanOneMetaRegion(MetaRegion region) {
+    return scanOneMetaRegion(region, null, true);
+  }
+
+  /*
+   * @param region Region to scan
+   * @param rows Added to with the count of rows scanned; may be null.
+   * @param lock True if we should take the scannerLock.  False if the caller
+   * holds it on our behalf, as the chore thread does for the metaScanners.
+   * @return False if region should be scanned again.
+   */
+  private boolean scanOneMetaRegion(final MetaRegion region,
+      final AtomicInteger rows, final boolean lock) {
     while (!this.master.closed.get() &&
         !this.master.regionManager.isInitialRootScanComplete() &&
         this.master.regionManager.getRootRegionLocation() == null) {
@@ -69,9 +100,12 @@ class MetaScanner extends BaseScanner {
 
     try {
       // Don't interrupt us while we're working
-      synchronized (scannerLock) {
-        scanRegion(region);
-        this.master.regionManager.putMetaRegionOnline(region);
+      if (lock) {
+        synchronized (scannerLock) {
+          scanAndPutOnline(region, rows);
+        }
+      } else {
+        scanAndPutOnline(region, rows);
       }
     } catch (IOException e) {
       e = RemoteExceptionHandler.checkIOException(e);
@@ -95,6 +129,16 @@ class MetaScanner extends BaseScanner {
     return true;
   }
 
+  private void scanAndPutOnline(final MetaRegion region,
+      final AtomicInteger rows)
+  throws IOException {
+    int count = scanRegion(region);
+    if (rows != null) {
+      rows.addAndGet(count);
+    }
+    this.master.regionManager.putMetaRegionOnline(region);
+  }
+
   @Override
   protected boolean initialScan() {
     MetaRegion region = null;
@@ -124,15 +168,70 @@ class MetaScanner extends BaseScanner {
   protected void maintenanceScan() {
     List<MetaRegion> regions =
       this.master.regionManager.getListOfOnlineMetaRegions();
-    int regionCount = 0;
-    for (MetaRegion r: regions) {
-      scanOneMetaRegion(r);
-      regionCount++;
+    long start = System.currentTimeMillis();
+    AtomicInteger rows = new AtomicInteger(0);
+    if (this.metaScanners == null || regions.size() <= 1) {
+      for (MetaRegion r: regions) {
+        scanOneMetaRegion(r, rows, true);
+      }
+    } else {
+      // Don't interrupt us while the pool is working
+      synchronized (scannerLock) {
+        scanInParallel(regions, rows);
+      }
     }
-    LOG.info("All " + regionCount + " .META. region(s) scanned");
+    long elapsed = System.currentTimeMillis() - start;
+    MasterMetrics metrics = this.master.getMetrics();
+    if (metrics != null) {
+      metrics.updateMetaScan(elapsed, rows.get());
+    }
+    LOG.info("All " + regions.size() + " .META. region(s) scanned: " +
+      rows.get() + " row(s) in " + elapsed + "ms");
     metaRegionsScanned();
   }
 
+  /*
+   * Scan the passed regions on the metaScanners pool and wait on all to
+   * finish.  Failures are logged by scanOneMetaRegion; the region is picked
+   * up again on the next rescan.
+   * @param regions
+   * @param rows Added to with count of rows scanned.
+   */
+  private void scanInParallel(final List<MetaRegion> regions,
+      final AtomicInteger rows) {
+    List<Future<Boolean>> futures =
+      new ArrayList<Future<Boolean>>(regions.size());
+    for (final MetaRegion r: regions) {
+      futures.add(this.metaScanners.submit(new Callable<Boolean>() {
+        public Boolean call() {
+          return Boolean.valueOf(scanOneMetaRegion(r, rows, false));
+        }
+      }));
+    }
+    for (Future<Boolean> f: futures) {
+      try {
+        f.get();
+      } catch (InterruptedException e) {
+        // We're being shut down; let running scans finish on their own.
+        Thread.currentThread().interrupt();
+        return;
+      } catch (ExecutionException e) {
+        LOG.error("Unexpected exception", e.getCause());
+      }
+    }
+  }
+
+  @Override
+  public void run() {
+    try {
+      super.run();
+    } finally {
+      if (this.metaScanners != null) {
+        this.metaScanners.shutdownNow();
+      }
+    }
+  }
+
   /*
    * Called by the meta scanner when it has completed scanning all meta 
    * regions. This wakes up any threads that were waiting for this to happen.
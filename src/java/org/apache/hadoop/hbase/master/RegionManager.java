@@ -24,6 +24,7 @@ import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -57,6 +58,7 @@ import org.apache.hadoop.hbase.util.Threads;
 import org.apache.hadoop.hbase.io.BatchUpdate;
 import org.apache.hadoop.hbase.util.Writables;
 import org.apache.hadoop.hbase.zookeeper.ZooKeeperWrapper;
+import org.apache.hadoop.util.ReflectionUtils;
 
 /**
  * Class to manage assigning regions to servers, state of root and meta, etc.
@@ -131,6 +133,17 @@ class RegionManager implements HConstants {
   private final int zooKeeperNumRetries;
   private final int zooKeeperPause;
 
+  // Runs the configured LoadBalancer.  Null if balancing on region count.
+  private final LoadBalancerChore balancerChore;
+
+  /*
+   * Moves started by the balancerChore, keyed by region name.  A region with
+   * a plan is only assigned to the plan's destination while that server
+   * lives.
+   */
+  private final Map<String, RegionPlan> regionPlans =
+    Collections.synchronizedMap(new HashMap<String, RegionPlan>());
+
   RegionManager(HMaster master) {
     HBaseConfiguration conf = master.getConfiguration();
 
@@ -149,6 +162,16 @@ class RegionManager implements HConstants {
     zooKeeperNumRetries = conf.getInt(ZOOKEEPER_RETRIES, DEFAULT_ZOOKEEPER_RETRIES);
     zooKeeperPause = conf.getInt(ZOOKEEPER_PAUSE, DEFAULT_ZOOKEEPER_PAUSE);
 
+    if (conf.get("hbase.master.loadbalancer.class", "").trim().length() > 0) {
+      LoadBalancer balancer = ReflectionUtils.newInstance(
+        conf.getClass("hbase.master.loadbalancer.class", null,
+          LoadBalancer.class), conf);
+      LOG.info("Balancing with " + balancer.getClass().getName());
+      this.balancerChore = new LoadBalancerChore(master, balancer);
+    } else {
+      this.balancerChore = null;
+    }
+
     reassignRootRegion();
   }
 
@@ -157,6 +180,10 @@ class RegionManager implements HConstants {
       "RegionManager.rootScanner");
     Threads.setDaemonThreadRunning(metaScannerThread,
       "RegionManager.metaScanner");    
+    if (this.balancerChore != null) {
+      Threads.setDaemonThreadRunning(this.balancerChore,
+        "RegionManager.balancer");
+    }
   }
 
   void unsetRootRegion() {
@@ -193,10 +220,12 @@ class RegionManager implements HConstants {
     HServerLoad thisServersLoad = info.getLoad();
     // figure out what regions need to be assigned and aren't currently being
     // worked on elsewhere.
-    Set<RegionState> regionsToAssign = regionsAwaitingAssignment();
+    Set<RegionState> regionsToAssign =
+      regionsAwaitingAssignment(info.getServerName());
     if (regionsToAssign.size() == 0) {
-      // There are no regions waiting to be assigned.
-      if (!inSafeMode()) {
+      // There are no regions waiting to be assigned.  If there is a
+      // balancerChore, it does the balancing.
+      if (!inSafeMode() && this.balancerChore == null) {
         // We only do load balancing once all regions are assigned.
         // This prevents churn while the cluster is starting up.
         double avgLoad = master.serverManager.getAverageLoad();
@@ -219,10 +248,14 @@ class RegionManager implements HConstants {
       if (master.serverManager.numServers() == 1) {
         assignRegionsToOneServer(regionsToAssign, info, returnMsgs);
       } else {
+        // Regions the balancer moved here go here whatever our load.
+        assignPlannedRegions(regionsToAssign, info, returnMsgs);
         // otherwise, give this server a few regions taking into account the 
         // load of all the other servers.
-        assignRegionsToMultipleServers(thisServersLoad, regionsToAssign, 
+        if (regionsToAssign.size() > 0) {
+          assignRegionsToMultipleServers(thisServersLoad, regionsToAssign,
             info, returnMsgs);
+        }
       }
     }
   }
@@ -338,8 +371,10 @@ class RegionManager implements HConstants {
    * Note that no synchronization on regionsInTransition is needed because the
    * only caller (assignRegions, whose caller is ServerManager.processMsgs) owns
    * the monitor for RegionManager
+   *
+   * @param serverName Name of the server asking for regions.
    */ 
-  private Set<RegionState> regionsAwaitingAssignment() {
+  private Set<RegionState> regionsAwaitingAssignment(final String serverName) {
     // set of regions we want to assign to this server
     Set<RegionState> regionsToAssign = new HashSet<RegionState>();
     
@@ -356,12 +391,95 @@ class RegionManager implements HConstants {
         // and are on-line
         continue;
       }
-      if (s.isUnassigned()) {
+      if (s.isUnassigned() && isPlannedFor(s, serverName)) {
         regionsToAssign.add(s);
       }
     }
     return regionsToAssign;
   }
+
+  /*
+   * @param s
+   * @param serverName
+   * @return False if the balancer moved the region to some other server that
+   * is still alive.
+   */
+  private boolean isPlannedFor(final RegionState s, final String serverName) {
+    String regionName = s.getRegionInfo().getRegionNameAsString();
+    RegionPlan plan = this.regionPlans.get(regionName);
+    if (plan == null || plan.getDestination().equals(serverName)) {
+      return true;
+    }
+    if (master.serverManager.getServerInfo(plan.getDestination()) == null) {
+      LOG.info("Dropping move of " + regionName + "; " +
+        plan.getDestination() + " is gone");
+      this.regionPlans.remove(regionName);
+      return true;
+    }
+    return false;
+  }
+
+  /*
+   * Assign the regions the balancer moved to this server and take them out
+   * of <code>regionsToAssign</code>.
+   *
+   * Note that no synchronization is needed while we iterate over
+   * regionsInTransition because this method is only called by assignRegions
+   * whose caller owns the monitor for RegionManager
+   */
+  private void assignPlannedRegions(final Set<RegionState> regionsToAssign,
+      final HServerInfo info, final ArrayList<HMsg> returnMsgs) {
+    for (Iterator<RegionState> i = regionsToAssign.iterator(); i.hasNext();) {
+      RegionState s = i.next();
+      String regionName = s.getRegionInfo().getRegionNameAsString();
+      if (this.regionPlans.remove(regionName) == null) {
+        continue;
+      }
+      LOG.info("assigning region " + regionName + " to server " +
+        info.getServerName() + " as planned by the balancer");
+      s.setPendingOpen(info.getServerName());
+      this.historian.addRegionAssignment(s.getRegionInfo(),
+        info.getServerName());
+      returnMsgs.add(new HMsg(HMsg.Type.MSG_REGION_OPEN, s.getRegionInfo()));
+      i.remove();
+    }
+  }
+
+  /**
+   * Start moving a region as planned by the balancer: have the server
+   * carrying it close it and hold it for the planned server once closed.
+   * @param info Region to move.
+   * @param plan
+   * @return False if the region is already in transition.
+   */
+  boolean moveRegion(final HRegionInfo info, final RegionPlan plan) {
+    String regionName = info.getRegionNameAsString();
+    synchronized (this.regionsInTransition) {
+      if (regionIsInTransition(regionName)) {
+        return false;
+      }
+      LOG.info("Moving " + plan);
+      this.regionPlans.put(regionName, plan);
+      setClosing(plan.getSource(), info, false);
+    }
+    return true;
+  }
+
+  /**
+   * Forget all moves the balancer started.
+   */
+  void clearRegionPlans() {
+    this.regionPlans.clear();
+  }
+
+  /**
+   * @return True if any region is being opened, closed or waits assignment.
+   */
+  boolean hasRegionsInTransition() {
+    synchronized (this.regionsInTransition) {
+      return !this.regionsInTransition.isEmpty();
+    }
+  }
   
   /*
    * Figure out the load that is next highest amongst all regionservers. Also,
@@ -533,6 +651,9 @@ class RegionManager implements HConstants {
     if (LOG.isDebugEnabled()) {
       LOG.debug("meta and root scanners notified");
     }
+    if (this.balancerChore != null) {
+      this.balancerChore.interrupt();
+    }
   }
   
   /** Stop the region assigner */
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.master;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * A region a {@link LoadBalancer} wants moved, where from, and where to.
+ */
+public class RegionPlan {
+  private final byte [] regionName;
+  private final String source;
+  private final String destination;
+
+  /**
+   * @param regionName Region to move.
+   * @param source Name of the server now carrying the region.
+   * @param destination Name of the server to move it to.
+   */
+  public RegionPlan(final byte [] regionName, final String source,
+      final String destination) {
+    this.regionName = regionName;
+    this.source = source;
+    this.destination = destination;
+  }
+
+  /** @return Name of the region to move */
+  public byte [] getRegionName() {
+    return this.regionName;
+  }
+
+  /** @return Name of the server now carrying the region */
+  public String getSource() {
+    return this.source;
+  }
+
+  /** @return Name of the server to move the region to */
+  public String getDestination() {
+    return this.destination;
+  }
+
+  @Override
+  public String toString() {
+    return Bytes.toString(this.regionName) + " from " + this.source +
+      " to " + this.destination;
+  }
+}
@@ -44,6 +44,18 @@ public class MasterMetrics implements Updater {
   private final MetricsIntValue cluster_requests =
     new MetricsIntValue("cluster_requests");
 
+  /*
+   * Milliseconds taken by the last full rescan of the .META. regions
+   */
+  private final MetricsIntValue metaScanTime =
+    new MetricsIntValue("meta_scan_time");
+
+  /*
+   * Count of rows seen by the last full rescan of the .META. regions
+   */
+  private final MetricsIntValue metaScanRows =
+    new MetricsIntValue("meta_scan_rows");
+
   public MasterMetrics() {
     MetricsContext context = MetricsUtil.getContext("hbase");
     metricsRecord = MetricsUtil.createRecord(context, "master");
@@ -70,6 +82,8 @@ public class MasterMetrics implements Updater {
         // Set requests down to zero again.
         this.cluster_requests.set(0);
       }
+      this.metaScanTime.pushMetric(metricsRecord);
+      this.metaScanRows.pushMetric(metricsRecord);
     }
     this.metricsRecord.update();
   }
@@ -93,4 +107,27 @@ public class MasterMetrics implements Updater {
       this.cluster_requests.inc(inc);
     }
   }
+
+  /**
+   * @param time Milliseconds the last full .META. rescan took.
+   * @param rows Count of rows it saw.
+   */
+  public void updateMetaScan(final long time, final int rows) {
+    this.metaScanTime.set((int)Math.min(time, Integer.MAX_VALUE));
+    this.metaScanRows.set(rows);
+  }
+
+  /**
+   * @return Milliseconds the last full .META. rescan took.
+   */
+  public int getMetaScanTime() {
+    return this.metaScanTime.get();
+  }
+
+  /**
+   * @return Count of rows the last full .META. rescan saw.
+   */
+  public int getMetaScanRows() {
+    return this.metaScanRows.get();
+  }
 }
\ No newline at end of file
@@ -21,10 +21,12 @@ package org.apache.hadoop.hbase.regionserver;
 
 import java.io.IOException;
 import java.util.HashSet;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.hadoop.util.StringUtils;
 import org.apache.commons.logging.Log;
@@ -35,12 +37,21 @@ import org.apache.hadoop.hbase.RemoteExceptionHandler;
 import org.apache.hadoop.hbase.HRegionInfo;
 import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.io.BatchUpdate;
+import org.apache.hadoop.hbase.ipc.HBaseServer;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.hbase.util.Writables;
 
 /** 
  * Compact region on request and then run split if appropriate
  *
+ * <p>Requests are ordered by how close the region's most loaded store is to
+ * the store file count at which {@link MemcacheFlusher} blocks updates, most
+ * urgent first, and in order of arrival otherwise.  This thread hands them
+ * on to one of two pools: compactions of regions whose store files total
+ * more than <code>hbase.regionserver.thread.compaction.throttle</code> bytes,
+ * and forced major compactions, go to the large pool so they do not hold up
+ * the quick minor compactions that keep writers from blocking.
+ *
  * NOTE: This class extends Thread rather than Chore because the sleep time
  * can be interrupted when there is something to do, rather than the Chore
  * sleep time which is invariant.
@@ -51,15 +62,29 @@ class CompactSplitThread extends Thread implements HConstants {
   private HTable root = null;
   private HTable meta = null;
   private final long frequency;
-  private final ReentrantLock lock = new ReentrantLock();
+  private final Object splitLock = new Object();
   
   private final HRegionServer server;
   private final HBaseConfiguration conf;
   
-  private final BlockingQueue<HRegion> compactionQueue =
-    new LinkedBlockingQueue<HRegion>();
+  private final PriorityBlockingQueue<CompactionRequest> compactionQueue =
+    new PriorityBlockingQueue<CompactionRequest>();
   
   private final HashSet<HRegion> regionsInQueue = new HashSet<HRegion>();
+  // Regions being compacted, and those asked for again meanwhile.  Both are
+  // guarded by regionsInQueue.
+  private final HashSet<HRegion> regionsInProgress = new HashSet<HRegion>();
+  private final HashSet<HRegion> regionsToRequeue = new HashSet<HRegion>();
+
+  private final ThreadPoolExecutor largeCompactions;
+  private final ThreadPoolExecutor smallCompactions;
+  private final long throttleSize;
+  private final CompactionThrottle throttle;
+  private final AtomicLong sequence = new AtomicLong(0);
+
+  // Totals since the last call to getAndResetCompactedBytes/Time.
+  private final AtomicLong compactedBytes = new AtomicLong(0);
+  private final AtomicLong compactionTime = new AtomicLong(0);
 
   private volatile int limit = 1;
 
@@ -71,6 +96,42 @@ class CompactSplitThread extends Thread implements HConstants {
     this.frequency =
       conf.getLong("hbase.regionserver.thread.splitcompactcheckfrequency",
       20 * 1000);
+    this.largeCompactions = getCompactionPool(
+      conf.getInt("hbase.regionserver.thread.compaction.large", 1), "large");
+    this.smallCompactions = getCompactionPool(
+      conf.getInt("hbase.regionserver.thread.compaction.small", 1), "small");
+    this.throttleSize =
+      conf.getLong("hbase.regionserver.thread.compaction.throttle",
+        2L * conf.getInt("hbase.hstore.compaction.max", 10) *
+        conf.getLong("hbase.hregion.memcache.flush.size", 64 * 1024 * 1024));
+    this.throttle = new CompactionThrottle(conf) {
+      @Override
+      int getQueuedCalls() {
+        // Null until the regionserver has made its RPC server.
+        HBaseServer rpc = CompactSplitThread.this.server.server;
+        return rpc == null? 0: rpc.getCallQueueLen();
+      }
+    };
+  }
+
+  /*
+   * @param threads
+   * @param kind Used naming the pool threads.
+   * @return A pool that runs queued requests most urgent first.
+   */
+  private ThreadPoolExecutor getCompactionPool(final int threads,
+      final String kind) {
+    return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+      new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, getName() + "-" + kind + "-" +
+            count.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      });
   }
   
   @Override
@@ -84,7 +145,6 @@ class CompactSplitThread extends Thread implements HConstants {
     }
     int count = 0;
     while (!this.server.isStopRequested()) {
-      HRegion r = null;
       try {
         if ((limit > 0) && (++count > limit)) {
           try {
@@ -94,45 +154,45 @@ class CompactSplitThread extends Thread implements HConstants {
           }
           count = 0;
         }
-        r = compactionQueue.poll(this.frequency, TimeUnit.MILLISECONDS);
-        if (r != null && !this.server.isStopRequested()) {
-          synchronized (regionsInQueue) {
-            regionsInQueue.remove(r);
-          }
-          lock.lock();
-          try {
-            // Don't interrupt us while we are working
-            byte [] midKey = r.compactStores();
-            if (midKey != null && !this.server.isStopRequested()) {
-              split(r, midKey);
-            }
-          } finally {
-            lock.unlock();
-          }
+        CompactionRequest cr =
+          compactionQueue.poll(this.frequency, TimeUnit.MILLISECONDS);
+        if (cr != null && !this.server.isStopRequested()) {
+          (cr.isLarge()? this.largeCompactions: this.smallCompactions).
+            execute(cr);
         }
       } catch (InterruptedException ex) {
         continue;
-      } catch (IOException ex) {
-        LOG.error("Compaction/Split failed" +
-            (r != null ? (" for region " + Bytes.toString(r.getRegionName())) : ""),
-            RemoteExceptionHandler.checkIOException(ex));
-        if (!server.checkFileSystem()) {
-          break;
-        }
-      } catch (Exception ex) {
-        LOG.error("Compaction failed" +
-            (r != null ? (" for region " + Bytes.toString(r.getRegionName())) : ""),
-            ex);
-        if (!server.checkFileSystem()) {
-          break;
-        }
       }
     }
-    regionsInQueue.clear();
+    // Drop what has not started and wait on what has.
     compactionQueue.clear();
+    this.largeCompactions.getQueue().clear();
+    this.smallCompactions.getQueue().clear();
+    synchronized (regionsInQueue) {
+      regionsInQueue.clear();
+      regionsToRequeue.clear();
+    }
+    waitOnPool(this.largeCompactions);
+    waitOnPool(this.smallCompactions);
     LOG.info(getName() + " exiting");
   }
 
+  /*
+   * Shut down <code>pool</code> and wait on its running compactions.  These
+   * are not interrupted; that could fail them part way through a write.
+   * @param pool
+   */
+  private void waitOnPool(final ThreadPoolExecutor pool) {
+    pool.shutdown();
+    while (!pool.isTerminated()) {
+      try {
+        pool.awaitTermination(this.frequency, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException ex) {
+        // Keep waiting.
+      }
+    }
+  }
+
   /**
    * @param r HRegion store belongs to
    * @param why Why compaction requested -- used in debug messages
@@ -152,20 +212,101 @@ class CompactSplitThread extends Thread implements HConstants {
     if (this.server.stopRequested.get()) {
       return;
     }
-    r.setForceMajorCompaction(force);
-    if (LOG.isDebugEnabled()) {
-      LOG.debug("Compaction " + (force? "(major) ": "") +
-        "requested for region " + Bytes.toString(r.getRegionName()) +
-        "/" + r.getRegionInfo().getEncodedName() +
-        (why != null && !why.isEmpty()? " because: " + why: ""));
+    // Do not clear a force set by an earlier request still in the queue.
+    if (force) {
+      r.setForceMajorCompaction(force);
+    }
+    synchronized (regionsInQueue) {
+      if (regionsInQueue.contains(r)) {
+        return;
+      }
+      if (regionsInProgress.contains(r)) {
+        // Only one pool may compact a region at a time.  Queue it again when
+        // the running compaction is done.
+        regionsToRequeue.add(r);
+        return;
+      }
+      boolean large = r.getForceMajorCompaction() ||
+        r.getStorefilesSize() > this.throttleSize;
+      CompactionRequest cr = new CompactionRequest(this, r,
+        r.getCompactPriority(), this.sequence.incrementAndGet(), large);
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Compaction " + (force? "(major) ": "") +
+          "requested for region " + Bytes.toString(r.getRegionName()) +
+          "/" + r.getRegionInfo().getEncodedName() +
+          (why != null && !why.isEmpty()? " because: " + why: "") +
+          "; priority=" + cr.getPriority() + ", large=" + large +
+          ", queue size=" + getCompactionQueueSize());
+      }
+      compactionQueue.add(cr);
+      regionsInQueue.add(r);
     }
+  }
+
+  /*
+   * Run a queued request.  While it runs, further requests for the region
+   * are held back and queued once it is done, so the two pools never
+   * compact the same region at once.
+   * @param r
+   */
+  private void compactAndSplit(final HRegion r) {
     synchronized (regionsInQueue) {
-      if (!regionsInQueue.contains(r)) {
-        compactionQueue.add(r);
-        regionsInQueue.add(r);
+      regionsInQueue.remove(r);
+      regionsInProgress.add(r);
+    }
+    try {
+      if (!this.server.isStopRequested()) {
+        doCompactAndSplit(r);
+      }
+    } finally {
+      boolean requeue;
+      synchronized (regionsInQueue) {
+        regionsInProgress.remove(r);
+        requeue = regionsToRequeue.remove(r);
+      }
+      if (requeue) {
+        compactionRequested(r, "requested while compacting");
       }
     }
   }
+
+  /*
+   * Compact the region and, if it asks for it, split it.
+   * @param r
+   */
+  private void doCompactAndSplit(final HRegion r) {
+    try {
+      long start = System.currentTimeMillis();
+      byte [] midKey = r.compactStores(this.throttle);
+      long took = System.currentTimeMillis() - start;
+      long bytes = r.getLastCompactSize();
+      if (bytes > 0) {
+        this.compactedBytes.addAndGet(bytes);
+        this.compactionTime.addAndGet(took);
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Compacted " + StringUtils.humanReadableInt(bytes) +
+            " of region " + Bytes.toString(r.getRegionName()) + " at " +
+            StringUtils.humanReadableInt(bytes * 1000 / Math.max(took, 1)) +
+            "/sec");
+        }
+      }
+      if (midKey != null && !this.server.isStopRequested()) {
+        // Splits update the catalog tables one at a time.
+        synchronized (this.splitLock) {
+          split(r, midKey);
+        }
+      }
+    } catch (IOException ex) {
+      LOG.error("Compaction/Split failed for region " +
+          Bytes.toString(r.getRegionName()),
+          RemoteExceptionHandler.checkIOException(ex));
+      server.checkFileSystem();
+    } catch (Exception ex) {
+      LOG.error("Compaction failed for region " +
+          Bytes.toString(r.getRegionName()), ex);
+      server.checkFileSystem();
+    }
+  }
   
   private void split(final HRegion region, final byte [] midKey)
   throws IOException {
@@ -241,11 +382,85 @@ class CompactSplitThread extends Thread implements HConstants {
   }
 
   /**
-   * Only interrupt once it's done with a run through the work loop.
+   * Wake the dispatching thread so it notices shutdown.  Compactions already
+   * running in the pools are left to finish.
    */ 
   void interruptIfNecessary() {
-    if (lock.tryLock()) {
-      this.interrupt();
+    this.interrupt();
+  }
+
+  /**
+   * @return Count of compactions waiting to run.
+   */
+  int getCompactionQueueSize() {
+    return this.compactionQueue.size() +
+      this.largeCompactions.getQueue().size() +
+      this.smallCompactions.getQueue().size();
+  }
+
+  /**
+   * @return The limiter shared by this server's compactions.
+   */
+  CompactionThrottle getThrottle() {
+    return this.throttle;
+  }
+
+  /**
+   * @return Bytes of store files compacted since the last call.
+   */
+  long getAndResetCompactedBytes() {
+    return this.compactedBytes.getAndSet(0);
+  }
+
+  /**
+   * @return Milliseconds spent compacting since the last call.
+   */
+  long getAndResetCompactionTime() {
+    return this.compactionTime.getAndSet(0);
+  }
+
+  /**
+   * A queued request to compact a region.  Sorts most urgent first: by
+   * {@link HRegion#getCompactPriority()} at the time of the request, then
+   * by order of arrival.
+   */
+  static class CompactionRequest
+  implements Runnable, Comparable<CompactionRequest> {
+    private final CompactSplitThread owner;
+    private final HRegion region;
+    private final int priority;
+    private final long seq;
+    private final boolean large;
+
+    CompactionRequest(final CompactSplitThread owner, final HRegion region,
+        final int priority, final long seq, final boolean large) {
+      this.owner = owner;
+      this.region = region;
+      this.priority = priority;
+      this.seq = seq;
+      this.large = large;
+    }
+
+    public void run() {
+      this.owner.compactAndSplit(this.region);
+    }
+
+    public int compareTo(final CompactionRequest that) {
+      if (this.priority != that.priority) {
+        return this.priority < that.priority? -1: 1;
+      }
+      if (this.seq == that.seq) {
+        return 0;
+      }
+      return this.seq < that.seq? -1: 1;
+    }
+
+    int getPriority() {
+      return this.priority;
+    }
+
+    boolean isLarge() {
+      return this.large;
     }
   }
 }
\ No newline at end of file
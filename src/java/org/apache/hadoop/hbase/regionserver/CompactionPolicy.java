@@ -0,0 +1,38 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+/**
+ * Chooses the store files a minor compaction rewrites.  Set the
+ * implementation with <code>hbase.hstore.compaction.policy</code>.  If it
+ * implements {@link org.apache.hadoop.conf.Configurable} it is handed the
+ * configuration on construction.  Implementations must be thread-safe; one
+ * instance serves a store for its lifetime.
+ */
+public interface CompactionPolicy {
+  /**
+   * A compaction always takes a run of the newest files so that the file it
+   * writes can take the place of the newest one.  Pick where the run starts.
+   * @param fileSizes Sizes of the store's files in bytes, oldest first.
+   * @return Index into <code>fileSizes</code> of the oldest file to compact,
+   * or <code>fileSizes.length</code> to compact none.
+   */
+  public int select(final long [] fileSizes);
+}
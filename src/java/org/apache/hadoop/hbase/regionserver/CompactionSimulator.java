@@ -0,0 +1,237 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.hadoop.util.StringUtils;
+
+/**
+ * Replays a sequence of flushes into a single store and reports how many
+ * bytes each {@link CompactionPolicy} rewrites doing minor compactions.  As
+ * in {@link Store}, a compaction is considered after every flush that
+ * leaves at least <code>hbase.hstore.compactionThreshold</code> files, and
+ * the file it writes is taken to be as big as the files it replaced.
+ * Major compactions are not modelled.
+ */
+public class CompactionSimulator {
+  private final Configuration conf;
+  private final int compactionThreshold;
+  private final int blockingStoreFiles;
+
+  /**
+   * @param conf Configuration the policies are made with.
+   */
+  public CompactionSimulator(final Configuration conf) {
+    this.conf = conf;
+    this.compactionThreshold =
+      conf.getInt("hbase.hstore.compactionThreshold", 3);
+    this.blockingStoreFiles = conf.getInt("hbase.hstore.blockingStoreFiles",
+      this.compactionThreshold + 1);
+  }
+
+  /**
+   * @param c Policy class.
+   * @param flushSizes Size of each flush, in order.
+   * @return What the policy did.
+   */
+  public Result simulate(final Class<? extends CompactionPolicy> c,
+      final long [] flushSizes) {
+    CompactionPolicy policy = ReflectionUtils.newInstance(c, this.conf);
+    Result result = new Result(c.getSimpleName());
+    // Oldest first, as Store keeps them.
+    List<Long> files = new ArrayList<Long>();
+    for (long flush: flushSizes) {
+      // MemcacheFlusher holds up flushes to stores with too many files.
+      if (files.size() > this.blockingStoreFiles) {
+        result.blockedFlushes++;
+      }
+      files.add(Long.valueOf(flush));
+      result.flushedBytes += flush;
+      result.maxFiles = Math.max(result.maxFiles, files.size());
+      if (files.size() < this.compactionThreshold) {
+        continue;
+      }
+      long [] sizes = new long[files.size()];
+      for (int i = 0; i < sizes.length; i++) {
+        sizes[i] = files.get(i).longValue();
+      }
+      int start = policy.select(sizes);
+      if (sizes.length - start <= 1) {
+        continue;
+      }
+      long compacted = 0;
+      for (int i = start; i < sizes.length; i++) {
+        compacted += sizes[i];
+      }
+      files.subList(start, files.size()).clear();
+      files.add(Long.valueOf(compacted));
+      result.compactions++;
+      result.rewrittenBytes += compacted;
+    }
+    result.finalFiles = files.size();
+    return result;
+  }
+
+  /**
+   * Outcome of replaying flushes with one policy.
+   */
+  public static class Result {
+    final String policy;
+    long flushedBytes = 0;
+    long rewrittenBytes = 0;
+    int compactions = 0;
+    int blockedFlushes = 0;
+    int maxFiles = 0;
+    int finalFiles = 0;
+
+    Result(final String policy) {
+      this.policy = policy;
+    }
+
+    /** @return Bytes written by flushes. */
+    public long getFlushedBytes() {
+      return this.flushedBytes;
+    }
+
+    /** @return Bytes written by compactions. */
+    public long getRewrittenBytes() {
+      return this.rewrittenBytes;
+    }
+
+    /** @return All bytes written per byte flushed. */
+    public double getWriteAmplification() {
+      return this.flushedBytes == 0? 0:
+        (double)(this.flushedBytes + this.rewrittenBytes) / this.flushedBytes;
+    }
+
+    /**
+     * @return Flushes that found the store over the blocking file count.
+     */
+    public int getBlockedFlushes() {
+      return this.blockedFlushes;
+    }
+
+    /** @return Most files the store had at once. */
+    public int getMaxFiles() {
+      return this.maxFiles;
+    }
+
+    @Override
+    public String toString() {
+      return this.policy + ": flushed=" +
+        StringUtils.humanReadableInt(this.flushedBytes) + ", rewritten=" +
+        StringUtils.humanReadableInt(this.rewrittenBytes) + ", compactions=" +
+        this.compactions + ", writeAmplification=" +
+        String.format("%.2f", Double.valueOf(getWriteAmplification())) +
+        ", maxFiles=" + this.maxFiles + ", finalFiles=" + this.finalFiles +
+        ", blockedFlushes=" + this.blockedFlushes;
+    }
+  }
+
+  /*
+   * @param path File with a flush size in bytes per line.
+   * @return The sizes.
+   * @throws IOException
+   */
+  private static long [] readFlushSizes(final String path)
+  throws IOException {
+    List<Long> sizes = new ArrayList<Long>();
+    BufferedReader in = new BufferedReader(new FileReader(path));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        line = line.trim();
+        if (line.length() > 0 && !line.startsWith("#")) {
+          sizes.add(Long.valueOf(line));
+        }
+      }
+    } finally {
+      in.close();
+    }
+    long [] result = new long[sizes.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = sizes.get(i).longValue();
+    }
+    return result;
+  }
+
+  /*
+   * @param count
+   * @param size
+   * @return <code>count</code> flush sizes spread evenly from half to one
+   * and a half times <code>size</code>.
+   */
+  private static long [] makeFlushSizes(final int count, final long size) {
+    Random rand = new Random(count);
+    long [] result = new long[count];
+    for (int i = 0; i < count; i++) {
+      result[i] = size / 2 + (long)(rand.nextDouble() * size);
+    }
+    return result;
+  }
+
+  private static void usage() {
+    System.err.println("Usage: CompactionSimulator (-f FILE | COUNT SIZE) " +
+      "[POLICY_CLASS...]");
+    System.err.println(" FILE has one flush size in bytes per line; else " +
+      "COUNT flushes of about SIZE bytes are made up.");
+    System.err.println(" Policies default to " +
+      NextFileCompactionPolicy.class.getSimpleName() + " and " +
+      RatioCompactionPolicy.class.getSimpleName() + ".  Other settings are " +
+      "read from hbase-site.xml.");
+    System.exit(1);
+  }
+
+  /**
+   * @param args
+   * @throws Exception
+   */
+  public static void main(String [] args) throws Exception {
+    if (args.length < 2) {
+      usage();
+    }
+    long [] flushSizes = args[0].equals("-f")?
+      readFlushSizes(args[1]):
+      makeFlushSizes(Integer.parseInt(args[0]), Long.parseLong(args[1]));
+    List<Class<? extends CompactionPolicy>> policies =
+      new ArrayList<Class<? extends CompactionPolicy>>();
+    for (int i = 2; i < args.length; i++) {
+      policies.add(Class.forName(args[i]).asSubclass(CompactionPolicy.class));
+    }
+    if (policies.isEmpty()) {
+      policies.add(NextFileCompactionPolicy.class);
+      policies.add(RatioCompactionPolicy.class);
+    }
+    CompactionSimulator simulator =
+      new CompactionSimulator(new HBaseConfiguration());
+    for (Class<? extends CompactionPolicy> c: policies) {
+      System.out.println(simulator.simulate(c, flushSizes));
+    }
+  }
+}
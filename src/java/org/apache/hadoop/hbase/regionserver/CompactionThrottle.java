@@ -0,0 +1,147 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Paces compaction I/O so compactions do not starve client requests of
+ * disk.  One throttle is shared by all the compactions of a regionserver;
+ * together they read and write no more than the current limit, in bytes a
+ * second.  The limit slides from
+ * <code>hbase.regionserver.compaction.throughput.higher</code> when no RPCs
+ * are waiting down to
+ * <code>hbase.regionserver.compaction.throughput.lower</code> when
+ * <code>hbase.regionserver.compaction.throughput.busy.calls</code> or more
+ * are queued.  A limit of zero or less means no limit.
+ */
+class CompactionThrottle {
+  static final Log LOG = LogFactory.getLog(CompactionThrottle.class);
+
+  private final long higherLimit;
+  private final long lowerLimit;
+  private final int busyCalls;
+
+  // When, in System.nanoTime terms, the I/O asked for so far is paid for.
+  private long nextFree = 0;
+
+  // Totals since the last call to getAndResetCompactionBytes/ThrottledTime.
+  private final AtomicLong compactionBytes = new AtomicLong(0);
+  private final AtomicLong throttledNanos = new AtomicLong(0);
+
+  /**
+   * @param conf
+   */
+  CompactionThrottle(final Configuration conf) {
+    this.higherLimit = conf.getLong(
+      "hbase.regionserver.compaction.throughput.higher", 100 * 1024 * 1024);
+    this.lowerLimit = Math.min(this.higherLimit, conf.getLong(
+      "hbase.regionserver.compaction.throughput.lower", 20 * 1024 * 1024));
+    this.busyCalls = Math.max(1, conf.getInt(
+      "hbase.regionserver.compaction.throughput.busy.calls",
+      conf.getInt("hbase.regionserver.handler.count", 10)));
+    LOG.info("Compaction throughput limit " + this.lowerLimit + " to " +
+      this.higherLimit + " bytes/sec, lowest at " + this.busyCalls +
+      " queued calls");
+  }
+
+  /**
+   * Override to report foreground load.
+   * @return Count of client requests waiting on a handler.
+   */
+  int getQueuedCalls() {
+    return 0;
+  }
+
+  /**
+   * @return Current limit in bytes a second, zero or less for none.
+   */
+  long getLimit() {
+    if (this.higherLimit <= 0 || this.lowerLimit <= 0) {
+      return 0;
+    }
+    double pressure = Math.min(1.0, (double)getQueuedCalls() / this.busyCalls);
+    return this.higherLimit -
+      (long)((this.higherLimit - this.lowerLimit) * pressure);
+  }
+
+  /**
+   * Account for <code>bytes</code> of compaction I/O, waiting first if the
+   * compactions are running ahead of the limit.
+   * @param bytes Bytes read and written since the last call.
+   */
+  void throttle(final long bytes) {
+    count(bytes);
+    long limit = getLimit();
+    if (limit <= 0) {
+      return;
+    }
+    long wait;
+    synchronized (this) {
+      long now = System.nanoTime();
+      // Time not used is not saved up; that would allow bursts.
+      if (this.nextFree - now < 0) {
+        this.nextFree = now;
+      }
+      wait = this.nextFree - now;
+      this.nextFree += bytes * 1000000000L / limit;
+    }
+    if (wait <= 0) {
+      return;
+    }
+    long start = System.nanoTime();
+    try {
+      Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+    } catch (InterruptedException e) {
+      // Carry on unthrottled rather than fail the compaction, but let the
+      // compaction's owner see it was interrupted.
+      Thread.currentThread().interrupt();
+    }
+    this.throttledNanos.addAndGet(System.nanoTime() - start);
+  }
+
+  /**
+   * Account for <code>bytes</code> of compaction I/O without waiting, for
+   * compactions that something else is waiting on, such as a region close.
+   * @param bytes Bytes read and written since the last call.
+   */
+  void count(final long bytes) {
+    this.compactionBytes.addAndGet(bytes);
+  }
+
+  /**
+   * @return Bytes of compaction I/O since the last call.
+   */
+  long getAndResetCompactionBytes() {
+    return this.compactionBytes.getAndSet(0);
+  }
+
+  /**
+   * @return Milliseconds compactions spent waiting on the limit since the
+   * last call.
+   */
+  long getAndResetThrottledTime() {
+    return this.throttledNanos.getAndSet(0) / 1000000;
+  }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Current value and timestamp of the counters of a region that have been
+ * incremented lately, so an increment need not read the Store.
+ * <p>
+ * Entries are grouped by row.  Columns of a row are only read or changed
+ * while holding the row lock; any other write to the row must
+ * {@link #invalidate(byte[])} it.  When more than the maximum number of rows
+ * are cached, some rows are dropped; they are read from the Store again on
+ * their next increment.
+ */
+class CounterCache {
+  private final
+    ConcurrentHashMap<ImmutableBytesWritable, Map<byte [], CachedCounter>>
+      rows = new ConcurrentHashMap<ImmutableBytesWritable,
+        Map<byte [], CachedCounter>>();
+  private final int maxRows;
+
+  /**
+   * @param maxRows Most rows to keep counters for.
+   */
+  CounterCache(final int maxRows) {
+    this.maxRows = maxRows;
+  }
+
+  /**
+   * Caller must hold the row lock.
+   * @param row
+   * @param column
+   * @return Cached counter or null if not cached.
+   */
+  CachedCounter get(final byte [] row, final byte [] column) {
+    Map<byte [], CachedCounter> columns =
+      this.rows.get(new ImmutableBytesWritable(row));
+    return columns == null? null: columns.get(column);
+  }
+
+  /**
+   * Caller must hold the row lock.
+   * @param row
+   * @param column
+   * @param value Value of the counter.
+   * @param timestamp Timestamp the value was written with.
+   */
+  void put(final byte [] row, final byte [] column, final long value,
+      final long timestamp) {
+    if (this.maxRows <= 0) {
+      return;
+    }
+    ImmutableBytesWritable key = new ImmutableBytesWritable(row);
+    Map<byte [], CachedCounter> columns = this.rows.get(key);
+    if (columns == null) {
+      if (this.rows.size() >= this.maxRows) {
+        evict();
+      }
+      columns = new TreeMap<byte [], CachedCounter>(Bytes.BYTES_COMPARATOR);
+      this.rows.put(key, columns);
+    }
+    columns.put(column, new CachedCounter(value, timestamp));
+  }
+
+  /**
+   * Drop the counters of a row.
+   * @param row
+   */
+  void invalidate(final byte [] row) {
+    this.rows.remove(new ImmutableBytesWritable(row));
+  }
+
+  /**
+   * @return True if no counters are cached.
+   */
+  boolean isEmpty() {
+    return this.rows.isEmpty();
+  }
+
+  /**
+   * Drop all counters.
+   */
+  void clear() {
+    this.rows.clear();
+  }
+
+  /*
+   * Drop a tenth of the cached rows to make room.
+   */
+  private void evict() {
+    int toRemove = Math.max(1, this.maxRows / 10);
+    Iterator<ImmutableBytesWritable> i = this.rows.keySet().iterator();
+    while (i.hasNext() && toRemove-- > 0) {
+      i.next();
+      i.remove();
+    }
+  }
+
+  /**
+   * A counter value and the timestamp it was written at.
+   */
+  static class CachedCounter {
+    final long value;
+    final long timestamp;
+
+    CachedCounter(final long value, final long timestamp) {
+      this.value = value;
+      this.timestamp = timestamp;
+    }
+  }
+}
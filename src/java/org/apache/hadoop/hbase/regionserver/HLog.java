@@ -22,12 +22,22 @@ package org.apache.hadoop.hbase.regionserver;
 import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -90,6 +100,16 @@ import org.apache.hadoop.io.compress.DefaultCodec;
 public class HLog implements HConstants, Syncable {
   private static final Log LOG = LogFactory.getLog(HLog.class);
   private static final String HLOG_DATFILE = "hlog.dat.";
+  /**
+   * Configuration key for how many logs to read at once when splitting.
+   */
+  static final String SPLIT_READER_THREADS_KEY =
+    "hbase.regionserver.hlog.splitlog.reader.threads";
+  /**
+   * Configuration key for how many threads write out split edits.
+   */
+  static final String SPLIT_WRITER_THREADS_KEY =
+    "hbase.regionserver.hlog.splitlog.writer.threads";
   static final byte [] METACOLUMN = Bytes.toBytes("METACOLUMN:");
   static final byte [] METAROW = Bytes.toBytes("METAROW");
   final FileSystem fs;
@@ -138,6 +158,24 @@ public class HLog implements HConstants, Syncable {
   // We synchronize on updateLock to prevent updates and to prevent a log roll
   // during an update
   private final Object updateLock = new Object();
+
+  // Held while writing queued edits to, or replacing, the writer.  Always
+  // taken before updateLock, never while holding it.
+  private final Object writerLock = new Object();
+
+  // If true, appends are queued and the LogSyncer writes and syncs them in
+  // groups; appenders that need a sync wait on their group.
+  private final boolean groupCommit;
+  private final LogSyncer syncer;
+  // Edits appended but not yet written.  Guarded by updateLock.
+  private PendingEdits pendingEdits = new PendingEdits();
+  // True if appenders are waiting on the pending edits.  Guarded by
+  // updateLock.
+  private boolean syncRequested = false;
+
+  // Syncs and edits synced since last asked; for metrics.
+  private final AtomicInteger syncCount = new AtomicInteger(0);
+  private final AtomicInteger syncedEditCount = new AtomicInteger(0);
   
   /*
    * If more than this many logs, force flush of oldest region to oldest edit
@@ -182,7 +220,15 @@ public class HLog implements HConstants, Syncable {
     }
     fs.mkdirs(dir);
     this.maxLogs = conf.getInt("hbase.regionserver.maxlogs", 64);
+    this.groupCommit =
+      conf.getBoolean("hbase.regionserver.hlog.groupcommit", false);
     rollWriter();
+    if (this.groupCommit) {
+      this.syncer = new LogSyncer();
+      this.syncer.start();
+    } else {
+      this.syncer = null;
+    }
   }
 
   /**
@@ -256,48 +302,66 @@ public class HLog implements HConstants, Syncable {
       if (closed) {
         return regionToFlush;
       }
-      synchronized (updateLock) {
-        // Clean up current writer.
-        Path oldFile = cleanupCurrentWriter();
-        // Create a new one.
-        this.old_filenum = this.filenum;
-        this.filenum = System.currentTimeMillis();
-        Path newPath = computeFilename(this.filenum);
-
-        this.writer = SequenceFile.createWriter(this.fs, this.conf, newPath,
-          HLogKey.class, HLogEdit.class,
-          fs.getConf().getInt("io.file.buffer.size", 4096),
-          fs.getDefaultReplication(), this.blocksize,
-          SequenceFile.CompressionType.NONE, new DefaultCodec(), null,
-          new Metadata());
-
-        LOG.info((oldFile != null?
-          "Closed " + oldFile + ", entries=" + this.numEntries + ". ": "") +
-          "New log writer: " + FSUtils.getPath(newPath));
-
-        // Can we delete any of the old log files?
-        if (this.outputfiles.size() > 0) {
-          if (this.lastSeqWritten.size() <= 0) {
-            LOG.debug("Last sequence written is empty. Deleting all old hlogs");
-            // If so, then no new writes have come in since all regions were
-            // flushed (and removed from the lastSeqWritten map). Means can
-            // remove all but currently open log file.
-            for (Map.Entry<Long, Path> e : this.outputfiles.entrySet()) {
-              deleteLogFile(e.getValue(), e.getKey());
-            }
-            this.outputfiles.clear();
-          } else {
-            regionToFlush = cleanOldLogs();
-          }
+      synchronized (writerLock) {
+        synchronized (updateLock) {
+          regionToFlush = replaceWriter();
         }
-        this.numEntries = 0;
-        updateLock.notifyAll();
       }
     } finally {
       this.cacheFlushLock.unlock();
     }
     return regionToFlush;
   }
+
+  /*
+   * Close the current writer and start a new one.  Presumes we are holding
+   * writerLock and updateLock.
+   * @return Region to flush, if any.
+   * @throws IOException
+   */
+  private byte [] replaceWriter() throws IOException {
+    byte [] regionToFlush = null;
+    if (this.groupCommit && this.writer != null) {
+      // Queued edits go in the log whose sequence ids they were given.
+      flushPending(false);
+    }
+    // Clean up current writer.
+    Path oldFile = cleanupCurrentWriter();
+    // Create a new one.
+    this.old_filenum = this.filenum;
+    this.filenum = System.currentTimeMillis();
+    Path newPath = computeFilename(this.filenum);
+
+    this.writer = SequenceFile.createWriter(this.fs, this.conf, newPath,
+      HLogKey.class, HLogEdit.class,
+      fs.getConf().getInt("io.file.buffer.size", 4096),
+      fs.getDefaultReplication(), this.blocksize,
+      SequenceFile.CompressionType.NONE, new DefaultCodec(), null,
+      new Metadata());
+
+    LOG.info((oldFile != null?
+      "Closed " + oldFile + ", entries=" + this.numEntries + ". ": "") +
+      "New log writer: " + FSUtils.getPath(newPath));
+
+    // Can we delete any of the old log files?
+    if (this.outputfiles.size() > 0) {
+      if (this.lastSeqWritten.size() <= 0) {
+        LOG.debug("Last sequence written is empty. Deleting all old hlogs");
+        // If so, then no new writes have come in since all regions were
+        // flushed (and removed from the lastSeqWritten map). Means can
+        // remove all but currently open log file.
+        for (Map.Entry<Long, Path> e : this.outputfiles.entrySet()) {
+          deleteLogFile(e.getValue(), e.getKey());
+        }
+        this.outputfiles.clear();
+      } else {
+        regionToFlush = cleanOldLogs();
+      }
+    }
+    this.numEntries = 0;
+    updateLock.notifyAll();
+    return regionToFlush;
+  }
   
   /*
    * Clean up old commit logs.
@@ -422,17 +486,32 @@ public class HLog implements HConstants, Syncable {
   public void close() throws IOException {
     cacheFlushLock.lock();
     try {
-      synchronized (updateLock) {
-        this.closed = true;
-        if (LOG.isDebugEnabled()) {
-          LOG.debug("closing log writer in " + this.dir.toString());
+      synchronized (writerLock) {
+        synchronized (updateLock) {
+          try {
+            if (this.groupCommit && !this.closed) {
+              flushPending(false);
+            }
+          } finally {
+            this.closed = true;
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("closing log writer in " + this.dir.toString());
+            }
+            this.writer.close();
+            updateLock.notifyAll();
+          }
         }
-        this.writer.close();
-        updateLock.notifyAll();
       }
     } finally {
       cacheFlushLock.unlock();
     }
+    if (this.syncer != null) {
+      try {
+        this.syncer.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
   }
 
   /**
@@ -464,7 +543,11 @@ public class HLog implements HConstants, Syncable {
     if (closed) {
       throw new IOException("Cannot append; log is closed");
     }
+    PendingEdits group = null;
     synchronized (updateLock) {
+      if (closed) {
+        throw new IOException("Cannot append; log is closed");
+      }
       long seqNum[] = obtainSeqNum(edits.size());
       // The 'lastSeqWritten' map holds the sequence number of the oldest
       // write for each region. When the cache is flushed, the entry for the
@@ -477,20 +560,54 @@ public class HLog implements HConstants, Syncable {
       for (KeyValue kv: edits) {
         HLogKey logKey =
           new HLogKey(regionName, tableName, seqNum[counter++]);
-       doWrite(logKey, new HLogEdit(kv), sync);
-
+        if (this.groupCommit) {
+          this.pendingEdits.add(logKey, new HLogEdit(kv));
+        } else {
+          doWrite(logKey, new HLogEdit(kv));
+        }
         this.numEntries++;
       }
+      if (this.groupCommit) {
+        group = queued(edits.size(), sync);
+      } else {
+        // One sync, if any, for the lot.
+        syncIfDue(sync);
+      }
       updateLock.notifyAll();
     }
+    if (group != null) {
+      group.await();
+    }
     if (this.numEntries > this.maxlogentries) {
         requestLogRoll();
     }
   }
+
+  /*
+   * Account for edits just queued for the LogSyncer.  Presumes we are
+   * holding updateLock.
+   * @param count How many edits were queued.
+   * @param sync True if the edits must be synced before we return.
+   * @return Group to wait on if the edits need a sync now, else null.
+   */
+  private PendingEdits queued(final int count, final boolean sync) {
+    this.unflushedEntries += count;
+    if (!sync && this.unflushedEntries < this.flushlogentries) {
+      return null;
+    }
+    this.syncRequested = true;
+    return this.pendingEdits;
+  }
   
   public void sync() throws IOException {
+    if (this.groupCommit) {
+      flushPending(true);
+      return;
+    }
     lastLogFlushTime = System.currentTimeMillis();
     this.writer.sync();
+    this.syncCount.incrementAndGet();
+    this.syncedEditCount.addAndGet(unflushedEntries);
     unflushedEntries = 0;
   }
 
@@ -499,6 +616,12 @@ public class HLog implements HConstants, Syncable {
       synchronized (updateLock) {
         if (((System.currentTimeMillis() - this.optionalFlushInterval) >
         this.lastLogFlushTime) && this.unflushedEntries > 0) {
+          if (this.groupCommit) {
+            // Let the LogSyncer do it.
+            this.syncRequested = true;
+            updateLock.notifyAll();
+            return;
+          }
           try {
             sync();
           } catch (IOException e) {
@@ -508,6 +631,60 @@ public class HLog implements HConstants, Syncable {
       }
     }
   }
+
+  /*
+   * Write queued edits to the log and sync, then let go their appenders.
+   * Only used with group commit.
+   * @param force Sync even if there are no queued edits.
+   * @throws IOException
+   */
+  private void flushPending(final boolean force) throws IOException {
+    synchronized (this.writerLock) {
+      PendingEdits group;
+      int count;
+      synchronized (this.updateLock) {
+        group = this.pendingEdits;
+        this.pendingEdits = new PendingEdits();
+        this.syncRequested = false;
+        count = this.unflushedEntries;
+        this.unflushedEntries = 0;
+      }
+      IOException failure = null;
+      try {
+        for (int i = 0; i < group.keys.size(); i++) {
+          this.writer.append(group.keys.get(i), group.edits.get(i));
+        }
+        if (force || count > 0) {
+          this.lastLogFlushTime = System.currentTimeMillis();
+          this.writer.sync();
+          this.syncCount.incrementAndGet();
+          this.syncedEditCount.addAndGet(count);
+        }
+      } catch (IOException e) {
+        LOG.fatal("Could not append. Requesting close of log", e);
+        requestLogRoll();
+        failure = e;
+      }
+      group.done(failure);
+      if (failure != null) {
+        throw failure;
+      }
+    }
+  }
+
+  /**
+   * @return Count of log syncs since last asked.
+   */
+  public int getAndResetSyncCount() {
+    return this.syncCount.getAndSet(0);
+  }
+
+  /**
+   * @return Count of edits synced since last asked.
+   */
+  public int getAndResetSyncedEditCount() {
+    return this.syncedEditCount.getAndSet(0);
+  }
   
   private void requestLogRoll() {
     if (this.listener != null) {
@@ -516,18 +693,43 @@ public class HLog implements HConstants, Syncable {
   }
   
   private void doWrite(HLogKey logKey, HLogEdit logEdit, boolean sync)
+  throws IOException {
+    doWrite(logKey, logEdit);
+    syncIfDue(sync);
+  }
+
+  /*
+   * Write an edit without syncing.  Presumes we are holding updateLock.
+   */
+  private void doWrite(HLogKey logKey, HLogEdit logEdit)
   throws IOException {
     try {
       this.writer.append(logKey, logEdit);
-      if (sync || ++unflushedEntries >= flushlogentries) {
-        sync();
-      }
+      this.unflushedEntries++;
     } catch (IOException e) {
       LOG.fatal("Could not append. Requesting close of log", e);
       requestLogRoll();
       throw e;
     }
   }
+
+  /*
+   * Sync if asked to or if enough edits have been written since the last
+   * sync.  Presumes we are holding updateLock.
+   * @param sync True to sync whatever the count.
+   */
+  private void syncIfDue(final boolean sync) throws IOException {
+    if (!sync && this.unflushedEntries < this.flushlogentries) {
+      return;
+    }
+    try {
+      sync();
+    } catch (IOException e) {
+      LOG.fatal("Could not sync. Requesting close of log", e);
+      requestLogRoll();
+      throw e;
+    }
+  }
   
   /** Append an entry without a row to the log.
    * 
@@ -553,7 +755,11 @@ public class HLog implements HConstants, Syncable {
     }
     byte [] regionName = regionInfo.getRegionName();
     byte [] tableName = regionInfo.getTableDesc().getName();
+    PendingEdits group = null;
     synchronized (updateLock) {
+      if (closed) {
+        throw new IOException("Cannot append; log is closed");
+      }
       long seqNum = obtainSeqNum();
       // The 'lastSeqWritten' map holds the sequence number of the oldest
       // write for each region. When the cache is flushed, the entry for the
@@ -565,10 +771,18 @@ public class HLog implements HConstants, Syncable {
 
       HLogKey logKey = new HLogKey(regionName, tableName, seqNum);
       boolean sync = regionInfo.isMetaRegion() || regionInfo.isRootRegion();
-      doWrite(logKey, logEdit, sync);
+      if (this.groupCommit) {
+        this.pendingEdits.add(logKey, logEdit);
+        group = queued(1, sync);
+      } else {
+        doWrite(logKey, logEdit, sync);
+      }
       this.numEntries++;
       updateLock.notifyAll();
     }
+    if (group != null) {
+      group.await();
+    }
 
     if (this.numEntries > this.maxlogentries) {
       if (listener != null) {
@@ -648,15 +862,21 @@ public class HLog implements HConstants, Syncable {
       if (this.closed) {
         return;
       }
-      synchronized (updateLock) {
-        this.writer.append(new HLogKey(regionName, tableName, logSeqId),
-          completeCacheFlushLogEdit());
-        this.numEntries++;
-        Long seq = this.lastSeqWritten.get(regionName);
-        if (seq != null && logSeqId >= seq.longValue()) {
-          this.lastSeqWritten.remove(regionName);
+      synchronized (writerLock) {
+        synchronized (updateLock) {
+          if (this.groupCommit) {
+            // Keep queued edits ahead of the flush marker.
+            flushPending(false);
+          }
+          this.writer.append(new HLogKey(regionName, tableName, logSeqId),
+            completeCacheFlushLogEdit());
+          this.numEntries++;
+          Long seq = this.lastSeqWritten.get(regionName);
+          if (seq != null && logSeqId >= seq.longValue()) {
+            this.lastSeqWritten.remove(regionName);
+          }
+          updateLock.notifyAll();
         }
-        updateLock.notifyAll();
       }
     } finally {
       this.cacheFlushLock.unlock();
@@ -687,6 +907,79 @@ public class HLog implements HConstants, Syncable {
     return Bytes.equals(METACOLUMN, column);
   }
   
+  /*
+   * Edits queued for the LogSyncer to write and sync as one group.  Their
+   * appenders wait on the group until it is synced.
+   */
+  private static class PendingEdits {
+    final List<HLogKey> keys = new ArrayList<HLogKey>();
+    final List<HLogEdit> edits = new ArrayList<HLogEdit>();
+    private boolean done = false;
+    private IOException failure = null;
+
+    void add(final HLogKey key, final HLogEdit edit) {
+      this.keys.add(key);
+      this.edits.add(edit);
+    }
+
+    synchronized void done(final IOException e) {
+      this.done = true;
+      this.failure = e;
+      notifyAll();
+    }
+
+    synchronized void await() throws IOException {
+      while (!this.done) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted waiting on log sync");
+        }
+      }
+      if (this.failure != null) {
+        IOException e = new IOException("Log sync failed");
+        e.initCause(this.failure);
+        throw e;
+      }
+    }
+  }
+
+  /*
+   * Writes and syncs queued edits whenever an appender needs a sync.  Edits
+   * queued while a sync is in progress all go out in the next one.
+   */
+  private class LogSyncer extends Thread {
+    LogSyncer() {
+      super("LogSyncer-" + dir.getName());
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          synchronized (updateLock) {
+            while (!closed && !syncRequested) {
+              updateLock.wait();
+            }
+            if (closed) {
+              break;
+            }
+          }
+          try {
+            flushPending(false);
+          } catch (IOException e) {
+            LOG.error("Error syncing HLog", e);
+          }
+        }
+      } catch (InterruptedException e) {
+        LOG.debug(getName() + " interrupted");
+      }
+      LOG.info(getName() + " exiting");
+    }
+  }
+
   /**
    * Split up a bunch of regionserver commit log files that are no longer
    * being written to, into new files, one per region for region to replay on
@@ -726,6 +1019,12 @@ public class HLog implements HConstants, Syncable {
   }
   
   /*
+   * Logs are split a batch at a time.  The logs of a batch are read in
+   * parallel, each into memory.  Their edits are then gathered by region, in
+   * log order, and each region's edits written out by a pool of writers.  A
+   * region's edits are only ever written by one writer at a time and batches
+   * are done in log order, so each region gets the same edits in the same
+   * order as if the logs had been split one after the other.
    * @param rootDir
    * @param logfiles
    * @param fs
@@ -735,107 +1034,289 @@ public class HLog implements HConstants, Syncable {
   private static void splitLog(final Path rootDir, final FileStatus [] logfiles,
     final FileSystem fs, final Configuration conf)
   throws IOException {
-    Map<byte [], SequenceFile.Writer> logWriters =
-      new TreeMap<byte [], SequenceFile.Writer>(Bytes.BYTES_COMPARATOR);
+    final Map<byte [], SequenceFile.Writer> logWriters =
+      Collections.synchronizedMap(
+        new TreeMap<byte [], SequenceFile.Writer>(Bytes.BYTES_COMPARATOR));
+    int readers = Math.max(1, conf.getInt(SPLIT_READER_THREADS_KEY, 3));
+    int writers = Math.max(1, conf.getInt(SPLIT_WRITER_THREADS_KEY, 3));
+    ExecutorService readPool = getSplitPool(readers, "HLogSplitReader");
+    ExecutorService writePool = getSplitPool(writers, "HLogSplitWriter");
+    long edits = 0;
     try {
-      for (int i = 0; i < logfiles.length; i++) {
-        if (LOG.isDebugEnabled()) {
-          LOG.debug("Splitting " + (i + 1) + " of " + logfiles.length + ": " +
-            logfiles[i].getPath());
-        }
-        // Check for possibly empty file. With appends, currently Hadoop reports
-        // a zero length even if the file has been sync'd. Revisit if 
-        // HADOOP-4751 is committed.
-        boolean possiblyEmpty = logfiles[i].getLen() <= 0;
-        HLogKey key = new HLogKey();
-        HLogEdit val = new HLogEdit();
-        try {
-          SequenceFile.Reader in =
-            new SequenceFile.Reader(fs, logfiles[i].getPath(), conf);
-          try {
-            int count = 0;
-            for (; in.next(key, val); count++) {
-              byte [] tableName = key.getTablename();
-              byte [] regionName = key.getRegionName();
-              SequenceFile.Writer w = logWriters.get(regionName);
-              if (w == null) {
-                Path logfile = new Path(
-                    HRegion.getRegionDir(
-                        HTableDescriptor.getTableDir(rootDir, tableName),
-                        HRegionInfo.encodeRegionName(regionName)),
-                        HREGION_OLDLOGFILE_NAME);
-                Path oldlogfile = null;
-                SequenceFile.Reader old = null;
-                if (fs.exists(logfile)) {
-                  LOG.warn("Old log file " + logfile +
-                  " already exists. Copying existing file to new file");
-                  oldlogfile = new Path(logfile.toString() + ".old");
-                  fs.rename(logfile, oldlogfile);
-                  old = new SequenceFile.Reader(fs, oldlogfile, conf);
-                }
-                w = SequenceFile.createWriter(fs, conf, logfile, HLogKey.class,
-                    HLogEdit.class, getCompressionType(conf));
-                // Use copy of regionName; regionName object is reused inside in
-                // HStoreKey.getRegionName so its content changes as we iterate.
-                logWriters.put(regionName, w);
-                if (LOG.isDebugEnabled()) {
-                  LOG.debug("Creating new log file writer for path " + logfile +
-                      " and region " + Bytes.toString(regionName));
-                }
-
-                if (old != null) {
-                  // Copy from existing log file
-                  HLogKey oldkey = new HLogKey();
-                  HLogEdit oldval = new HLogEdit();
-                  for (; old.next(oldkey, oldval); count++) {
-                    if (LOG.isDebugEnabled() && count > 0 && count % 10000 == 0) {
-                      LOG.debug("Copied " + count + " edits");
-                    }
-                    w.append(oldkey, oldval);
-                  }
-                  old.close();
-                  fs.delete(oldlogfile, true);
-                }
-              }
-              w.append(key, val);
-            }
-            if (LOG.isDebugEnabled()) {
-              LOG.debug("Applied " + count + " total edits from " +
-                  logfiles[i].getPath().toString());
-            }
-          } catch (IOException e) {
-            e = RemoteExceptionHandler.checkIOException(e);
-            if (!(e instanceof EOFException)) {
-              LOG.warn("Exception processing " + logfiles[i].getPath() +
-                  " -- continuing. Possible DATA LOSS!", e);
-            }
-          } finally {
-            try {
-              in.close();
-            } catch (IOException e) {
-              LOG.warn("Close in finally threw exception -- continuing", e);
-            }
-            // Delete the input file now so we do not replay edits.  We could
-            // have gotten here because of an exception.  If so, probably
-            // nothing we can do about it. Replaying it, it could work but we
-            // could be stuck replaying for ever. Just continue though we
-            // could have lost some edits.
-            fs.delete(logfiles[i].getPath(), true);
+      for (int i = 0; i < logfiles.length; i += readers) {
+        int last = Math.min(i + readers, logfiles.length);
+        List<Future<Map<byte [], List<HLogEntry>>>> reads =
+          new ArrayList<Future<Map<byte [], List<HLogEntry>>>>();
+        for (int j = i; j < last; j++) {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Splitting " + (j + 1) + " of " + logfiles.length +
+              ": " + logfiles[j].getPath());
           }
-        } catch (IOException e) {
-          if (possiblyEmpty) {
+          reads.add(readPool.submit(new SplitReader(logfiles[j], fs, conf)));
+        }
+        Map<byte [], List<HLogEntry>> batch =
+          new TreeMap<byte [], List<HLogEntry>>(Bytes.BYTES_COMPARATOR);
+        for (Map<byte [], List<HLogEntry>> read: getSplitResults(reads)) {
+          if (read == null) {
+            // Empty log.
             continue;
           }
-          throw e;
+          for (Map.Entry<byte [], List<HLogEntry>> e: read.entrySet()) {
+            List<HLogEntry> regionEdits = batch.get(e.getKey());
+            if (regionEdits == null) {
+              batch.put(e.getKey(), e.getValue());
+            } else {
+              regionEdits.addAll(e.getValue());
+            }
+          }
+        }
+        List<Future<Integer>> writes = new ArrayList<Future<Integer>>();
+        for (Map.Entry<byte [], List<HLogEntry>> e: batch.entrySet()) {
+          writes.add(writePool.submit(new SplitWriter(e.getKey(),
+            e.getValue(), logWriters, rootDir, fs, conf)));
         }
+        for (Integer count: getSplitResults(writes)) {
+          edits += count.intValue();
+        }
+        for (int j = i; j < last; j++) {
+          // Delete the input file now so we do not replay edits.  We could
+          // have had an exception reading it.  If so, probably nothing we
+          // can do about it. Replaying it, it could work but we could be
+          // stuck replaying for ever. Just continue though we could have
+          // lost some edits.
+          fs.delete(logfiles[j].getPath(), true);
+        }
+        LOG.info("Split " + last + " of " + logfiles.length + " log(s); " +
+          edits + " edit(s) for " + logWriters.size() + " region(s) so far");
       }
     } finally {
+      readPool.shutdownNow();
+      writePool.shutdownNow();
       for (SequenceFile.Writer w : logWriters.values()) {
         w.close();
       }
     }
   }
 
+  /*
+   * @param threads
+   * @param name Prefix for thread names.
+   * @return Pool of daemon threads for splitting logs.
+   */
+  private static ExecutorService getSplitPool(final int threads,
+      final String name) {
+    return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger(0);
+
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /*
+   * Wait on all of <code>futures</code>, even if some fail, so none are
+   * still running when we return.
+   * @param futures
+   * @return Results in order of <code>futures</code>.
+   * @throws IOException First failure, if any.
+   */
+  private static <T> List<T> getSplitResults(final List<Future<T>> futures)
+  throws IOException {
+    List<T> results = new ArrayList<T>(futures.size());
+    IOException failure = null;
+    for (Future<T> f: futures) {
+      try {
+        results.add(f.get());
+      } catch (InterruptedException e) {
+        if (failure == null) {
+          failure = new InterruptedIOException("Interrupted splitting logs");
+        }
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          Throwable cause = e.getCause();
+          if (cause instanceof IOException) {
+            failure = (IOException)cause;
+          } else {
+            failure = new IOException("Failed splitting logs");
+            failure.initCause(cause);
+          }
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+    return results;
+  }
+
+  /*
+   * An edit read from a log being split.
+   */
+  private static class HLogEntry {
+    final HLogKey key;
+    final HLogEdit edit;
+
+    HLogEntry(final HLogKey key, final HLogEdit edit) {
+      this.key = key;
+      this.edit = edit;
+    }
+  }
+
+  /*
+   * Reads a log being split into memory, gathering its edits by region.
+   * Returns null if the log could not be opened and may be empty.
+   */
+  private static class SplitReader
+  implements Callable<Map<byte [], List<HLogEntry>>> {
+    private final FileStatus logfile;
+    private final FileSystem fs;
+    private final Configuration conf;
+
+    SplitReader(final FileStatus logfile, final FileSystem fs,
+        final Configuration conf) {
+      this.logfile = logfile;
+      this.fs = fs;
+      this.conf = conf;
+    }
+
+    public Map<byte [], List<HLogEntry>> call() throws IOException {
+      // Check for possibly empty file. With appends, currently Hadoop reports
+      // a zero length even if the file has been sync'd. Revisit if
+      // HADOOP-4751 is committed.
+      boolean possiblyEmpty = this.logfile.getLen() <= 0;
+      Path path = this.logfile.getPath();
+      SequenceFile.Reader in = null;
+      try {
+        in = new SequenceFile.Reader(this.fs, path, this.conf);
+      } catch (IOException e) {
+        if (possiblyEmpty) {
+          return null;
+        }
+        throw e;
+      }
+      Map<byte [], List<HLogEntry>> edits =
+        new TreeMap<byte [], List<HLogEntry>>(Bytes.BYTES_COMPARATOR);
+      try {
+        int count = 0;
+        while (true) {
+          // The reader fills in what it is passed; make new each time.
+          HLogKey key = new HLogKey();
+          HLogEdit val = new HLogEdit();
+          if (!in.next(key, val)) {
+            break;
+          }
+          List<HLogEntry> regionEdits = edits.get(key.getRegionName());
+          if (regionEdits == null) {
+            regionEdits = new LinkedList<HLogEntry>();
+            edits.put(key.getRegionName(), regionEdits);
+          }
+          regionEdits.add(new HLogEntry(key, val));
+          count++;
+        }
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Read " + count + " total edits from " + path);
+        }
+      } catch (IOException e) {
+        e = RemoteExceptionHandler.checkIOException(e);
+        if (!(e instanceof EOFException)) {
+          LOG.warn("Exception processing " + path +
+            " -- continuing. Possible DATA LOSS!", e);
+        }
+      } finally {
+        try {
+          in.close();
+        } catch (IOException e) {
+          LOG.warn("Close in finally threw exception -- continuing", e);
+        }
+      }
+      return edits;
+    }
+  }
+
+  /*
+   * Appends a batch of one region's edits to the region's split log,
+   * making the log on first use.  Returns the count of edits written.
+   */
+  private static class SplitWriter implements Callable<Integer> {
+    private final byte [] regionName;
+    private final List<HLogEntry> edits;
+    private final Map<byte [], SequenceFile.Writer> logWriters;
+    private final Path rootDir;
+    private final FileSystem fs;
+    private final Configuration conf;
+
+    SplitWriter(final byte [] regionName, final List<HLogEntry> edits,
+        final Map<byte [], SequenceFile.Writer> logWriters,
+        final Path rootDir, final FileSystem fs, final Configuration conf) {
+      this.regionName = regionName;
+      this.edits = edits;
+      this.logWriters = logWriters;
+      this.rootDir = rootDir;
+      this.fs = fs;
+      this.conf = conf;
+    }
+
+    public Integer call() throws IOException {
+      SequenceFile.Writer w = this.logWriters.get(this.regionName);
+      if (w == null) {
+        w = createWriter(this.edits.get(0).key.getTablename());
+        this.logWriters.put(this.regionName, w);
+      }
+      for (HLogEntry e: this.edits) {
+        w.append(e.key, e.edit);
+      }
+      return Integer.valueOf(this.edits.size());
+    }
+
+    /*
+     * @param tableName
+     * @return Writer on the region's old log file, holding whatever the
+     * file held before if it already existed.
+     * @throws IOException
+     */
+    private SequenceFile.Writer createWriter(final byte [] tableName)
+    throws IOException {
+      Path logfile = new Path(
+          HRegion.getRegionDir(
+              HTableDescriptor.getTableDir(this.rootDir, tableName),
+              HRegionInfo.encodeRegionName(this.regionName)),
+              HREGION_OLDLOGFILE_NAME);
+      Path oldlogfile = null;
+      SequenceFile.Reader old = null;
+      if (this.fs.exists(logfile)) {
+        LOG.warn("Old log file " + logfile +
+        " already exists. Copying existing file to new file");
+        oldlogfile = new Path(logfile.toString() + ".old");
+        this.fs.rename(logfile, oldlogfile);
+        old = new SequenceFile.Reader(this.fs, oldlogfile, this.conf);
+      }
+      SequenceFile.Writer w = SequenceFile.createWriter(this.fs, this.conf,
+        logfile, HLogKey.class, HLogEdit.class, getCompressionType(this.conf));
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Creating new log file writer for path " + logfile +
+            " and region " + Bytes.toString(this.regionName));
+      }
+      if (old != null) {
+        // Copy from existing log file
+        HLogKey oldkey = new HLogKey();
+        HLogEdit oldval = new HLogEdit();
+        int count = 0;
+        for (; old.next(oldkey, oldval); count++) {
+          if (LOG.isDebugEnabled() && count > 0 && count % 10000 == 0) {
+            LOG.debug("Copied " + count + " edits");
+          }
+          w.append(oldkey, oldval);
+        }
+        old.close();
+        this.fs.delete(oldlogfile, true);
+      }
+      return w;
+    }
+  }
+
   /**
    * Construct the HLog directory name
    * 
@@ -28,10 +28,14 @@ import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
 import java.util.Set;
+import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -64,6 +68,7 @@ import org.apache.hadoop.hbase.io.Reference.Range;
 import org.apache.hadoop.hbase.ipc.HRegionInterface;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.hbase.util.FSUtils;
+import org.apache.hadoop.hbase.util.Threads;
 import org.apache.hadoop.hbase.util.Writables;
 import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.util.Progressable;
@@ -121,11 +126,13 @@ public class HRegion implements HConstants {
   // Members
   //////////////////////////////////////////////////////////////////////////////
 
-  private final Map<Integer, byte []> locksToRows =
-    new ConcurrentHashMap<Integer, byte []>();
+  private final RowLockManager rowLocks;
+  private final CounterCache counters;
   protected final Map<byte [], Store> stores =
     new ConcurrentSkipListMap<byte [], Store>(KeyValue.FAMILY_COMPARATOR);
   final AtomicLong memcacheSize = new AtomicLong(0);
+  // Reads and updates since the regionserver last reported load.
+  final AtomicInteger requestsCount = new AtomicInteger(0);
 
   // This is the table subdirectory.
   final Path basedir;
@@ -143,6 +150,7 @@ public class HRegion implements HConstants {
    * major compaction.  Cleared each time through compaction code.
    */
   private volatile boolean forceMajorCompaction = false;
+  private volatile long lastCompactSize = 0L;
 
   /*
    * Data structure of write state flags used coordinating flushes,
@@ -230,6 +238,10 @@ public class HRegion implements HConstants {
     this.regionInfo = regionInfo;
     this.flushListener = flushListener;
     this.threadWakeFrequency = conf.getLong(THREAD_WAKE_FREQUENCY, 10 * 1000);
+    this.rowLocks =
+      new RowLockManager(conf.getInt("hbase.hregion.rowlock.stripes", 16));
+    this.counters =
+      new CounterCache(conf.getInt("hbase.hregion.counters.cache.rows", 1000));
     String encodedNameStr = Integer.toString(this.regionInfo.getEncodedName());
     this.regiondir = new Path(basedir, encodedNameStr);
     this.historian = RegionHistorian.getInstance();
@@ -271,9 +283,8 @@ public class HRegion implements HConstants {
     // Load in all the HStores.
     long maxSeqId = -1;
     long minSeqId = Integer.MAX_VALUE;
-    for (HColumnDescriptor c : this.regionInfo.getTableDesc().getFamilies()) {
-      Store store = instantiateHStore(this.basedir, c, oldLogFile, reporter);
-      this.stores.put(c.getName(), store);
+    for (Store store: openStores(oldLogFile, reporter)) {
+      this.stores.put(store.getFamily().getName(), store);
       long storeSeqId = store.getMaxSequenceId();
       if (storeSeqId > maxSeqId) {
         maxSeqId = storeSeqId;
@@ -516,6 +527,57 @@ public class HRegion implements HConstants {
     return size;
   }
 
+  /**
+   * Warm the block cache with the first data blocks of each store file.
+   * @param blocks Most blocks to read per store file.
+   * @return Count of blocks read.
+   * @throws IOException
+   */
+  int prefetchStoreFiles(final int blocks) throws IOException {
+    int count = 0;
+    for (Store store: stores.values()) {
+      // Hold off closes and splits only for one store at a time.
+      splitsAndClosesLock.readLock().lock();
+      try {
+        if (this.closed.get()) {
+          break;
+        }
+        count += store.prefetch(blocks);
+      } finally {
+        splitsAndClosesLock.readLock().unlock();
+      }
+    }
+    return count;
+  }
+
+  /** @return total size of all store files, in bytes. */
+  long getStorefilesSize() {
+    long size = 0;
+    for (Store h: stores.values()) {
+      size += h.getSize();
+    }
+    return size;
+  }
+
+  /**
+   * @return Compaction priority of the most urgent store; lower is more
+   * urgent.  See {@link Store#getCompactPriority()}.
+   */
+  int getCompactPriority() {
+    int priority = Integer.MAX_VALUE;
+    for (Store h: stores.values()) {
+      priority = Math.min(priority, h.getCompactPriority());
+    }
+    return priority;
+  }
+
+  /**
+   * @return Bytes of store files rewritten by the last compaction.
+   */
+  long getLastCompactSize() {
+    return this.lastCompactSize;
+  }
+
   /*
    * Split the HRegion to create two brand-new ones.  This also closes
    * current HRegion.  Split should be fast since we don't rewrite store files
@@ -655,16 +717,39 @@ public class HRegion implements HConstants {
    * time-sensitive thread.
    *
    * Note that no locking is necessary at this level because compaction only
-   * conflicts with a region split, and that cannot happen because the region
-   * server does them sequentially and not in parallel.
+   * conflicts with a region split, and a split waits on the
+   * splitsAndClosesLock we hold for the duration.
    * 
    * @return mid key if split is needed
    * @throws IOException
    */
   public byte [] compactStores() throws IOException {
+    return compactStores((CompactionThrottle)null);
+  }
+
+  /*
+   * As {@link #compactStores()} but with compaction I/O paced by
+   * <code>throttle</code>.
+   * @param throttle Null for no limit.
+   * @return mid key if split is needed
+   * @throws IOException
+   */
+  byte [] compactStores(final CompactionThrottle throttle)
+  throws IOException {
     boolean majorCompaction = this.forceMajorCompaction;
     this.forceMajorCompaction = false;
-    return compactStores(majorCompaction);
+    return compactStores(majorCompaction, throttle);
+  }
+
+  /*
+   * @param majorCompaction True to force a major compaction regardless of
+   * thresholds
+   * @return split row if split is needed
+   * @throws IOException
+   */
+  byte [] compactStores(final boolean majorCompaction)
+  throws IOException {
+    return compactStores(majorCompaction, null);
   }
 
   /*
@@ -675,18 +760,21 @@ public class HRegion implements HConstants {
    * time-sensitive thread.
    *
    * Note that no locking is necessary at this level because compaction only
-   * conflicts with a region split, and that cannot happen because the region
-   * server does them sequentially and not in parallel.
+   * conflicts with a region split, and a split waits on the
+   * splitsAndClosesLock we hold for the duration.
    * 
    * @param majorCompaction True to force a major compaction regardless of thresholds
+   * @param throttle Paces compaction I/O.  Null for no limit.
    * @return split row if split is needed
    * @throws IOException
    */
-  byte [] compactStores(final boolean majorCompaction)
+  byte [] compactStores(final boolean majorCompaction,
+      final CompactionThrottle throttle)
   throws IOException {
     splitsAndClosesLock.readLock().lock();
     try {
       byte [] splitRow = null;
+      this.lastCompactSize = 0L;
       if (this.closed.get()) {
         return splitRow;
       }
@@ -698,7 +786,11 @@ public class HRegion implements HConstants {
             LOG.info("NOT compacting region " + this +
                 ": compacting=" + writestate.compacting + ", writesEnabled=" +
                 writestate.writesEnabled);
-              return splitRow;
+            if (majorCompaction) {
+              // Leave a forced major compaction for the next time around.
+              this.forceMajorCompaction = true;
+            }
+            return splitRow;
           }
         }
         LOG.info("starting " + (majorCompaction? "major" : "") + 
@@ -706,13 +798,17 @@ public class HRegion implements HConstants {
         long startTime = System.currentTimeMillis();
         doRegionCompactionPrep();
         long maxSize = -1;
+        long compactSize = 0;
         for (Store store: stores.values()) {
-          final Store.StoreSize ss = store.compact(majorCompaction);
+          final Store.StoreSize ss =
+            store.compact(majorCompaction, throttle, this.closing);
+          compactSize += store.getLastCompactSize();
           if (ss != null && ss.getSize() > maxSize) {
             maxSize = ss.getSize();
             splitRow = ss.getSplitRow();
           }
         }
+        this.lastCompactSize = compactSize;
         doRegionCompactionCleanup();
         String timeTaken = StringUtils.formatTimeDiff(System.currentTimeMillis(), 
             startTime);
@@ -945,6 +1041,7 @@ public class HRegion implements HConstants {
   throws IOException {
     long timestamp = ts == -1? HConstants.LATEST_TIMESTAMP : ts;
     int numVersions = nv == -1? 1 : nv;
+    this.requestsCount.incrementAndGet();
     splitsAndClosesLock.readLock().lock();
     try {
       if (this.closed.get()) {
@@ -1067,6 +1164,7 @@ public class HRegion implements HConstants {
       final NavigableSet<byte []> columns, final long ts,
       final int numVersions, final Integer lockid) 
   throws IOException {
+    this.requestsCount.incrementAndGet();
     // Check columns passed
     if (columns != null) {
       for (byte [] column: columns) {
@@ -1151,6 +1249,7 @@ public class HRegion implements HConstants {
     // closest key is across all column families, since the data may be sparse
     KeyValue key = null;
     checkRow(row);
+    this.requestsCount.incrementAndGet();
     splitsAndClosesLock.readLock().lock();
     try {
       Store store = getStore(columnFamily);
@@ -1258,6 +1357,7 @@ public class HRegion implements HConstants {
   throws IOException {
     checkReadOnly();
     validateValuesLength(b);
+    this.requestsCount.incrementAndGet();
 
     // Do a rough check that we have resources to accept a write.  The check is
     // 'rough' in that between the resource check and the call to obtain a 
@@ -1274,58 +1374,168 @@ public class HRegion implements HConstants {
       byte [] row = b.getRow();
       // If we did not pass an existing row lock, obtain a new one
       Integer lid = getLock(lockid, row);
-      long commitTime = b.getTimestamp() == LATEST_TIMESTAMP?
-        System.currentTimeMillis(): b.getTimestamp();
-      Set<byte []> latestTimestampDeletes = null;
-      List<KeyValue> edits = new ArrayList<KeyValue>();
       try {
-        for (BatchOperation op: b) {
-          byte [] column = op.getColumn();
-          checkColumn(column);
-          KeyValue kv = null;
-          if (op.isPut()) {
-            byte [] val = op.getValue();
-            if (HLogEdit.isDeleted(val)) {
-              throw new IOException("Cannot insert value: " +
-                Bytes.toString(val));
-            }
-            kv = new KeyValue(row, column, commitTime, val);
-          } else {
-            // Its a delete.
-            if (b.getTimestamp() == LATEST_TIMESTAMP) {
-              // Save off these deletes of the most recent thing added on the
-              // family.
-              if (latestTimestampDeletes == null) {
-                latestTimestampDeletes =
-                  new TreeSet<byte []>(Bytes.BYTES_RAWCOMPARATOR);
-              }
-              latestTimestampDeletes.add(op.getColumn());
-              continue;
+        Set<byte []> latestTimestampDeletes =
+          new TreeSet<byte []>(Bytes.BYTES_RAWCOMPARATOR);
+        List<KeyValue> edits = getEdits(b, latestTimestampDeletes);
+        if (!edits.isEmpty()) {
+          update(edits, writeToWAL);
+        }
+        deleteLatest(row, latestTimestampDeletes);
+      } finally {
+        if(lockid == null) releaseRowLock(lid);
+      }
+    } finally {
+      splitsAndClosesLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Apply many updates at once.  The row locks are taken in row order, then
+   * the edits of all the rows go to the log in one append and then into the
+   * memcaches.  Updates are applied up to the first whose row is not in this
+   * region.  Every update is checked before any is applied, so a bad one
+   * fails the batch with none of it applied.
+   * @param b Updates to apply.
+   * @param lockids Lock already held for each update or null to take one.
+   * @return Index of the first update not applied because its row is not in
+   * this region or -1 if all were applied.
+   * @throws IOException
+   */
+  public int batchUpdate(final BatchUpdate [] b, final Integer [] lockids)
+  throws IOException {
+    checkReadOnly();
+    int count = 0;
+    while (count < b.length &&
+        rowIsInRange(this.regionInfo, b[count].getRow())) {
+      validateValuesLength(b[count]);
+      count++;
+    }
+    if (count == 0) {
+      return b.length == 0? -1: 0;
+    }
+    checkResources();
+    splitsAndClosesLock.readLock().lock();
+    try {
+      if (this.closed.get()) {
+        throw new NotServingRegionException("Region " + this + " closed");
+      }
+      // Rows we lock ourselves, sorted so batches locking overlapping rows
+      // cannot deadlock each other.  A row is only locked once however many
+      // of the updates are for it.
+      SortedMap<byte [], Integer> acquired =
+        new TreeMap<byte [], Integer>(Bytes.BYTES_COMPARATOR);
+      try {
+        Set<byte []> held = new TreeSet<byte []>(Bytes.BYTES_COMPARATOR);
+        for (int i = 0; i < count; i++) {
+          if (lockids[i] != null) {
+            byte [] row = getRowFromLock(lockids[i]);
+            if (row == null) {
+              throw new IOException("Invalid row lock");
             }
-            // Its an explicit timestamp delete
-            kv = new KeyValue(row, column, commitTime, KeyValue.Type.Delete,
-              HConstants.EMPTY_BYTE_ARRAY);
+            held.add(row);
           }
-          edits.add(kv);
         }
-        if (!edits.isEmpty()) {
-          update(edits, writeToWAL);
+        for (int i = 0; i < count; i++) {
+          if (lockids[i] == null && !held.contains(b[i].getRow())) {
+            acquired.put(b[i].getRow(), null);
+          }
         }
-        if (latestTimestampDeletes != null &&
-            !latestTimestampDeletes.isEmpty()) {
-          // We have some LATEST_TIMESTAMP deletes to run.  Can't do them inline
-          // as edits.  Need to do individually after figuring which is latest
-          // timestamp to delete.
-          for (byte [] column: latestTimestampDeletes) {
-            deleteMultiple(row, column, LATEST_TIMESTAMP, 1);
+        for (Map.Entry<byte [], Integer> e: acquired.entrySet()) {
+          e.setValue(this.rowLocks.lock(e.getKey()));
+        }
+        // Make every update's edits before applying any, so a bad update
+        // fails the batch with nothing applied.
+        List<List<KeyValue>> updateEdits = new ArrayList<List<KeyValue>>(count);
+        List<Set<byte []>> updateDeletes = new ArrayList<Set<byte []>>(count);
+        for (int i = 0; i < count; i++) {
+          Set<byte []> latestTimestampDeletes =
+            new TreeSet<byte []>(Bytes.BYTES_RAWCOMPARATOR);
+          updateEdits.add(getEdits(b[i], latestTimestampDeletes));
+          updateDeletes.add(latestTimestampDeletes);
+        }
+        List<KeyValue> edits = new ArrayList<KeyValue>();
+        for (int i = 0; i < count; i++) {
+          edits.addAll(updateEdits.get(i));
+          if (!updateDeletes.get(i).isEmpty()) {
+            // Keep the order of updates to the same row; apply what we have
+            // before running the deletes.
+            update(edits, true);
+            edits.clear();
+            deleteLatest(b[i].getRow(), updateDeletes.get(i));
           }
         }
+        update(edits, true);
       } finally {
-        if(lockid == null) releaseRowLock(lid);
+        for (Integer lid: acquired.values()) {
+          if (lid != null) {
+            releaseRowLock(lid);
+          }
+        }
       }
     } finally {
       splitsAndClosesLock.readLock().unlock();
     }
+    return count == b.length? -1: count;
+  }
+
+  /*
+   * Make the edits for an update.  Deletes of the latest version of a column
+   * cannot be made into edits up front; their columns are added to
+   * <code>latestTimestampDeletes</code> instead.
+   * @param b
+   * @param latestTimestampDeletes
+   * @return Edits for <code>b</code>.
+   * @throws IOException
+   */
+  private List<KeyValue> getEdits(final BatchUpdate b,
+      final Set<byte []> latestTimestampDeletes)
+  throws IOException {
+    byte [] row = b.getRow();
+    long commitTime = b.getTimestamp() == LATEST_TIMESTAMP?
+      System.currentTimeMillis(): b.getTimestamp();
+    List<KeyValue> edits = new ArrayList<KeyValue>();
+    for (BatchOperation op: b) {
+      byte [] column = op.getColumn();
+      checkColumn(column);
+      KeyValue kv = null;
+      if (op.isPut()) {
+        byte [] val = op.getValue();
+        if (HLogEdit.isDeleted(val)) {
+          throw new IOException("Cannot insert value: " +
+            Bytes.toString(val));
+        }
+        kv = new KeyValue(row, column, commitTime, val);
+      } else {
+        // Its a delete.
+        if (b.getTimestamp() == LATEST_TIMESTAMP) {
+          // Save off these deletes of the most recent thing added on the
+          // family.
+          latestTimestampDeletes.add(op.getColumn());
+          continue;
+        }
+        // Its an explicit timestamp delete
+        kv = new KeyValue(row, column, commitTime, KeyValue.Type.Delete,
+          HConstants.EMPTY_BYTE_ARRAY);
+      }
+      edits.add(kv);
+    }
+    return edits;
+  }
+
+  /*
+   * Run LATEST_TIMESTAMP deletes.  Can't do them inline as edits.  Need to do
+   * individually after figuring which is latest timestamp to delete.
+   * Presumes we hold the row lock.
+   * @param row
+   * @param columns
+   * @throws IOException
+   */
+  private void deleteLatest(final byte [] row, final Set<byte []> columns)
+  throws IOException {
+    for (byte [] column: columns) {
+      deleteMultiple(row, column, LATEST_TIMESTAMP, 1);
+    }
   }
 
   /**
@@ -1350,6 +1560,7 @@ public class HRegion implements HConstants {
     // should read the comments from the batchUpdate method
     boolean success = true;
     checkReadOnly();
+    this.requestsCount.incrementAndGet();
     validateValuesLength(b);
     checkResources();
     splitsAndClosesLock.readLock().lock();
@@ -1748,7 +1959,12 @@ public class HRegion implements HConstants {
           (regionInfo.isMetaRegion() || regionInfo.isRootRegion()));
       }
       long size = 0;
+      boolean counted = !this.counters.isEmpty();
       for (KeyValue kv: edits) {
+        if (counted) {
+          // Cached counter values of the row may no longer be current.
+          this.counters.invalidate(kv.getRow());
+        }
         // TODO: Fix -- do I have to do a getColumn here?
         size = this.memcacheSize.addAndGet(getStore(kv.getColumn()).add(kv));
       }
@@ -1795,6 +2011,61 @@ public class HRegion implements HConstants {
     // Nothing to do (Replaying is done in HStores)
   }
 
+  /*
+   * Open a Store per family.  Opening loads every store file's trailer and
+   * index; families are opened in parallel, up to
+   * <code>hbase.hregion.open.store.threads</code> at a time.
+   * @param oldLogFile
+   * @param reporter
+   * @return The opened Stores.
+   * @throws IOException First failure opening a Store, after all opens are
+   * done.
+   */
+  private List<Store> openStores(final Path oldLogFile,
+      final Progressable reporter)
+  throws IOException {
+    List<HColumnDescriptor> families = new ArrayList<HColumnDescriptor>(
+      this.regionInfo.getTableDesc().getFamilies());
+    int threads = Math.min(families.size(),
+      this.conf.getInt("hbase.hregion.open.store.threads", 4));
+    List<Store> result = new ArrayList<Store>(families.size());
+    if (threads <= 1) {
+      for (HColumnDescriptor c: families) {
+        result.add(instantiateHStore(this.basedir, c, oldLogFile, reporter));
+      }
+      return result;
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(threads,
+      Threads.newDaemonThreadFactory("StoreOpener-" +
+        this.regionInfo.getEncodedName()));
+    try {
+      List<Future<Store>> futures = new ArrayList<Future<Store>>();
+      for (final HColumnDescriptor c: families) {
+        futures.add(pool.submit(new Callable<Store>() {
+          public Store call() throws IOException {
+            return instantiateHStore(basedir, c, oldLogFile, reporter);
+          }
+        }));
+      }
+      IOException failure = null;
+      for (Future<Store> f: futures) {
+        try {
+          result.add(Threads.get(f, "opening " + this));
+        } catch (IOException e) {
+          if (failure == null) {
+            failure = e;
+          }
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    return result;
+  }
+
   protected Store instantiateHStore(Path baseDir, 
     HColumnDescriptor c, Path oldLogFile, Progressable reporter)
   throws IOException {
@@ -1875,19 +2146,7 @@ public class HRegion implements HConstants {
       if (this.closed.get()) {
         throw new NotServingRegionException("Region " + this + " closed");
       }
-      Integer key = Bytes.mapKey(row);
-      synchronized (locksToRows) {
-        while (locksToRows.containsKey(key)) {
-          try {
-            locksToRows.wait();
-          } catch (InterruptedException ie) {
-            // Empty
-          }
-        }
-        locksToRows.put(key, row);
-        locksToRows.notifyAll();
-        return key;
-      }
+      return this.rowLocks.lock(row);
     } finally {
       splitsAndClosesLock.readLock().unlock();
     }
@@ -1899,18 +2158,15 @@ public class HRegion implements HConstants {
    * @return Row that goes with <code>lockid</code>
    */
   byte [] getRowFromLock(final Integer lockid) {
-    return locksToRows.get(lockid);
+    return this.rowLocks.getRow(lockid);
   }
   
   /** 
    * Release the row lock!
-   * @param row Name of row whose lock we are to release
+   * @param lockid The lock ID to release.
    */
   void releaseRowLock(final Integer lockid) {
-    synchronized (locksToRows) {
-      locksToRows.remove(lockid);
-      locksToRows.notifyAll();
-    }
+    this.rowLocks.release(lockid);
   }
   
   /**
@@ -1919,12 +2175,21 @@ public class HRegion implements HConstants {
    * @return boolean
    */
   private boolean isRowLocked(final Integer lockid) {
-    synchronized (locksToRows) {
-      if(locksToRows.containsKey(lockid)) {
-        return true;
-      }
-      return false;
-    }
+    return this.rowLocks.isLocked(lockid);
+  }
+
+  /**
+   * @return Row lock requests that had to wait since last asked.
+   */
+  int getAndResetRowLockContention() {
+    return this.rowLocks.getAndResetContendedCount();
+  }
+
+  /**
+   * @return Milliseconds spent waiting on row locks since last asked.
+   */
+  long getAndResetRowLockWaitTime() {
+    return this.rowLocks.getAndResetWaitTime();
   }
   
   /**
@@ -1948,16 +2213,7 @@ public class HRegion implements HConstants {
   }
   
   private void waitOnRowLocks() {
-    synchronized (locksToRows) {
-      while (this.locksToRows.size() > 0) {
-        LOG.debug("waiting for " + this.locksToRows.size() + " row locks");
-        try {
-          this.locksToRows.wait();
-        } catch (InterruptedException e) {
-          // Catch. Let while test determine loop-end.
-        }
-      }
-    }
+    this.rowLocks.waitOnLocks();
   }
   
   @Override
@@ -2041,6 +2297,7 @@ public class HRegion implements HConstants {
     @SuppressWarnings("null")
     public boolean next(List<KeyValue> results)
     throws IOException {
+      requestsCount.incrementAndGet();
       boolean moreToFollow = false;
       boolean filtered = false;
       do {
@@ -2610,96 +2867,183 @@ public class HRegion implements HConstants {
     }
   }
 
+  /**
+   * Increment a counter.
+   * @param row
+   * @param column
+   * @param amount
+   * @return New value of the counter.
+   * @throws IOException
+   */
   public long incrementColumnValue(byte[] row, byte[] column, long amount)
   throws IOException {
-    checkRow(row);
-    checkColumn(column);
-    
-    Integer lid = obtainRowLock(row);
+    return incrementColumnValues(new byte [][] {row}, new byte [][] {column},
+      new long [] {amount})[0];
+  }
+
+  /**
+   * Increment many counters at once.  The row locks are taken in row order
+   * and all new values go to the log in one append.  Current values of
+   * recently incremented counters are kept in memory so they need not be
+   * read from the Store.  Increments are applied up to the first whose row
+   * is not in this region.
+   * @param rows Row of each counter.
+   * @param columns Column of each counter.
+   * @param amounts Amount to add to each counter.
+   * @return New value of each counter incremented; shorter than
+   * <code>rows</code> if some rows are not in this region.
+   * @throws IOException
+   */
+  public long [] incrementColumnValues(final byte [][] rows,
+      final byte [][] columns, final long [] amounts)
+  throws IOException {
+    if (rows.length != columns.length || rows.length != amounts.length) {
+      throw new DoNotRetryIOException("Need a column and amount per row");
+    }
+    this.requestsCount.addAndGet(rows.length);
+    int count = 0;
+    while (count < rows.length &&
+        rowIsInRange(this.regionInfo, rows[count])) {
+      checkColumn(columns[count]);
+      count++;
+    }
+    if (count == 0) {
+      if (rows.length > 0) {
+        checkRow(rows[0]);
+      }
+      return new long[0];
+    }
+    checkReadOnly();
+    checkResources();
+    long [] results = new long[count];
     splitsAndClosesLock.readLock().lock();
     try {
-      KeyValue kv = new KeyValue(row, column);
-      long ts = System.currentTimeMillis();
-      byte [] value = null;
-
-      Store store = getStore(column);
-
-      List<KeyValue> c;
-      // Try the memcache first.
-      store.lock.readLock().lock();
+      if (this.closed.get()) {
+        throw new NotServingRegionException("Region " + this + " closed");
+      }
+      SortedMap<byte [], Integer> acquired =
+        new TreeMap<byte [], Integer>(Bytes.BYTES_COMPARATOR);
+      for (int i = 0; i < count; i++) {
+        acquired.put(rows[i], null);
+      }
       try {
-        c = store.memcache.get(kv, 1);
+        for (Map.Entry<byte [], Integer> e: acquired.entrySet()) {
+          e.setValue(this.rowLocks.lock(e.getKey()));
+        }
+        List<KeyValue> edits = new ArrayList<KeyValue>(count);
+        long [] oldTimestamps = new long[count];
+        // Counters already incremented by this call.  The CounterCache may
+        // not hold them, being disabled or having evicted them, and the
+        // Store does not see them until upsert below.
+        Map<byte [], Map<byte [], CounterCache.CachedCounter>> batch =
+          new TreeMap<byte [], Map<byte [], CounterCache.CachedCounter>>(
+            Bytes.BYTES_COMPARATOR);
+        boolean applied = false;
+        try {
+          for (int i = 0; i < count; i++) {
+            long value = 0;
+            long ts = -1;
+            Map<byte [], CounterCache.CachedCounter> batchRow =
+              batch.get(rows[i]);
+            if (batchRow == null) {
+              batchRow = new TreeMap<byte [], CounterCache.CachedCounter>(
+                Bytes.BYTES_COMPARATOR);
+              batch.put(rows[i], batchRow);
+            }
+            CounterCache.CachedCounter c = batchRow.get(columns[i]);
+            if (c == null) {
+              c = this.counters.get(rows[i], columns[i]);
+            }
+            if (c != null) {
+              value = c.value;
+              ts = c.timestamp;
+            } else {
+              List<KeyValue> current =
+                getStore(columns[i]).get(new KeyValue(rows[i], columns[i]), 1);
+              if (current != null && !current.isEmpty()) {
+                value = toLong(current.get(0).getValue());
+                ts = current.get(0).getTimestamp();
+              }
+            }
+            value += amounts[i];
+            // Each version of the counter needs its own timestamp.
+            long newTs = Math.max(System.currentTimeMillis(), ts + 1);
+            edits.add(new KeyValue(rows[i], columns[i], newTs,
+              Bytes.toBytes(value)));
+            oldTimestamps[i] = ts;
+            batchRow.put(columns[i],
+              new CounterCache.CachedCounter(value, newTs));
+            this.counters.put(rows[i], columns[i], value, newTs);
+            results[i] = value;
+          }
+          upsert(edits, oldTimestamps);
+          applied = true;
+        } finally {
+          if (!applied) {
+            for (byte [] row: acquired.keySet()) {
+              this.counters.invalidate(row);
+            }
+          }
+        }
       } finally {
-        store.lock.readLock().unlock();
-      }
-      // Pick the latest value out of List<Cell> c:
-      if (c.size() >= 1) {
-        // Use the memcache timestamp value.
-        LOG.debug("Overwriting the memcache value for " + Bytes.toString(row) +
-          "/" + Bytes.toString(column));
-        ts = c.get(0).getTimestamp();
-        value = c.get(0).getValue();
-      }
-
-      if (value == null) {
-        // Check the store (including disk) for the previous value.
-        c = store.get(kv, 1);
-        if (c != null && c.size() == 1) {
-          LOG.debug("Using HFile previous value for " + Bytes.toString(row) +
-            "/" + Bytes.toString(column));
-          value = c.get(0).getValue();
-        } else if (c != null && c.size() > 1) {
-          throw new DoNotRetryIOException("more than 1 value returned in " +
-            "incrementColumnValue from Store");
+        for (Integer lid: acquired.values()) {
+          if (lid != null) {
+            releaseRowLock(lid);
+          }
         }
       }
-      
-      if (value == null) {
-        // Doesn't exist
-        LOG.debug("Creating new counter value for " + Bytes.toString(row) +
-          "/"+ Bytes.toString(column));
-        value = Bytes.toBytes(amount);
-      } else {
-        value = incrementBytes(value, amount);
-      }
-
-      BatchUpdate b = new BatchUpdate(row, ts);
-      b.put(column, value);
-      batchUpdate(b, lid, true);
-      return Bytes.toLong(value);
     } finally {
       splitsAndClosesLock.readLock().unlock();
-      releaseRowLock(lid);
     }
+    return results;
   }
 
-  private byte [] incrementBytes(byte[] value, long amount) throws IOException {
-    // Hopefully this doesn't happen too often.
-    if (value.length < Bytes.SIZEOF_LONG) {
-      byte [] newvalue = new byte[Bytes.SIZEOF_LONG];
-      System.arraycopy(value, 0, newvalue, newvalue.length - value.length,
-        value.length);
-      value = newvalue;
-    } else if (value.length > Bytes.SIZEOF_LONG) {
+  /*
+   * Add new versions of cells first to the hlog, in one append, and then to
+   * the memcache, dropping the versions they replace from the memcache.
+   * Warning: Assumption is caller has lock on passed in rows.
+   * @param edits
+   * @param oldTimestamps Timestamp of the version each edit replaces.
+   * @throws IOException
+   */
+  private void upsert(final List<KeyValue> edits, final long [] oldTimestamps)
+  throws IOException {
+    boolean flush = false;
+    this.updatesLock.readLock().lock();
+    try {
+      this.log.append(regionInfo.getRegionName(),
+        regionInfo.getTableDesc().getName(), edits,
+        (regionInfo.isMetaRegion() || regionInfo.isRootRegion()));
+      long size = 0;
+      for (int i = 0; i < edits.size(); i++) {
+        KeyValue kv = edits.get(i);
+        size = this.memcacheSize.addAndGet(
+          getStore(kv.getColumn()).upsert(kv, oldTimestamps[i]));
+      }
+      flush = isFlushSize(size);
+    } finally {
+      this.updatesLock.readLock().unlock();
+    }
+    if (flush) {
+      // Request a cache flush.  Do it outside update lock.
+      requestFlush();
+    }
+  }
+
+  /*
+   * @param value Counter value; may be shorter than a long.
+   * @return Value as a long.
+   * @throws IOException If <code>value</code> is longer than a long.
+   */
+  private long toLong(final byte [] value) throws IOException {
+    if (value.length > Bytes.SIZEOF_LONG) {
       throw new DoNotRetryIOException("Increment Bytes - value too big: " +
         value.length);
     }
-    return binaryIncrement(value, amount);
+    long l = 0;
+    for (int i = 0; i < value.length; i++) {
+      l = (l << 8) | (value[i] & 0xff);
+    }
+    return l;
   }
-  
-  private byte [] binaryIncrement(byte [] value, long amount) {
-    for(int i=0;i<value.length;i++) {
-      int cur = (int)(amount >> (8 * i)) % 256;
-      int val = value[value.length-i-1] & 0xff;
-      int total = cur + val;
-      if(total > 255) {
-        amount += ((long)256 << (8 * i));
-        total %= 256;
-      }
-      value[value.length-i-1] = (byte)total;
-      amount = (amount >> (8 * (i + 1))) << (8 * (i + 1));
-      if(amount == 0) return value;
-    }
-    return value;
-  }
-}
\ No newline at end of file
+}
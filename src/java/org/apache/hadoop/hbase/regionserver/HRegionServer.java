@@ -32,6 +32,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -47,6 +48,8 @@ import java.util.TreeSet;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -85,6 +88,8 @@ import org.apache.hadoop.hbase.io.BatchUpdate;
 import org.apache.hadoop.hbase.io.Cell;
 import org.apache.hadoop.hbase.io.HbaseMapWritable;
 import org.apache.hadoop.hbase.io.RowResult;
+import org.apache.hadoop.hbase.io.hfile.BlockCache;
+import org.apache.hadoop.hbase.io.hfile.LruBlockCache;
 import org.apache.hadoop.hbase.ipc.HBaseRPC;
 import org.apache.hadoop.hbase.ipc.HBaseRPCErrorHandler;
 import org.apache.hadoop.hbase.ipc.HBaseRPCProtocolVersion;
@@ -153,6 +158,22 @@ public class HRegionServer implements HConstants, HRegionInterface,
   private final List<HMsg> outboundMsgs =
     Collections.synchronizedList(new ArrayList<HMsg>());
 
+  // Opens user regions so that one slow open does not hold up the rest.
+  private final ThreadPoolExecutor regionOpeners;
+
+  // Warms the block cache for newly opened regions, if asked to.
+  private final ThreadPoolExecutor prefetcher;
+  private final int prefetchBlocks;
+
+  // Regions being opened, by key, so a repeated open request is dropped.
+  // Guarded by lock, as are closes asked for while the region was opening.
+  private final Map<Integer, HRegionInfo> regionsOpening =
+    new HashMap<Integer, HRegionInfo>();
+  // Regions to close as soon as their open is done, by key, with whether to
+  // report the close to the master.
+  private final Map<Integer, Boolean> closesWhileOpening =
+    new HashMap<Integer, Boolean>();
+
   final int numRetries;
   protected final int threadWakeFrequency;
   private final int msgInterval;
@@ -275,13 +296,22 @@ public class HRegionServer implements HConstants, HRegionInterface,
       this.threadWakeFrequency * multiplier,  this.stopRequested);
 
     // Task thread to process requests from Master
+    int openers = Math.max(1,
+      conf.getInt("hbase.regionserver.thread.openregion", 3));
+    this.regionOpeners = new ThreadPoolExecutor(openers, openers,
+      60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+      Threads.newDaemonThreadFactory("regionOpener"));
+    this.prefetchBlocks = conf.getInt("hbase.hstore.prefetch.blocks", 0);
+    this.prefetcher = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<Runnable>(),
+      Threads.newDaemonThreadFactory("prefetcher"));
     this.worker = new Worker();
     this.workerThread = new Thread(worker);
 
     // Server to handle client requests
     this.server = HBaseRPC.getServer(this, address.getBindAddress(), 
       address.getPort(), conf.getInt("hbase.regionserver.handler.count", 10),
-      false, conf);
+      conf.getInt("hbase.regionserver.metahandler.count", 3), false, conf);
     this.server.setErrorHandler(this);
     // Address is givin a default IP for the moment. Will be changed after
     // calling the master.
@@ -388,7 +418,7 @@ public class HRegionServer implements HConstants, HRegionInterface,
               (int)(memory.getUsed()/1024/1024),
               (int)(memory.getMax()/1024/1024));
             for (HRegion r: onlineRegions.values()) {
-              hsl.addRegionInfo(createRegionLoad(r));
+              hsl.addRegionInfo(createRegionLoad(r, true));
             }
             this.serverInfo.setLoad(hsl);
             this.requestCount.set(0);
@@ -518,6 +548,10 @@ public class HRegionServer implements HConstants, HRegionInterface,
     RegionHistorian.getInstance().offline();
     this.leases.closeAfterLeasesExpire();
     this.worker.stop();
+    stopRegionOpeners();
+    // Prefetches only warm the cache; drop them.
+    this.prefetcher.getQueue().clear();
+    this.prefetcher.shutdown();
     this.server.stop();
     if (this.infoServer != null) {
       LOG.info("Stopping infoServer");
@@ -667,16 +701,21 @@ public class HRegionServer implements HConstants, HRegionInterface,
 
   /*
    * @param r Region to get RegionLoad for.
+   * @param reset True if the region's request count should be reset; only
+   * done when reporting to the master.
    * @return RegionLoad instance.
    * @throws IOException
    */
-  private HServerLoad.RegionLoad createRegionLoad(final HRegion r)
+  private HServerLoad.RegionLoad createRegionLoad(final HRegion r,
+      final boolean reset)
   throws IOException {
     byte[] name = r.getRegionName();
     int stores = 0;
     int storefiles = 0;
     int memcacheSizeMB = (int)(r.memcacheSize.get()/1024/1024);
     int storefileIndexSizeMB = 0;
+    int storefileSizeMB = (int)(r.getStorefilesSize()/1024/1024);
+    int requests = reset? r.requestsCount.getAndSet(0): r.requestsCount.get();
     synchronized (r.stores) {
       stores += r.stores.size();
       for (Store store: r.stores.values()) {
@@ -686,7 +725,7 @@ public class HRegionServer implements HConstants, HRegionInterface,
       }
     }
     return new HServerLoad.RegionLoad(name, stores, storefiles, memcacheSizeMB,
-      storefileIndexSizeMB);
+      storefileIndexSizeMB, storefileSizeMB, requests);
   }
  
   /**
@@ -696,7 +735,8 @@ public class HRegionServer implements HConstants, HRegionInterface,
    */
   public HServerLoad.RegionLoad createRegionLoad(final byte [] regionName)
   throws IOException {
-    return createRegionLoad(this.onlineRegions.get(Bytes.mapKey(regionName)));
+    return createRegionLoad(this.onlineRegions.get(Bytes.mapKey(regionName)),
+      false);
   }
 
   /*
@@ -983,10 +1023,14 @@ public class HRegionServer implements HConstants, HRegionInterface,
     int storefiles = 0;
     long memcacheSize = 0;
     long storefileIndexSize = 0;
+    int rowLockContention = 0;
+    long rowLockWaitTime = 0;
     synchronized (this.onlineRegions) {
       for (Map.Entry<Integer, HRegion> e: this.onlineRegions.entrySet()) {
         HRegion r = e.getValue();
         memcacheSize += r.memcacheSize.get();
+        rowLockContention += r.getAndResetRowLockContention();
+        rowLockWaitTime += r.getAndResetRowLockWaitTime();
         synchronized (r.stores) {
           stores += r.stores.size();
           for(Map.Entry<byte [], Store> ee: r.stores.entrySet()) {
@@ -1006,6 +1050,39 @@ public class HRegionServer implements HConstants, HRegionInterface,
     this.metrics.storefiles.set(storefiles);
     this.metrics.memcacheSizeMB.set((int)(memcacheSize/(1024*1024)));
     this.metrics.storefileIndexSizeMB.set((int)(storefileIndexSize/(1024*1024)));
+    this.metrics.rowLockContention.inc(rowLockContention);
+    this.metrics.rowLockWaitTime.set(rowLockContention == 0? 0:
+      (int)(rowLockWaitTime / rowLockContention));
+    this.metrics.compactionQueueSize.set(
+      this.compactSplitThread.getCompactionQueueSize());
+    long compactedBytes = this.compactSplitThread.getAndResetCompactedBytes();
+    long compactionTime = this.compactSplitThread.getAndResetCompactionTime();
+    this.metrics.compactionThroughputKB.set(compactionTime == 0? 0:
+      (int)(compactedBytes * 1000 / 1024 / compactionTime));
+    CompactionThrottle throttle = this.compactSplitThread.getThrottle();
+    this.metrics.compactionIOKB.inc(
+      (int)(throttle.getAndResetCompactionBytes() / 1024));
+    this.metrics.compactionThrottledTime.set(
+      (int)throttle.getAndResetThrottledTime());
+    this.metrics.compactionLimitKB.set((int)(throttle.getLimit() / 1024));
+    HLog hlog = this.log;
+    if (hlog != null) {
+      int syncs = hlog.getAndResetSyncCount();
+      int edits = hlog.getAndResetSyncedEditCount();
+      this.metrics.hlogSyncs.inc(syncs);
+      this.metrics.hlogEditsPerSync.set(syncs == 0? 0: edits / syncs);
+    }
+    BlockCache blockCache = StoreFile.getBlockCache(conf);
+    if (blockCache instanceof LruBlockCache) {
+      LruBlockCache lruBlockCache = (LruBlockCache)blockCache;
+      this.metrics.blockCacheSizeMB.set(
+        (int)(lruBlockCache.getCurrentSize()/(1024*1024)));
+      this.metrics.blockCacheFreeMB.set(
+        (int)(lruBlockCache.getFreeSize()/(1024*1024)));
+      this.metrics.blockCacheCount.set((int)lruBlockCache.size());
+      this.metrics.blockCacheHitRatio.set(
+        (int)(lruBlockCache.getStats().getHitRatio() * 100));
+    }
   }
 
   /**
@@ -1043,6 +1120,11 @@ public class HRegionServer implements HConstants, HRegionInterface,
       handler);
     Threads.setDaemonThreadRunning(this.compactSplitThread, n + ".compactor",
         handler);
+    // Pool threads are made on demand; name them after this server too.
+    this.regionOpeners.setThreadFactory(
+      Threads.newDaemonThreadFactory(n + ".regionOpener"));
+    this.prefetcher.setThreadFactory(
+      Threads.newDaemonThreadFactory(n + ".prefetcher"));
     Threads.setDaemonThreadRunning(this.workerThread, n + ".worker", handler);
     Threads.setDaemonThreadRunning(this.majorCompactionChecker,
         n + ".majorCompactionChecker", handler);
@@ -1323,7 +1405,25 @@ public class HRegionServer implements HConstants, HRegionInterface,
                   break;
                 }
               }
-              openRegion(info);
+              if (info.isMetaRegion()) {
+                // User region opens may need the catalog regions, so open
+                // these here, ahead of any queued opens.
+                openRegion(info);
+              } else if (startOpening(info)) {
+                // Marked as opening here, not when a pool thread gets to it,
+                // so a close that comes in meanwhile is not lost.
+                final HRegionInfo toOpen = info;
+                try {
+                  regionOpeners.execute(new Runnable() {
+                    public void run() {
+                      doOpenRegion(toOpen);
+                    }
+                  });
+                } catch (RejectedExecutionException ex) {
+                  endOpening(info);
+                  throw ex;
+                }
+              }
               break;
 
             case MSG_REGION_CLOSE:
@@ -1399,37 +1499,187 @@ public class HRegionServer implements HConstants, HRegionInterface,
   }
   
   void openRegion(final HRegionInfo regionInfo) {
+    if (startOpening(regionInfo)) {
+      doOpenRegion(regionInfo);
+    }
+  }
+
+  /*
+   * Mark a region as being opened.
+   * @param regionInfo
+   * @return False if the region is already being opened.
+   */
+  private boolean startOpening(final HRegionInfo regionInfo) {
+    Integer mapKey = Bytes.mapKey(regionInfo.getRegionName());
+    this.lock.writeLock().lock();
+    try {
+      if (this.regionsOpening.containsKey(mapKey)) {
+        LOG.info("Already opening " + regionInfo.getRegionNameAsString());
+        return false;
+      }
+      this.regionsOpening.put(mapKey, regionInfo);
+      return true;
+    } finally {
+      this.lock.writeLock().unlock();
+    }
+  }
+
+  /*
+   * Unmark a region as being opened, dropping any close asked for meanwhile.
+   * @param regionInfo
+   */
+  private void endOpening(final HRegionInfo regionInfo) {
+    Integer mapKey = Bytes.mapKey(regionInfo.getRegionName());
+    this.lock.writeLock().lock();
+    try {
+      this.regionsOpening.remove(mapKey);
+      this.closesWhileOpening.remove(mapKey);
+    } finally {
+      this.lock.writeLock().unlock();
+    }
+  }
+
+  /*
+   * Open a region already marked as being opened by startOpening.  If a
+   * close is asked for while it opens, the region is closed when the open
+   * is done instead of being put online.
+   * @param regionInfo
+   */
+  private void doOpenRegion(final HRegionInfo regionInfo) {
     // If historian is not online and this is not a meta region, online it.
     if (!regionInfo.isMetaRegion() &&
         !RegionHistorian.getInstance().isOnline()) {
       RegionHistorian.getInstance().online(this.conf);
     }
     Integer mapKey = Bytes.mapKey(regionInfo.getRegionName());
-    HRegion region = this.onlineRegions.get(mapKey);
-    if (region == null) {
+    try {
+      HRegion region = this.onlineRegions.get(mapKey);
+      if (region == null) {
+        if (closeOpened(regionInfo, null)) {
+          return;
+        }
+        try {
+          region = instantiateRegion(regionInfo);
+          // Startup a compaction early if one is needed.
+          this.compactSplitThread.
+            compactionRequested(region, "Region open check");
+        } catch (Throwable e) {
+          Throwable t = cleanup(e,
+            "Error opening " + regionInfo.getRegionNameAsString());
+          // TODO: add an extra field in HRegionInfo to indicate that there is
+          // an error. We can't do that now because that would be an
+          // incompatible change that would require a migration
+          reportClose(regionInfo,
+            StringUtils.stringifyException(t).getBytes());
+          return;
+        }
+        boolean online = false;
+        this.lock.writeLock().lock();
+        try {
+          this.log.setSequenceNumber(region.getMinSequenceId());
+          if (!this.closesWhileOpening.containsKey(mapKey)) {
+            this.onlineRegions.put(mapKey, region);
+            // Reported under the lock so the report of a close that comes
+            // right after cannot go out ahead of it.
+            reportOpen(regionInfo);
+            online = true;
+          }
+        } finally {
+          this.lock.writeLock().unlock();
+        }
+        if (!online) {
+          closeOpened(regionInfo, region);
+          return;
+        }
+        prefetch(region);
+      } else {
+        reportOpen(regionInfo);
+      }
+    } finally {
+      endOpening(regionInfo);
+    }
+  }
+
+  /*
+   * Close a region whose close was asked for while it was being opened.
+   * @param regionInfo
+   * @param region The opened region or null if not yet opened.
+   * @return True if a close was asked for, in which case the region is
+   * closed and not online.
+   */
+  private boolean closeOpened(final HRegionInfo regionInfo,
+      final HRegion region) {
+    Boolean report = null;
+    this.lock.writeLock().lock();
+    try {
+      report = this.closesWhileOpening.remove(Bytes.mapKey(
+        regionInfo.getRegionName()));
+    } finally {
+      this.lock.writeLock().unlock();
+    }
+    if (report == null) {
+      return false;
+    }
+    LOG.info("Closing " + regionInfo.getRegionNameAsString() +
+      "; close asked for while opening");
+    if (region != null) {
       try {
-        region = instantiateRegion(regionInfo);
-        // Startup a compaction early if one is needed.
-        this.compactSplitThread.
-          compactionRequested(region, "Region open check");
+        region.close();
       } catch (Throwable e) {
-        Throwable t = cleanup(e,
-          "Error opening " + regionInfo.getRegionNameAsString());
-        // TODO: add an extra field in HRegionInfo to indicate that there is
-        // an error. We can't do that now because that would be an incompatible
-        // change that would require a migration
-        reportClose(regionInfo, StringUtils.stringifyException(t).getBytes());
-        return;
+        cleanup(e, "Error closing " + regionInfo.getRegionNameAsString());
       }
-      this.lock.writeLock().lock();
+    }
+    if (report.booleanValue()) {
+      reportClose(regionInfo);
+    }
+    return true;
+  }
+
+  /*
+   * Queue a read of the first hbase.hstore.prefetch.blocks blocks of each
+   * of the region's store files into the block cache.
+   * @param region
+   */
+  private void prefetch(final HRegion region) {
+    if (this.prefetchBlocks <= 0) {
+      return;
+    }
+    try {
+      this.prefetcher.execute(new Runnable() {
+        public void run() {
+          try {
+            long start = System.currentTimeMillis();
+            int count = region.prefetchStoreFiles(prefetchBlocks);
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("Prefetched " + count + " block(s) of " + region +
+                " in " + (System.currentTimeMillis() - start) + "ms");
+            }
+          } catch (Exception e) {
+            // The region may have closed under us.
+            LOG.debug("Prefetch of " + region + " failed", e);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // Shutting down.
+    }
+  }
+
+  /*
+   * Drop queued region opens and wait on those under way so that none
+   * comes online after we close all regions.
+   */
+  private void stopRegionOpeners() {
+    this.regionOpeners.getQueue().clear();
+    this.regionOpeners.shutdown();
+    while (!this.regionOpeners.isTerminated()) {
       try {
-        this.log.setSequenceNumber(region.getMinSequenceId());
-        this.onlineRegions.put(mapKey, region);
-      } finally {
-        this.lock.writeLock().unlock();
+        this.regionOpeners.awaitTermination(this.threadWakeFrequency,
+          TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        // Keep waiting.
       }
     }
-    reportOpen(regionInfo); 
   }
   
   protected HRegion instantiateRegion(final HRegionInfo regionInfo)
@@ -1458,7 +1708,19 @@ public class HRegionServer implements HConstants, HRegionInterface,
 
   void closeRegion(final HRegionInfo hri, final boolean reportWhenCompleted)
   throws IOException {
-    HRegion region = this.removeFromOnlineRegions(hri);
+    HRegion region = null;
+    this.lock.writeLock().lock();
+    try {
+      region = this.removeFromOnlineRegions(hri);
+      Integer mapKey = Bytes.mapKey(hri.getRegionName());
+      if (region == null && this.regionsOpening.containsKey(mapKey)) {
+        // Have the open close the region once done.
+        this.closesWhileOpening.put(mapKey,
+          Boolean.valueOf(reportWhenCompleted));
+      }
+    } finally {
+      this.lock.writeLock().unlock();
+    }
     if (region != null) {
       region.close();
       if(reportWhenCompleted) {
@@ -1531,6 +1793,12 @@ public class HRegionServer implements HConstants, HRegionInterface,
           }
         }
       }
+      // User regions still opening are closed once opened, unreported.
+      for (Map.Entry<Integer, HRegionInfo> e: regionsOpening.entrySet()) {
+        if (!e.getValue().isMetaRegion()) {
+          this.closesWhileOpening.put(e.getKey(), Boolean.FALSE);
+        }
+      }
     } finally {
       this.lock.writeLock().unlock();
     }
@@ -1676,25 +1944,25 @@ public class HRegionServer implements HConstants, HRegionInterface,
   
   public int batchUpdates(final byte[] regionName, final BatchUpdate[] b)
   throws IOException {
-    int i = 0;
     checkOpen();
     try {
       HRegion region = getRegion(regionName);
       this.cacheFlusher.reclaimMemcacheMemory();
       Integer[] locks = new Integer[b.length];
-      for (i = 0; i < b.length; i++) {
-        this.requestCount.incrementAndGet();
+      for (int i = 0; i < b.length; i++) {
         locks[i] = getLockFromId(b[i].getRowLock());
-        region.batchUpdate(b[i], locks[i]);
       }
+      this.requestCount.addAndGet(b.length);
+      // Applies the rows in this region and hands back where it stopped.
+      return region.batchUpdate(b, locks);
     } catch(WrongRegionException ex) {
-      return i;
+      // Nothing was applied.
+      return 0;
     } catch (NotServingRegionException ex) {
-      return i;
+      return 0;
     } catch (Throwable t) {
       throw convertThrowableToIOE(cleanup(t));
     }
-    return -1;
   }
   
   public boolean checkAndSave(final byte [] regionName, final BatchUpdate b,
@@ -2336,4 +2604,22 @@ public class HRegionServer implements HConstants, HRegionInterface,
     
     
   }
+
+  public long [] incrementColumnValues(byte [] regionName, byte [][] rows,
+      byte [][] columns, long [] amounts) throws IOException {
+    checkOpen();
+    if (regionName == null || rows == null || columns == null ||
+        amounts == null) {
+      throw new IOException("Invalid arguments to incrementColumnValues",
+        new NullPointerException("regionName, rows, columns or amounts null"));
+    }
+    requestCount.addAndGet(rows.length);
+    try {
+      HRegion region = getRegion(regionName);
+      return region.incrementColumnValues(rows, columns, amounts);
+    } catch (IOException e) {
+      checkFileSystem();
+      throw e;
+    }
+  }
 }
@@ -23,6 +23,8 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.apache.hadoop.hbase.io.HeapSize;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.ClassSize;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -62,8 +64,9 @@ implements HeapSize, Map<K,V> {
   private static final float DEFAULT_LOAD_FACTOR = 0.75f;
   
   /** Memory overhead of this Object (for HeapSize) */
-  private static final int OVERHEAD = 5 * HeapSize.LONG + 2 * HeapSize.INT +
-    2 * HeapSize.FLOAT + 3 * HeapSize.REFERENCE + 1 * HeapSize.ARRAY;
+  private static final int OVERHEAD = (int)ClassSize.align(ClassSize.OBJECT +
+    4 * Bytes.SIZEOF_LONG + 2 * Bytes.SIZEOF_INT + Bytes.SIZEOF_FLOAT +
+    3 * ClassSize.REFERENCE) + ClassSize.ARRAY;
   
   /** Load factor allowed (usually 75%) */
   private final float loadFactor;
@@ -114,7 +117,7 @@ implements HeapSize, Map<K,V> {
     if (loadFactor <= 0 || Float.isNaN(loadFactor)) {
       throw new IllegalArgumentException("Load factor must be > 0");
     }
-    if (maxMemUsage <= (OVERHEAD + initialCapacity * HeapSize.REFERENCE)) {
+    if (maxMemUsage <= (OVERHEAD + initialCapacity * ClassSize.REFERENCE)) {
       throw new IllegalArgumentException("Max memory usage too small to " +
       "support base overhead");
     }
@@ -467,7 +470,7 @@ implements HeapSize, Map<K,V> {
    * @return baseline memory overhead of object in bytes
    */
   private long getMinimumUsage() {
-    return OVERHEAD + (entries.length * HeapSize.REFERENCE);
+    return OVERHEAD + (entries.length * ClassSize.REFERENCE);
   }
   
   //--------------------------------------------------------------------------
@@ -688,7 +691,7 @@ implements HeapSize, Map<K,V> {
     }
 
     // Determine how much additional space will be required to grow the array
-    long requiredSpace = (newCapacity - oldCapacity) * HeapSize.REFERENCE;
+    long requiredSpace = (newCapacity - oldCapacity) * ClassSize.REFERENCE;
     
     // Verify/enforce we have sufficient memory to grow
     checkAndFreeMemory(requiredSpace);
@@ -797,7 +800,7 @@ implements HeapSize, Map<K,V> {
    */
   private void init() {
     memFree -= OVERHEAD;
-    memFree -= (entries.length * HeapSize.REFERENCE);
+    memFree -= (entries.length * ClassSize.REFERENCE);
   }
   
   //--------------------------------------------------------------------------
@@ -922,8 +925,8 @@ implements HeapSize, Map<K,V> {
   protected static class Entry<K extends HeapSize, V extends HeapSize>
   implements Map.Entry<K,V>, HeapSize {
     /** The baseline overhead memory usage of this class */
-    static final int OVERHEAD = 1 * HeapSize.LONG + 5 * HeapSize.REFERENCE + 
-      2 * HeapSize.INT;
+    static final int OVERHEAD = (int)ClassSize.align(ClassSize.OBJECT +
+      Bytes.SIZEOF_LONG + 5 * ClassSize.REFERENCE + Bytes.SIZEOF_INT);
     
     /** The key */
     protected final K key;
@@ -40,10 +40,12 @@ import java.util.regex.Pattern;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.regionserver.HRegion.Counter;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.ClassSize;
 
 /**
  * The Memcache holds in-memory modifications to the HRegion.  Modifications
@@ -51,6 +53,10 @@ import org.apache.hadoop.hbase.util.Bytes;
  * to snapshot and is cleared.  We continue to serve edits out of new memcache
  * and backing snapshot until flusher reports in that the flush succeeded. At
  * this point we let the snapshot go.
+ * <p>
+ * If given a configuration, the memcache copies the edits it is given into
+ * large chunks (see {@link MemcacheLAB}) so that a flush frees whole chunks
+ * rather than many small arrays scattered about the old generation.
  * TODO: Adjust size of the memcache when we remove items because they have
  * been deleted.
  */
@@ -72,6 +78,13 @@ class Memcache {
 
   private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 
+  // Used to make a new allocator each time we snapshot.  Null if we don't
+  // copy edits.
+  private final Configuration conf;
+
+  // Allocator for the current memcache.  Null if we don't copy edits.
+  private volatile MemcacheLAB allocator;
+
   final KeyValue.KVComparator comparator;
 
   // Used comparing versions -- same r/c and ts but different type.
@@ -80,9 +93,6 @@ class Memcache {
   // Used comparing versions -- same r/c and type but different timestamp.
   final KeyValue.KVComparator comparatorIgnoreTimestamp;
 
-  // TODO: Fix this guess by studying jprofiler
-  private final static int ESTIMATED_KV_HEAP_TAX = 60;
-
   /**
    * Default constructor. Used for tests.
    */
@@ -96,7 +106,21 @@ class Memcache {
    * @param c
    */
   public Memcache(final long ttl, final KeyValue.KVComparator c) {
+    this(ttl, c, null);
+  }
+
+  /**
+   * Constructor.
+   * @param ttl The TTL for cache entries, in milliseconds.
+   * @param c
+   * @param conf Configuration for the allocation buffers edits are copied
+   * into.  If null, edits are not copied.
+   */
+  public Memcache(final long ttl, final KeyValue.KVComparator c,
+      final Configuration conf) {
     this.ttl = ttl;
+    this.conf = conf;
+    this.allocator = MemcacheLAB.create(conf);
     this.comparator = c;
     this.comparatorIgnoreTimestamp =
       this.comparator.getComparatorIgnoringTimestamps();
@@ -138,6 +162,10 @@ class Memcache {
         if (!this.memcache.isEmpty()) {
           this.snapshot = this.memcache;
           this.memcache = createSet(this.comparator);
+          // The chunks of the old allocator go with the snapshot.
+          if (this.allocator != null) {
+            this.allocator = MemcacheLAB.create(this.conf);
+          }
         }
       }
     } finally {
@@ -181,6 +209,36 @@ class Memcache {
     }
   }
 
+  /**
+   * Write a new version of a cell and drop the version it replaces, if that
+   * is still in the memcache, so that often rewritten cells such as counters
+   * keep only one version here.
+   * @param kv New version.
+   * @param oldTimestamp Timestamp of the version replaced.
+   * @return Approximate change in size.
+   */
+  long upsert(final KeyValue kv, final long oldTimestamp) {
+    long size = -1;
+    this.lock.readLock().lock();
+    try {
+      // Add before removing so readers always find one version.
+      boolean notpresent = this.memcache.add(copy(kv));
+      size = heapSize(kv, notpresent);
+      if (oldTimestamp != kv.getTimestamp()) {
+        KeyValue key = new KeyValue(kv.getRow(), kv.getColumn(), oldTimestamp,
+          KeyValue.Type.Put, HConstants.EMPTY_BYTE_ARRAY);
+        KeyValue old = this.memcache.ceiling(key);
+        if (old != null && this.comparator.compare(old, key) == 0 &&
+            this.memcache.remove(old)) {
+          size -= heapSize(old, true);
+        }
+      }
+    } finally {
+      this.lock.readLock().unlock();
+    }
+    return size;
+  }
+
   /**
    * Write an update
    * @param kv
@@ -190,7 +248,7 @@ class Memcache {
     long size = -1;
     this.lock.readLock().lock();
     try {
-      boolean notpresent = this.memcache.add(kv);
+      boolean notpresent = this.memcache.add(copy(kv));
       size = heapSize(kv, notpresent);
     } finally {
       this.lock.readLock().unlock();
@@ -198,19 +256,36 @@ class Memcache {
     return size;
   }
 
+  /*
+   * @param kv
+   * @return <code>kv</code> copied into the current allocation buffer, or
+   * <code>kv</code> itself if we don't copy edits.
+   */
+  private KeyValue copy(final KeyValue kv) {
+    MemcacheLAB a = this.allocator;
+    return a == null? kv: a.copy(kv);
+  }
+
   /*
    * Calculate how the memcache size has changed, approximately.  Be careful.
    * If class changes, be sure to change the size calculation.
-   * Add in tax of Map.Entry.
+   * Add in tax of the skip list entry.  A KeyValue copied into an allocation
+   * buffer is charged the bytes it takes there rather than an array of its
+   * own.
    * @param kv
    * @param notpresent True if the kv was NOT present in the set.
    * @return Size
    */
   long heapSize(final KeyValue kv, final boolean notpresent) {
-    return notpresent?
-      // Add overhead for value byte array and for Map.Entry -- 57 bytes
-      // on x64 according to jprofiler.
-      ESTIMATED_KV_HEAP_TAX + 57 + kv.getLength(): 0; // Guess no change in size.
+    if (!notpresent) {
+      return 0; // Guess no change in size.
+    }
+    long size = kv.heapSize() + ClassSize.CONCURRENT_SKIPLISTMAP_ENTRY;
+    MemcacheLAB a = this.allocator;
+    if (a != null && a.isCopied(kv)) {
+      size += kv.getLength() - ClassSize.sizeOfByteArray(kv.getLength());
+    }
+    return size;
   }
 
   /**
@@ -710,7 +785,8 @@ class Memcache {
    * Code to help figure if our approximation of object heap sizes is close
    * enough.  See hbase-900.  Fills memcaches then waits so user can heap
    * dump and bring up resultant hprof in something like jprofiler which
-   * allows you get 'deep size' on objects.
+   * allows you get 'deep size' on objects.  HeapSizeEvaluation, under
+   * src/test, compares our estimates with measured heap.
    * @param args
    * @throws InterruptedException
    * @throws IOException 
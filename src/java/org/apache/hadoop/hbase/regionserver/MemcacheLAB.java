@@ -0,0 +1,195 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.KeyValue;
+
+/**
+ * Memcache local allocation buffer.
+ * <p>
+ * The KeyValues of a BatchUpdate each come with their own small byte array.
+ * Kept in the memcache until the next flush, these arrays are promoted to
+ * the old generation and are then freed at the flush scattered among
+ * longer-lived objects, fragmenting the old generation until the collector
+ * can no longer find room to promote into and falls back on a full
+ * stop-the-world compaction.  To avoid this, the Memcache copies each
+ * KeyValue it is given into large chunks allocated here.  All KeyValues in a
+ * chunk belong to the same Memcache so are let go together when its
+ * snapshot is cleared, freeing whole chunks at a time.
+ * <p>
+ * Allocation is lock-free bump-the-pointer inside the current chunk; a new
+ * chunk is made when the current one fills.  KeyValues bigger than
+ * <code>hbase.hregion.memcache.mslab.max.allocation</code> are not copied
+ * since they would waste most of a chunk.  Make a new instance each time
+ * the memcache is snapshotted.
+ * <p>
+ * A KeyValue copied into a chunk is charged to the memcache size for the
+ * bytes it takes there, not for a whole chunk.  The unused tail of the
+ * current chunk, at most one chunk per memcache, goes uncounted so that
+ * many lightly written stores do not each look a chunk full.
+ */
+class MemcacheLAB {
+  static final String USE_MSLAB_KEY = "hbase.hregion.memcache.mslab.enabled";
+  static final boolean USE_MSLAB_DEFAULT = true;
+  static final String CHUNK_SIZE_KEY =
+    "hbase.hregion.memcache.mslab.chunksize";
+  static final int CHUNK_SIZE_DEFAULT = 2048 * 1024;
+  static final String MAX_ALLOC_KEY =
+    "hbase.hregion.memcache.mslab.max.allocation";
+  static final int MAX_ALLOC_DEFAULT = 256 * 1024;
+
+  private final AtomicReference<Chunk> curChunk =
+    new AtomicReference<Chunk>();
+  private final AtomicInteger chunkCount = new AtomicInteger(0);
+  private final int chunkSize;
+  private final int maxAlloc;
+
+  /**
+   * @param conf
+   */
+  MemcacheLAB(final Configuration conf) {
+    this(conf.getInt(CHUNK_SIZE_KEY, CHUNK_SIZE_DEFAULT),
+      conf.getInt(MAX_ALLOC_KEY, MAX_ALLOC_DEFAULT));
+  }
+
+  /**
+   * @param chunkSize Size of each chunk in bytes.
+   * @param maxAlloc Largest KeyValue to copy into a chunk.
+   */
+  MemcacheLAB(final int chunkSize, final int maxAlloc) {
+    if (maxAlloc > chunkSize) {
+      throw new IllegalArgumentException("Maximum allocation " + maxAlloc +
+        " is bigger than chunk size " + chunkSize);
+    }
+    this.chunkSize = chunkSize;
+    this.maxAlloc = maxAlloc;
+  }
+
+  /**
+   * @param conf
+   * @return A new allocator or null if allocation buffers are disabled.
+   */
+  static MemcacheLAB create(final Configuration conf) {
+    if (conf == null || !conf.getBoolean(USE_MSLAB_KEY, USE_MSLAB_DEFAULT)) {
+      return null;
+    }
+    return new MemcacheLAB(conf);
+  }
+
+  /**
+   * @param kv
+   * @return A copy of <code>kv</code> backed by a chunk, or <code>kv</code>
+   * itself if it is too big to copy.
+   */
+  KeyValue copy(final KeyValue kv) {
+    int length = kv.getLength();
+    if (length > this.maxAlloc) {
+      return kv;
+    }
+    while (true) {
+      Chunk c = getOrMakeChunk();
+      int offset = c.alloc(length);
+      if (offset >= 0) {
+        System.arraycopy(kv.getBuffer(), kv.getOffset(), c.data, offset,
+          length);
+        return new KeyValue(c.data, offset, length);
+      }
+      // Chunk is full.  Retire it so someone makes a new one; if another
+      // thread beat us to it, this does nothing.
+      this.curChunk.compareAndSet(c, null);
+    }
+  }
+
+  /**
+   * @return Number of chunks allocated so far.
+   */
+  int getChunkCount() {
+    return this.chunkCount.get();
+  }
+
+  /**
+   * @param kv
+   * @return True if <code>kv</code> is copied into a chunk by
+   * {@link #copy(KeyValue)}.
+   */
+  boolean isCopied(final KeyValue kv) {
+    return kv.getLength() <= this.maxAlloc;
+  }
+
+  /**
+   * @return Size of each chunk.
+   */
+  int getChunkSize() {
+    return this.chunkSize;
+  }
+
+  /*
+   * Chunks are made under the lock so concurrent writers that find no chunk
+   * do not each allocate one only to throw all but one away.
+   */
+  private Chunk getOrMakeChunk() {
+    Chunk c = this.curChunk.get();
+    if (c != null) {
+      return c;
+    }
+    synchronized (this) {
+      c = this.curChunk.get();
+      if (c == null) {
+        c = new Chunk(this.chunkSize);
+        this.curChunk.set(c);
+        this.chunkCount.incrementAndGet();
+      }
+      return c;
+    }
+  }
+
+  /*
+   * A chunk and how much of it is handed out.
+   */
+  private static class Chunk {
+    final byte [] data;
+    private final AtomicInteger nextFreeOffset = new AtomicInteger(0);
+
+    Chunk(final int size) {
+      this.data = new byte[size];
+    }
+
+    /*
+     * @param size
+     * @return Offset of <code>size</code> bytes reserved in this chunk or -1
+     * if not enough room is left.
+     */
+    int alloc(final int size) {
+      while (true) {
+        int old = this.nextFreeOffset.get();
+        if (old + size > this.data.length) {
+          return -1;
+        }
+        if (this.nextFreeOffset.compareAndSet(old, old + size)) {
+          return old;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+
+/**
+ * The original selection rule: skip the oldest file while it is more than
+ * twice the size of the next oldest, or while there are more than
+ * <code>hbase.hstore.compaction.max</code> files left, and compact the rest.
+ */
+public class NextFileCompactionPolicy extends Configured
+implements CompactionPolicy {
+  private int maxFilesToCompact = 10;
+
+  @Override
+  public void setConf(final Configuration conf) {
+    super.setConf(conf);
+    if (conf != null) {
+      this.maxFilesToCompact = conf.getInt("hbase.hstore.compaction.max", 10);
+    }
+  }
+
+  public int select(final long [] fileSizes) {
+    int count = fileSizes.length;
+    int point = 0;
+    for (; point < count - 1; point++) {
+      if ((fileSizes[point] < fileSizes[point + 1] * 2) &&
+          (count - point) <= this.maxFilesToCompact) {
+        break;
+      }
+    }
+    return point;
+  }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import java.util.Calendar;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+
+/**
+ * Skips the oldest file while it is bigger than the newer files it would be
+ * compacted with, times <code>hbase.hstore.compaction.ratio</code>.  Files
+ * smaller than <code>hbase.hstore.compaction.min.size</code> are always
+ * taken.  No fewer than <code>hbase.hstore.compaction.min</code> and no more
+ * than <code>hbase.hstore.compaction.max</code> files are compacted.
+ * <p>
+ * Big old files thus stay put until enough new data has built up to be
+ * worth rewriting them for, rather than being rewritten by every
+ * compaction.  A lower ratio rewrites less but leaves more files to read.
+ * Between <code>hbase.offpeak.start.hour</code> and
+ * <code>hbase.offpeak.end.hour</code>, local time,
+ * <code>hbase.hstore.compaction.ratio.offpeak</code> is used instead, so
+ * that quiet hours can go on larger compactions.
+ */
+public class RatioCompactionPolicy extends Configured
+implements CompactionPolicy {
+  static final Log LOG = LogFactory.getLog(RatioCompactionPolicy.class);
+
+  private double ratio = 1.2;
+  private double offPeakRatio = 5.0;
+  private int offPeakStartHour = -1;
+  private int offPeakEndHour = -1;
+  private int minFilesToCompact = 3;
+  private int maxFilesToCompact = 10;
+  private long minCompactSize = 64 * 1024 * 1024;
+
+  @Override
+  public void setConf(final Configuration conf) {
+    super.setConf(conf);
+    if (conf == null) {
+      return;
+    }
+    this.ratio = conf.getFloat("hbase.hstore.compaction.ratio", 1.2f);
+    this.offPeakRatio =
+      conf.getFloat("hbase.hstore.compaction.ratio.offpeak", 5.0f);
+    this.offPeakStartHour = conf.getInt("hbase.offpeak.start.hour", -1);
+    this.offPeakEndHour = conf.getInt("hbase.offpeak.end.hour", -1);
+    if (!isValidHour(this.offPeakStartHour) ||
+        !isValidHour(this.offPeakEndHour)) {
+      if (this.offPeakStartHour != -1 || this.offPeakEndHour != -1) {
+        LOG.warn("Ignoring off-peak hours " + this.offPeakStartHour + " to " +
+          this.offPeakEndHour + "; both must be between 0 and 23");
+      }
+      this.offPeakStartHour = -1;
+      this.offPeakEndHour = -1;
+    }
+    // At least two files or there is nothing to compact.
+    this.minFilesToCompact = Math.max(2, conf.getInt(
+      "hbase.hstore.compaction.min",
+      conf.getInt("hbase.hstore.compactionThreshold", 3)));
+    this.maxFilesToCompact = Math.max(this.minFilesToCompact,
+      conf.getInt("hbase.hstore.compaction.max", 10));
+    this.minCompactSize = conf.getLong("hbase.hstore.compaction.min.size",
+      conf.getLong("hbase.hregion.memcache.flush.size", 64 * 1024 * 1024));
+  }
+
+  private static boolean isValidHour(final int hour) {
+    return hour >= 0 && hour <= 23;
+  }
+
+  public int select(final long [] fileSizes) {
+    return select(fileSizes,
+      getRatio(Calendar.getInstance().get(Calendar.HOUR_OF_DAY)));
+  }
+
+  /**
+   * @param fileSizes Sizes of the store's files, oldest first.
+   * @param r Ratio to use.
+   * @return Index of the oldest file to compact.
+   * @see CompactionPolicy#select(long[])
+   */
+  int select(final long [] fileSizes, final double r) {
+    int count = fileSizes.length;
+    int start = 0;
+    for (; count - start >= this.minFilesToCompact; start++) {
+      long newer = 0;
+      int end = Math.min(count, start + this.maxFilesToCompact);
+      for (int i = start + 1; i < end; i++) {
+        newer += fileSizes[i];
+      }
+      if (fileSizes[start] <= Math.max(this.minCompactSize, newer * r)) {
+        break;
+      }
+    }
+    if (count - start < this.minFilesToCompact) {
+      return count;
+    }
+    // Too many files; leave the oldest for next time.
+    return Math.max(start, count - this.maxFilesToCompact);
+  }
+
+  /**
+   * @param hour Hour of the day, 0 to 23.
+   * @return Ratio to use at <code>hour</code>.
+   */
+  double getRatio(final int hour) {
+    return isOffPeakHour(hour)? this.offPeakRatio: this.ratio;
+  }
+
+  /**
+   * @param hour Hour of the day, 0 to 23.
+   * @return True if <code>hour</code> is in the configured off-peak hours.
+   * The hours may span midnight.
+   */
+  boolean isOffPeakHour(final int hour) {
+    if (this.offPeakStartHour == this.offPeakEndHour) {
+      return false;
+    }
+    if (this.offPeakStartHour < this.offPeakEndHour) {
+      return hour >= this.offPeakStartHour && hour < this.offPeakEndHour;
+    }
+    return hour >= this.offPeakStartHour || hour < this.offPeakEndHour;
+  }
+}
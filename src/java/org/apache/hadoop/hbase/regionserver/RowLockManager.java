@@ -0,0 +1,200 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Row locks of a region.
+ * <p>
+ * Locks are keyed by the row itself so that rows whose hashes collide do not
+ * block each other.  Each locked row has its own latch; a writer waiting on a
+ * row waits on that row's latch only and is woken when that row, not any
+ * row, is released.  The maps are split into stripes, each with its own lock,
+ * so lock and release of different rows rarely contend.
+ * <p>
+ * A lock is handed out as an id unique within the region for as long as the
+ * lock is held, for callers that hold the lock across calls.
+ */
+class RowLockManager {
+  static final Log LOG = LogFactory.getLog(RowLockManager.class);
+
+  // Row to latch counted down on release.
+  private final ConcurrentMap<RowKey, CountDownLatch> lockedRows;
+  // Lock id to row.
+  private final ConcurrentMap<Integer, RowKey> lockIds;
+  private final AtomicInteger nextLockId = new AtomicInteger(0);
+
+  // Waits on a held lock and time spent waiting since last asked.
+  private final AtomicInteger contendedCount = new AtomicInteger(0);
+  private final AtomicLong waitTime = new AtomicLong(0);
+
+  /**
+   * @param stripes Number of stripes to split the lock maps into.
+   */
+  RowLockManager(final int stripes) {
+    this.lockedRows =
+      new ConcurrentHashMap<RowKey, CountDownLatch>(16, 0.75f, stripes);
+    this.lockIds = new ConcurrentHashMap<Integer, RowKey>(16, 0.75f, stripes);
+  }
+
+  /**
+   * Lock a row.  Blocks until the row is free.
+   * @param row
+   * @return Id of the held lock.
+   */
+  Integer lock(final byte [] row) {
+    RowKey key = new RowKey(row);
+    CountDownLatch latch = new CountDownLatch(1);
+    long start = -1;
+    while (true) {
+      CountDownLatch existing = this.lockedRows.putIfAbsent(key, latch);
+      if (existing == null) {
+        break;
+      }
+      if (start < 0) {
+        start = System.currentTimeMillis();
+        this.contendedCount.incrementAndGet();
+      }
+      try {
+        existing.await();
+      } catch (InterruptedException e) {
+        // Empty
+      }
+    }
+    if (start >= 0) {
+      this.waitTime.addAndGet(System.currentTimeMillis() - start);
+    }
+    while (true) {
+      Integer lockid = Integer.valueOf(this.nextLockId.incrementAndGet());
+      if (this.lockIds.putIfAbsent(lockid, key) == null) {
+        return lockid;
+      }
+    }
+  }
+
+  /**
+   * Release a lock.  Does nothing if <code>lockid</code> is not held.
+   * @param lockid
+   */
+  void release(final Integer lockid) {
+    RowKey key = this.lockIds.remove(lockid);
+    if (key == null) {
+      LOG.warn("Release of unknown row lock " + lockid);
+      return;
+    }
+    CountDownLatch latch = this.lockedRows.remove(key);
+    if (latch != null) {
+      latch.countDown();
+    }
+  }
+
+  /**
+   * @param lockid
+   * @return Row held by <code>lockid</code> or null if not held.
+   */
+  byte [] getRow(final Integer lockid) {
+    RowKey key = this.lockIds.get(lockid);
+    return key == null? null: key.row;
+  }
+
+  /**
+   * @param lockid
+   * @return True if <code>lockid</code> is held.
+   */
+  boolean isLocked(final Integer lockid) {
+    return this.lockIds.containsKey(lockid);
+  }
+
+  /**
+   * @return Count of held locks.
+   */
+  int size() {
+    return this.lockIds.size();
+  }
+
+  /**
+   * Wait until all held locks are released.  Callers must keep new locks
+   * from being taken meanwhile.
+   */
+  void waitOnLocks() {
+    while (!this.lockedRows.isEmpty()) {
+      LOG.debug("waiting for " + this.lockedRows.size() + " row locks");
+      for (CountDownLatch latch: this.lockedRows.values()) {
+        try {
+          latch.await();
+        } catch (InterruptedException e) {
+          // Catch. Let while test determine loop-end.
+        }
+      }
+    }
+  }
+
+  /**
+   * @return Count of lock requests that had to wait since last asked.
+   */
+  int getAndResetContendedCount() {
+    return this.contendedCount.getAndSet(0);
+  }
+
+  /**
+   * @return Milliseconds spent waiting on locks since last asked.
+   */
+  long getAndResetWaitTime() {
+    return this.waitTime.getAndSet(0);
+  }
+
+  /*
+   * Row bytes with equals and hashCode by content.
+   */
+  private static class RowKey {
+    final byte [] row;
+    private final int hash;
+
+    RowKey(final byte [] row) {
+      this.row = row;
+      this.hash = Arrays.hashCode(row);
+    }
+
+    @Override
+    public int hashCode() {
+      return this.hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof RowKey)) {
+        return false;
+      }
+      return Arrays.equals(this.row, ((RowKey)o).row);
+    }
+  }
+}
@@ -34,9 +34,16 @@ import java.util.NavigableSet;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Pattern;
 
@@ -51,6 +58,7 @@ import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.HRegionInfo;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.RemoteExceptionHandler;
+import org.apache.hadoop.hbase.HColumnDescriptor.BloomType;
 import org.apache.hadoop.hbase.filter.RowFilterInterface;
 import org.apache.hadoop.hbase.io.SequenceFile;
 import org.apache.hadoop.hbase.io.hfile.Compression;
@@ -59,7 +67,9 @@ import org.apache.hadoop.hbase.io.hfile.HFileScanner;
 import org.apache.hadoop.hbase.regionserver.HRegion.Counter;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.hbase.util.FSUtils;
+import org.apache.hadoop.hbase.util.Threads;
 import org.apache.hadoop.util.Progressable;
+import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.hadoop.util.StringUtils;
 
 /**
@@ -87,6 +97,10 @@ import org.apache.hadoop.util.StringUtils;
  */
 public class Store implements HConstants {
   static final Log LOG = LogFactory.getLog(Store.class);
+  // Opens store files for all Stores in this process; made on first use.
+  // One pool per process rather than per server: its threads time out when
+  // idle, and a process runs one regionserver outside of tests.
+  private static ExecutorService storeFileOpeners = null;
   /**
    * Comparator that looks at columns and compares their family portions.
    * Presumes columns have already been checked for presence of delimiter.
@@ -103,7 +117,9 @@ public class Store implements HConstants {
   // ttl in milliseconds.
   protected long ttl;
   private long majorCompactionTime;
-  private int maxFilesToCompact;
+  private final CompactionPolicy compactionPolicy;
+  // Bytes of compaction I/O between checks with the CompactionThrottle.
+  private static final int THROTTLE_INTERVAL = 64 * 1024;
   private final long desiredMaxFileSize;
   private volatile long storeSize = 0L;
   private final Object flushLock = new Object();
@@ -132,8 +148,15 @@ public class Store implements HConstants {
   private final Path compactionDir;
   private final Object compactLock = new Object();
   private final int compactionThreshold;
+  // Store file count at which MemcacheFlusher blocks updates to the region.
+  private final int blockingStoreFileCount;
+  // Bytes of store files rewritten by the last compaction, zero if it skipped.
+  private volatile long lastCompactSize = 0L;
   private final int blocksize;
-  private final boolean bloomfilter;
+  // What to make bloom filters over in new store files; null if none.
+  private final BloomType bloomType;
+  private final boolean blockcache;
+  private final boolean inMemory;
   private final Compression.Algorithm compression;
   
   // Comparing KeyValues
@@ -164,7 +187,9 @@ public class Store implements HConstants {
     this.family = family;
     this.fs = fs;
     this.conf = conf;
-    this.bloomfilter = family.isBloomfilter();
+    this.bloomType = family.isBloomfilter()? family.getBloomfilterType(): null;
+    this.blockcache = family.isBlockCacheEnabled();
+    this.inMemory = family.isInMemory();
     this.blocksize = family.getBlocksize();
     this.compression = family.getCompression();
     this.comparator = info.getComparator();
@@ -174,7 +199,7 @@ public class Store implements HConstants {
     if (ttl != HConstants.FOREVER) {
       this.ttl *= 1000;
     }
-    this.memcache = new Memcache(this.ttl, this.comparator);
+    this.memcache = new Memcache(this.ttl, this.comparator, conf);
     this.compactionDir = HRegion.getCompactionDir(basedir);
     this.storeName = this.family.getName();
     this.storeNameStr = Bytes.toString(this.storeName);
@@ -183,6 +208,10 @@ public class Store implements HConstants {
     // MIN_COMMITS_FOR_COMPACTION map files
     this.compactionThreshold =
       conf.getInt("hbase.hstore.compactionThreshold", 3);
+    // Same default as MemcacheFlusher uses.
+    this.blockingStoreFileCount =
+      conf.getInt("hbase.hstore.blockingStoreFiles",
+        this.compactionThreshold + 1);
 
     // By default we split region if a file > DEFAULT_MAX_FILE_SIZE.
     long maxFileSize = info.getTableDesc().getMaxFileSize();
@@ -200,7 +229,10 @@ public class Store implements HConstants {
       this.majorCompactionTime = (new Long(strCompactionTime)).longValue();
     }
 
-    this.maxFilesToCompact = conf.getInt("hbase.hstore.compaction.max", 10);
+    // Picks the files a minor compaction rewrites.
+    this.compactionPolicy = ReflectionUtils.newInstance(
+      conf.getClass("hbase.hstore.compaction.policy",
+        NextFileCompactionPolicy.class, CompactionPolicy.class), conf);
 
     // loadStoreFiles calculates this.maxSeqId. as side-effect.
     this.storefiles.putAll(loadStoreFiles());
@@ -340,26 +372,67 @@ public class Store implements HConstants {
   }
 
   /*
-   * Creates a series of StoreFile loaded from the given directory.
+   * @param conf Sizes the pool if this is the first call.  Later calls get
+   * the pool already made whatever their configuration.
+   * @return Pool shared by all Stores for opening store files.
+   */
+  private static synchronized ExecutorService getStoreFileOpeners(
+      final HBaseConfiguration conf) {
+    if (storeFileOpeners == null) {
+      int threads = Math.max(1, conf.getInt("hbase.hstore.open.threads", 10));
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+        60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        Threads.newDaemonThreadFactory("StoreFileOpener"));
+      pool.allowCoreThreadTimeOut(true);
+      storeFileOpeners = pool;
+    }
+    return storeFileOpeners;
+  }
+
+  /*
+   * Creates a series of StoreFile loaded from the given directory.  Files
+   * are opened concurrently; opening reads each file's trailer, file info
+   * and block index.
    * @throws IOException
    */
   private Map<Long, StoreFile> loadStoreFiles()
   throws IOException {
     Map<Long, StoreFile> results = new HashMap<Long, StoreFile>();
     FileStatus files[] = this.fs.listStatus(this.homedir);
+    List<Future<StoreFile>> futures = new ArrayList<Future<StoreFile>>();
+    ExecutorService pool = getStoreFileOpeners(this.conf);
     for (int i = 0; files != null && i < files.length; i++) {
       // Skip directories.
       if (files[i].isDir()) {
         continue;
       }
-      Path p = files[i].getPath();
+      final Path p = files[i].getPath();
       // Check for empty file.  Should never be the case but can happen
       // after data loss in hdfs for whatever reason (upgrade, etc.): HBASE-646
       if (this.fs.getFileStatus(p).getLen() <= 0) {
         LOG.warn("Skipping " + p + " because its empty. HBASE-646 DATA LOSS?");
         continue;
       }
-      StoreFile curfile = new StoreFile(fs, p);
+      futures.add(pool.submit(new Callable<StoreFile>() {
+        public StoreFile call() throws IOException {
+          return new StoreFile(fs, p, blockcache, conf, inMemory);
+        }
+      }));
+    }
+    // Wait on all opens, even if one fails, so none is left open behind us.
+    IOException failure = null;
+    for (Future<StoreFile> f: futures) {
+      StoreFile curfile = null;
+      try {
+        curfile = Threads.get(f, "loading " + this.storeNameStr);
+      } catch (IOException e) {
+        if (failure == null) {
+          failure = e;
+        }
+      }
+      if (curfile == null) {
+        continue;
+      }
       long storeSeqId = curfile.getMaxSequenceId();
       if (storeSeqId > this.maxSeqId) {
         this.maxSeqId = storeSeqId;
@@ -367,16 +440,48 @@ public class Store implements HConstants {
       long length = curfile.getReader().length();
       this.storeSize += length;
       if (LOG.isDebugEnabled()) {
-        LOG.debug("loaded " + FSUtils.getPath(p) + ", isReference=" +
-          curfile.isReference() + ", sequence id=" + storeSeqId +
-          ", length=" + length + ", majorCompaction=" +
+        LOG.debug("loaded " + FSUtils.getPath(curfile.getPath()) +
+          ", isReference=" + curfile.isReference() + ", sequence id=" +
+          storeSeqId + ", length=" + length + ", majorCompaction=" +
           curfile.isMajorCompaction());
       }
       results.put(Long.valueOf(storeSeqId), curfile);
     }
+    if (failure != null) {
+      for (StoreFile sf: results.values()) {
+        try {
+          sf.close();
+        } catch (IOException e) {
+          LOG.warn("Failed close of " + sf + " after failed load", e);
+        }
+      }
+      throw failure;
+    }
     return results;
   }
 
+  /**
+   * Read the first data blocks of each store file into the block cache.
+   * Files that are references to half of a parent region's file are
+   * skipped.
+   * @param blocks Most blocks to read per file.
+   * @return Count of blocks read.
+   * @throws IOException
+   */
+  int prefetch(final int blocks) throws IOException {
+    int count = 0;
+    for (StoreFile sf: this.storefiles.values()) {
+      if (sf.isReference()) {
+        continue;
+      }
+      HFile.Reader r = sf.getReader();
+      if (r != null) {
+        count += r.prefetch(blocks);
+      }
+    }
+    return count;
+  }
+
   /**
    * Adds a value to the memcache
    * 
@@ -392,6 +497,22 @@ public class Store implements HConstants {
     }
   }
 
+  /**
+   * Adds a new version of a cell to the memcache, dropping the version it
+   * replaces from the memcache.
+   * @param kv
+   * @param oldTimestamp Timestamp of the version replaced.
+   * @return change in memcache size
+   */
+  protected long upsert(final KeyValue kv, final long oldTimestamp) {
+    lock.readLock().lock();
+    try {
+      return this.memcache.upsert(kv, oldTimestamp);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
   /**
    * @return All store files.
    */
@@ -477,7 +598,8 @@ public class Store implements HConstants {
     // if we fail.
     synchronized (flushLock) {
       // A. Write the map out to the disk
-      writer = getWriter();
+      writer = getWriter(this.homedir, this.bloomType == null? 0:
+        StoreFile.countBloomKeys(cache, this.bloomType));
       int entries = 0;
       try {
         for (KeyValue kv: cache) {
@@ -494,7 +616,8 @@ public class Store implements HConstants {
         writer.close();
       }
     }
-    StoreFile sf = new StoreFile(this.fs, writer.getPath());
+    StoreFile sf = new StoreFile(this.fs, writer.getPath(), this.blockcache,
+      this.conf, this.inMemory);
     this.storeSize += sf.getReader().length();
     if(LOG.isDebugEnabled()) {
       LOG.debug("Added " + sf + ", entries=" + sf.getReader().getEntries() +
@@ -511,17 +634,44 @@ public class Store implements HConstants {
    * @throws IOException
    */
   HFile.Writer getWriter() throws IOException {
-    return getWriter(this.homedir);
+    return getWriter(this.homedir, 0);
   }
 
   /*
    * @return Writer for this store.
    * @param basedir Directory to put writer in.
+   * @param maxBloomKeys Most keys the bloom filter, if any, will be given.
    * @throws IOException
    */
-  private HFile.Writer getWriter(final Path basedir) throws IOException {
+  private HFile.Writer getWriter(final Path basedir, final int maxBloomKeys)
+  throws IOException {
     return StoreFile.getWriter(this.fs, basedir, this.blocksize,
-        this.compression, this.comparator.getRawComparator(), this.bloomfilter);
+        this.compression, this.comparator.getRawComparator(), this.bloomType,
+        maxBloomKeys, this.conf);
+  }
+
+  /*
+   * @param files
+   * @return Most keys a bloom filter over the merge of <code>files</code>
+   * can be given: the sum of their bloom filter key counts where they have
+   * the filter we are making, else their entry counts.
+   * @throws IOException
+   */
+  private int getMaxBloomKeys(final List<StoreFile> files)
+  throws IOException {
+    if (this.bloomType == null) {
+      return 0;
+    }
+    long keys = 0;
+    for (StoreFile f: files) {
+      HFile.Reader r = f.getReader();
+      if (r == null) {
+        continue;
+      }
+      keys += f.getBloomFilterType() == this.bloomType?
+        f.getBloomFilterKeys(): r.getEntries();
+    }
+    return (int)Math.min(Integer.MAX_VALUE, keys);
   }
 
   /*
@@ -597,13 +747,20 @@ public class Store implements HConstants {
    * 
    * @param mc True to force a major compaction regardless of
    * thresholds
+   * @param throttle Paces the compaction I/O.  Null for no limit.
+   * @param unthrottle Pacing stops once this is true.  The region sets it
+   * when it starts to close, since the close waits on the compaction while
+   * holding off its region's updates.
    * @return row to split around if a split is needed, null otherwise
    * @throws IOException
    */
-  StoreSize compact(final boolean mc) throws IOException {
+  StoreSize compact(final boolean mc, final CompactionThrottle throttle,
+      final AtomicBoolean unthrottle)
+  throws IOException {
     boolean forceSplit = this.regioninfo.shouldSplit(false);
     boolean majorcompaction = mc;
     synchronized (compactLock) {
+      this.lastCompactSize = 0L;
       long maxId = -1;
       // filesToCompact are sorted oldest to newest.
       List<StoreFile> filesToCompact = null;
@@ -650,23 +807,17 @@ public class Store implements HConstants {
         totalSize += len;
       }
       if (!majorcompaction && !references) {
-        // Here we select files for incremental compaction.  
-        // The rule is: if the largest(oldest) one is more than twice the 
-        // size of the second, skip the largest, and continue to next...,
-        // until we meet the compactionThreshold limit.
-        for (point = 0; point < countOfFiles - 1; point++) {
-          if ((fileSizes[point] < fileSizes[point + 1] * 2) && 
-               (countOfFiles - point) <= maxFilesToCompact) {
-            break;
-          }
-          skipped += fileSizes[point];
+        // Here we select files for incremental compaction.
+        point = this.compactionPolicy.select(fileSizes);
+        for (int i = 0; i < point; i++) {
+          skipped += fileSizes[i];
         }
         filesToCompact = new ArrayList<StoreFile>(filesToCompact.subList(point,
           countOfFiles));
         if (filesToCompact.size() <= 1) {
           if (LOG.isDebugEnabled()) {
-            LOG.debug("Skipped compaction of 1 file; compaction size of " +
-              this.storeNameStr + ": " +
+            LOG.debug("Skipped compaction of " + filesToCompact.size() +
+              " file(s); compaction size of " + this.storeNameStr + ": " +
               StringUtils.humanReadableInt(totalSize) + "; Skipped " + point +
               " files, size: " + skipped);
           }
@@ -679,15 +830,19 @@ public class Store implements HConstants {
         }
       }
  
+      this.lastCompactSize = totalSize - skipped;
+
       // Step through them, writing to the brand-new file
-      HFile.Writer writer = getWriter(this.compactionDir);
+      HFile.Writer writer = getWriter(this.compactionDir,
+        getMaxBloomKeys(filesToCompact));
       if (LOG.isDebugEnabled()) {
         LOG.debug("Started compaction of " + filesToCompact.size() + " file(s)" +
           (references? ", hasReferences=true,": " ") + " into " +
           FSUtils.getPath(writer.getPath()));
       }
       try {
-        compact(writer, filesToCompact, majorcompaction);
+        compact(writer, filesToCompact, majorcompaction, throttle,
+          unthrottle);
       } finally {
         // Now, write out an HSTORE_LOGINFOFILE for the brand-new TreeMap.
         StoreFile.appendMetadata(writer, maxId, majorcompaction);
@@ -833,10 +988,13 @@ public class Store implements HConstants {
    * @param pReaders List of readers sorted oldest to newest.
    * @param majorCompaction True to force a major compaction regardless of
    * thresholds
+   * @param throttle Paces the compaction I/O.  Null for no limit.
+   * @param unthrottle Pacing stops once this is true.
    * @throws IOException
    */
   private void compact(final HFile.Writer compactedOut,
-      final List<StoreFile> pReaders, final boolean majorCompaction)
+      final List<StoreFile> pReaders, final boolean majorCompaction,
+      final CompactionThrottle throttle, final AtomicBoolean unthrottle)
   throws IOException {
     // Reverse order so newest store file is first.
     StoreFile[] files = reverse(pReaders);
@@ -861,10 +1019,13 @@ public class Store implements HConstants {
     KeyValue lastSeen = KeyValue.LOWESTKEY;
     KeyValue lastDelete = null;
     int maxVersions = family.getMaxVersions();
+    // Bytes read and written not yet reported to the throttle.
+    long io = 0;
     while (numDone < done.length) {
       // Get lowest key in all store files.
       int lowestKey = getLowestKey(rdrs, kvs, done);
       KeyValue kv = kvs[lowestKey];
+      io += kv.getLength();
       // If its same row and column as last key, increment times seen.
       if (this.comparator.matchingRowColumn(lastSeen, kv)) {
         timesSeen++;
@@ -885,6 +1046,7 @@ public class Store implements HConstants {
         if (!majorCompaction) {
           // Write out all values if not a major compaction.
           compactedOut.append(kv);
+          io += kv.getLength();
         } else {
           boolean expired = false;
           boolean deleted = false;
@@ -899,6 +1061,7 @@ public class Store implements HConstants {
               lastDelete = kv;
             } else {
               compactedOut.append(kv);
+              io += kv.getLength();
             }
           }
           if (expired || deleted) {
@@ -921,6 +1084,25 @@ public class Store implements HConstants {
       } else {
         kvs[lowestKey] = rdrs[lowestKey].getKeyValue();
       }
+      if (throttle != null && io >= THROTTLE_INTERVAL) {
+        throttle(throttle, unthrottle, io);
+        io = 0;
+      }
+    }
+    if (throttle != null && io > 0) {
+      throttle(throttle, unthrottle, io);
+    }
+  }
+
+  /*
+   * Report compaction I/O to the throttle, waiting on it unless told not to.
+   */
+  private static void throttle(final CompactionThrottle throttle,
+      final AtomicBoolean unthrottle, final long io) {
+    if (unthrottle != null && unthrottle.get()) {
+      throttle.count(io);
+    } else {
+      throttle.throttle(io);
     }
   }
 
@@ -957,7 +1139,8 @@ public class Store implements HConstants {
       LOG.error("Failed move of compacted file " + compactedFile.getPath(), e);
       return;
     }
-    StoreFile finalCompactedFile = new StoreFile(this.fs, p);
+    StoreFile finalCompactedFile = new StoreFile(this.fs, p, this.blockcache,
+      this.conf, this.inMemory);
     this.lock.writeLock().lock();
     try {
       try {
@@ -1044,7 +1227,12 @@ public class Store implements HConstants {
       Map<Long, StoreFile> m = this.storefiles.descendingMap();
       for (Iterator<Map.Entry<Long, StoreFile>> i = m.entrySet().iterator();
           i.hasNext();) {
-        if (getFullFromStoreFile(i.next().getValue(), key, columns,
+        StoreFile f = i.next().getValue();
+        if (!mayContain(f, key, columns, columnPattern)) {
+          // Bloom filter says the file has nothing for us; skip the seek.
+          continue;
+        }
+        if (getFullFromStoreFile(f, key, columns,
             columnPattern, versions, versionsCounter, deletes, keyvalues)) {
           return;
         }
@@ -1054,6 +1242,42 @@ public class Store implements HConstants {
     }
   }
 
+  /*
+   * Ask the bloom filter of <code>f</code>, if any, whether it may hold
+   * anything for a getFull.
+   * @param f
+   * @param key
+   * @param columns
+   * @param columnPattern
+   * @return False if <code>f</code> can be skipped.
+   */
+  private boolean mayContain(final StoreFile f, final KeyValue key,
+      final Set<byte []> columns, final Pattern columnPattern) {
+    if (!key.isEmptyColumn()) {
+      return f.mayContain(key, true);
+    }
+    if (!f.mayContain(key, false)) {
+      return false;
+    }
+    // A filter over row and column can only be asked about named columns.
+    if (f.getBloomFilterType() != BloomType.ROWCOL || columns == null ||
+        columns.isEmpty() || columnPattern != null) {
+      return true;
+    }
+    byte [] row = key.getRow();
+    for (byte [] column: columns) {
+      if (column.length == 0 ||
+          column[column.length - 1] == KeyValue.COLUMN_FAMILY_DELIMITER) {
+        // Whole family asked for.
+        return true;
+      }
+      if (f.mayContain(new KeyValue(row, column), true)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /*
    * @param f
    * @param key Where to start searching.  Specifies a row and timestamp.
@@ -1184,6 +1408,10 @@ public class Store implements HConstants {
       boolean hasEnough = false;
       for (Map.Entry<Long, StoreFile> e: m.entrySet()) {
         StoreFile f = e.getValue();
+        if (!f.mayContain(key, true)) {
+          // Bloom filter says no such row and column in this file.
+          continue;
+        }
         HFileScanner scanner = f.getReader().getScanner();
         if (!getClosest(scanner, key)) {
           // Move to next file.
@@ -1712,6 +1940,23 @@ public class Store implements HConstants {
     return this.storefiles.size();
   }
 
+  /**
+   * @return How urgently this store needs compacting: the number of store
+   * files it can take on before updates to its region are blocked.  Lower
+   * is more urgent; below zero means updates are blocked already.
+   */
+  int getCompactPriority() {
+    return this.blockingStoreFileCount - this.storefiles.size();
+  }
+
+  /**
+   * @return Bytes of store files rewritten by the last compaction, or zero
+   * if it found nothing to do.
+   */
+  long getLastCompactSize() {
+    return this.lastCompactSize;
+  }
+
   /**
    * @return The size of the store file indexes, in bytes.
    * @throws IOException if there was a problem getting file sizes from the
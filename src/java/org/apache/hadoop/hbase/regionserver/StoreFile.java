@@ -19,8 +19,15 @@
  */
 package org.apache.hadoop.hbase.regionserver;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -30,15 +37,24 @@ import java.util.regex.Pattern;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.HColumnDescriptor.BloomType;
 import org.apache.hadoop.hbase.io.HalfHFileReader;
 import org.apache.hadoop.hbase.io.Reference;
 import org.apache.hadoop.hbase.io.hfile.BlockCache;
 import org.apache.hadoop.hbase.io.hfile.Compression;
 import org.apache.hadoop.hbase.io.hfile.HFile;
+import org.apache.hadoop.hbase.io.hfile.LruBlockCache;
+import org.apache.hadoop.hbase.io.hfile.SlabCache;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Hash;
+import org.apache.hadoop.util.StringUtils;
+import org.onelab.filter.BloomFilter;
+import org.onelab.filter.Key;
 
 /**
  * A Store data file.  Stores usually have one or more of these files.  They
@@ -64,6 +80,11 @@ public class StoreFile implements HConstants {
   private Reference reference;
   // If this StoreFile references another, this is the other files path.
   private Path referencePath;
+  // Should the block cache be used or not.
+  private boolean blockcache;
+  // Is this from an in-memory store
+  private boolean inMemory;
+  private final HBaseConfiguration conf;
 
   // Keys for metadata stored in backing HFile.
   private static final byte [] MAX_SEQ_ID_KEY = Bytes.toBytes("MAX_SEQ_ID_KEY");
@@ -76,6 +97,24 @@ public class StoreFile implements HConstants {
   // whenever you get a Reader.
   private AtomicBoolean majorCompaction = null;
 
+  // Name of the meta block holding the bloom filter, if the file has one.
+  static final String BLOOM_FILTER_META_KEY = "BLOOM_FILTER_META";
+  // File info keys for what the bloom filter is over and how many keys
+  // went into it.
+  private static final byte [] BLOOM_FILTER_TYPE_KEY =
+    Bytes.toBytes("BLOOM_FILTER_TYPE");
+  private static final byte [] BLOOM_FILTER_KEYS_KEY =
+    Bytes.toBytes("BLOOM_FILTER_KEYS");
+  // Set when we obtain a Reader if the file has a bloom filter.
+  private volatile BloomFilter bloomFilter = null;
+  private BloomType bloomType = null;
+  private int bloomFilterKeys = -1;
+
+  // Configuration key for the false positive rate bloom filters are sized
+  // for.
+  static final String BLOOM_ERROR_RATE_KEY = "hbase.hstore.bloom.error.rate";
+  static final float DEFAULT_BLOOM_ERROR_RATE = 0.01f;
+
   /*
    * Regex that will work for straight filenames and for reference names.
    * If reference, then the regex has more than just one group.  Group 1 is
@@ -89,17 +128,34 @@ public class StoreFile implements HConstants {
   // Used making file ids.
   private final static Random rand = new Random();
 
+  // Configuration key for the fraction of max heap to give the block cache.
+  static final String HFILE_CACHE_SIZE_KEY = "hfile.block.cache.size";
+  static final float DEFAULT_HFILE_CACHE_SIZE = 0.2f;
+  // Configuration key for bytes of direct memory to give an off-heap second
+  // level block cache.  Zero, the default, means no off-heap cache.
+  static final String HFILE_OFFHEAP_CACHE_SIZE_KEY =
+    "hfile.block.cache.offheap.size";
+  // Single block cache shared by all StoreFiles in this regionserver.
+  private static BlockCache hfileBlockCache = null;
+
   /**
    * Constructor.
    * Loads up a Reader (and its indices, etc.).
    * @param fs Filesystem.
    * @param p qualified path
+   * @param blockcache True if the block cache is enabled.
+   * @param conf Configuration.
+   * @param inMemory True if blocks of this file should be cached as in-memory.
    * @throws IOException
    */
-  StoreFile(final FileSystem fs, final Path p)
+  StoreFile(final FileSystem fs, final Path p, final boolean blockcache,
+      final HBaseConfiguration conf, final boolean inMemory)
   throws IOException {
+    this.conf = conf;
     this.fs = fs;
     this.path = p;
+    this.blockcache = blockcache;
+    this.inMemory = inMemory;
     if (isReference(p)) {
       this.reference = Reference.read(fs, p);
       this.referencePath = getReferredToFile(this.path);
@@ -196,6 +252,52 @@ public class StoreFile implements HConstants {
     return this.sequenceid;
   }
 
+  /**
+   * Returns the block cache shared by all StoreFiles of this server,
+   * creating it on first call.  Its size is the fraction of maximum heap
+   * named by <code>hfile.block.cache.size</code>.
+   * @param conf The current configuration.
+   * @return The block cache or <code>null</code> if the cache is disabled.
+   */
+  public static synchronized BlockCache getBlockCache(
+      final HBaseConfiguration conf) {
+    if (hfileBlockCache != null) {
+      return hfileBlockCache;
+    }
+    float cachePercentage = conf.getFloat(HFILE_CACHE_SIZE_KEY,
+      DEFAULT_HFILE_CACHE_SIZE);
+    if (cachePercentage <= 0.0f) {
+      return null;
+    }
+    if (cachePercentage > 1.0f) {
+      throw new IllegalArgumentException(HFILE_CACHE_SIZE_KEY +
+        " must be between 0.0 and 1.0, not > 1.0");
+    }
+    MemoryUsage mu = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    long cacheSize = (long)(mu.getMax() * cachePercentage);
+    LOG.info("Allocating LruBlockCache with maximum size " +
+      StringUtils.humanReadableInt(cacheSize));
+    LruBlockCache lruCache =
+      new LruBlockCache(cacheSize, DEFAULT_BLOCKSIZE_SMALL);
+    long offHeapSize = conf.getLong(HFILE_OFFHEAP_CACHE_SIZE_KEY, 0);
+    if (offHeapSize > 0) {
+      LOG.info("Allocating off-heap SlabCache with maximum size " +
+        StringUtils.humanReadableInt(offHeapSize));
+      lruCache.setVictimCache(new SlabCache(offHeapSize,
+        HFile.DEFAULT_BLOCKSIZE));
+    }
+    hfileBlockCache = lruCache;
+    return hfileBlockCache;
+  }
+
+  /**
+   * @return the blockcache this file should use, or null if the family has
+   * block caching turned off.
+   */
+  public BlockCache getBlockCache() {
+    return this.blockcache? getBlockCache(this.conf): null;
+  }
+
   /**
    * Opens reader on this store file.  Called by Constructor.
    * @return Reader for the store file.
@@ -208,10 +310,11 @@ public class StoreFile implements HConstants {
       throw new IllegalAccessError("Already open");
     }
     if (isReference()) {
-      this.reader = new HalfHFileReader(this.fs, this.referencePath, null,
-        this.reference);
+      this.reader = new HalfStoreFileReader(this.fs, this.referencePath,
+        getBlockCache(), this.reference, this.inMemory);
     } else {
-      this.reader = new StoreFileReader(this.fs, this.path, null);
+      this.reader = new StoreFileReader(this.fs, this.path, getBlockCache(),
+        this.inMemory);
     }
     // Load up indices and fileinfo.
     Map<byte [], byte []> map = this.reader.loadFileInfo();
@@ -240,16 +343,144 @@ public class StoreFile implements HConstants {
         this.majorCompaction.set(mc);
       }
     }
+    b = map.get(BLOOM_FILTER_TYPE_KEY);
+    if (b != null) {
+      // A reference shares the bloom filter of the file it refers to.  It
+      // may answer yes for rows only in the other half, which is allowed.
+      loadBloomFilter(BloomType.valueOf(Bytes.toString(b)),
+        Bytes.toInt(map.get(BLOOM_FILTER_KEYS_KEY)));
+    }
     return this.reader;
   }
+
+  /*
+   * Read in the bloom filter meta block.  If it can't be had, log and go on
+   * without; lookups then check the file as though it had no filter.
+   * @param type What the filter is over.
+   * @param keys Count of keys in the filter.
+   */
+  private void loadBloomFilter(final BloomType type, final int keys) {
+    try {
+      ByteBuffer buf = this.reader.getMetaBlock(BLOOM_FILTER_META_KEY);
+      if (buf == null) {
+        LOG.warn("No bloom filter meta block in " + this);
+        return;
+      }
+      BloomFilter f = new BloomFilter();
+      f.readFields(new DataInputStream(new ByteArrayInputStream(buf.array(),
+        buf.arrayOffset() + buf.position(), buf.remaining())));
+      this.bloomType = type;
+      this.bloomFilterKeys = keys;
+      this.bloomFilter = f;
+    } catch (IOException e) {
+      LOG.warn("Failed loading bloom filter of " + this +
+        "; proceeding without", e);
+    }
+  }
+
+  /**
+   * Check this file's bloom filter, if it has one, before a lookup.
+   * @param kv Key whose row, and column if <code>exactColumn</code>, is
+   * being looked up.
+   * @param exactColumn True if only the column of <code>kv</code> is
+   * wanted.  Filters over row and column can only answer for exact columns.
+   * @return False if this file holds nothing for the lookup; true if it may.
+   */
+  boolean mayContain(final KeyValue kv, final boolean exactColumn) {
+    BloomFilter f = this.bloomFilter;
+    if (f == null || (this.bloomType == BloomType.ROWCOL && !exactColumn)) {
+      return true;
+    }
+    byte [] key = getBloomKey(kv, this.bloomType);
+    return key.length == 0 || f.membershipTest(new Key(key));
+  }
+
+  /**
+   * @return What this file's bloom filter is over or null if it has none.
+   */
+  BloomType getBloomFilterType() {
+    return this.bloomFilter == null? null: this.bloomType;
+  }
+
+  /**
+   * @return Count of keys in this file's bloom filter or -1 if no filter.
+   */
+  int getBloomFilterKeys() {
+    return this.bloomFilter == null? -1: this.bloomFilterKeys;
+  }
+
+  /*
+   * @param kv
+   * @param type
+   * @return Bytes to put in or test against a bloom filter of
+   * <code>type</code> for <code>kv</code>.
+   */
+  static byte [] getBloomKey(final KeyValue kv, final BloomType type) {
+    int rowLength = kv.getRowLength();
+    int columnOffset = 0;
+    int columnLength = 0;
+    if (type == BloomType.ROWCOL) {
+      columnOffset = kv.getColumnOffset(rowLength);
+      columnLength = kv.getColumnLength(columnOffset);
+    }
+    byte [] key = new byte[rowLength + columnLength];
+    System.arraycopy(kv.getBuffer(), kv.getRowOffset(), key, 0, rowLength);
+    System.arraycopy(kv.getBuffer(), columnOffset, key, rowLength,
+      columnLength);
+    return key;
+  }
+
+  /*
+   * @param left
+   * @param right
+   * @param type
+   * @return True if <code>left</code> and <code>right</code> make the same
+   * bloom key.
+   */
+  static boolean matchingBloomKey(final KeyValue left, final KeyValue right,
+      final BloomType type) {
+    int lrowlength = left.getRowLength();
+    int rrowlength = right.getRowLength();
+    if (Bytes.compareTo(left.getBuffer(), left.getRowOffset(), lrowlength,
+        right.getBuffer(), right.getRowOffset(), rrowlength) != 0) {
+      return false;
+    }
+    if (type == BloomType.ROW) {
+      return true;
+    }
+    int lcolumnoffset = left.getColumnOffset(lrowlength);
+    int rcolumnoffset = right.getColumnOffset(rrowlength);
+    return Bytes.compareTo(left.getBuffer(), lcolumnoffset,
+        left.getColumnLength(lcolumnoffset), right.getBuffer(), rcolumnoffset,
+        right.getColumnLength(rcolumnoffset)) == 0;
+  }
+
+  /**
+   * @param kvs KeyValues in sort order.
+   * @param type
+   * @return Count of distinct bloom keys in <code>kvs</code>.
+   */
+  static int countBloomKeys(final Iterable<KeyValue> kvs,
+      final BloomType type) {
+    int count = 0;
+    KeyValue last = null;
+    for (KeyValue kv: kvs) {
+      if (last == null || !matchingBloomKey(last, kv, type)) {
+        count++;
+      }
+      last = kv;
+    }
+    return count;
+  }
   
   /**
    * Override to add some customization on HFile.Reader
    */
   static class StoreFileReader extends HFile.Reader {
-    public StoreFileReader(FileSystem fs, Path path, BlockCache cache)
+    public StoreFileReader(FileSystem fs, Path path, BlockCache cache,
+        boolean inMemory)
         throws IOException {
-      super(fs, path, cache);
+      super(fs, path, cache, inMemory);
     }
 
     @Override
@@ -267,9 +498,10 @@ public class StoreFile implements HConstants {
    * Override to add some customization on HalfHFileReader.
    */
   static class HalfStoreFileReader extends HalfHFileReader {
-    public HalfStoreFileReader(FileSystem fs, Path p, BlockCache c, Reference r)
+    public HalfStoreFileReader(FileSystem fs, Path p, BlockCache c,
+        Reference r, boolean inMemory)
         throws IOException {
-      super(fs, p, c, r);
+      super(fs, p, c, r, inMemory);
     }
 
     @Override
@@ -355,7 +587,8 @@ public class StoreFile implements HConstants {
    */
   public static HFile.Writer getWriter(final FileSystem fs, final Path dir)
   throws IOException {
-    return getWriter(fs, dir, DEFAULT_BLOCKSIZE_SMALL, null, null, false);
+    return getWriter(fs, dir, DEFAULT_BLOCKSIZE_SMALL, null, null, null, 0,
+      null);
   }
 
   /**
@@ -368,21 +601,101 @@ public class StoreFile implements HConstants {
    * @param blocksize
    * @param algorithm Pass null to get default.
    * @param c Pass null to get default.
-   * @param bloomfilter 
+   * @param bloomType What to make a bloom filter over.  Pass null for no
+   * bloom filter.
+   * @param maxBloomKeys Most keys the bloom filter will be given; it is
+   * sized from this.
+   * @param conf Used sizing the bloom filter and choosing the block index
+   * layout.  Can be null if no bloom filter.
    * @return HFile.Writer
    * @throws IOException
    */
   public static HFile.Writer getWriter(final FileSystem fs, final Path dir,
     final int blocksize, final Compression.Algorithm algorithm,
-    final KeyValue.KeyComparator c, final boolean bloomfilter)
+    final KeyValue.KeyComparator c, final BloomType bloomType,
+    final int maxBloomKeys, final Configuration conf)
   throws IOException {
     if (!fs.exists(dir)) {
       fs.mkdirs(dir);
     }
     Path path = getUniqueFile(fs, dir);
-    return new HFile.Writer(fs, path, blocksize,
-      algorithm == null? HFile.DEFAULT_COMPRESSION_ALGORITHM: algorithm,
-      c == null? KeyValue.KEY_COMPARATOR: c, bloomfilter);
+    Compression.Algorithm a = algorithm == null?
+      HFile.DEFAULT_COMPRESSION_ALGORITHM: algorithm;
+    KeyValue.KeyComparator kc = c == null? KeyValue.KEY_COMPARATOR: c;
+    HFile.Writer w = bloomType == null?
+      new HFile.Writer(fs, path, blocksize, a, kc, false):
+      new BloomFilterWriter(fs, path, blocksize, a, kc, bloomType,
+        maxBloomKeys, conf);
+    if (conf != null) {
+      w.setIndexBlockEntries(conf.getInt(HFile.INDEX_BLOCK_ENTRIES_KEY, 0));
+    }
+    return w;
+  }
+
+  /**
+   * HFile.Writer that also makes a bloom filter over the row, or row and
+   * column, of each KeyValue appended.  On close, the filter is written to
+   * the file as a meta block.
+   */
+  static class BloomFilterWriter extends HFile.Writer {
+    private final BloomType bloomType;
+    private final BloomFilter bloomFilter;
+    private KeyValue lastKv = null;
+    private int keys = 0;
+
+    BloomFilterWriter(final FileSystem fs, final Path path,
+        final int blocksize, final Compression.Algorithm algorithm,
+        final KeyValue.KeyComparator c, final BloomType bloomType,
+        final int maxKeys, final Configuration conf)
+    throws IOException {
+      super(fs, path, blocksize, algorithm, c, true);
+      this.bloomType = bloomType;
+      // See http://en.wikipedia.org/wiki/Bloom_filter: for a false positive
+      // rate p over n keys, use k = -log2(p) hashes over
+      // m = -n * ln(p) / ln(2)^2 bits.
+      double errorRate = conf.getFloat(BLOOM_ERROR_RATE_KEY,
+        DEFAULT_BLOOM_ERROR_RATE);
+      double ln2 = Math.log(2);
+      int nbHash = Math.max(1,
+        (int)Math.round(-Math.log(errorRate) / ln2));
+      long vectorSize = (long)Math.ceil(-Math.max(1, maxKeys) *
+        Math.log(errorRate) / (ln2 * ln2));
+      this.bloomFilter = new BloomFilter(
+        (int)Math.min(Integer.MAX_VALUE - 8, Math.max(8, vectorSize)),
+        nbHash, Hash.getHashType(conf));
+    }
+
+    @Override
+    public void append(final KeyValue kv) throws IOException {
+      super.append(kv);
+      // KeyValues come in sorted so repeats of a bloom key are adjacent.
+      if (this.lastKv == null ||
+          !matchingBloomKey(this.lastKv, kv, this.bloomType)) {
+        byte [] key = getBloomKey(kv, this.bloomType);
+        if (key.length > 0) {
+          this.bloomFilter.add(new Key(key));
+          this.keys++;
+        }
+      }
+      this.lastKv = kv;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (getPath() != null && this.lastKv != null) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        this.bloomFilter.write(out);
+        out.close();
+        appendMetaBlock(BLOOM_FILTER_META_KEY, baos.toByteArray());
+        appendFileInfo(BLOOM_FILTER_TYPE_KEY,
+          Bytes.toBytes(this.bloomType.toString()));
+        appendFileInfo(BLOOM_FILTER_KEYS_KEY, Bytes.toBytes(this.keys));
+        // Only once, even if close is called again.
+        this.lastKv = null;
+      }
+      super.close();
+    }
   }
 
   /**
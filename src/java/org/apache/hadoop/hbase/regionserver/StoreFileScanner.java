@@ -22,14 +22,17 @@ package org.apache.hadoop.hbase.regionserver;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
+import java.util.PriorityQueue;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.io.hfile.HFileScanner;
+import org.apache.hadoop.hbase.util.Bytes;
 
 /**
  * A scanner that iterates through HStore files
@@ -41,6 +44,19 @@ implements ChangedReadersObserver {
   
   // Readers we go against.
   private volatile HFileScanner [] scanners;
+
+  // Indices of the readers that have a current key, ordered by that key.
+  private volatile PriorityQueue<Integer> heap;
+
+  // Orders reader indices by their current key.  On a tie the newer file,
+  // the one with the lower index, comes first.
+  private final Comparator<Integer> heapComparator = new Comparator<Integer>() {
+    public int compare(final Integer left, final Integer right) {
+      int result = store.comparator.compare(keys[left.intValue()],
+        keys[right.intValue()]);
+      return result != 0? result: left.intValue() - right.intValue();
+    }
+  };
   
   // Store this scanner came out of.
   private final Store store;
@@ -89,42 +105,31 @@ implements ChangedReadersObserver {
     }
     this.scanners = s.toArray(new HFileScanner [] {});
     this.keys = new KeyValue[this.scanners.length];
+    this.heap = new PriorityQueue<Integer>(Math.max(1, this.scanners.length),
+      this.heapComparator);
     // Advance the readers to the first pos.
     KeyValue firstKey = (firstRow != null && firstRow.length > 0)?
       new KeyValue(firstRow, HConstants.LATEST_TIMESTAMP): null;
     for (int i = 0; i < this.scanners.length; i++) {
-      if (firstKey != null) {
-        if (seekTo(i, firstKey)) {
-          continue;
-        }
+      if (firstKey == null || !seekTo(i, firstKey)) {
+        getNext(i);
       }
-      while (getNext(i)) {
-        if (columnMatch(i)) {
-          break;
-        }
+      if (this.keys[i] != null) {
+        this.heap.add(Integer.valueOf(i));
       }
     }
   }
 
-  /**
-   * For a particular column i, find all the matchers defined for the column.
-   * Compare the column family and column key using the matchers. The first one
-   * that matches returns true. If no matchers are successful, return false.
-   * 
-   * @param i index into the keys array
-   * @return true if any of the matchers for the column match the column family
-   * and the column key.
-   * @throws IOException
-   */
-  boolean columnMatch(int i) throws IOException {
-    return columnMatch(keys[i]);
-  }
-
   /**
    * Get the next set of values for this scanner.
+   * <p>
+   * Sub-scanners sit in a heap ordered by their current key so the next key
+   * across all files is had in log(files) time.  All keys of a row come off
+   * the heap in order and a key found in more than one file comes off once
+   * per file, consecutively, so duplicates are dropped by comparing against
+   * the last key added.  Rows with nothing to return are skipped.
    * 
-   * @param key The key that matched
-   * @param results All the results for <code>key</code>
+   * @param results All the results for the next row
    * @return true if a match was found
    * @throws IOException
    * 
@@ -138,97 +143,37 @@ implements ChangedReadersObserver {
     }
     this.lock.readLock().lock();
     try {
-      // Find the next viable row label (and timestamp).
-      KeyValue viable = getNextViableRow();
-      if (viable == null) {
-        return false;
-      }
-
-      // Grab all the values that match this row/timestamp
-      boolean addedItem = false;
-      for (int i = 0; i < keys.length; i++) {
-        // Fetch the data
-        while ((keys[i] != null) &&
-            (this.store.comparator.compareRows(this.keys[i], viable) == 0)) {
-          // If we are doing a wild card match or there are multiple matchers
-          // per column, we need to scan all the older versions of this row
-          // to pick up the rest of the family members
-          if(!isWildcardScanner()
-              && !isMultipleMatchScanner()
-              && (keys[i].getTimestamp() != viable.getTimestamp())) {
+      while (!this.heap.isEmpty()) {
+        KeyValue row = this.keys[this.heap.peek().intValue()];
+        KeyValue last = null;
+        boolean addedItem = false;
+        while (!this.heap.isEmpty()) {
+          int i = this.heap.peek().intValue();
+          KeyValue kv = this.keys[i];
+          if (this.store.comparator.compareRows(kv, row) != 0) {
             break;
           }
-          if (columnMatch(i)) {
-            // We only want the first result for any specific family member
-            // TODO: Do we have to keep a running list of column entries in
-            // the results across all of the StoreScanner?  Like we do
-            // doing getFull?
-            if (!results.contains(keys[i])) {
-              results.add(keys[i]);
-              addedItem = true;
-            }
+          this.heap.poll();
+          if (kv.getTimestamp() <= this.timestamp && columnMatch(kv) &&
+              (last == null || this.store.comparator.compare(kv, last) != 0)) {
+            results.add(kv);
+            last = kv;
+            addedItem = true;
           }
-
-          if (!getNext(i)) {
-            closeSubScanner(i);
+          if (getNext(i)) {
+            this.heap.add(Integer.valueOf(i));
           }
         }
-        // Advance the current scanner beyond the chosen row, to
-        // a valid timestamp, so we're ready next time.
-        while ((keys[i] != null) &&
-            ((this.store.comparator.compareRows(this.keys[i], viable) <= 0) ||
-                (keys[i].getTimestamp() > this.timestamp) ||
-                !columnMatch(i))) {
-          getNext(i);
+        if (addedItem) {
+          return true;
         }
       }
-      return addedItem;
+      return false;
     } finally {
       this.lock.readLock().unlock();
     }
   }
 
-  /*
-   * @return An instance of <code>ViableRow</code>
-   * @throws IOException
-   */
-  private KeyValue getNextViableRow() throws IOException {
-    // Find the next viable row label (and timestamp).
-    KeyValue viable = null;
-    long viableTimestamp = -1;
-    long ttl = store.ttl;
-    for (int i = 0; i < keys.length; i++) {
-      // The first key that we find that matches may have a timestamp greater
-      // than the one we're looking for. We have to advance to see if there
-      // is an older version present, since timestamps are sorted descending
-      while (keys[i] != null &&
-          keys[i].getTimestamp() > this.timestamp &&
-          columnMatch(i) &&
-          getNext(i)) {
-        if (columnMatch(i)) {
-          break;
-        }
-      }
-      if((keys[i] != null)
-          // If we get here and keys[i] is not null, we already know that the
-          // column matches and the timestamp of the row is less than or equal
-          // to this.timestamp, so we do not need to test that here
-          && ((viable == null) ||
-            (this.store.comparator.compareRows(this.keys[i], viable) < 0) ||
-            ((this.store.comparator.compareRows(this.keys[i], viable) == 0) &&
-              (keys[i].getTimestamp() > viableTimestamp)))) {
-        if (ttl == HConstants.FOREVER || now < keys[i].getTimestamp() + ttl) {
-          viable = keys[i];
-        } else {
-          if (LOG.isDebugEnabled()) {
-            LOG.debug("getNextViableRow :" + keys[i] + ": expired, skipped");
-          }
-        }
-      }
-    }
-    return viable;
-  }
-
   /*
    * The user didn't want to start scanning at the first row. This method
    * seeks to the requested row.
@@ -315,10 +260,12 @@ implements ChangedReadersObserver {
       // The keys are currently lined up at the next row to fetch.  Pass in
       // the current row as 'first' row and readers will be opened and cue'd
       // up so future call to next will start here.
-      KeyValue viable = getNextViableRow();
-      openScanner(viable.getRow());
-      LOG.debug("Replaced Scanner Readers at row " +
-        viable.getRow().toString());
+      if (this.heap.isEmpty()) {
+        return;
+      }
+      byte [] row = this.keys[this.heap.peek().intValue()].getRow();
+      openScanner(row);
+      LOG.debug("Replaced Scanner Readers at row " + Bytes.toString(row));
     } finally {
       this.lock.writeLock().unlock();
     }
@@ -168,6 +168,11 @@ class StoreScanner implements InternalScanner,  ChangedReadersObserver {
       if (chosenTimestamp >= 0 && !filtered) {
         NavigableSet<KeyValue> deletes =
           new TreeSet<KeyValue>(this.store.comparatorIgnoringType);
+        // The row as merged from all sub-scanners.  Sorted, and a key seen
+        // in more than one sub-scanner is kept once; a set rather than a
+        // walk of results keeps wide rows from going quadratic.
+        NavigableSet<KeyValue> merged =
+          new TreeSet<KeyValue>(this.store.comparator);
         for (int i = 0; i < scanners.length && !filtered; i++) {
           if ((scanners[i] != null && !filtered && moreToFollow &&
               this.resultSets[i] != null && !this.resultSets[i].isEmpty())) {
@@ -181,7 +186,7 @@ class StoreScanner implements InternalScanner,  ChangedReadersObserver {
               if (kv.isDeleteType()) {
                 deletes.add(kv);
               } else if ((deletes.isEmpty() || !deletes.contains(kv)) &&
-                  !filtered && moreToFollow && !results.contains(kv)) {
+                  !filtered && moreToFollow && merged.add(kv)) {
                 if (this.dataFilter != null) {
                   // Filter whole row by column data?
                   int rowlength = kv.getRowLength();
@@ -191,11 +196,10 @@ class StoreScanner implements InternalScanner,  ChangedReadersObserver {
                     kv.getBuffer(), columnoffset, kv.getColumnLength(columnoffset),
                     kv.getBuffer(), kv.getValueOffset(), kv.getValueLength());
                   if (filtered) {
-                    results.clear();
+                    merged.clear();
                     break;
                   }
                 }
-                results.add(kv);
                 /* REMOVING BECAUSE COULD BE BUNCH OF DELETES IN RESULTS
                    AND WE WANT TO INCLUDE THEM -- below short-circuit is
                    probably not wanted.
@@ -216,6 +220,7 @@ class StoreScanner implements InternalScanner,  ChangedReadersObserver {
             }
           }
         }
+        results.addAll(merged);
       }
 
       moreToFollow = chosenTimestamp >= 0;
@@ -76,6 +76,86 @@ public class RegionServerMetrics implements Updater {
   public final MetricsIntValue memcacheSizeMB =
     new MetricsIntValue("hbase_memcacheSizeMB");
 
+  /**
+   * Block cache size in MB.
+   */
+  public final MetricsIntValue blockCacheSizeMB =
+    new MetricsIntValue("hbase_blockCacheSizeMB");
+
+  /**
+   * Block cache free size in MB.
+   */
+  public final MetricsIntValue blockCacheFreeMB =
+    new MetricsIntValue("hbase_blockCacheFreeMB");
+
+  /**
+   * Block cache item count.
+   */
+  public final MetricsIntValue blockCacheCount =
+    new MetricsIntValue("hbase_blockCacheCount");
+
+  /**
+   * Block hit ratio as a percentage.
+   */
+  public final MetricsIntValue blockCacheHitRatio =
+    new MetricsIntValue("hbase_blockCacheHitRatio");
+
+  /**
+   * Syncs of the HLog per second.
+   */
+  public final MetricsRate hlogSyncs = new MetricsRate("hbase_hlogSyncs");
+
+  /**
+   * Average edits written out per HLog sync since last update.
+   */
+  public final MetricsIntValue hlogEditsPerSync =
+    new MetricsIntValue("hbase_hlogEditsPerSync");
+
+  /**
+   * Row lock requests per second that had to wait on another holder.
+   */
+  public final MetricsRate rowLockContention =
+    new MetricsRate("hbase_rowLockContention");
+
+  /**
+   * Average milliseconds a contended row lock request waited since last
+   * update.
+   */
+  public final MetricsIntValue rowLockWaitTime =
+    new MetricsIntValue("hbase_rowLockWaitTime");
+
+  /**
+   * Count of compactions waiting to run.
+   */
+  public final MetricsIntValue compactionQueueSize =
+    new MetricsIntValue("hbase_compactionQueueSize");
+
+  /**
+   * Kilobytes of store files compacted per second of compaction since last
+   * update.
+   */
+  public final MetricsIntValue compactionThroughputKB =
+    new MetricsIntValue("hbase_compactionThroughputKB");
+
+  /**
+   * Kilobytes a second of compaction reads and writes.
+   */
+  public final MetricsRate compactionIOKB =
+    new MetricsRate("hbase_compactionIOKB");
+
+  /**
+   * Milliseconds compactions waited on the throughput limit since last
+   * update.
+   */
+  public final MetricsIntValue compactionThrottledTime =
+    new MetricsIntValue("hbase_compactionThrottledTime");
+
+  /**
+   * Current compaction throughput limit in kilobytes a second; zero for none.
+   */
+  public final MetricsIntValue compactionLimitKB =
+    new MetricsIntValue("hbase_compactionLimitKB");
+
   public RegionServerMetrics() {
     MetricsContext context = MetricsUtil.getContext("hbase");
     metricsRecord = MetricsUtil.createRecord(context, "regionserver");
@@ -102,8 +182,21 @@ public class RegionServerMetrics implements Updater {
       this.storefiles.pushMetric(this.metricsRecord);
       this.storefileIndexSizeMB.pushMetric(this.metricsRecord);
       this.memcacheSizeMB.pushMetric(this.metricsRecord);
+      this.blockCacheSizeMB.pushMetric(this.metricsRecord);
+      this.blockCacheFreeMB.pushMetric(this.metricsRecord);
+      this.blockCacheCount.pushMetric(this.metricsRecord);
+      this.blockCacheHitRatio.pushMetric(this.metricsRecord);
       this.regions.pushMetric(this.metricsRecord);
       this.requests.pushMetric(this.metricsRecord);
+      this.hlogSyncs.pushMetric(this.metricsRecord);
+      this.hlogEditsPerSync.pushMetric(this.metricsRecord);
+      this.rowLockContention.pushMetric(this.metricsRecord);
+      this.rowLockWaitTime.pushMetric(this.metricsRecord);
+      this.compactionQueueSize.pushMetric(this.metricsRecord);
+      this.compactionThroughputKB.pushMetric(this.metricsRecord);
+      this.compactionIOKB.pushMetric(this.metricsRecord);
+      this.compactionThrottledTime.pushMetric(this.metricsRecord);
+      this.compactionLimitKB.pushMetric(this.metricsRecord);
     }
     this.metricsRecord.update();
     this.lastUpdate = System.currentTimeMillis();
@@ -146,6 +239,32 @@ public class RegionServerMetrics implements Updater {
       Integer.valueOf(this.storefileIndexSizeMB.get()));
     sb = Strings.appendKeyValue(sb, "memcacheSize",
       Integer.valueOf(this.memcacheSizeMB.get()));
+    sb = Strings.appendKeyValue(sb, "blockCacheSize",
+      Integer.valueOf(this.blockCacheSizeMB.get()));
+    sb = Strings.appendKeyValue(sb, "blockCacheFree",
+      Integer.valueOf(this.blockCacheFreeMB.get()));
+    sb = Strings.appendKeyValue(sb, "blockCacheCount",
+      Integer.valueOf(this.blockCacheCount.get()));
+    sb = Strings.appendKeyValue(sb, "blockCacheHitRatio",
+      Integer.valueOf(this.blockCacheHitRatio.get()));
+    sb = Strings.appendKeyValue(sb, "hlogSyncs",
+      Float.valueOf(this.hlogSyncs.getPreviousIntervalValue()));
+    sb = Strings.appendKeyValue(sb, "hlogEditsPerSync",
+      Integer.valueOf(this.hlogEditsPerSync.get()));
+    sb = Strings.appendKeyValue(sb, "rowLockContention",
+      Float.valueOf(this.rowLockContention.getPreviousIntervalValue()));
+    sb = Strings.appendKeyValue(sb, "rowLockWaitTime",
+      Integer.valueOf(this.rowLockWaitTime.get()));
+    sb = Strings.appendKeyValue(sb, "compactionQueueSize",
+      Integer.valueOf(this.compactionQueueSize.get()));
+    sb = Strings.appendKeyValue(sb, "compactionThroughputKB",
+      Integer.valueOf(this.compactionThroughputKB.get()));
+    sb = Strings.appendKeyValue(sb, "compactionIOKB",
+      Float.valueOf(this.compactionIOKB.getPreviousIntervalValue()));
+    sb = Strings.appendKeyValue(sb, "compactionThrottledTime",
+      Integer.valueOf(this.compactionThrottledTime.get()));
+    sb = Strings.appendKeyValue(sb, "compactionLimitKB",
+      Integer.valueOf(this.compactionLimitKB.get()));
     // Duplicate from jvmmetrics because metrics are private there so
     // inaccessible.
     MemoryUsage memory =
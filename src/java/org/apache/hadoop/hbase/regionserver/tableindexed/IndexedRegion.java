@@ -40,6 +40,7 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.NotServingRegionException;
 import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.tableindexed.IndexSpecification;
 import org.apache.hadoop.hbase.client.tableindexed.IndexedTable;
@@ -93,6 +94,34 @@ class IndexedRegion extends TransactionalRegion {
     super.batchUpdate(batchUpdate, lockid, writeToWAL);
   }
 
+  /**
+   * Applies the updates one at a time so each updates the indexes.
+   * @param b
+   * @param lockids
+   * @return Index of first update not applied or -1 if all were.
+   * @throws IOException
+   */
+  @Override
+  public int batchUpdate(BatchUpdate [] b, Integer [] lockids)
+      throws IOException {
+    for (int i = 0; i < b.length; i++) {
+      if (!rowIsInRange(getRegionInfo(), b[i].getRow())) {
+        return i;
+      }
+      try {
+        batchUpdate(b[i], lockids[i], true);
+      } catch (NotServingRegionException e) {
+        if (i == 0) {
+          throw e;
+        }
+        // Closed under us.  Say where we stopped so the client resends only
+        // the updates not yet applied.
+        return i;
+      }
+    }
+    return -1;
+  }
+
   private void updateIndexes(BatchUpdate batchUpdate) throws IOException {
     List<IndexSpecification> indexesToUpdate = new LinkedList<IndexSpecification>();
 
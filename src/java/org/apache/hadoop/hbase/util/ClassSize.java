@@ -0,0 +1,249 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Estimates the heap taken by objects in the running JVM.  Sizes of object
+ * and array headers and of references depend on whether the JVM is 32 or
+ * 64-bit and, if 64-bit, on whether it compresses ordinary object pointers.
+ * These are worked out once at class load; everything that sizes itself
+ * for caches or flush accounting (see
+ * {@link org.apache.hadoop.hbase.io.HeapSize}) should build on the
+ * constants and methods here rather than on guesses of its own.
+ * <p>
+ * The numbers are those of HotSpot: objects are aligned on 8 bytes and
+ * fields are not reordered across the class hierarchy.
+ */
+public class ClassSize {
+  static final Log LOG = LogFactory.getLog(ClassSize.class);
+
+  /** True if this is a 64-bit JVM */
+  public static final boolean IS_64_BIT;
+
+  /** True if this JVM is 64-bit and compresses object references */
+  public static final boolean COMPRESSED_OOPS;
+
+  /** Size of a reference */
+  public static final int REFERENCE;
+
+  /** Size of an object header */
+  public static final int OBJECT;
+
+  /** Size of an array header, including its length */
+  public static final int ARRAY;
+
+  /**
+   * True if a ConcurrentHashMap is one table sized for its initial capacity
+   * over its load factor, as from Java 8, rather than segments whose
+   * tables add up to its initial capacity
+   */
+  private static final boolean CHM_SINGLE_TABLE;
+
+  /** Overhead of a String less its characters */
+  public static final int STRING;
+
+  /** Overhead of an Integer */
+  public static final int INTEGER;
+
+  /** Overhead of an AtomicLong */
+  public static final int ATOMIC_LONG;
+
+  /** Overhead of a heap ByteBuffer, less its array */
+  public static final int BYTE_BUFFER;
+
+  /** Overhead of an entry in a HashMap */
+  public static final int HASHMAP_ENTRY;
+
+  /**
+   * Overhead of an entry in a ConcurrentSkipListMap or Set: a node plus,
+   * on average, half an index node
+   */
+  public static final int CONCURRENT_SKIPLISTMAP_ENTRY;
+
+  static {
+    String model = System.getProperty("sun.arch.data.model");
+    boolean is64 = model == null?
+      System.getProperty("os.arch", "").contains("64"): model.equals("64");
+    IS_64_BIT = is64;
+    COMPRESSED_OOPS = is64 && isCompressedOops();
+    if (!is64) {
+      REFERENCE = 4;
+      OBJECT = 8;
+      ARRAY = 12;
+    } else if (COMPRESSED_OOPS) {
+      REFERENCE = 4;
+      OBJECT = 12;
+      ARRAY = 16;
+    } else {
+      REFERENCE = 8;
+      OBJECT = 16;
+      ARRAY = 24;
+    }
+    String version = System.getProperty("java.specification.version", "1.6");
+    if (version.startsWith("1.")) {
+      version = version.substring(2);
+    }
+    int dot = version.indexOf('.');
+    int major = 6;
+    try {
+      major = Integer.parseInt(dot < 0? version: version.substring(0, dot));
+    } catch (NumberFormatException e) {
+      LOG.debug("Unexpected java.specification.version " + version);
+    }
+    CHM_SINGLE_TABLE = major >= 8;
+    STRING = (int)estimateBase(String.class);
+    INTEGER = (int)align(OBJECT + Bytes.SIZEOF_INT);
+    ATOMIC_LONG = (int)align(OBJECT + Bytes.SIZEOF_LONG);
+    // Buffer has mark, position, limit, capacity and address; ByteBuffer
+    // adds the array, its offset and three flags.
+    BYTE_BUFFER = (int)align(OBJECT + REFERENCE + (5 * Bytes.SIZEOF_INT) +
+      Bytes.SIZEOF_LONG + 3);
+    HASHMAP_ENTRY = (int)align(OBJECT + (3 * REFERENCE) + Bytes.SIZEOF_INT);
+    CONCURRENT_SKIPLISTMAP_ENTRY = (int)(align(OBJECT + (3 * REFERENCE)) +
+      align(OBJECT + (3 * REFERENCE)) / 2);
+    LOG.debug("64-bit=" + is64 + ", compressedOops=" + COMPRESSED_OOPS +
+      ", reference=" + REFERENCE + ", object=" + OBJECT + ", array=" + ARRAY);
+  }
+
+  /*
+   * @return True if the JVM says it is using compressed object pointers.
+   * Asks the HotSpot diagnostic bean, by reflection so we still load on
+   * other JVMs, then falls back on looking at the JVM arguments.
+   */
+  private static boolean isCompressedOops() {
+    try {
+      Class<?> beanClass =
+        Class.forName("com.sun.management.HotSpotDiagnosticMXBean");
+      Object bean = ManagementFactory.newPlatformMXBeanProxy(
+        ManagementFactory.getPlatformMBeanServer(),
+        "com.sun.management:type=HotSpotDiagnostic", beanClass);
+      Method getVMOption = beanClass.getMethod("getVMOption", String.class);
+      Object option = getVMOption.invoke(bean, "UseCompressedOops");
+      Method getValue = option.getClass().getMethod("getValue");
+      return Boolean.parseBoolean((String)getValue.invoke(option));
+    } catch (Throwable t) {
+      LOG.debug("Could not ask JVM about compressed oops: " + t);
+    }
+    return ManagementFactory.getRuntimeMXBean().getInputArguments().
+      contains("-XX:+UseCompressedOops");
+  }
+
+  /**
+   * Round up to the next multiple of 8; objects are allocated in 8 byte
+   * increments.
+   * @param num
+   * @return <code>num</code> rounded up to a multiple of 8.
+   */
+  public static long align(final long num) {
+    return ((num + 7) >> 3) << 3;
+  }
+
+  /**
+   * @param length
+   * @return Heap taken by a byte array of <code>length</code> bytes.
+   */
+  public static long sizeOfByteArray(final int length) {
+    return align(ARRAY + length);
+  }
+
+  /**
+   * @param s
+   * @return Heap taken by <code>s</code>, counting two bytes a character.
+   */
+  public static long sizeOfString(final String s) {
+    return STRING + sizeOfArray(s.length(), Bytes.SIZEOF_SHORT);
+  }
+
+  /**
+   * @param length
+   * @param elementSize Size of each element; {@link #REFERENCE} for arrays
+   * of objects.
+   * @return Heap taken by an array of <code>length</code> elements, less
+   * whatever the elements reference.
+   */
+  public static long sizeOfArray(final int length, final int elementSize) {
+    return align(ARRAY + ((long)length * elementSize));
+  }
+
+  /**
+   * @param initialCapacity
+   * @param loadFactor
+   * @return Heap taken by the hash table of a ConcurrentHashMap made with
+   * these arguments, before it has had to grow.
+   */
+  public static long sizeOfConcurrentHashMapTable(final int initialCapacity,
+      final float loadFactor) {
+    long slots = CHM_SINGLE_TABLE?
+      (long)(1.0 + initialCapacity / loadFactor): initialCapacity;
+    long tableSize = 1;
+    while (tableSize < slots) {
+      tableSize <<= 1;
+    }
+    return sizeOfArray((int)Math.min(tableSize, 1 << 30), REFERENCE);
+  }
+
+  /**
+   * Estimates the heap taken by an instance of a class from its declared
+   * fields and those of its superclasses, less whatever the fields
+   * reference.  Use it to check fixed overheads worked out by hand.
+   * @param cl
+   * @return Estimated shallow size of an instance of <code>cl</code>.
+   */
+  public static long estimateBase(final Class<?> cl) {
+    long size = OBJECT;
+    for (Class<?> c = cl; c != null; c = c.getSuperclass()) {
+      for (Field f: c.getDeclaredFields()) {
+        if (Modifier.isStatic(f.getModifiers())) {
+          continue;
+        }
+        size += sizeOfField(f.getType());
+      }
+    }
+    return align(size);
+  }
+
+  /*
+   * @param type
+   * @return Bytes a field of <code>type</code> takes in its object.
+   */
+  private static int sizeOfField(final Class<?> type) {
+    if (!type.isPrimitive()) {
+      return REFERENCE;
+    }
+    if (type == Long.TYPE || type == Double.TYPE) {
+      return 8;
+    }
+    if (type == Integer.TYPE || type == Float.TYPE) {
+      return 4;
+    }
+    if (type == Short.TYPE || type == Character.TYPE) {
+      return 2;
+    }
+    return 1;
+  }
+}
@@ -17,7 +17,13 @@
  */
 package org.apache.hadoop.hbase.util;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -84,4 +90,48 @@ public class Threads {
       }
     }
   }
-}
\ No newline at end of file
+
+  /**
+   * @param prefix Thread names are this followed by a dash and a count.
+   * @return A factory of daemon threads for an executor.
+   */
+  public static ThreadFactory newDaemonThreadFactory(final String prefix) {
+    return new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger(0);
+
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    };
+  }
+
+  /**
+   * Wait on a task that does I/O.
+   * @param f
+   * @param what What the task does, for messages, e.g. "opening region".
+   * @return What the task returned.
+   * @throws IOException What the task threw if an IOException, else an
+   * IOException caused by what it threw, or an InterruptedIOException if
+   * interrupted while waiting.
+   */
+  public static <T> T get(final Future<T> f, final String what)
+  throws IOException {
+    try {
+      return f.get();
+    } catch (InterruptedException e) {
+      // Keep the interrupt for whoever is shutting us down.
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted " + what);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException)cause;
+      }
+      IOException ioe = new IOException("Failed " + what);
+      ioe.initCause(cause);
+      throw ioe;
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.client;
+
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.MultiRegionTable;
+import org.apache.hadoop.hbase.io.BatchUpdate;
+import org.apache.hadoop.hbase.io.Cell;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Test batches of writes to many regions on more than one regionserver.
+ */
+public class TestMultiRegionBatchUpdate extends MultiRegionTable {
+  private static final String COLUMN_NAME = "contents:";
+  private static final byte [] COLUMN = Bytes.toBytes(COLUMN_NAME + "batch");
+  private static final int ROWS_PER_REGION = 20;
+
+  /** constructor */
+  public TestMultiRegionBatchUpdate() {
+    super(COLUMN_NAME);
+    this.regionServers = 2;
+    desc = new HTableDescriptor("TestMultiRegionBatchUpdate");
+    desc.addFamily(new HColumnDescriptor(COLUMN_NAME));
+  }
+
+  /**
+   * @throws IOException
+   */
+  public void testFlushToManyRegions() throws IOException {
+    HTable table = new HTable(conf, desc.getName());
+    table.setAutoFlush(false);
+    int count = 0;
+    for (char c = 'a'; c <= 'z'; c++) {
+      for (int i = 0; i < ROWS_PER_REGION; i++) {
+        BatchUpdate b = new BatchUpdate(row(c, i));
+        b.put(COLUMN, Bytes.toBytes(count++));
+        table.commit(b);
+      }
+    }
+    table.flushCommits();
+    count = 0;
+    for (char c = 'a'; c <= 'z'; c++) {
+      for (int i = 0; i < ROWS_PER_REGION; i++) {
+        Cell cell = table.get(row(c, i), COLUMN);
+        assertNotNull(cell);
+        assertEquals(count++, Bytes.toInt(cell.getValue()));
+      }
+    }
+  }
+
+  /**
+   * @throws IOException
+   */
+  public void testIncrementManyRegions() throws IOException {
+    HTable table = new HTable(conf, desc.getName());
+    int n = 26 * 2;
+    byte [][] rows = new byte[n][];
+    byte [][] columns = new byte[n][];
+    long [] amounts = new long[n];
+    for (int i = 0; i < n; i++) {
+      // Each counter twice, the second time in reverse order.
+      char c = (char)('a' + (i < 26? i: n - 1 - i));
+      rows[i] = row(c, 0);
+      columns[i] = COLUMN;
+      amounts[i] = 1;
+    }
+    long [] values = table.incrementColumnValues(rows, columns, amounts);
+    assertEquals(n, values.length);
+    for (int i = 0; i < n; i++) {
+      assertEquals(i < 26? 1: 2, values[i]);
+    }
+    assertEquals(3, table.incrementColumnValue(row('q', 0), COLUMN, 1));
+  }
+
+  private byte [] row(final char c, final int i) {
+    return Bytes.toBytes("" + c + c + c + "batch" + i);
+  }
+}
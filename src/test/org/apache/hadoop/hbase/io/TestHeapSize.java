@@ -0,0 +1,141 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.LeaseListener;
+import org.apache.hadoop.hbase.Leases;
+import org.apache.hadoop.hbase.io.hfile.BlockCacheKey;
+import org.apache.hadoop.hbase.io.hfile.CachedBlock;
+import org.apache.hadoop.hbase.io.hfile.LruBlockCache;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.ClassSize;
+
+/**
+ * Check our heap size estimates against the classes they estimate and
+ * against the arithmetic of {@link ClassSize}.  Heap measured in a running
+ * JVM is too noisy to assert on here; see
+ * {@link org.apache.hadoop.hbase.regionserver.HeapSizeEvaluation}, which
+ * compares the estimates with measured heap.
+ */
+public class TestHeapSize extends TestCase {
+  /**
+   * Overheads worked out by hand must match the fields of their classes.
+   * If this fails, a field was added or removed without the overhead being
+   * fixed.
+   * @throws Exception
+   */
+  public void testFixedOverheads() throws Exception {
+    assertEquals(ClassSize.estimateBase(KeyValue.class),
+      KeyValue.FIXED_OVERHEAD);
+    assertEquals(ClassSize.estimateBase(BlockCacheKey.class),
+      BlockCacheKey.OVERHEAD);
+    assertEquals(ClassSize.estimateBase(CachedBlock.class),
+      CachedBlock.FIXED_OVERHEAD);
+    assertEquals(ClassSize.estimateBase(LruBlockCache.class),
+      LruBlockCache.FIXED_OVERHEAD);
+    assertEquals(ClassSize.estimateBase(
+        Class.forName("org.apache.hadoop.hbase.Leases$Lease")),
+      Leases.LEASE_OVERHEAD - ClassSize.HASHMAP_ENTRY - ClassSize.REFERENCE);
+  }
+
+  /**
+   * A KeyValue is its fixed overhead plus its backing array, each rounded
+   * up to a multiple of eight.
+   */
+  public void testKeyValues() {
+    byte [] column = Bytes.toBytes("col:umn");
+    for (int i = 0; i < 64; i++) {
+      KeyValue kv = new KeyValue(Bytes.toBytes("row"), column, i,
+        new byte[i]);
+      assertEquals(KeyValue.FIXED_OVERHEAD +
+        ClassSize.align(ClassSize.ARRAY + kv.getLength()), kv.heapSize());
+      assertEquals(0, kv.heapSize() % 8);
+    }
+  }
+
+  /**
+   * A block cache grows by each block, its key and its map entry.
+   */
+  public void testBlockCache() {
+    final int count = 100;
+    final int blockSize = 1000;
+    LruBlockCache cache = new LruBlockCache(100L * count * blockSize,
+      blockSize);
+    long empty = cache.heapSize();
+    assertTrue(empty > LruBlockCache.FIXED_OVERHEAD);
+    long perBlock = CachedBlock.FIXED_OVERHEAD + ClassSize.BYTE_BUFFER +
+      BlockCacheKey.OVERHEAD + ClassSize.sizeOfByteArray(blockSize) +
+      ClassSize.HASHMAP_ENTRY;
+    String name = "file";
+    for (int i = 0; i < count; i++) {
+      cache.cacheBlock(new BlockCacheKey(name, i),
+        ByteBuffer.allocate(blockSize));
+    }
+    assertEquals(empty + count * perBlock, cache.heapSize());
+  }
+
+  /**
+   * Leases are their overhead and their names.
+   * @throws Exception
+   */
+  public void testLeases() throws Exception {
+    final LeaseListener listener = new LeaseListener() {
+      public void leaseExpired() {
+      }
+    };
+    Leases leases = new Leases(60000, 1000);
+    assertEquals(0, leases.heapSize());
+    long expected = 0;
+    for (int i = 0; i < 100; i++) {
+      String name = "lease" + i;
+      leases.createLease(name, listener);
+      expected += Leases.LEASE_OVERHEAD + ClassSize.STRING +
+        ClassSize.align(ClassSize.ARRAY + (2 * name.length()));
+    }
+    assertEquals(expected, leases.heapSize());
+  }
+
+  /**
+   * The derived sizes are consistent with each other.
+   */
+  public void testClassSize() {
+    assertEquals(ClassSize.IS_64_BIT && !ClassSize.COMPRESSED_OOPS? 8: 4,
+      ClassSize.REFERENCE);
+    assertTrue(ClassSize.ARRAY > ClassSize.OBJECT);
+    assertEquals(ClassSize.align(ClassSize.ARRAY),
+      ClassSize.sizeOfByteArray(0));
+    assertEquals(ClassSize.align(ClassSize.ARRAY + 9),
+      ClassSize.sizeOfByteArray(9));
+    assertEquals(ClassSize.sizeOfArray(3, ClassSize.REFERENCE),
+      ClassSize.align(ClassSize.ARRAY + 3 * ClassSize.REFERENCE));
+    assertEquals(ClassSize.estimateBase(Integer.class), ClassSize.INTEGER);
+    assertEquals(ClassSize.estimateBase(
+        java.util.concurrent.atomic.AtomicLong.class), ClassSize.ATOMIC_LONG);
+    for (int i = 0; i < 32; i++) {
+      assertEquals(0, ClassSize.align(i) % 8);
+      assertTrue(ClassSize.align(i) - i < 8);
+    }
+  }
+}
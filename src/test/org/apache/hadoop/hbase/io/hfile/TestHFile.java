@@ -167,6 +167,97 @@ public class TestHFile extends TestCase {
     basicWithSomeCodec("gz");
   }
 
+  /**
+   * Scan one cached reader from many threads at once.  Every block should
+   * end up in the cache once, under its offset keyed name.
+   * @throws Exception
+   */
+  public void testConcurrentCachedReads() throws Exception {
+    Path path = new Path(ROOT_DIR, "cached.hfile");
+    FSDataOutputStream fout = createFSOutput(path);
+    Writer writer = new Writer(fout, minBlockSize,
+      Compression.Algorithm.NONE, null, false);
+    writeRecords(writer);
+    fout.close();
+    LruBlockCache cache = new LruBlockCache(1024 * 1024, minBlockSize);
+    final Reader reader = new Reader(fs.open(path),
+      fs.getFileStatus(path).getLen(), cache);
+    reader.loadFileInfo();
+    final Throwable [] failure = new Throwable[1];
+    Thread [] threads = new Thread[10];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            HFileScanner scanner = reader.getScanner();
+            scanner.seekTo();
+            readAllRecords(scanner);
+          } catch (Throwable t) {
+            synchronized (failure) {
+              failure[0] = t;
+            }
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread t: threads) {
+      t.join();
+    }
+    assertNull(failure[0]);
+    assertEquals(reader.blockIndex.count, cache.size());
+    reader.close();
+    fs.delete(path, true);
+  }
+
+  /**
+   * Write a file with a two-level block index and check it reads, seeks and
+   * caches as a single-level one does.
+   * @throws Exception
+   */
+  public void testTwoLevelIndex() throws Exception {
+    Path path = new Path(ROOT_DIR, "twolevel.hfile");
+    FSDataOutputStream fout = createFSOutput(path);
+    Writer writer = new Writer(fout, minBlockSize,
+      Compression.Algorithm.NONE, null, false);
+    writer.setIndexBlockEntries(3);
+    writer.appendMetaBlock("HFileMeta", Bytes.toBytes("meta"));
+    writeRecords(writer);
+    fout.close();
+    LruBlockCache cache = new LruBlockCache(1024 * 1024, minBlockSize);
+    Reader reader = new Reader(fs.open(path),
+      fs.getFileStatus(path).getLen(), cache);
+    reader.loadFileInfo();
+    int blocks = reader.getDataBlockCount();
+    assertTrue(blocks > 3);
+    // Root index has an entry per leaf only.
+    assertEquals((blocks + 2) / 3, reader.blockIndex.count);
+    HFileScanner scanner = reader.getScanner();
+    assertTrue(scanner.seekTo());
+    readAllRecords(scanner);
+    for (int i = 0; i < 100; i++) {
+      assertEquals(0, scanner.seekTo(getSomeKey(i)));
+      assertTrue(Arrays.equals(getSomeKey(i),
+        Bytes.toBytes(scanner.getKey())));
+    }
+    for (int i = 1; i < 100; i++) {
+      assertTrue(scanner.seekBefore(getSomeKey(i)));
+      assertTrue(Arrays.equals(getSomeKey(i - 1),
+        Bytes.toBytes(scanner.getKey())));
+    }
+    assertFalse(scanner.seekBefore(getSomeKey(0)));
+    assertEquals(-1, scanner.seekTo(new byte [] {0}));
+    assertTrue(Arrays.equals(getSomeKey(0), reader.getFirstKey()));
+    assertNotNull(reader.midkey());
+    assertTrue(Arrays.equals(Bytes.toBytes("meta"),
+      Bytes.toBytes(reader.getMetaBlock("HFileMeta"))));
+    // Data blocks plus leaves are cached.
+    assertEquals(blocks + reader.blockIndex.count, cache.size());
+    reader.close();
+    fs.delete(path, true);
+  }
+
   private void writeNumMetablocks(Writer writer, int n) {
     for (int i = 0; i < n; i++) {
       writer.appendMetaBlock("HFileMeta" + i, ("something to test" + i).getBytes());
@@ -0,0 +1,244 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the concurrent LruBlockCache.
+ * <p>
+ * Tests will ensure it grows and shrinks in size properly,
+ * evictions run when they're supposed to and do what they should,
+ * and that cached blocks are accessible when expected to be.
+ */
+public class TestLruBlockCache extends TestCase {
+
+  public void testCacheSimple() throws Exception {
+    LruBlockCache cache = new LruBlockCache(1000000, 10000);
+    Block [] blocks = generateBlocks(10, 10000);
+    long expectedCacheSize = cache.heapSize();
+
+    // Confirm empty
+    for (Block block: blocks) {
+      assertNull(cache.getBlock(block.cacheKey));
+    }
+
+    // Add blocks
+    for (Block block: blocks) {
+      cache.cacheBlock(block.cacheKey, block.buf);
+      expectedCacheSize += block.heapSize();
+    }
+
+    // Verify correctly calculated cache heap size
+    assertEquals(expectedCacheSize, cache.heapSize());
+
+    // Check if all blocks are properly cached and retrieved
+    for (Block block: blocks) {
+      ByteBuffer buf = cache.getBlock(block.cacheKey);
+      assertNotNull(buf);
+      assertEquals(buf.capacity(), block.buf.capacity());
+    }
+
+    // Re-add same blocks and ensure nothing has changed
+    for (Block block: blocks) {
+      cache.cacheBlock(block.cacheKey, block.buf);
+    }
+    assertEquals(expectedCacheSize, cache.heapSize());
+    assertEquals(blocks.length, cache.size());
+
+    // Expect no evictions
+    assertEquals(0, cache.getEvictionCount());
+    assertEquals(10, cache.getStats().getMissCount());
+    assertEquals(10, cache.getStats().getHitCount());
+  }
+
+  public void testCacheEvictionSimple() throws Exception {
+    long maxSize = 100000;
+    long blockSize = calculateBlockSize(maxSize, 10);
+    LruBlockCache cache = new LruBlockCache(maxSize, blockSize);
+    Block [] blocks = generateFixedBlocks(10, blockSize, "block");
+    long expectedCacheSize = cache.heapSize();
+
+    // Add all the blocks
+    for (Block block: blocks) {
+      cache.cacheBlock(block.cacheKey, block.buf);
+      expectedCacheSize += block.heapSize();
+    }
+
+    // A single eviction run should have occurred
+    assertEquals(1, cache.getEvictionCount());
+
+    // Our expected size overruns acceptable limit
+    assertTrue(expectedCacheSize >
+      (maxSize * LruBlockCache.DEFAULT_ACCEPTABLE_FACTOR));
+
+    // But the cache did not grow beyond max
+    assertTrue(cache.heapSize() < maxSize);
+
+    // And is still below the acceptable limit
+    assertTrue(cache.heapSize() <
+      (maxSize * LruBlockCache.DEFAULT_ACCEPTABLE_FACTOR));
+
+    // All blocks except block 0 and 1 should be in the cache
+    assertNull(cache.getBlock(blocks[0].cacheKey));
+    assertNull(cache.getBlock(blocks[1].cacheKey));
+    for (int i = 2; i < blocks.length; i++) {
+      assertEquals(cache.getBlock(blocks[i].cacheKey), blocks[i].buf);
+    }
+  }
+
+  public void testCacheEvictionRespectsAccessOrder() throws Exception {
+    long maxSize = 100000;
+    long blockSize = calculateBlockSize(maxSize, 10);
+    LruBlockCache cache = new LruBlockCache(maxSize, blockSize);
+    Block [] blocks = generateFixedBlocks(10, blockSize, "block");
+
+    // Fill the cache up to just below the acceptable limit.
+    for (int i = 0; i < 8; i++) {
+      cache.cacheBlock(blocks[i].cacheKey, blocks[i].buf);
+    }
+    assertEquals(0, cache.getEvictionCount());
+
+    // Touch the two oldest blocks so they are now the most recently used.
+    assertNotNull(cache.getBlock(blocks[0].cacheKey));
+    assertNotNull(cache.getBlock(blocks[1].cacheKey));
+
+    // Push the cache over the acceptable limit.
+    cache.cacheBlock(blocks[8].cacheKey, blocks[8].buf);
+    cache.cacheBlock(blocks[9].cacheKey, blocks[9].buf);
+    assertEquals(1, cache.getEvictionCount());
+
+    // Blocks 2 and 3 were the least recently used and should be gone.
+    assertNotNull(cache.getBlock(blocks[0].cacheKey));
+    assertNotNull(cache.getBlock(blocks[1].cacheKey));
+    assertNull(cache.getBlock(blocks[2].cacheKey));
+    assertNull(cache.getBlock(blocks[3].cacheKey));
+    assertNotNull(cache.getBlock(blocks[9].cacheKey));
+  }
+
+  public void testScanResistance() throws Exception {
+    long maxSize = 100000;
+    long blockSize = calculateBlockSize(maxSize, 10);
+    LruBlockCache cache = new LruBlockCache(maxSize, blockSize);
+    Block [] singleBlocks = generateFixedBlocks(20, blockSize, "single");
+    Block [] multiBlocks = generateFixedBlocks(3, blockSize, "multi");
+
+    // Working set: cache the multi blocks and read each of them back once
+    // so they are promoted to multiple-access.
+    for (Block block: multiBlocks) {
+      cache.cacheBlock(block.cacheKey, block.buf);
+      assertNotNull(cache.getBlock(block.cacheKey));
+    }
+    assertEquals(multiBlocks.length,
+      cache.getStats().getHitCount(CachedBlock.BlockPriority.SINGLE));
+
+    // A long scan: every block read exactly once.
+    for (Block block: singleBlocks) {
+      cache.cacheBlock(block.cacheKey, block.buf);
+    }
+    assertTrue(cache.getEvictionCount() > 0);
+
+    // Multi bucket is within its share so only scanned blocks got evicted.
+    assertEquals(0,
+      cache.getStats().getEvictedCount(CachedBlock.BlockPriority.MULTI));
+    assertTrue(
+      cache.getStats().getEvictedCount(CachedBlock.BlockPriority.SINGLE) > 0);
+    for (Block block: multiBlocks) {
+      assertNotNull(cache.getBlock(block.cacheKey));
+    }
+    assertEquals(multiBlocks.length,
+      cache.getStats().getHitCount(CachedBlock.BlockPriority.MULTI));
+
+    // The cache did not grow beyond its acceptable size
+    assertTrue(cache.heapSize() <
+      (maxSize * LruBlockCache.DEFAULT_ACCEPTABLE_FACTOR));
+  }
+
+  public void testInMemoryBucket() throws Exception {
+    long maxSize = 100000;
+    long blockSize = calculateBlockSize(maxSize, 10);
+    LruBlockCache cache = new LruBlockCache(maxSize, blockSize);
+    Block [] memoryBlocks = generateFixedBlocks(1, blockSize, "memory");
+    Block [] singleBlocks = generateFixedBlocks(20, blockSize, "single");
+
+    for (Block block: memoryBlocks) {
+      cache.cacheBlock(block.cacheKey, block.buf, true);
+    }
+    for (Block block: singleBlocks) {
+      cache.cacheBlock(block.cacheKey, block.buf);
+    }
+    assertTrue(cache.getEvictionCount() > 0);
+
+    // In-memory blocks were older than all the scanned blocks but fit in
+    // their bucket so they survived.
+    assertEquals(0,
+      cache.getStats().getEvictedCount(CachedBlock.BlockPriority.MEMORY));
+    for (Block block: memoryBlocks) {
+      assertNotNull(cache.getBlock(block.cacheKey));
+    }
+    assertEquals(memoryBlocks.length,
+      cache.getStats().getHitCount(CachedBlock.BlockPriority.MEMORY));
+  }
+
+  private Block [] generateFixedBlocks(int numBlocks, long size, String pfx) {
+    Block [] blocks = new Block[numBlocks];
+    for (int i = 0; i < numBlocks; i++) {
+      blocks[i] = new Block(pfx + i, (int)size);
+    }
+    return blocks;
+  }
+
+  private Block [] generateBlocks(int numBlocks, int maxSize) {
+    Block [] blocks = new Block[numBlocks];
+    for (int i = 0; i < numBlocks; i++) {
+      blocks[i] = new Block("block" + i,
+        (int)(Math.random() * (maxSize - 1)) + 1);
+    }
+    return blocks;
+  }
+
+  /*
+   * Size of the payload such that <code>numBlocks</code> blocks, overhead
+   * included, add up to <code>maxSize</code>.
+   */
+  private long calculateBlockSize(long maxSize, int numBlocks) {
+    long roughBlockSize = maxSize / numBlocks;
+    long overhead = new CachedBlock(new BlockCacheKey("block", 0),
+      ByteBuffer.allocate(0), 0).heapSize() + 64;
+    return roughBlockSize - overhead;
+  }
+
+  private static class Block {
+    BlockCacheKey cacheKey;
+    ByteBuffer buf;
+
+    Block(String blockName, int size) {
+      this.cacheKey = new BlockCacheKey(blockName, 0);
+      this.buf = ByteBuffer.allocate(size);
+    }
+
+    long heapSize() {
+      return new CachedBlock(this.cacheKey, this.buf, 0).heapSize() +
+        LruBlockCache.MAP_ENTRY_OVERHEAD;
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the off-heap SlabCache, alone and as victim cache of an
+ * LruBlockCache.
+ */
+public class TestSlabCache extends TestCase {
+  private static final int BLOCK_SIZE = 1000;
+
+  public void testCacheAndCopyBack() throws Exception {
+    SlabCache cache = new SlabCache(100 * BLOCK_SIZE, BLOCK_SIZE);
+    ByteBuffer block = makeBlock(BLOCK_SIZE, (byte)7);
+    // HFile.Reader hands out blocks whose limit is short of capacity.
+    block.limit(BLOCK_SIZE - 4);
+    cache.cacheBlock(key("block"), block);
+    assertEquals(1, cache.size());
+
+    ByteBuffer copy = cache.getBlock(key("block"));
+    assertNotNull(copy);
+    assertFalse(copy.isDirect());
+    assertEquals(0, copy.position());
+    assertEquals(BLOCK_SIZE - 4, copy.limit());
+    for (int i = 0; i < copy.limit(); i++) {
+      assertEquals(7, copy.get(i));
+    }
+    // Changing the copy does not change what is cached.
+    copy.put(0, (byte)1);
+    assertEquals(7, cache.getBlock(key("block")).get(0));
+
+    assertNull(cache.getBlock(key("missing")));
+    assertEquals(2, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  public void testSizeClassesAndEviction() throws Exception {
+    // Room for exactly two small and one large slot.
+    SlabCache cache = new SlabCache(4 * BLOCK_SIZE, BLOCK_SIZE,
+      new float [] {1.0f, 2.0f}, new float [] {0.5f, 0.5f});
+    assertEquals(4 * BLOCK_SIZE, cache.getMaxSize());
+
+    cache.cacheBlock(key("a"), makeBlock(BLOCK_SIZE, (byte)1));
+    cache.cacheBlock(key("b"), makeBlock(BLOCK_SIZE, (byte)2));
+    cache.cacheBlock(key("big"), makeBlock(2 * BLOCK_SIZE, (byte)3));
+    cache.cacheBlock(key("huge"), makeBlock(3 * BLOCK_SIZE, (byte)4));
+    assertEquals(3, cache.size());
+    assertEquals(1, cache.getRejectedCount());
+    assertNull(cache.getBlock(key("huge")));
+
+    // Touch a so that b is the least recently used small block.
+    assertEquals(1, cache.getBlock(key("a")).get(0));
+    cache.cacheBlock(key("c"), makeBlock(BLOCK_SIZE, (byte)5));
+    assertEquals(1, cache.getEvictedCount());
+    assertNull(cache.getBlock(key("b")));
+    assertEquals(1, cache.getBlock(key("a")).get(0));
+    assertEquals(5, cache.getBlock(key("c")).get(0));
+    // The large class was untouched.
+    assertEquals(3, cache.getBlock(key("big")).get(0));
+  }
+
+  public void testVictimCache() throws Exception {
+    LruBlockCache lru = new LruBlockCache(10 * BLOCK_SIZE, BLOCK_SIZE);
+    SlabCache slab = new SlabCache(100 * BLOCK_SIZE, BLOCK_SIZE);
+    lru.setVictimCache(slab);
+
+    for (int i = 0; i < 20; i++) {
+      lru.cacheBlock(key("block" + i), makeBlock(BLOCK_SIZE, (byte)i));
+    }
+    assertTrue(lru.getEvictedCount() > 0);
+    assertEquals(lru.getEvictedCount(), slab.size());
+
+    // Oldest block was evicted on heap but is served from off heap...
+    ByteBuffer buf = lru.getBlock(key("block0"));
+    assertNotNull(buf);
+    assertEquals(0, buf.get(BLOCK_SIZE - 1));
+    assertEquals(1, slab.getHitCount());
+    // ...and is back on heap afterwards.
+    assertNotNull(lru.getBlock(key("block0")));
+    assertEquals(1, slab.getHitCount());
+  }
+
+  private BlockCacheKey key(final String name) {
+    return new BlockCacheKey(name, 0);
+  }
+
+  private ByteBuffer makeBlock(final int size, final byte value) {
+    ByteBuffer buf = ByteBuffer.allocate(size);
+    for (int i = 0; i < size; i++) {
+      buf.put(i, value);
+    }
+    return buf;
+  }
+}
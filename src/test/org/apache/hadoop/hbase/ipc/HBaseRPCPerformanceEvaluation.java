@@ -0,0 +1,161 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.ipc;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+
+/**
+ * <p>
+ * Measures how many small calls per second the handlers of an
+ * {@link HBaseRPC.Server} can dispatch.  Calls go straight to
+ * {@link HBaseRPC.Server#call(org.apache.hadoop.io.Writable, long)} against
+ * a regionserver that does no work so that the figure is the cost of method
+ * lookup, invocation and metrics alone; no sockets are involved.
+ * </p>
+ * <p>
+ * Usage: HBaseRPCPerformanceEvaluation [THREADS [CALLS_PER_THREAD]]
+ * </p>
+ */
+public class HBaseRPCPerformanceEvaluation {
+  static final Log LOG =
+    LogFactory.getLog(HBaseRPCPerformanceEvaluation.class.getName());
+
+  private final HBaseConfiguration conf = new HBaseConfiguration();
+
+  /*
+   * @return A regionserver whose every method returns at once.
+   */
+  private Object makeInstance() {
+    return Proxy.newProxyInstance(HRegionInterface.class.getClassLoader(),
+      new Class<?> [] {HRegionInterface.class},
+      new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] args) {
+          Class<?> c = method.getReturnType();
+          return c == Long.TYPE? Long.valueOf(0):
+            c == Boolean.TYPE? Boolean.FALSE: null;
+        }
+      });
+  }
+
+  /*
+   * @return The calls each thread cycles through; a mix of overloaded and
+   * plain methods as a client would send them.
+   */
+  private HBaseRPC.Invocation [] makeCalls() throws Exception {
+    byte [] b = Bytes.toBytes("b");
+    Class<?> c = HRegionInterface.class;
+    HBaseRPC.Invocation [] calls = {
+      makeCall(c.getMethod("next", Long.TYPE), Long.valueOf(1)),
+      makeCall(c.getMethod("next", Long.TYPE, Integer.TYPE), Long.valueOf(1),
+        Integer.valueOf(100)),
+      makeCall(c.getMethod("exists", byte[].class, byte[].class,
+        byte[].class, Long.TYPE, Long.TYPE), b, b, b, Long.valueOf(1),
+        Long.valueOf(-1)),
+      makeCall(c.getMethod("deleteAll", byte[].class, byte[].class,
+        Long.TYPE, Long.TYPE), b, b, Long.valueOf(1), Long.valueOf(-1)),
+      makeCall(c.getMethod("getProtocolVersion", String.class, Long.TYPE),
+        c.getName(), Long.valueOf(0))
+    };
+    return calls;
+  }
+
+  /*
+   * Make an invocation the way the server would read it off the wire.
+   */
+  private HBaseRPC.Invocation makeCall(final Method method,
+      final Object... params)
+  throws IOException {
+    HBaseRPC.Invocation inv = new HBaseRPC.Invocation(method, params);
+    inv.setConf(this.conf);
+    DataOutputBuffer out = new DataOutputBuffer();
+    inv.write(out);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    HBaseRPC.Invocation read = new HBaseRPC.Invocation();
+    read.setConf(this.conf);
+    read.readFields(in);
+    return read;
+  }
+
+  /**
+   * @param threads Number of handler threads calling concurrently.
+   * @param calls Number of calls each thread makes.
+   * @return Calls per second over all threads.
+   * @throws Exception
+   */
+  public double run(final int threads, final int calls) throws Exception {
+    final HBaseRPC.Server server =
+      new HBaseRPC.Server(makeInstance(), this.conf, "localhost", 0);
+    final HBaseRPC.Invocation [] invocations = makeCalls();
+    try {
+      Thread [] handlers = new Thread[threads];
+      for (int i = 0; i < threads; i++) {
+        handlers[i] = new Thread("handler-" + i) {
+          @Override
+          public void run() {
+            try {
+              for (int j = 0; j < calls; j++) {
+                server.call(invocations[j % invocations.length],
+                  System.currentTimeMillis());
+              }
+            } catch (IOException e) {
+              throw new RuntimeException(e);
+            }
+          }
+        };
+      }
+      long start = System.nanoTime();
+      for (Thread t: handlers) {
+        t.start();
+      }
+      for (Thread t: handlers) {
+        t.join();
+      }
+      long elapsed = System.nanoTime() - start;
+      return (double)threads * calls * 1000000000L / elapsed;
+    } finally {
+      server.stop();
+    }
+  }
+
+  /**
+   * @param args
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0? Integer.parseInt(args[0]): 10;
+    int calls = args.length > 1? Integer.parseInt(args[1]): 1000000;
+    HBaseRPCPerformanceEvaluation pe = new HBaseRPCPerformanceEvaluation();
+    // Once to warm up, once to measure.
+    pe.run(threads, calls / 10);
+    double rate = pe.run(threads, calls);
+    LOG.info(threads + " threads dispatched " + (long)rate + " calls/sec");
+  }
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.ipc;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.io.HbaseObjectWritable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+
+/**
+ * Tests that HBaseRPC.Server dispatches calls to the right method, overloads
+ * included, without looking the method up per call.
+ */
+public class TestHBaseRPCDispatch extends TestCase {
+  private HBaseConfiguration conf;
+  private HBaseRPC.Server server;
+  private Method invoked;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    this.conf = new HBaseConfiguration();
+    Object instance = Proxy.newProxyInstance(
+      HRegionInterface.class.getClassLoader(),
+      new Class<?> [] {HRegionInterface.class},
+      new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] args) {
+          invoked = method;
+          if (method.getName().equals("getProtocolVersion")) {
+            return Long.valueOf(HBaseRPCProtocolVersion.versionID);
+          }
+          return null;
+        }
+      });
+    this.server = new HBaseRPC.Server(instance, this.conf, "localhost", 0);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    this.server.stop();
+    super.tearDown();
+  }
+
+  public void testOverloads() throws Exception {
+    call(HRegionInterface.class.getMethod("next", Long.TYPE),
+      Long.valueOf(1));
+    assertEquals(1, this.invoked.getParameterTypes().length);
+    call(HRegionInterface.class.getMethod("next", Long.TYPE, Integer.TYPE),
+      Long.valueOf(1), Integer.valueOf(10));
+    assertEquals(2, this.invoked.getParameterTypes().length);
+
+    byte [] b = Bytes.toBytes("b");
+    call(HRegionInterface.class.getMethod("deleteAll", byte[].class,
+        byte[].class, Long.TYPE, Long.TYPE),
+      b, b, Long.valueOf(1), Long.valueOf(-1));
+    assertEquals(4, this.invoked.getParameterTypes().length);
+    call(HRegionInterface.class.getMethod("deleteAll", byte[].class,
+        byte[].class, byte[].class, Long.TYPE, Long.TYPE),
+      b, b, b, Long.valueOf(1), Long.valueOf(-1));
+    assertEquals(5, this.invoked.getParameterTypes().length);
+
+    HbaseObjectWritable result = (HbaseObjectWritable)call(
+      HRegionInterface.class.getMethod("getProtocolVersion", String.class,
+        Long.TYPE), HRegionInterface.class.getName(), Long.valueOf(0));
+    assertEquals(Long.valueOf(HBaseRPCProtocolVersion.versionID),
+      result.get());
+  }
+
+  public void testPriority() throws Exception {
+    Method closest = HRegionInterface.class.getMethod("getClosestRowBefore",
+      byte[].class, byte[].class, byte[].class);
+    byte [] b = Bytes.toBytes("b");
+    assertTrue(this.server.isPriority(roundTrip(new HBaseRPC.Invocation(
+      closest, new Object [] {Bytes.toBytes(".META.,,1"), b, b}))));
+    assertTrue(this.server.isPriority(roundTrip(new HBaseRPC.Invocation(
+      closest, new Object [] {Bytes.toBytes("-ROOT-,,0"), b, b}))));
+    assertFalse(this.server.isPriority(roundTrip(new HBaseRPC.Invocation(
+      closest, new Object [] {Bytes.toBytes("t,,1"), b, b}))));
+    // Only the table name is looked at, not what is looked up in it.
+    assertFalse(this.server.isPriority(roundTrip(new HBaseRPC.Invocation(
+      closest, new Object [] {Bytes.toBytes(".META.x,,1"),
+        Bytes.toBytes(".META.,,1"), b}))));
+    assertTrue(this.server.isPriority(roundTrip(new HBaseRPC.Invocation(
+      HRegionInterface.class.getMethod("getProtocolVersion", String.class,
+        Long.TYPE), new Object [] {"", Long.valueOf(0)}))));
+    assertFalse(this.server.isPriority(roundTrip(new HBaseRPC.Invocation(
+      HRegionInterface.class.getMethod("next", Long.TYPE),
+      new Object [] {Long.valueOf(1)}))));
+  }
+
+  public void testUnknownMethod() throws Exception {
+    // Has a code but is not a regionserver method.
+    HBaseRPC.Invocation inv = new HBaseRPC.Invocation(
+      HMasterInterface.class.getMethod("shutdown"), new Object [0]);
+    try {
+      this.server.call(roundTrip(inv), System.currentTimeMillis());
+      fail("Should not find a shutdown on a regionserver");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("shutdown"));
+    }
+  }
+
+  private Object call(final Method method, final Object... params)
+  throws IOException {
+    this.invoked = null;
+    Object result = this.server.call(
+      roundTrip(new HBaseRPC.Invocation(method, params)),
+      System.currentTimeMillis());
+    assertEquals(method.getName(), this.invoked.getName());
+    return result;
+  }
+
+  private HBaseRPC.Invocation roundTrip(final HBaseRPC.Invocation inv)
+  throws IOException {
+    inv.setConf(this.conf);
+    DataOutputBuffer out = new DataOutputBuffer();
+    inv.write(out);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    HBaseRPC.Invocation read = new HBaseRPC.Invocation();
+    read.setConf(this.conf);
+    read.readFields(in);
+    return read;
+  }
+}
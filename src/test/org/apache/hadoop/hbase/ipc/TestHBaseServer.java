@@ -0,0 +1,220 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.ipc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.net.NetUtils;
+import org.apache.hadoop.security.UnixUserGroupInformation;
+
+/**
+ * Tests HBaseServer spreading client connections over its reader threads
+ * and serving priority calls on handlers of their own.
+ */
+public class TestHBaseServer extends TestCase {
+  private static final int CLIENTS = 4;
+  private static final int CALLS = 50;
+  // Bigger than the pooled request buffers.
+  private static final int BIG = 64 * 1024;
+
+  public void testReaders() throws Exception {
+    HBaseConfiguration conf = new HBaseConfiguration();
+    conf.setInt("ipc.server.read.threadpool.size", 2);
+    Object instance = Proxy.newProxyInstance(
+      HRegionInterface.class.getClassLoader(),
+      new Class<?> [] {HRegionInterface.class},
+      new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] args) {
+          if (method.getName().equals("getProtocolVersion")) {
+            return Long.valueOf(HBaseRPCProtocolVersion.versionID);
+          }
+          // Say whether the region name arrived whole.
+          return Boolean.valueOf(((byte [])args[0]).length ==
+            ((Long)args[3]).intValue());
+        }
+      });
+    final HBaseRPC.Server server =
+      new HBaseRPC.Server(instance, conf, "localhost", 0, 2, false);
+    server.start();
+    try {
+      final InetSocketAddress address = server.getListenerAddress();
+      // A connection is made per user so each client gets its own.
+      final HRegionInterface [] clients = new HRegionInterface[CLIENTS];
+      for (int i = 0; i < CLIENTS; i++) {
+        clients[i] = (HRegionInterface)HBaseRPC.getProxy(
+          HRegionInterface.class, HBaseRPCProtocolVersion.versionID, address,
+          new UnixUserGroupInformation("user" + i, new String [] {"group"}),
+          conf, NetUtils.getDefaultSocketFactory(conf));
+      }
+      final boolean [] ok = new boolean[CLIENTS];
+      final Throwable [] failures = new Throwable[CLIENTS];
+      Thread [] threads = new Thread[CLIENTS];
+      for (int i = 0; i < CLIENTS; i++) {
+        final int client = i;
+        threads[i] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              for (int j = 0; j < CALLS; j++) {
+                int size = j % 2 == 0? 10: BIG;
+                if (!clients[client].exists(new byte[size], new byte[1],
+                    new byte[1], size, -1)) {
+                  return;
+                }
+              }
+              ok[client] = true;
+            } catch (Throwable e) {
+              failures[client] = e;
+            }
+          }
+        };
+        threads[i].start();
+      }
+      for (Thread t: threads) {
+        t.join();
+      }
+      for (int i = 0; i < CLIENTS; i++) {
+        assertNoFailure("client " + i, failures[i]);
+        assertTrue("client " + i, ok[i]);
+        HBaseRPC.stopProxy(clients[i]);
+      }
+
+      server.rpcMetrics.doUpdates(null);
+      int calls = 0;
+      for (int i = 0; i < 2; i++) {
+        // Round-robin gives each reader half the connections.
+        int readerCalls = server.rpcMetrics.readerCallsRead[i].
+          getPreviousIntervalValue();
+        assertTrue(readerCalls > 0);
+        assertTrue(server.rpcMetrics.readerBytesRead[i].
+          getPreviousIntervalValue() > BIG);
+        calls += readerCalls;
+      }
+      // Plus the version check each proxy does.
+      assertEquals(CLIENTS * CALLS + CLIENTS, calls);
+    } finally {
+      server.stop();
+    }
+  }
+
+  public void testPriorityHandlers() throws Exception {
+    HBaseConfiguration conf = new HBaseConfiguration();
+    final CountDownLatch entered = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    Object instance = Proxy.newProxyInstance(
+      HRegionInterface.class.getClassLoader(),
+      new Class<?> [] {HRegionInterface.class},
+      new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] args)
+        throws InterruptedException {
+          if (method.getName().equals("getProtocolVersion")) {
+            return Long.valueOf(HBaseRPCProtocolVersion.versionID);
+          }
+          if (method.getName().equals("exists")) {
+            // Hold the only ordinary handler.
+            entered.countDown();
+            release.await();
+            return Boolean.TRUE;
+          }
+          return null;
+        }
+      });
+    final HBaseRPC.Server server =
+      HBaseRPC.getServer(instance, "localhost", 0, 1, 1, false, conf);
+    server.start();
+    try {
+      InetSocketAddress address = server.getListenerAddress();
+      final HRegionInterface user = (HRegionInterface)HBaseRPC.getProxy(
+        HRegionInterface.class, HBaseRPCProtocolVersion.versionID, address,
+        new UnixUserGroupInformation("user", new String [] {"group"}),
+        conf, NetUtils.getDefaultSocketFactory(conf));
+      final HRegionInterface catalog = (HRegionInterface)HBaseRPC.getProxy(
+        HRegionInterface.class, HBaseRPCProtocolVersion.versionID, address,
+        new UnixUserGroupInformation("catalog", new String [] {"group"}),
+        conf, NetUtils.getDefaultSocketFactory(conf));
+      // What the blocked and lookup threads threw, if anything.
+      final Throwable [] failures = new Throwable[2];
+      Thread blocked = new Thread() {
+        @Override
+        public void run() {
+          try {
+            user.exists(Bytes.toBytes("t,,1"), new byte[1], new byte[1], 1,
+              -1);
+          } catch (Throwable e) {
+            failures[0] = e;
+          }
+        }
+      };
+      blocked.start();
+      entered.await();
+      // Lookups in .META. go around the busy handler.
+      final boolean [] done = new boolean[1];
+      Thread lookup = new Thread() {
+        @Override
+        public void run() {
+          try {
+            catalog.getClosestRowBefore(Bytes.toBytes(".META.,,1"),
+              new byte[1], new byte[1]);
+            done[0] = true;
+          } catch (Throwable e) {
+            failures[1] = e;
+          }
+        }
+      };
+      lookup.start();
+      lookup.join(10000);
+      assertNoFailure("lookup", failures[1]);
+      assertTrue(done[0]);
+      release.countDown();
+      blocked.join();
+      assertNoFailure("blocked call", failures[0]);
+      HBaseRPC.stopProxy(user);
+      HBaseRPC.stopProxy(catalog);
+      assertEquals(0, server.getPriorityCallQueueLen());
+      server.rpcMetrics.doUpdates(null);
+      assertTrue(server.rpcMetrics.priorityRpcQueueTime.
+        getPreviousIntervalNumOps() > 0);
+    } finally {
+      release.countDown();
+      server.stop();
+    }
+  }
+
+  /*
+   * Fail with <code>t</code> as the cause if a thread recorded one.
+   */
+  private static void assertNoFailure(final String what, final Throwable t) {
+    if (t != null) {
+      AssertionFailedError e = new AssertionFailedError(what + " failed: " +
+        t);
+      e.initCause(t);
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.master;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HServerLoad;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Tests the plans the CostBasedLoadBalancer makes and the
+ * LoadBalancerSimulator.
+ */
+public class TestCostBasedLoadBalancer extends TestCase {
+  private HBaseConfiguration conf;
+  private CostBasedLoadBalancer balancer;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    this.conf = new HBaseConfiguration();
+    this.balancer =
+      ReflectionUtils.newInstance(CostBasedLoadBalancer.class, this.conf);
+  }
+
+  public void testBalancedClusterStays() {
+    Map<String, HServerLoad> state = new TreeMap<String, HServerLoad>();
+    for (int s = 0; s < 3; s++) {
+      HServerLoad hsl = new HServerLoad(0, 0, 0);
+      for (int r = 0; r < 10; r++) {
+        hsl.addRegionInfo(region("t" + r, "s" + s + "r" + r, 100));
+      }
+      state.put("server" + s, hsl);
+    }
+    assertTrue(this.balancer.balanceCluster(state, 10).isEmpty());
+    assertEquals(0.0, this.balancer.computeCost(state), 0.0001);
+  }
+
+  public void testRegionCount() {
+    Map<String, HServerLoad> state = new TreeMap<String, HServerLoad>();
+    HServerLoad full = new HServerLoad(0, 0, 0);
+    for (int r = 0; r < 20; r++) {
+      full.addRegionInfo(region("t", "r" + r, 0));
+    }
+    state.put("full", full);
+    state.put("empty", new HServerLoad(0, 0, 0));
+
+    // Never more than asked for.
+    List<RegionPlan> plans = this.balancer.balanceCluster(state, 4);
+    assertEquals(4, plans.size());
+    for (RegionPlan plan: plans) {
+      assertEquals("full", plan.getSource());
+      assertEquals("empty", plan.getDestination());
+    }
+    double before = this.balancer.computeCost(state);
+    plans = this.balancer.balanceCluster(state, 100);
+    assertEquals(10, plans.size());
+    Map<String, HServerLoad> after = LoadBalancerSimulator.apply(state, plans);
+    assertEquals(10, after.get("full").getNumberOfRegions());
+    assertEquals(10, after.get("empty").getNumberOfRegions());
+    assertTrue(this.balancer.computeCost(after) < before);
+  }
+
+  public void testHotRegionsMoveOffWhenCountsAreEven() {
+    Map<String, HServerLoad> state = new TreeMap<String, HServerLoad>();
+    HServerLoad hot = new HServerLoad(0, 0, 0);
+    HServerLoad cold = new HServerLoad(0, 0, 0);
+    for (int r = 0; r < 10; r++) {
+      hot.addRegionInfo(region("t", "hot" + r, r < 2? 10000: 10));
+      cold.addRegionInfo(region("t", "cold" + r, 10));
+    }
+    state.put("hot", hot);
+    state.put("cold", cold);
+    List<RegionPlan> plans = this.balancer.balanceCluster(state, 10);
+    assertFalse(plans.isEmpty());
+    // The first move takes a hot region off the hot server.
+    assertTrue(Bytes.toString(plans.get(0).getRegionName()).startsWith("t,hot0") ||
+      Bytes.toString(plans.get(0).getRegionName()).startsWith("t,hot1"));
+    assertEquals("cold", plans.get(0).getDestination());
+    Map<String, HServerLoad> after = LoadBalancerSimulator.apply(state, plans);
+    assertTrue(requests(after.get("hot")) < 15000);
+    assertTrue(requests(after.get("cold")) > 5000);
+  }
+
+  public void testTableSpread() {
+    this.conf.set("hbase.master.loadbalancer.table.weight", "1.0");
+    this.balancer.setConf(this.conf);
+    // Counts are within the slop but all of table a is on one server.
+    Map<String, HServerLoad> state = new TreeMap<String, HServerLoad>();
+    HServerLoad a = new HServerLoad(0, 0, 0);
+    HServerLoad b = new HServerLoad(0, 0, 0);
+    for (int r = 0; r < 4; r++) {
+      a.addRegionInfo(region("a", "r" + r, 0));
+    }
+    for (int r = 0; r < 3; r++) {
+      b.addRegionInfo(region("b", "r" + r, 0));
+    }
+    state.put("a", a);
+    state.put("b", b);
+    List<RegionPlan> plans = this.balancer.balanceCluster(state, 10);
+    assertFalse(plans.isEmpty());
+    assertEquals("a", CostBasedLoadBalancer.getTableName(
+      plans.get(0).getRegionName()));
+    assertEquals("b", plans.get(0).getDestination());
+    Map<String, HServerLoad> after = LoadBalancerSimulator.apply(state, plans);
+    for (HServerLoad hsl: after.values()) {
+      int count = 0;
+      for (HServerLoad.RegionLoad rl: hsl.getRegionsLoad()) {
+        if (CostBasedLoadBalancer.getTableName(rl.getName()).equals("a")) {
+          count++;
+        }
+      }
+      assertEquals(2, count);
+    }
+    assertTrue(this.balancer.computeCost(after) <
+      this.balancer.computeCost(state));
+  }
+
+  public void testCatalogRegionsStay() {
+    Map<String, HServerLoad> state = new TreeMap<String, HServerLoad>();
+    HServerLoad full = new HServerLoad(0, 0, 0);
+    full.addRegionInfo(region("-ROOT-", "", 100000));
+    full.addRegionInfo(region(".META.", "", 100000));
+    state.put("full", full);
+    state.put("empty", new HServerLoad(0, 0, 0));
+    assertTrue(this.balancer.balanceCluster(state, 10).isEmpty());
+  }
+
+  public void testSimulator() throws Exception {
+    Map<String, HServerLoad> state = LoadBalancerSimulator.makeCluster(5, 200);
+    FileSystem fs = FileSystem.getLocal(this.conf);
+    Path p = new Path(System.getProperty("test.build.data", "/tmp"),
+      "TestCostBasedLoadBalancer.loads");
+    LoadBalancerSimulator.writeSnapshot(fs, p, state);
+    Map<String, HServerLoad> read = LoadBalancerSimulator.readSnapshot(fs, p);
+    fs.delete(p, false);
+    assertEquals(state.keySet(), read.keySet());
+    for (String server: state.keySet()) {
+      assertEquals(state.get(server).getNumberOfRegions(),
+        read.get(server).getNumberOfRegions());
+      assertEquals(requests(state.get(server)), requests(read.get(server)));
+    }
+
+    LoadBalancerSimulator.Result result =
+      new LoadBalancerSimulator(this.conf).simulate(
+        CostBasedLoadBalancer.class, read, 20);
+    assertTrue(result.getMoves() > 0);
+    assertTrue(result.getMoves() <= 20 * 10);
+    assertTrue(result.getCostAfter() < result.getCostBefore());
+    assertTrue(result.getRequestSpreadAfter() < 1.5);
+  }
+
+  private static HServerLoad.RegionLoad region(final String table,
+      final String row, final int requests) {
+    return new HServerLoad.RegionLoad(Bytes.toBytes(table + "," + row + ",1"),
+      1, 1, 0, 0, 100, requests);
+  }
+
+  private static int requests(final HServerLoad hsl) {
+    int requests = 0;
+    for (HServerLoad.RegionLoad rl: hsl.getRegionsLoad()) {
+      requests += rl.getRequests();
+    }
+    return requests;
+  }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.master;
+
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.MultiRegionTable;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Scanner;
+import org.apache.hadoop.hbase.io.RowResult;
+import org.apache.hadoop.hbase.master.metrics.MasterMetrics;
+
+/**
+ * Test the master's scans of <code>.META.</code> when the table takes
+ * several batches of rows and the rescan runs on more than one thread.
+ */
+public class TestMetaScan extends MultiRegionTable {
+  private static final int REGIONS = 25;
+
+  /** constructor */
+  public TestMetaScan() {
+    super("contents:");
+    desc = new HTableDescriptor("TestMetaScan");
+    desc.addFamily(new HColumnDescriptor("contents:"));
+    // Many batches per META region.
+    conf.setInt("hbase.master.meta.scanner.caching", 3);
+    conf.setInt("hbase.master.meta.scanner.threads", 2);
+    conf.setInt("hbase.master.meta.thread.rescanfrequency", 5000);
+  }
+
+  /**
+   * @throws Exception
+   */
+  public void testBatchedScan() throws Exception {
+    HTable t = new HTable(conf, desc.getName());
+    assertEquals(REGIONS, t.getStartKeys().length);
+    // All regions got assigned off the batched scan so all can be read.
+    Scanner s = t.getScanner(new byte [][] {columnName});
+    int rows = 0;
+    try {
+      for (RowResult r: s) {
+        assertNotNull(r);
+        rows++;
+      }
+    } finally {
+      s.close();
+    }
+    assertTrue(rows > 0);
+
+    // Wait on a rescan to report.
+    MasterMetrics metrics = cluster.getMaster().getMetrics();
+    for (int i = 0; i < 300 && metrics.getMetaScanRows() != REGIONS; i++) {
+      Thread.sleep(100);
+    }
+    assertEquals(REGIONS, metrics.getMetaScanRows());
+    assertTrue(metrics.getMetaScanTime() >= 0);
+  }
+}
@@ -0,0 +1,262 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.RuntimeMXBean;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.LeaseListener;
+import org.apache.hadoop.hbase.Leases;
+import org.apache.hadoop.hbase.io.HeapSize;
+import org.apache.hadoop.hbase.io.hfile.BlockCacheKey;
+import org.apache.hadoop.hbase.io.hfile.HFile;
+import org.apache.hadoop.hbase.io.hfile.LruBlockCache;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.ClassSize;
+
+/**
+ * <p>
+ * Checks our heap size estimates against heap actually used.  For each of
+ * KeyValues, memcaches with and without allocation buffers, an HFile block
+ * index, the block cache and leases, loads many objects and compares
+ * {@link HeapSize#heapSize()} with the growth in used heap, after asking
+ * for collection, taking the median of a few runs so one-off allocations
+ * such as class loading do not count.  Run it on each JVM and pointer size
+ * we deploy on; measured heap is too noisy for the unit tests.
+ * </p>
+ * <p>
+ * Usage: HeapSizeEvaluation [TOLERANCE]
+ * </p>
+ * <p>
+ * Exits non-zero if any estimate is further than TOLERANCE, a fraction of
+ * the estimate and 0.2 by default, from what was measured.
+ * </p>
+ */
+public class HeapSizeEvaluation {
+  static final Log LOG = LogFactory.getLog(HeapSizeEvaluation.class.getName());
+
+  private static final int RUNS = 3;
+
+  private final HBaseConfiguration conf = new HBaseConfiguration();
+  private final double tolerance;
+
+  /*
+   * Makes the objects whose size is checked.
+   */
+  private interface Loader {
+    /**
+     * @return What was loaded.  Its heap size is the estimate checked.
+     * @throws Exception
+     */
+    HeapSize load() throws Exception;
+  }
+
+  /**
+   * @param tolerance
+   */
+  public HeapSizeEvaluation(final double tolerance) {
+    this.tolerance = tolerance;
+  }
+
+  /**
+   * @return True if all estimates were within tolerance.
+   * @throws Exception
+   */
+  public boolean run() throws Exception {
+    RuntimeMXBean runtime = ManagementFactory.getRuntimeMXBean();
+    LOG.info("vmName=" + runtime.getVmName() + ", vmVersion=" +
+      runtime.getVmVersion() + ", 64-bit=" + ClassSize.IS_64_BIT +
+      ", compressedOops=" + ClassSize.COMPRESSED_OOPS);
+    boolean ok = true;
+    ok &= evaluate("KeyValues", new Loader() {
+      public HeapSize load() {
+        return loadKeyValues(100000);
+      }
+    });
+    ok &= evaluate("Memcache", new Loader() {
+      public HeapSize load() {
+        return loadMemcache(false, 100000);
+      }
+    });
+    ok &= evaluate("Memcache with allocation buffers", new Loader() {
+      public HeapSize load() {
+        return loadMemcache(true, 100000);
+      }
+    });
+    ok &= evaluate("Block index", new Loader() {
+      public HeapSize load() throws IOException {
+        return loadBlockIndex(100000);
+      }
+    });
+    ok &= evaluate("Block cache", new Loader() {
+      public HeapSize load() {
+        return loadBlockCache(2000, 1000);
+      }
+    });
+    ok &= evaluate("Leases", new Loader() {
+      public HeapSize load() throws IOException {
+        return loadLeases(20000);
+      }
+    });
+    return ok;
+  }
+
+  private HeapSize loadKeyValues(final int count) {
+    final KeyValue [] kvs = new KeyValue[count];
+    byte [] column = Bytes.toBytes("col:umn");
+    for (int i = 0; i < count; i++) {
+      kvs[i] = new KeyValue(Bytes.toBytes(i), column, i, new byte[i % 10]);
+    }
+    return new HeapSize() {
+      public long heapSize() {
+        long size = ClassSize.sizeOfArray(kvs.length, ClassSize.REFERENCE);
+        for (KeyValue kv: kvs) {
+          size += kv.heapSize();
+        }
+        return size;
+      }
+    };
+  }
+
+  private HeapSize loadMemcache(final boolean mslab, final int count) {
+    HBaseConfiguration c = new HBaseConfiguration();
+    c.setBoolean(MemcacheLAB.USE_MSLAB_KEY, mslab);
+    final Memcache memcache =
+      new Memcache(HConstants.FOREVER, KeyValue.COMPARATOR, c);
+    long estimate = 0;
+    byte [] column = Bytes.toBytes("col:umn");
+    for (int i = 0; i < count; i++) {
+      estimate += memcache.add(new KeyValue(Bytes.toBytes(i), column, i,
+        new byte[i % 100]));
+    }
+    final long size = estimate;
+    return new HeapSize() {
+      public long heapSize() {
+        // Refer to the memcache so it is not collected before measuring.
+        return memcache.memcache.isEmpty()? 0: size;
+      }
+    };
+  }
+
+  private HeapSize loadBlockIndex(final int count) throws IOException {
+    FileSystem fs = FileSystem.getLocal(this.conf);
+    Path path = new Path(System.getProperty("java.io.tmpdir"),
+      "HeapSizeEvaluation.hfile");
+    // Tiny blocks so the index, not the reader, is most of what is loaded.
+    HFile.Writer writer = new HFile.Writer(fs, path, 64, (String)null,
+      Bytes.BYTES_RAWCOMPARATOR);
+    try {
+      for (int i = 0; i < count; i++) {
+        writer.append(Bytes.toBytes(String.format("%010d", i)),
+          new byte[10]);
+      }
+    } finally {
+      writer.close();
+    }
+    final HFile.Reader reader = new HFile.Reader(fs, path, null);
+    reader.loadFileInfo();
+    fs.delete(path, false);
+    return new HeapSize() {
+      public long heapSize() {
+        return reader.indexSize();
+      }
+    };
+  }
+
+  private HeapSize loadBlockCache(final int count, final int blockSize) {
+    LruBlockCache cache = new LruBlockCache(100L * count * blockSize,
+      blockSize);
+    for (int i = 0; i < count; i++) {
+      cache.cacheBlock(new BlockCacheKey("file", i),
+        ByteBuffer.allocate(blockSize));
+    }
+    return cache;
+  }
+
+  private HeapSize loadLeases(final int count) throws IOException {
+    LeaseListener listener = new LeaseListener() {
+      public void leaseExpired() {
+      }
+    };
+    Leases leases = new Leases(60000, 1000);
+    for (int i = 0; i < count; i++) {
+      leases.createLease("lease" + i, listener);
+    }
+    return leases;
+  }
+
+  /*
+   * @return True if the estimate was within tolerance of the median
+   * measured.
+   */
+  private boolean evaluate(final String what, final Loader loader)
+  throws Exception {
+    long [] measured = new long[RUNS];
+    long estimate = 0;
+    for (int i = 0; i < measured.length; i++) {
+      long before = usedHeap();
+      HeapSize loaded = loader.load();
+      measured[i] = usedHeap() - before;
+      // Taken after measuring so what was loaded is still referenced.
+      estimate = loaded.heapSize();
+      loaded = null;
+    }
+    Arrays.sort(measured);
+    long median = measured[measured.length / 2];
+    boolean ok = Math.abs(median - estimate) <= estimate * this.tolerance;
+    LOG.info((ok? "OK ": "OFF ") + what + ": estimated=" + estimate +
+      ", measured=" + Arrays.toString(measured) + ", measured/estimated=" +
+      (estimate == 0? 0: (float)median / estimate));
+    return ok;
+  }
+
+  /*
+   * @return Heap in use after asking for collection.
+   */
+  static long usedHeap() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  /**
+   * @param args
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    double tolerance = args.length > 0? Double.parseDouble(args[0]): 0.2;
+    if (!new HeapSizeEvaluation(tolerance).run()) {
+      System.exit(1);
+    }
+  }
+}
@@ -124,9 +124,15 @@ public class TestCompaction extends HBaseTestCase {
     cellValues = Cell.createSingleCellArray(r.get(secondRowBytes,
       COLUMN_FAMILY_TEXT, -1, 100 /*Too many*/));
     assertNull(r.get(secondRowBytes, COLUMN_FAMILY_TEXT, -1, 100 /*Too many*/));
+    // Each store file brings the store closer to blocking updates.
+    int files = r.getStore(COLUMN_FAMILY_TEXT).getStorefiles().size();
+    int priority = r.getCompactPriority();
+    assertEquals(COMPACTION_THRESHOLD + 1 - files, priority);
     // Force major compaction.
     r.compactStores(true);
     assertEquals(r.getStore(COLUMN_FAMILY_TEXT).getStorefiles().size(), 1);
+    assertEquals(priority + files - 1, r.getCompactPriority());
+    assertTrue(r.getLastCompactSize() > 0);
     assertNull(r.get(secondRowBytes, COLUMN_FAMILY_TEXT, -1, 100 /*Too many*/));
     // Make sure the store files do have some 'aaa' keys in them -- exactly 3.
     // Also, that compacted store files do not have any secondRowBytes because
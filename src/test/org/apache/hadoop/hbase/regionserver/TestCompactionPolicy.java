@@ -0,0 +1,134 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.hbase.HBaseConfiguration;
+
+/**
+ * Test the compaction selection policies and the simulator that compares
+ * them.
+ */
+public class TestCompactionPolicy extends TestCase {
+  private static final long MB = 1024 * 1024;
+
+  private HBaseConfiguration conf;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    this.conf = new HBaseConfiguration();
+    this.conf.setInt("hbase.hstore.compaction.min", 3);
+    this.conf.setInt("hbase.hstore.compaction.max", 5);
+    this.conf.setLong("hbase.hstore.compaction.min.size", 10 * MB);
+    this.conf.set("hbase.hstore.compaction.ratio", "1.0");
+    this.conf.set("hbase.hstore.compaction.ratio.offpeak", "5.0");
+  }
+
+  public void testRatioSelection() {
+    RatioCompactionPolicy policy = ratioPolicy();
+    // Nothing is skipped when the oldest is no bigger than the rest.
+    assertEquals(0, policy.select(sizes(30, 20, 20, 20), 1.0));
+    // Big old files are left alone.
+    assertEquals(2, policy.select(sizes(500, 100, 30, 20, 20), 1.0));
+    // Small files are always taken, whatever the ratio.
+    assertEquals(0, policy.select(sizes(9, 1, 1), 1.0));
+    // Too few files left to be worth it.
+    assertEquals(4, policy.select(sizes(500, 400, 30, 20), 1.0));
+    assertEquals(2, policy.select(sizes(5, 5), 1.0));
+    // No more than the max, the newest.
+    assertEquals(2, policy.select(sizes(1, 1, 1, 1, 1, 1, 1), 1.0));
+    // A higher ratio takes the bigger files in too.
+    assertEquals(0, policy.select(sizes(500, 100, 30, 20, 20), 5.0));
+  }
+
+  public void testOffPeakHours() {
+    RatioCompactionPolicy policy = ratioPolicy();
+    for (int hour = 0; hour < 24; hour++) {
+      assertFalse(policy.isOffPeakHour(hour));
+    }
+    this.conf.setInt("hbase.offpeak.start.hour", 1);
+    this.conf.setInt("hbase.offpeak.end.hour", 5);
+    policy = ratioPolicy();
+    assertFalse(policy.isOffPeakHour(0));
+    assertTrue(policy.isOffPeakHour(1));
+    assertTrue(policy.isOffPeakHour(4));
+    assertFalse(policy.isOffPeakHour(5));
+    assertEquals(5.0, policy.getRatio(2), 0.001);
+    assertEquals(1.0, policy.getRatio(12), 0.001);
+    // Spanning midnight.
+    this.conf.setInt("hbase.offpeak.start.hour", 22);
+    this.conf.setInt("hbase.offpeak.end.hour", 2);
+    policy = ratioPolicy();
+    assertTrue(policy.isOffPeakHour(23));
+    assertTrue(policy.isOffPeakHour(0));
+    assertFalse(policy.isOffPeakHour(2));
+    assertFalse(policy.isOffPeakHour(21));
+    // Bad hours turn it off.
+    this.conf.setInt("hbase.offpeak.end.hour", 24);
+    policy = ratioPolicy();
+    assertFalse(policy.isOffPeakHour(23));
+  }
+
+  public void testNextFileSelection() {
+    NextFileCompactionPolicy policy = new NextFileCompactionPolicy();
+    policy.setConf(this.conf);
+    assertEquals(0, policy.select(sizes(30, 20, 20)));
+    assertEquals(1, policy.select(sizes(50, 20, 20)));
+    // Skips down to the max whatever the sizes.
+    assertEquals(2, policy.select(sizes(1, 1, 1, 1, 1, 1, 1)));
+  }
+
+  public void testSimulator() {
+    this.conf.setInt("hbase.hstore.compactionThreshold", 3);
+    this.conf.setInt("hbase.hstore.compaction.max", 10);
+    this.conf.set("hbase.hstore.compaction.ratio", "1.2");
+    CompactionSimulator simulator = new CompactionSimulator(this.conf);
+    long [] flushes = new long[500];
+    for (int i = 0; i < flushes.length; i++) {
+      flushes[i] = 64 * MB;
+    }
+    CompactionSimulator.Result next =
+      simulator.simulate(NextFileCompactionPolicy.class, flushes);
+    CompactionSimulator.Result ratio =
+      simulator.simulate(RatioCompactionPolicy.class, flushes);
+    assertEquals(500 * 64 * MB, next.getFlushedBytes());
+    assertEquals(500 * 64 * MB, ratio.getFlushedBytes());
+    assertTrue(next.getRewrittenBytes() > 0);
+    assertTrue(ratio.toString(),
+      ratio.getRewrittenBytes() < next.getRewrittenBytes());
+    assertTrue(ratio.getMaxFiles() <= 10);
+  }
+
+  private RatioCompactionPolicy ratioPolicy() {
+    RatioCompactionPolicy policy = new RatioCompactionPolicy();
+    policy.setConf(this.conf);
+    return policy;
+  }
+
+  private long [] sizes(final long... mb) {
+    long [] result = new long[mb.length];
+    for (int i = 0; i < mb.length; i++) {
+      result[i] = mb[i] * MB;
+    }
+    return result;
+  }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import java.util.concurrent.PriorityBlockingQueue;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.hbase.regionserver.CompactSplitThread.CompactionRequest;
+
+/**
+ * Test the order compaction requests are run in.
+ */
+public class TestCompactionQueue extends TestCase {
+  private long seq = 0;
+
+  public void testOrder() {
+    PriorityBlockingQueue<CompactionRequest> queue =
+      new PriorityBlockingQueue<CompactionRequest>();
+    CompactionRequest relaxed = request(5);
+    CompactionRequest first = request(1);
+    CompactionRequest blocked = request(-2);
+    CompactionRequest second = request(1);
+    queue.add(relaxed);
+    queue.add(first);
+    queue.add(blocked);
+    queue.add(second);
+    // Blocked stores first, then the closest to blocking, oldest first.
+    assertSame(blocked, queue.poll());
+    assertSame(first, queue.poll());
+    assertSame(second, queue.poll());
+    assertSame(relaxed, queue.poll());
+    assertNull(queue.poll());
+  }
+
+  public void testCompareTo() {
+    CompactionRequest a = request(3);
+    CompactionRequest b = request(3);
+    assertEquals(0, a.compareTo(a));
+    assertTrue(a.compareTo(b) < 0);
+    assertTrue(b.compareTo(a) > 0);
+    assertTrue(request(Integer.MIN_VALUE).compareTo(
+      request(Integer.MAX_VALUE)) < 0);
+  }
+
+  private CompactionRequest request(final int priority) {
+    return new CompactionRequest(null, null, priority, ++seq, false);
+  }
+}
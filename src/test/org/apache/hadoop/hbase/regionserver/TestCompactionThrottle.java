@@ -0,0 +1,103 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.hbase.HBaseConfiguration;
+
+/**
+ * Test the compaction I/O limiter.
+ */
+public class TestCompactionThrottle extends TestCase {
+  private static final long MB = 1024 * 1024;
+
+  private volatile int queuedCalls = 0;
+
+  public void testLimitFollowsLoad() {
+    CompactionThrottle throttle = makeThrottle(10 * MB, 2 * MB);
+    assertEquals(10 * MB, throttle.getLimit());
+    this.queuedCalls = 2;
+    assertEquals(6 * MB, throttle.getLimit());
+    this.queuedCalls = 4;
+    assertEquals(2 * MB, throttle.getLimit());
+    this.queuedCalls = 100;
+    assertEquals(2 * MB, throttle.getLimit());
+  }
+
+  public void testThrottle() {
+    CompactionThrottle throttle = makeThrottle(4 * MB, 4 * MB);
+    long start = System.currentTimeMillis();
+    // 2MB in 64KB pieces at 4MB a second.
+    for (int i = 0; i < 32; i++) {
+      throttle.throttle(64 * 1024);
+    }
+    long took = System.currentTimeMillis() - start;
+    assertTrue("took " + took, took >= 400);
+    assertEquals(2 * MB, throttle.getAndResetCompactionBytes());
+    assertEquals(0, throttle.getAndResetCompactionBytes());
+    long throttled = throttle.getAndResetThrottledTime();
+    assertTrue("throttled " + throttled, throttled >= 400);
+    assertEquals(0, throttle.getAndResetThrottledTime());
+  }
+
+  public void testNoLimit() {
+    CompactionThrottle throttle = makeThrottle(0, 0);
+    assertEquals(0, throttle.getLimit());
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < 1000; i++) {
+      throttle.throttle(MB);
+    }
+    assertTrue(System.currentTimeMillis() - start < 1000);
+    assertEquals(1000 * MB, throttle.getAndResetCompactionBytes());
+    assertEquals(0, throttle.getAndResetThrottledTime());
+  }
+
+  public void testCountAndInterrupt() {
+    CompactionThrottle throttle = makeThrottle(MB, MB);
+    long start = System.currentTimeMillis();
+    // Counted but not paced.
+    for (int i = 0; i < 100; i++) {
+      throttle.count(MB);
+    }
+    assertTrue(System.currentTimeMillis() - start < 1000);
+    assertEquals(100 * MB, throttle.getAndResetCompactionBytes());
+    // An interrupted wait gives up but leaves the thread interrupted.
+    throttle.throttle(MB);
+    Thread.currentThread().interrupt();
+    throttle.throttle(MB);
+    assertTrue(Thread.interrupted());
+    assertTrue(System.currentTimeMillis() - start < 1000);
+  }
+
+  private CompactionThrottle makeThrottle(final long higher,
+      final long lower) {
+    HBaseConfiguration conf = new HBaseConfiguration();
+    conf.setLong("hbase.regionserver.compaction.throughput.higher", higher);
+    conf.setLong("hbase.regionserver.compaction.throughput.lower", lower);
+    conf.setInt("hbase.regionserver.compaction.throughput.busy.calls", 4);
+    return new CompactionThrottle(conf) {
+      @Override
+      int getQueuedCalls() {
+        return queuedCalls;
+      }
+    };
+  }
+}
@@ -26,6 +26,8 @@ import java.util.List;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hbase.HBaseTestCase;
 import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HTableDescriptor;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.hdfs.MiniDFSCluster;
@@ -92,8 +94,186 @@ public class TestHLog extends HBaseTestCase implements HConstants {
   }
 
   /**
+   * Split many logs with several readers and writers.  Each region's split
+   * log must hold any edits it already had and then all of its edits from
+   * the logs, in the order they were appended.
    * @throws IOException
    */
+  public void testParallelSplit() throws IOException {
+    this.conf.setInt(HLog.SPLIT_READER_THREADS_KEY, 2);
+    this.conf.setInt(HLog.SPLIT_WRITER_THREADS_KEY, 2);
+    final byte [] tableName = Bytes.toBytes(getName());
+    final int regions = 5;
+    final byte [] column = Bytes.toBytes("column:");
+    // One region already has a split log from an earlier failure.
+    byte [] oldRegion = Bytes.toBytes(Integer.toString(0));
+    Path oldLogfile = getSplitLog(tableName, oldRegion);
+    SequenceFile.Writer w = SequenceFile.createWriter(this.fs, this.conf,
+      oldLogfile, HLogKey.class, HLogEdit.class);
+    w.append(new HLogKey(oldRegion, tableName, 0), new HLogEdit(
+      new KeyValue(oldRegion, column, 0, Bytes.toBytes(-1L))));
+    w.close();
+    HLog log = new HLog(this.fs, this.dir, this.conf, null);
+    long value = 0;
+    try {
+      for (int ii = 0; ii < 7; ii++) {
+        for (int i = 0; i < 20; i++) {
+          byte [] regionName = Bytes.toBytes(Integer.toString(i % regions));
+          List<KeyValue> edit = new ArrayList<KeyValue>();
+          edit.add(new KeyValue(regionName, column, System.currentTimeMillis(),
+            Bytes.toBytes(value++)));
+          log.append(regionName, tableName, edit, false);
+        }
+        log.rollWriter();
+      }
+      HLog.splitLog(this.testDir, this.dir, this.fs, this.conf);
+      log = null;
+    } finally {
+      if (log != null) {
+        log.closeAndDelete();
+      }
+    }
+    assertFalse(this.fs.exists(this.dir));
+    long total = 0;
+    for (int i = 0; i < regions; i++) {
+      byte [] regionName = Bytes.toBytes(Integer.toString(i));
+      Reader reader = new SequenceFile.Reader(this.fs,
+        getSplitLog(tableName, regionName), this.conf);
+      try {
+        HLogKey key = new HLogKey();
+        HLogEdit val = new HLogEdit();
+        long last = -2;
+        while (reader.next(key, val)) {
+          assertTrue(Bytes.equals(regionName, key.getRegionName()));
+          long v = Bytes.toLong(val.getKeyValue().getValue());
+          if (last == -2 && i == 0) {
+            assertEquals(-1, v);
+          } else {
+            assertTrue(v > last);
+            total++;
+          }
+          last = v;
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    assertEquals(value, total);
+  }
+
+  private Path getSplitLog(final byte [] tableName, final byte [] regionName) {
+    return new Path(HRegion.getRegionDir(
+      HTableDescriptor.getTableDir(this.testDir, tableName),
+      HRegionInfo.encodeRegionName(regionName)),
+      HConstants.HREGION_OLDLOGFILE_NAME);
+  }
+
+  /**
+   * @throws IOException
+   */
+  /**
+   * Many threads appending with sync on a group committing log.
+   * @throws Exception
+   */
+  public void testGroupCommit() throws Exception {
+    final int THREADS = 10;
+    final int EDITS = 20;
+    final byte [] regionName = Bytes.toBytes("regionname");
+    final byte [] tableName = Bytes.toBytes("tablename");
+    this.conf.setBoolean("hbase.regionserver.hlog.groupcommit", true);
+    Reader reader = null;
+    final HLog log = new HLog(fs, dir, this.conf, null);
+    try {
+      final List<IOException> failures = new ArrayList<IOException>();
+      Thread [] threads = new Thread[THREADS];
+      for (int i = 0; i < THREADS; i++) {
+        final byte [] row = Bytes.toBytes("row" + i);
+        threads[i] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              for (int j = 0; j < EDITS; j++) {
+                List<KeyValue> edits = new ArrayList<KeyValue>();
+                edits.add(new KeyValue(row, Bytes.toBytes("column:" + j),
+                  System.currentTimeMillis(), Bytes.toBytes(j)));
+                log.append(regionName, tableName, edits, true);
+              }
+            } catch (IOException e) {
+              synchronized (failures) {
+                failures.add(e);
+              }
+            }
+          }
+        };
+        threads[i].start();
+      }
+      for (int i = 0; i < THREADS; i++) {
+        threads[i].join();
+      }
+      assertTrue(failures.isEmpty());
+      // No more syncs than there were appends.
+      assertTrue(log.getAndResetSyncCount() <= THREADS * EDITS);
+      assertEquals(THREADS * EDITS, log.getAndResetSyncedEditCount());
+      log.close();
+      Path filename = log.computeFilename(log.getFilenum());
+      reader = new SequenceFile.Reader(fs, filename, conf);
+      HLogKey key = new HLogKey();
+      HLogEdit val = new HLogEdit();
+      int [] perRow = new int[THREADS];
+      long lastSeqNum = -1;
+      int count = 0;
+      while (reader.next(key, val)) {
+        assertTrue(key.getLogSeqNum() > lastSeqNum);
+        lastSeqNum = key.getLogSeqNum();
+        int i = Integer.parseInt(
+          Bytes.toString(val.getKeyValue().getRow()).substring(3));
+        // Each thread's edits are in the order it made them.
+        assertEquals(perRow[i]++, Bytes.toInt(val.getKeyValue().getValue()));
+        count++;
+      }
+      assertEquals(THREADS * EDITS, count);
+    } finally {
+      log.closeAndDelete();
+      if (reader != null) {
+        reader.close();
+      }
+    }
+  }
+
+  /**
+   * Without group commit, a list of edits is written then synced at most
+   * once, however many edits it holds.
+   * @throws IOException
+   */
+  public void testAppendListSyncsOnce() throws IOException {
+    final byte [] regionName = Bytes.toBytes("regionname");
+    final byte [] tableName = Bytes.toBytes("tablename");
+    this.conf.setInt("hbase.regionserver.flushlogentries", 3);
+    HLog log = new HLog(fs, dir, this.conf, null);
+    try {
+      List<KeyValue> edits = new ArrayList<KeyValue>();
+      for (int i = 0; i < 10; i++) {
+        edits.add(new KeyValue(Bytes.toBytes("row"),
+          Bytes.toBytes("column:" + i), System.currentTimeMillis(),
+          Bytes.toBytes(i)));
+      }
+      log.getAndResetSyncCount();
+      log.getAndResetSyncedEditCount();
+      // Past flushlogentries many times over, but one sync.
+      log.append(regionName, tableName, edits, false);
+      assertEquals(1, log.getAndResetSyncCount());
+      assertEquals(10, log.getAndResetSyncedEditCount());
+      log.append(regionName, tableName, edits, true);
+      assertEquals(1, log.getAndResetSyncCount());
+      assertEquals(10, log.getAndResetSyncedEditCount());
+      // Under flushlogentries and not asked to sync.
+      log.append(regionName, tableName, edits.subList(0, 1), false);
+      assertEquals(0, log.getAndResetSyncCount());
+    } finally {
+      log.closeAndDelete();
+    }
+  }
+
   public void testAppend() throws IOException {
     final int COL_COUNT = 10;
     final byte [] regionName = Bytes.toBytes("regionname");
@@ -35,6 +35,7 @@ import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.regionserver.HRegion.Counter;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.ClassSize;
 
 /** memcache test case */
 public class TestHMemcache extends TestCase {
@@ -455,4 +456,22 @@ public class TestHMemcache extends TestCase {
       }
     }
   }
-}
\ No newline at end of file
+
+  /**
+   * An edit is charged its KeyValue and skip list entry when it is new to
+   * the memcache, and nothing when it replaces an equal edit.
+   */
+  public void testHeapSize() {
+    byte [] column = Bytes.toBytes("col:umn");
+    Memcache mc = new Memcache();
+    for (int i = 0; i < 100; i++) {
+      KeyValue kv = new KeyValue(Bytes.toBytes(i), column, i,
+        new byte[i % 10]);
+      assertEquals(kv.heapSize() + ClassSize.CONCURRENT_SKIPLISTMAP_ENTRY,
+        mc.add(kv));
+      assertEquals(0, mc.add(new KeyValue(Bytes.toBytes(i), column, i,
+        new byte[i % 10])));
+    }
+    assertEquals(100, mc.memcache.size());
+  }
+}
@@ -93,6 +93,9 @@ public class TestHRegion extends HBaseTestCase {
       init();
       locks();
       badPuts();
+      multiRowUpdate();
+      increments();
+      uncachedIncrements();
       basic();
       scan();
       splitAndMerge();
@@ -192,6 +195,154 @@ public class TestHRegion extends HBaseTestCase {
     LOG.info("badPuts completed.");
   }
   
+  /**
+   * Test applying many rows at once, some not in the region.
+   * @throws IOException
+   */
+  private void multiRowUpdate() throws IOException {
+    HRegion mr = createNewHRegion(desc, null, Bytes.toBytes("m"));
+    try {
+      byte [][] rows = {Bytes.toBytes("a"), Bytes.toBytes("b"),
+        Bytes.toBytes("a"), Bytes.toBytes("c"), Bytes.toBytes("z"),
+        Bytes.toBytes("d")};
+      BatchUpdate [] updates = new BatchUpdate[rows.length];
+      Integer [] lockids = new Integer[rows.length];
+      for (int i = 0; i < rows.length; i++) {
+        updates[i] = new BatchUpdate(rows[i]);
+        updates[i].put(Bytes.toBytes("contents:" + i), Bytes.toBytes(i));
+      }
+      // Second update of row a deletes what the first put.
+      updates[2].delete(Bytes.toBytes("contents:0"));
+      // Row c is already locked by the caller.
+      lockids[3] = mr.obtainRowLock(rows[3]);
+      // Stops at the first row not in the region.
+      assertEquals(4, mr.batchUpdate(updates, lockids));
+      mr.releaseRowLock(lockids[3]);
+      assertNull(mr.get(rows[0], Bytes.toBytes("contents:0"), -1, 1));
+      assertEquals(2, Bytes.toInt(mr.get(rows[0],
+        Bytes.toBytes("contents:2"), -1, 1).get(0).getValue()));
+      assertEquals(1, Bytes.toInt(mr.get(rows[1],
+        Bytes.toBytes("contents:1"), -1, 1).get(0).getValue()));
+      assertEquals(3, Bytes.toInt(mr.get(rows[3],
+        Bytes.toBytes("contents:3"), -1, 1).get(0).getValue()));
+      assertNull(mr.get(rows[5], Bytes.toBytes("contents:5"), -1, 1));
+      // All locks taken were released.
+      mr.releaseRowLock(mr.obtainRowLock(rows[0]));
+
+      // A bad update fails the batch before any of it is applied, deletes
+      // included.
+      byte [] row = Bytes.toBytes("e");
+      byte [] column = Bytes.toBytes("contents:e");
+      BatchUpdate put = new BatchUpdate(row);
+      put.put(column, Bytes.toBytes("e"));
+      mr.batchUpdate(put, null);
+      updates = new BatchUpdate[2];
+      updates[0] = new BatchUpdate(row);
+      updates[0].delete(column);
+      updates[1] = new BatchUpdate(Bytes.toBytes("f"));
+      updates[1].put(Bytes.toBytes("nosuchfamily:f"), Bytes.toBytes("f"));
+      try {
+        mr.batchUpdate(updates, new Integer[updates.length]);
+        fail("Expected failure on unknown family");
+      } catch (IOException e) {
+        // Expected.
+      }
+      assertNotNull(mr.get(row, column, -1, 1));
+    } finally {
+      mr.close();
+      mr.getLog().closeAndDelete();
+    }
+    LOG.info("multiRowUpdate completed.");
+  }
+
+  /**
+   * Test incrementing counters, across a flush and after other writes.
+   * @throws IOException
+   */
+  private void increments() throws IOException {
+    HRegion ir = createNewHRegion(desc, null, null);
+    try {
+      byte [] row1 = Bytes.toBytes("counter1");
+      byte [] row2 = Bytes.toBytes("counter2");
+      byte [] col1 = Bytes.toBytes("contents:one");
+      byte [] col2 = Bytes.toBytes("contents:two");
+      assertEquals(1L, ir.incrementColumnValue(row1, col1, 1));
+      assertEquals(2L, ir.incrementColumnValue(row1, col1, 1));
+      long [] values = ir.incrementColumnValues(
+        new byte [][] {row1, row1, row2, row1},
+        new byte [][] {col1, col2, col1, col1},
+        new long [] {10, 5, -3, 1});
+      assertEquals(4, values.length);
+      assertEquals(12L, values[0]);
+      assertEquals(5L, values[1]);
+      assertEquals(-3L, values[2]);
+      assertEquals(13L, values[3]);
+      // Only the latest version is kept in the memcache.
+      assertEquals(1, ir.get(row1, col1, -1, 10).size());
+      ir.flushcache();
+      assertEquals(14L, ir.incrementColumnValue(row1, col1, 1));
+      assertEquals(14L,
+        Bytes.toLong(ir.get(row1, col1, -1, 1).get(0).getValue()));
+      // A put replaces the counter value.
+      BatchUpdate b = new BatchUpdate(row1);
+      b.put(col1, new byte [] {0, 0, 1});
+      ir.batchUpdate(b);
+      assertEquals(2L, ir.incrementColumnValue(row1, col1, 1));
+      assertEquals(-2L, ir.incrementColumnValue(row1, col1, -4));
+      // Too big to be a counter.
+      b = new BatchUpdate(row2);
+      b.put(col2, new byte [] {1, 2, 3, 4, 5, 6, 7, 8, 9});
+      ir.batchUpdate(b);
+      try {
+        ir.incrementColumnValue(row2, col2, 1);
+        fail();
+      } catch (IOException e) {
+        // Expected.
+      }
+      assertEquals(-2L, ir.incrementColumnValue(row2, col1, 1));
+    } finally {
+      ir.close();
+      ir.getLog().closeAndDelete();
+    }
+    LOG.info("increments completed.");
+  }
+
+  /**
+   * Test incrementing the same counter more than once in a call with the
+   * counter cache off.
+   * @throws IOException
+   */
+  private void uncachedIncrements() throws IOException {
+    this.conf.setInt("hbase.hregion.counters.cache.rows", 0);
+    HRegion ir = null;
+    try {
+      ir = createNewHRegion(desc, null, null);
+    } finally {
+      this.conf.setInt("hbase.hregion.counters.cache.rows", 1000);
+    }
+    try {
+      byte [] row = Bytes.toBytes("counter");
+      byte [] col = Bytes.toBytes("contents:one");
+      assertEquals(1L, ir.incrementColumnValue(row, col, 1));
+      long [] values = ir.incrementColumnValues(
+        new byte [][] {row, row, row},
+        new byte [][] {col, col, col},
+        new long [] {1, 2, 3});
+      assertEquals(2L, values[0]);
+      assertEquals(4L, values[1]);
+      assertEquals(7L, values[2]);
+      assertEquals(7L,
+        Bytes.toLong(ir.get(row, col, -1, 1).get(0).getValue()));
+      assertEquals(8L, ir.incrementColumnValue(row, col, 1));
+      ir.flushcache();
+      assertEquals(9L, ir.incrementColumnValue(row, col, 1));
+    } finally {
+      ir.close();
+      ir.getLog().closeAndDelete();
+    }
+    LOG.info("uncachedIncrements completed.");
+  }
+
   /**
    * Test getting and releasing locks.
    */
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.ClassSize;
+
+/**
+ * Test the memcache allocation buffers.
+ */
+public class TestMemcacheLAB extends TestCase {
+  private static final byte [] COLUMN = Bytes.toBytes("col:umn");
+
+  /**
+   * Copies are packed one after the other into chunks.
+   */
+  public void testCopy() {
+    MemcacheLAB lab = new MemcacheLAB(1000, 100);
+    KeyValue first = null;
+    int offset = 0;
+    for (int i = 0; i < 50; i++) {
+      KeyValue kv = new KeyValue(Bytes.toBytes(i), COLUMN, i,
+        new byte[i % 10]);
+      KeyValue copy = lab.copy(kv);
+      assertNotSame(kv.getBuffer(), copy.getBuffer());
+      assertTrue(KeyValue.COMPARATOR.compare(kv, copy) == 0);
+      assertTrue(Bytes.equals(kv.getValue(), copy.getValue()));
+      if (first == null) {
+        first = copy;
+      } else if (copy.getBuffer() != first.getBuffer()) {
+        // Moved on to a new chunk because this one did not fit.
+        assertTrue(offset + copy.getLength() > lab.getChunkSize());
+        first = copy;
+        offset = 0;
+      }
+      assertEquals(offset, copy.getOffset());
+      offset += copy.getLength();
+    }
+    assertTrue(lab.getChunkCount() > 1);
+    // Too big to copy.
+    KeyValue big = new KeyValue(Bytes.toBytes("big"), COLUMN, 1,
+      new byte[200]);
+    assertSame(big, lab.copy(big));
+  }
+
+  /**
+   * Concurrent writers never get overlapping space.
+   * @throws Exception
+   */
+  public void testConcurrentCopy() throws Exception {
+    final MemcacheLAB lab = new MemcacheLAB(4096, 256);
+    final int perThread = 1000;
+    final List<List<KeyValue>> copies = new ArrayList<List<KeyValue>>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < 4; t++) {
+      final List<KeyValue> mine = new ArrayList<KeyValue>();
+      copies.add(mine);
+      final byte [] value = Bytes.toBytes(t);
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < perThread; i++) {
+            mine.add(lab.copy(new KeyValue(Bytes.toBytes(i), COLUMN, i,
+              value)));
+          }
+        }
+      });
+    }
+    for (Thread t: threads) {
+      t.start();
+    }
+    for (Thread t: threads) {
+      t.join();
+    }
+    for (int t = 0; t < copies.size(); t++) {
+      List<KeyValue> mine = copies.get(t);
+      assertEquals(perThread, mine.size());
+      for (int i = 0; i < perThread; i++) {
+        KeyValue kv = mine.get(i);
+        assertEquals(i, Bytes.toInt(kv.getRow()));
+        assertEquals(t, Bytes.toInt(kv.getValue()));
+      }
+    }
+  }
+
+  /**
+   * Memcache copies its edits, and into new chunks after a snapshot.
+   * @throws Exception
+   */
+  public void testMemcache() throws Exception {
+    HBaseConfiguration conf = new HBaseConfiguration();
+    conf.setBoolean(MemcacheLAB.USE_MSLAB_KEY, true);
+    Memcache mc = new Memcache(HConstants.FOREVER, KeyValue.COMPARATOR, conf);
+    byte [] row = Bytes.toBytes("row");
+    byte [] value = Bytes.toBytes("value");
+    KeyValue kv = new KeyValue(row, COLUMN, 1, value);
+    mc.add(kv);
+    // Changing the edit after it was added does not change the memcache.
+    kv.getBuffer()[kv.getValueOffset()] = 'X';
+    List<KeyValue> results = mc.get(new KeyValue(row, COLUMN), 1);
+    assertEquals(1, results.size());
+    KeyValue stored = results.get(0);
+    assertTrue(Bytes.equals(value, stored.getValue()));
+
+    mc.snapshot();
+    mc.add(new KeyValue(row, COLUMN, 2, value));
+    results = mc.get(new KeyValue(row, COLUMN), 2);
+    assertEquals(2, results.size());
+    assertNotSame(results.get(0).getBuffer(), results.get(1).getBuffer());
+    TreeSet<KeyValue> snapshot = new TreeSet<KeyValue>(KeyValue.COMPARATOR);
+    snapshot.addAll(mc.getSnapshot());
+    assertSame(stored.getBuffer(), snapshot.first().getBuffer());
+  }
+
+  /**
+   * An edit copied into a chunk is charged the bytes it takes there, not the
+   * chunk, so a store with a few small edits looks small.
+   * @throws Exception
+   */
+  public void testSize() throws Exception {
+    HBaseConfiguration conf = new HBaseConfiguration();
+    conf.setBoolean(MemcacheLAB.USE_MSLAB_KEY, true);
+    Memcache mc = new Memcache(HConstants.FOREVER, KeyValue.COMPARATOR, conf);
+    byte [] value = Bytes.toBytes("value");
+    for (int i = 0; i < 10; i++) {
+      KeyValue kv = new KeyValue(Bytes.toBytes(i), COLUMN, 1, value);
+      assertEquals(KeyValue.FIXED_OVERHEAD + kv.getLength() +
+        ClassSize.CONCURRENT_SKIPLISTMAP_ENTRY, mc.add(kv));
+    }
+    // Too big to copy so charged in full.
+    KeyValue kv = new KeyValue(Bytes.toBytes("big"), COLUMN, 1,
+      new byte[conf.getInt(MemcacheLAB.MAX_ALLOC_KEY,
+        MemcacheLAB.MAX_ALLOC_DEFAULT) + 1]);
+    assertEquals(kv.heapSize() + ClassSize.CONCURRENT_SKIPLISTMAP_ENTRY,
+      mc.add(kv));
+  }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import java.util.List;
+
+import org.apache.hadoop.hbase.HBaseTestCase;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.io.hfile.LruBlockCache;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+
+/**
+ * Test opening a region loads all of its stores, whether one at a time or
+ * in parallel.
+ */
+public class TestRegionOpen extends HBaseTestCase {
+  private MiniDFSCluster cluster;
+  private HRegion r;
+
+  @Override
+  public void setUp() throws Exception {
+    this.cluster = new MiniDFSCluster(conf, 2, true, (String[])null);
+    // Make the hbase rootdir match the minidfs we just span up
+    this.conf.set(HConstants.HBASE_DIR,
+      this.cluster.getFileSystem().getHomeDirectory().toString());
+    super.setUp();
+    HTableDescriptor htd = createTableDescriptor(getName());
+    for (HColumnDescriptor family: htd.getFamilies()) {
+      family.setBlockCacheEnabled(true);
+    }
+    this.r = createNewHRegion(htd, null, null);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    HLog hlog = this.r.getLog();
+    this.r.close();
+    hlog.closeAndDelete();
+    if (this.cluster != null) {
+      shutdownDfs(this.cluster);
+    }
+    super.tearDown();
+  }
+
+  public void testOpenStoresInParallel() throws Exception {
+    reopen(3);
+  }
+
+  public void testOpenStoresOneAtATime() throws Exception {
+    reopen(1);
+  }
+
+  public void testPrefetch() throws Exception {
+    reopen(3);
+    LruBlockCache cache = (LruBlockCache)StoreFile.getBlockCache(this.conf);
+    int blocks = this.r.prefetchStoreFiles(2);
+    assertTrue(blocks > 0);
+    // Everything asked for is now cached.
+    long misses = cache.getStats().getMissCount();
+    assertEquals(blocks, this.r.prefetchStoreFiles(2));
+    assertEquals(misses, cache.getStats().getMissCount());
+  }
+
+  private void reopen(final int threads) throws Exception {
+    HRegionIncommon loader = new HRegionIncommon(this.r);
+    for (byte [] family: COLUMNS) {
+      addContent(loader, Bytes.toString(family));
+      loader.flushcache();
+    }
+    int [] files = new int[COLUMNS.length];
+    for (int i = 0; i < COLUMNS.length; i++) {
+      files[i] = this.r.getStore(COLUMNS[i]).getStorefilesCount();
+      assertTrue(files[i] > 0);
+    }
+    long seqId = this.r.getMinSequenceId();
+    this.r.close();
+
+    this.r.getConf().setInt("hbase.hregion.open.store.threads", threads);
+    this.r = openClosedRegion(this.r);
+    assertEquals(COLUMNS.length, this.r.stores.size());
+    for (int i = 0; i < COLUMNS.length; i++) {
+      assertEquals(files[i], this.r.getStore(COLUMNS[i]).getStorefilesCount());
+      List<KeyValue> kvs = this.r.get(START_KEY_BYTES, COLUMNS[i], -1, 1);
+      assertNotNull(kvs);
+      assertEquals(1, kvs.size());
+    }
+    assertTrue(this.r.getMinSequenceId() >= seqId);
+  }
+}
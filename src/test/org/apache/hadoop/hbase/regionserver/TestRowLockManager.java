@@ -0,0 +1,88 @@
+/**
+ * Copyright 2009 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Test the row locks of a region.
+ */
+public class TestRowLockManager extends TestCase {
+
+  /**
+   * Rows whose hashes collide must not block each other.
+   */
+  public void testHashCollision() {
+    RowLockManager locks = new RowLockManager(4);
+    byte [] a = Bytes.toBytes("Aa");
+    byte [] b = Bytes.toBytes("BB");
+    assertEquals(Bytes.mapKey(a), Bytes.mapKey(b));
+    Integer la = locks.lock(a);
+    Integer lb = locks.lock(b);
+    assertFalse(la.equals(lb));
+    assertSame(a, locks.getRow(la));
+    assertSame(b, locks.getRow(lb));
+    assertEquals(2, locks.size());
+    locks.release(la);
+    locks.release(lb);
+    assertFalse(locks.isLocked(la));
+    assertNull(locks.getRow(lb));
+    assertEquals(0, locks.size());
+    assertEquals(0, locks.getAndResetContendedCount());
+  }
+
+  /**
+   * A second locker of a row waits for the first to release.
+   * @throws Exception
+   */
+  public void testContention() throws Exception {
+    final RowLockManager locks = new RowLockManager(4);
+    final byte [] row = Bytes.toBytes("row");
+    Integer first = locks.lock(row);
+    final AtomicBoolean locked = new AtomicBoolean(false);
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        Integer lockid = locks.lock(row);
+        locked.set(true);
+        locks.release(lockid);
+      }
+    };
+    t.start();
+    while (t.getState() != Thread.State.WAITING) {
+      Thread.sleep(10);
+    }
+    Thread.sleep(10);
+    assertFalse(locked.get());
+    // Other rows are not held up.
+    locks.release(locks.lock(Bytes.toBytes("other")));
+    locks.release(first);
+    t.join();
+    assertTrue(locked.get());
+    assertEquals(1, locks.getAndResetContendedCount());
+    assertTrue(locks.getAndResetWaitTime() > 0);
+    assertEquals(0, locks.getAndResetContendedCount());
+    locks.waitOnLocks();
+  }
+}
@@ -313,6 +313,59 @@ public class TestScanner extends HBaseTestCase {
     }
   }
 
+  /**
+   * Scan a wide row whose cells are spread over several store files and the
+   * memcache, with many cells written to more than one of them.  Each cell
+   * should come back once and in order.
+   * @throws Exception
+   */
+  public void testWideRowAcrossStoreFiles() throws Exception {
+    this.r = createNewHRegion(REGION_INFO.getTableDesc(), null, null);
+    HRegionIncommon hri = new HRegionIncommon(r);
+    final int columns = 1000;
+    final long ts = System.currentTimeMillis();
+    try {
+      // Each pass writes half of the columns, overlapping the pass before.
+      // All but the last pass are flushed to their own store file.
+      for (int pass = 0; pass < 4; pass++) {
+        BatchUpdate bu = new BatchUpdate(ROW_KEY, ts);
+        for (int i = 0; i < columns / 2; i++) {
+          int column = (pass * columns / 4 + i) % columns;
+          bu.put(getColumn(column), Bytes.toBytes(column));
+        }
+        hri.commit(bu);
+        if (pass < 3) {
+          hri.flushcache();
+        }
+      }
+      InternalScanner s = r.getScanner(HConstants.COLUMN_FAMILY_ARRAY,
+        HConstants.EMPTY_START_ROW, HConstants.LATEST_TIMESTAMP, null);
+      try {
+        List<KeyValue> results = new ArrayList<KeyValue>();
+        assertTrue(s.next(results));
+        assertEquals(columns, results.size());
+        for (int i = 0; i < columns; i++) {
+          KeyValue kv = results.get(i);
+          assertTrue(kv.matchingColumn(getColumn(i)));
+          assertEquals(i, Bytes.toInt(kv.getValue()));
+        }
+        results.clear();
+        assertFalse(s.next(results));
+      } finally {
+        s.close();
+      }
+    } finally {
+      this.r.close();
+      this.r.getLog().closeAndDelete();
+      shutdownDfs(cluster);
+    }
+  }
+
+  private byte [] getColumn(final int i) {
+    return Bytes.toBytes(Bytes.toString(HConstants.COLUMN_FAMILY) +
+      String.format("%05d", Integer.valueOf(i)));
+  }
+
   /**
    * HBase-910.
    * @throws Exception
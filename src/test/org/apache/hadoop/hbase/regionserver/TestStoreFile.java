@@ -27,6 +27,7 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hbase.HBaseTestCase;
 import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HColumnDescriptor.BloomType;
 import org.apache.hadoop.hbase.HStoreKey;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.io.Reference.Range;
@@ -71,9 +72,69 @@ public class TestStoreFile extends HBaseTestCase {
     // Make up a directory hierarchy that has a regiondir and familyname.
     HFile.Writer writer = StoreFile.getWriter(this.fs,
       new Path(new Path(this.testDir, "regionname"), "familyname"),
-      2 * 1024, null, null, false);
+      2 * 1024, null, null, null, 0, null);
     writeStoreFile(writer);
-    checkHalfHFile(new StoreFile(this.fs, writer.getPath()));
+    checkHalfHFile(new StoreFile(this.fs, writer.getPath(), true, conf,
+      false));
+  }
+
+  /**
+   * Write files with row and row+column bloom filters and check they rule
+   * out keys not written, including through a reference.
+   * @throws Exception
+   */
+  public void testBloomFilter() throws Exception {
+    Path storedir = new Path(new Path(this.testDir, "regionname"), "familyname");
+    Path dir = new Path(storedir, "1234567890");
+    byte [] column =
+      Bytes.toBytes(getName() + KeyValue.COLUMN_FAMILY_DELIMITER + getName());
+    byte [] otherColumn =
+      Bytes.toBytes(getName() + KeyValue.COLUMN_FAMILY_DELIMITER + "other");
+    int rows = (LAST_CHAR - FIRST_CHAR + 1) * (LAST_CHAR - FIRST_CHAR + 1);
+    for (BloomType type: BloomType.values()) {
+      HFile.Writer writer = StoreFile.getWriter(this.fs, dir, 2 * 1024, null,
+        null, type, rows, this.conf);
+      writeStoreFile(writer);
+      StoreFile hsf = new StoreFile(this.fs, writer.getPath(), true, conf,
+        false);
+      assertEquals(type, hsf.getBloomFilterType());
+      assertEquals(rows, hsf.getBloomFilterKeys());
+      int falsePositives = 0;
+      for (char d = FIRST_CHAR; d <= LAST_CHAR; d++) {
+        for (char e = FIRST_CHAR; e <= LAST_CHAR; e++) {
+          byte [] b = new byte[] {(byte)d, (byte)e};
+          assertTrue(hsf.mayContain(new KeyValue(b, column), true));
+          assertTrue(hsf.mayContain(new KeyValue(b, otherColumn), false));
+          if (hsf.mayContain(new KeyValue(b, otherColumn), true) &&
+              type == BloomType.ROWCOL) {
+            falsePositives++;
+          }
+          byte [] missing = new byte[] {(byte)d, (byte)e, (byte)'x'};
+          if (hsf.mayContain(new KeyValue(missing, column), true)) {
+            falsePositives++;
+          }
+        }
+      }
+      // Filters are sized for 1% false positives.
+      assertTrue("False positives: " + falsePositives,
+        falsePositives < rows * 0.05);
+      // A reference answers from the bloom filter of the file it refers to.
+      Path refPath = StoreFile.split(fs, dir, hsf, hsf.getReader().midkey(),
+        Range.top);
+      StoreFile refHsf = new StoreFile(this.fs, refPath, true, conf, false);
+      assertEquals(type, refHsf.getBloomFilterType());
+      byte [] first = new byte[] {(byte)FIRST_CHAR, (byte)FIRST_CHAR};
+      assertTrue(refHsf.mayContain(new KeyValue(first, column), true));
+    }
+    // No bloom filter, no answers ruled out.
+    HFile.Writer writer = StoreFile.getWriter(this.fs, dir, 2 * 1024, null,
+      null, null, 0, null);
+    writeStoreFile(writer);
+    StoreFile hsf = new StoreFile(this.fs, writer.getPath(), true, conf,
+      false);
+    assertNull(hsf.getBloomFilterType());
+    assertTrue(hsf.mayContain(new KeyValue(Bytes.toBytes("missing"), column),
+      true));
   }
 
   /*
@@ -110,9 +171,10 @@ public class TestStoreFile extends HBaseTestCase {
     Path dir = new Path(storedir, "1234567890");
     // Make a store file and write data to it.
     HFile.Writer writer = StoreFile.getWriter(this.fs, dir, 8 * 1024, null,
-      null, false);
+      null, null, 0, null);
     writeStoreFile(writer);
-    StoreFile hsf = new StoreFile(this.fs, writer.getPath());
+    StoreFile hsf = new StoreFile(this.fs, writer.getPath(), true, conf,
+      false);
     HFile.Reader reader = hsf.getReader();
     // Split on a row, not in middle of row.  Midkey returned by reader
     // may be in middle of row.  Create new one with empty column and
@@ -123,7 +185,7 @@ public class TestStoreFile extends HBaseTestCase {
     byte [] finalKey = hsk.getRow();
     // Make a reference
     Path refPath = StoreFile.split(fs, dir, hsf, reader.midkey(), Range.top);
-    StoreFile refHsf = new StoreFile(this.fs, refPath);
+    StoreFile refHsf = new StoreFile(this.fs, refPath, true, conf, false);
     // Now confirm that I can read from the reference and that it only gets
     // keys from top half of the file.
     HFileScanner s = refHsf.getReader().getScanner();
@@ -157,8 +219,10 @@ public class TestStoreFile extends HBaseTestCase {
     Path bottomPath = StoreFile.split(this.fs, bottomDir,
       f, midkey, Range.bottom);
     // Make readers on top and bottom.
-    HFile.Reader top = new StoreFile(this.fs, topPath).getReader();
-    HFile.Reader bottom = new StoreFile(this.fs, bottomPath).getReader();
+    HFile.Reader top =
+      new StoreFile(this.fs, topPath, true, conf, false).getReader();
+    HFile.Reader bottom =
+      new StoreFile(this.fs, bottomPath, true, conf, false).getReader();
     ByteBuffer previous = null;
     LOG.info("Midkey: " + Bytes.toString(midkey));
     byte [] midkeyBytes = new HStoreKey(midkey).getBytes();
@@ -211,8 +275,9 @@ public class TestStoreFile extends HBaseTestCase {
       topPath = StoreFile.split(this.fs, topDir, f, badmidkey, Range.top);
       bottomPath = StoreFile.split(this.fs, bottomDir, f, badmidkey,
         Range.bottom);
-      top = new StoreFile(this.fs, topPath).getReader();
-      bottom = new StoreFile(this.fs, bottomPath).getReader();
+      top = new StoreFile(this.fs, topPath, true, conf, false).getReader();
+      bottom =
+        new StoreFile(this.fs, bottomPath, true, conf, false).getReader();
       bottomScanner = bottom.getScanner();
       int count = 0;
       while ((!bottomScanner.isSeeked() && bottomScanner.seekTo()) ||
@@ -255,8 +320,9 @@ public class TestStoreFile extends HBaseTestCase {
       topPath = StoreFile.split(this.fs, topDir, f, badmidkey, Range.top);
       bottomPath = StoreFile.split(this.fs, bottomDir, f, badmidkey,
         Range.bottom);
-      top = new StoreFile(this.fs, topPath).getReader();
-      bottom = new StoreFile(this.fs, bottomPath).getReader();
+      top = new StoreFile(this.fs, topPath, true, conf, false).getReader();
+      bottom =
+        new StoreFile(this.fs, bottomPath, true, conf, false).getReader();
       first = true;
       bottomScanner = bottom.getScanner();
       while ((!bottomScanner.isSeeked() && bottomScanner.seekTo()) ||